@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.CreateRequest;
+import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips of the records that dominate client traffic and the txn log
+ * through BinaryOutputArchive/BinaryInputArchive, and through the
+ * ByteBuffer and compact archives for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BinaryArchiveBenchmark {
+
+    @Param({"RequestHeader", "CreateRequest", "CreateTxn",
+            "GetDataResponse", "GetChildren2Response"})
+    public String record;
+
+    private ByteBufferRecord r;
+
+    /** deserialized into, reset before every read */
+    private ByteBufferRecord read;
+
+    private byte[] serialized;
+
+    private byte[] compactSerialized;
+
+    private ByteArrayOutputStream baos;
+
+    private ByteBuffer bb;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte data[] = new byte[128];
+        Stat stat = new Stat(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+        if (record.equals("RequestHeader")) {
+            r = new RequestHeader(1, OpCode.getData);
+        } else if (record.equals("CreateRequest")) {
+            r = new CreateRequest("/benchmark/node-0000000001", data,
+                    Ids.OPEN_ACL_UNSAFE, 0);
+        } else if (record.equals("CreateTxn")) {
+            r = new CreateTxn("/benchmark/node-0000000001", data,
+                    Ids.OPEN_ACL_UNSAFE, false, 1);
+        } else if (record.equals("GetDataResponse")) {
+            r = new GetDataResponse(data, stat);
+        } else if (record.equals("GetChildren2Response")) {
+            List<String> children = new ArrayList<String>();
+            for (int i = 0; i < 100; i++) {
+                children.add(String.format("node-%010d", i));
+            }
+            r = new GetChildren2Response(children, stat);
+        } else {
+            throw new IllegalArgumentException("Unknown record " + record);
+        }
+        baos = new ByteArrayOutputStream(r.serializedSize());
+        serialized = binarySerialize();
+        bb = ByteBuffer.allocate(r.serializedSize());
+        ByteBuffer compact = compactSerialize();
+        compact.flip();
+        compactSerialized = new byte[compact.remaining()];
+        compact.get(compactSerialized);
+        try {
+            read = r.getClass().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Benchmark
+    public byte[] binarySerialize() throws IOException {
+        baos.reset();
+        BinaryOutputArchive.getArchive(baos).writeRecord(r, "r");
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public Record binaryDeserialize() throws IOException {
+        read.reset();
+        BinaryInputArchive.getArchive(new ByteArrayInputStream(serialized))
+            .readRecord(read, "r");
+        return read;
+    }
+
+    @Benchmark
+    public ByteBuffer byteBufferSerialize() throws IOException {
+        bb.clear();
+        ByteBufferOutputArchive oa = new ByteBufferOutputArchive(bb);
+        oa.writeRecord(r, "r");
+        return oa.getBuffer();
+    }
+
+    @Benchmark
+    public Record byteBufferDeserialize() throws IOException {
+        read.reset();
+        new ByteBufferInputArchive(ByteBuffer.wrap(serialized))
+            .readRecord(read, "r");
+        return read;
+    }
+
+    @Benchmark
+    public ByteBuffer compactSerialize() throws IOException {
+        bb.clear();
+        CompactOutputArchive oa = new CompactOutputArchive(bb);
+        oa.writeRecord(r, "r");
+        return oa.getBuffer();
+    }
+
+    @Benchmark
+    public Record compactDeserialize() throws IOException {
+        read.reset();
+        new CompactInputArchive(ByteBuffer.wrap(compactSerialized))
+            .readRecord(read, "r");
+        return read;
+    }
+}
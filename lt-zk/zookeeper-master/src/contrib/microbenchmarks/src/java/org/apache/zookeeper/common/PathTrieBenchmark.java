@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Quota lookups, DataTree calls findMaxPrefix on the quota trie for every
+ * create, delete and setData.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PathTrieBenchmark {
+
+    private static final int LOOKUPS = 1024;
+
+    @Param({"10", "1000"})
+    public int quotas;
+
+    @Param({"8"})
+    public int depth;
+
+    private PathTrie trie;
+
+    private String paths[];
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        trie = new PathTrie();
+        for (int i = 0; i < quotas; i++) {
+            trie.addPath("/app" + i + "/data");
+        }
+        // Half of the lookups fall under a quota, half do not
+        paths = new String[LOOKUPS];
+        for (int i = 0; i < paths.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(i % 2 == 0 ? "/app" : "/other").append(i % quotas)
+                .append("/data");
+            for (int d = 2; d < depth; d++) {
+                sb.append("/level").append(d);
+            }
+            paths[i] = sb.toString();
+        }
+    }
+
+    @Benchmark
+    public String findMaxPrefix() {
+        String path = paths[next];
+        if (++next == paths.length) {
+            next = 0;
+        }
+        return trie.findMaxPrefix(path);
+    }
+}
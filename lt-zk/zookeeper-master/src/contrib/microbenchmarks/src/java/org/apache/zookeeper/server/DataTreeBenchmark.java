@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DataTree operations as applied by FinalRequestProcessor, against a tree
+ * of a fixed number of nodes under a single parent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataTreeBenchmark {
+
+    private static final String PARENT = "/benchmark";
+
+    @Param({"1000", "100000"})
+    public int nodes;
+
+    @Param({"128"})
+    public int dataSize;
+
+    private DataTree dt;
+
+    private String paths[];
+
+    private byte data[];
+
+    private final Stat stat = new Stat();
+
+    private long zxid;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws KeeperException {
+        dt = new DataTree();
+        data = new byte[dataSize];
+        dt.createNode(PARENT, data, Ids.OPEN_ACL_UNSAFE, 0, -1, ++zxid, 0);
+        paths = new String[nodes];
+        for (int i = 0; i < nodes; i++) {
+            paths[i] = PARENT + "/node-" + i;
+            dt.createNode(paths[i], data, Ids.OPEN_ACL_UNSAFE, 0, -1,
+                    ++zxid, 0);
+        }
+    }
+
+    private String nextPath() {
+        String path = paths[next];
+        if (++next == paths.length) {
+            next = 0;
+        }
+        return path;
+    }
+
+    @Benchmark
+    public byte[] getData() throws KeeperException {
+        return dt.getData(nextPath(), stat, null);
+    }
+
+    /**
+     * Deletes an existing node and creates it again, so the size of the
+     * tree stays the same across iterations.
+     */
+    @Benchmark
+    public void deleteAndCreate() throws KeeperException {
+        String path = nextPath();
+        dt.deleteNode(path, ++zxid);
+        dt.createNode(path, data, Ids.OPEN_ACL_UNSAFE, 0, -1, ++zxid, 0);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Touching sessions and connections, as every request does through
+ * ExpiryQueue.update. The queue is shared by all benchmark threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpiryQueueBenchmark {
+
+    @Param({"10000"})
+    public int sessions;
+
+    @Param({"30000"})
+    public int timeout;
+
+    private ExpiryQueue<Long> queue;
+
+    private Long ids[];
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() {
+        queue = new ExpiryQueue<Long>(2000);
+        ids = new Long[sessions];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Long.valueOf(i);
+            queue.update(ids[i], timeout);
+        }
+    }
+
+    private Long next(Cursor c) {
+        Long id = ids[c.next];
+        if (++c.next == ids.length) {
+            c.next = 0;
+        }
+        return id;
+    }
+
+    @Benchmark
+    public Long update(Cursor c) {
+        return queue.update(next(c), timeout);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Long updateContended(Cursor c) {
+        return queue.update(next(c), timeout);
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.ByteBufferInputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetDataRequest;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.proto.RequestHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The per request framing work of NIOServerCnxn without a socket or a
+ * server behind it: splitting length prefixed getData requests off a
+ * stream of reads the way doIO/readLength/readPayload do, decoding them
+ * like ZooKeeperServer.processPacket and FinalRequestProcessor, and
+ * serializing the length prefixed response like sendResponse.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NIOServerCnxnFramingBenchmark {
+
+    private static final int REQUESTS = 1000;
+
+    /** bytes handed out by every simulated socket read */
+    @Param({"64", "65536"})
+    public int readSize;
+
+    @Param({"128"})
+    public int dataSize;
+
+    /** whether responses are written in the compact encoding */
+    @Param({"false", "true"})
+    public boolean compact;
+
+    /** the requests as they arrive from the client */
+    private ByteBuffer stream;
+
+    private final ByteBuffer lenBuffer = ByteBuffer.allocate(4);
+
+    private ReplyHeader replyHeader;
+
+    private GetDataResponse response;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteBufferOutputArchive oa = new ByteBufferOutputArchive(
+                ByteBuffer.allocate(REQUESTS * 64));
+        for (int i = 0; i < REQUESTS; i++) {
+            RequestHeader h = new RequestHeader(i, OpCode.getData);
+            GetDataRequest r = new GetDataRequest("/benchmark/node-" + i, false);
+            oa.writeInt(h.serializedSize() + r.serializedSize(), "len");
+            oa.writeRecord(h, "header");
+            oa.writeRecord(r, "request");
+        }
+        stream = oa.getBuffer();
+        stream.flip();
+        replyHeader = new ReplyHeader(1, 1, 0);
+        response = new GetDataResponse(new byte[dataSize],
+                new Stat(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11));
+    }
+
+    /** Copy at most readSize bytes of the stream, like a socket read */
+    private void read(ByteBuffer dst) {
+        int n = Math.min(Math.min(dst.remaining(), stream.remaining()),
+                readSize);
+        int limit = stream.limit();
+        stream.limit(stream.position() + n);
+        dst.put(stream);
+        stream.limit(limit);
+    }
+
+    /**
+     * Reads, frames and decodes all requests of the stream.
+     */
+    @Benchmark
+    public void readRequests(Blackhole bh) throws IOException {
+        stream.rewind();
+        ByteBuffer incomingBuffer = lenBuffer;
+        while (stream.hasRemaining()) {
+            read(incomingBuffer);
+            if (incomingBuffer.remaining() != 0) {
+                continue;
+            }
+            if (incomingBuffer == lenBuffer) {
+                incomingBuffer.flip();
+                int len = lenBuffer.getInt();
+                if (len < 0 || len > BinaryInputArchive.maxBuffer) {
+                    throw new IOException("Len error " + len);
+                }
+                incomingBuffer.clear();
+                incomingBuffer = ByteBuffer.allocate(len);
+                continue;
+            }
+            incomingBuffer.flip();
+            RequestHeader h = new RequestHeader();
+            h.deserialize(new ByteBufferInputArchive(incomingBuffer), "header");
+            GetDataRequest r = new GetDataRequest();
+            ByteBufferInputStream.byteBuffer2Record(incomingBuffer.slice(), r);
+            bh.consume(h);
+            bh.consume(r);
+            lenBuffer.clear();
+            incomingBuffer = lenBuffer;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer serializeResponse() {
+        return ServerCnxn.serializeResponse(replyHeader, response, "response",
+                compact);
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.ZooDefs.Perms;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up ACLs the way node creation (convertAcls, removeUsage on
+ * delete) and every permission check (convertLong) do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReferenceCountedACLCacheBenchmark {
+
+    @Param({"10", "1000"})
+    public int distinctAcls;
+
+    private ReferenceCountedACLCache cache;
+
+    private List<List<ACL>> acls;
+
+    private Long ids[];
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        cache = new ReferenceCountedACLCache();
+        acls = new ArrayList<List<ACL>>(distinctAcls);
+        ids = new Long[distinctAcls];
+        for (int i = 0; i < distinctAcls; i++) {
+            List<ACL> acl = new ArrayList<ACL>();
+            acl.add(new ACL(Perms.ALL, new Id("digest", "user" + i + ":hash")));
+            acl.add(new ACL(Perms.READ, new Id("world", "anyone")));
+            acls.add(acl);
+            ids[i] = cache.convertAcls(acl);
+        }
+    }
+
+    private int nextIndex() {
+        int i = next;
+        if (++next == distinctAcls) {
+            next = 0;
+        }
+        return i;
+    }
+
+    @Benchmark
+    public List<ACL> convertLong() {
+        return cache.convertLong(ids[nextIndex()]);
+    }
+
+    /**
+     * Adds a reference to an existing ACL and drops it again.
+     */
+    @Benchmark
+    public Long convertAclsAndRemoveUsage() {
+        Long id = cache.convertAcls(acls.get(nextIndex()));
+        cache.removeUsage(id);
+        return id;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Setting a watch on a path and triggering it, with a number of watchers
+ * (connections) per path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WatchManagerBenchmark {
+
+    private static final int PATHS = 1000;
+
+    @Param({"1", "100"})
+    public int watchersPerPath;
+
+    private WatchManager wm;
+
+    private Watcher watchers[];
+
+    private String paths[];
+
+    private int next;
+
+    private static class NullWatcher implements Watcher {
+        public void process(WatchedEvent event) {
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        wm = new WatchManager();
+        watchers = new Watcher[watchersPerPath];
+        for (int i = 0; i < watchers.length; i++) {
+            watchers[i] = new NullWatcher();
+        }
+        paths = new String[PATHS];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "/benchmark/node-" + i;
+        }
+    }
+
+    private String nextPath() {
+        String path = paths[next];
+        if (++next == paths.length) {
+            next = 0;
+        }
+        return path;
+    }
+
+    @Benchmark
+    public Set<Watcher> addAndTrigger() {
+        String path = nextPath();
+        for (Watcher w : watchers) {
+            wm.addWatch(path, w);
+        }
+        return wm.triggerWatch(path, EventType.NodeDataChanged);
+    }
+
+    /**
+     * Triggering a path nobody watches, the common case for writes.
+     */
+    @Benchmark
+    public void triggerUnwatched(Blackhole bh) {
+        bh.consume(wm.triggerWatch(nextPath(), EventType.NodeDataChanged));
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Writes the binary format of BinaryOutputArchive straight into a
+ * ByteBuffer. Strings are encoded in place, without going through an
+ * intermediate buffer. If the buffer runs out of space it is replaced by a
+ * larger one, so callers that did not size it from
+ * {@link ByteBufferRecord#serializedSize()} have to pick it up with
+ * {@link #getBuffer()}.
+ */
+public final class ByteBufferOutputArchive implements OutputArchive {
+    private ByteBuffer bb;
+
+    public ByteBufferOutputArchive(ByteBuffer bb) {
+        this.bb = bb;
+    }
+
+    /**
+     * @return the buffer written to, positioned after the last write
+     */
+    public ByteBuffer getBuffer() {
+        return bb;
+    }
+
+    /**
+     * @return the number of bytes writeString takes for s
+     */
+    public static int stringSize(String s) {
+        if (s == null) {
+            return 4;
+        }
+        return 4 + utf8Length(s);
+    }
+
+    /**
+     * @return the number of bytes writeBuffer takes for b
+     */
+    public static int bufferSize(byte b[]) {
+        if (b == null) {
+            return 4;
+        }
+        return 4 + b.length;
+    }
+
+    /**
+     * The encoded length of s, matching the encoder of BinaryOutputArchive
+     * which writes every char as one to three bytes.
+     */
+    static int utf8Length(CharSequence s) {
+        final int len = s.length();
+        int size = len;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                size += 2;
+            } else if (c >= 0x80) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private void ensureRemaining(int n) {
+        if (bb.remaining() >= n) {
+            return;
+        }
+        int capacity = Math.max(bb.capacity() << 1, bb.position() + n);
+        ByteBuffer grown = bb.isDirect() ? ByteBuffer.allocateDirect(capacity)
+                : ByteBuffer.allocate(capacity);
+        bb.flip();
+        grown.put(bb);
+        bb = grown;
+    }
+
+    public void writeByte(byte b, String tag) throws IOException {
+        ensureRemaining(1);
+        bb.put(b);
+    }
+
+    public void writeBool(boolean b, String tag) throws IOException {
+        ensureRemaining(1);
+        bb.put(b ? (byte) 1 : (byte) 0);
+    }
+
+    public void writeInt(int i, String tag) throws IOException {
+        ensureRemaining(4);
+        bb.putInt(i);
+    }
+
+    public void writeLong(long l, String tag) throws IOException {
+        ensureRemaining(8);
+        bb.putLong(l);
+    }
+
+    public void writeFloat(float f, String tag) throws IOException {
+        ensureRemaining(4);
+        bb.putFloat(f);
+    }
+
+    public void writeDouble(double d, String tag) throws IOException {
+        ensureRemaining(8);
+        bb.putDouble(d);
+    }
+
+    public void writeString(String s, String tag) throws IOException {
+        if (s == null) {
+            writeInt(-1, "len");
+            return;
+        }
+        final int size = utf8Length(s);
+        ensureRemaining(4 + size);
+        bb.putInt(size);
+        putString(bb, s, size);
+    }
+
+    /**
+     * Encode s into bb, which must have size bytes remaining.
+     *
+     * @param size the result of utf8Length(s)
+     */
+    static void putString(ByteBuffer bb, String s, int size) {
+        final int len = s.length();
+        if (size == len) {
+            for (int i = 0; i < len; i++) {
+                bb.put((byte) s.charAt(i));
+            }
+            return;
+        }
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bb.put((byte) c);
+            } else if (c < 0x800) {
+                bb.put((byte) (0xc0 | (c >> 6)));
+                bb.put((byte) (0x80 | (c & 0x3f)));
+            } else {
+                bb.put((byte) (0xe0 | (c >> 12)));
+                bb.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                bb.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    public void writeBuffer(byte barr[], String tag) throws IOException {
+        if (barr == null) {
+            writeInt(-1, tag);
+            return;
+        }
+        ensureRemaining(4 + barr.length);
+        bb.putInt(barr.length);
+        bb.put(barr);
+    }
+
+    public void writeRecord(Record r, String tag) throws IOException {
+        if (r instanceof ByteBufferRecord) {
+            ((ByteBufferRecord) r).serialize(this, tag);
+        } else {
+            r.serialize(this, tag);
+        }
+    }
+
+    public void startRecord(Record r, String tag) throws IOException {}
+
+    public void endRecord(Record r, String tag) throws IOException {}
+
+    public void startVector(List<?> v, String tag) throws IOException {
+        if (v == null) {
+            writeInt(-1, tag);
+            return;
+        }
+        writeInt(v.size(), tag);
+    }
+
+    public void endVector(List<?> v, String tag) throws IOException {}
+
+    public void startMap(TreeMap<?,?> v, String tag) throws IOException {
+        writeInt(v.size(), tag);
+    }
+
+    public void endMap(TreeMap<?,?> v, String tag) throws IOException {}
+}
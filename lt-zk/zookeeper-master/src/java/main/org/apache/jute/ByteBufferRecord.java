@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.IOException;
+
+import org.apache.yetus.audience.InterfaceAudience;
+
+/**
+ * A Record that knows its binary size and can be written to and read from
+ * a ByteBuffer directly. The jute compiler generates these methods for
+ * every record, they produce the same bytes as the BinaryOutputArchive.
+ * Records can be reset and reused, as long as no reference to them is
+ * kept past their use.
+ */
+@InterfaceAudience.Public
+public interface ByteBufferRecord extends Record {
+    /**
+     * Set all fields back to the values of a newly constructed record.
+     */
+    public void reset();
+
+    /**
+     * @return number of bytes the binary serialization of this record takes
+     */
+    public int serializedSize();
+
+    public void serialize(ByteBufferOutputArchive archive, String tag)
+        throws IOException;
+
+    public void deserialize(ByteBufferInputArchive archive, String tag)
+        throws IOException;
+}
@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads what {@link CompactOutputArchive} wrote from a ByteBuffer,
+ * advancing its position. Use a new archive for every message.
+ */
+public final class CompactInputArchive implements InputArchive {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer bb;
+
+    private long lastZxid;
+
+    static private class CompactIndex implements Index {
+        private int nelems;
+        CompactIndex(int nelems) {
+            this.nelems = nelems;
+        }
+        public boolean done() {
+            return (nelems <= 0);
+        }
+        public void incr() {
+            nelems--;
+        }
+    }
+
+    public CompactInputArchive(ByteBuffer bb) {
+        this.bb = bb;
+    }
+
+    private void checkRemaining(int n) throws EOFException {
+        if (bb.remaining() < n) {
+            throw new EOFException("Need " + n + " bytes, "
+                    + bb.remaining() + " remaining");
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            checkRemaining(1);
+            byte b = bb.get();
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public byte readByte(String tag) throws IOException {
+        checkRemaining(1);
+        return bb.get();
+    }
+
+    public boolean readBool(String tag) throws IOException {
+        checkRemaining(1);
+        return bb.get() != 0;
+    }
+
+    public int readInt(String tag) throws IOException {
+        long l = readVarint();
+        if ((int) l != l) {
+            throw new IOException("Value " + l + " of " + tag
+                    + " does not fit an int");
+        }
+        return (int) l;
+    }
+
+    public long readLong(String tag) throws IOException {
+        long l = readVarint();
+        if (CompactOutputArchive.isZxid(tag)) {
+            l += lastZxid;
+            lastZxid = l;
+        }
+        return l;
+    }
+
+    public float readFloat(String tag) throws IOException {
+        checkRemaining(4);
+        return bb.getFloat();
+    }
+
+    public double readDouble(String tag) throws IOException {
+        checkRemaining(8);
+        return bb.getDouble();
+    }
+
+    public String readString(String tag) throws IOException {
+        int len = readInt(tag);
+        if (len == -1) return null;
+        checkLength(len);
+        checkRemaining(len);
+        String s;
+        if (bb.hasArray()) {
+            s = new String(bb.array(), bb.arrayOffset() + bb.position(), len,
+                    UTF8);
+            bb.position(bb.position() + len);
+        } else {
+            byte b[] = new byte[len];
+            bb.get(b);
+            s = new String(b, UTF8);
+        }
+        return s;
+    }
+
+    public byte[] readBuffer(String tag) throws IOException {
+        int len = readInt(tag);
+        if (len == -1) return null;
+        checkLength(len);
+        checkRemaining(len);
+        byte[] arr = new byte[len];
+        bb.get(arr);
+        return arr;
+    }
+
+    public void readRecord(Record r, String tag) throws IOException {
+        r.deserialize(this, tag);
+    }
+
+    public void startRecord(String tag) throws IOException {}
+
+    public void endRecord(String tag) throws IOException {}
+
+    public Index startVector(String tag) throws IOException {
+        int len = readInt(tag);
+        if (len == -1) {
+            return null;
+        }
+        return new CompactIndex(len);
+    }
+
+    public void endVector(String tag) throws IOException {}
+
+    public Index startMap(String tag) throws IOException {
+        return new CompactIndex(readInt(tag));
+    }
+
+    public void endMap(String tag) throws IOException {}
+
+    // Same sanity check as BinaryInputArchive
+    private void checkLength(int len) throws IOException {
+        if (len < 0 || len > BinaryInputArchive.maxBuffer + 1024) {
+            throw new IOException(BinaryInputArchive.UNREASONBLE_LENGTH + len);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Writes records into a ByteBuffer in a compact form of the binary format:
+ * ints and longs, including the lengths of strings, buffers, vectors and
+ * maps, are zig-zag encoded varints, taking a single byte for values
+ * between -64 and 63. Longs tagged as zxids are written as the difference
+ * to the previous zxid written to the same archive, so the zxids of a
+ * reply header and the Stat that follows it mostly take a byte or two.
+ * Use a new archive, or {@link #reset}, for every message. Floats and
+ * doubles are written as in the binary format.
+ *
+ * Read with {@link CompactInputArchive}.
+ */
+public final class CompactOutputArchive implements OutputArchive {
+    private ByteBuffer bb;
+
+    private long lastZxid;
+
+    public CompactOutputArchive(ByteBuffer bb) {
+        this.bb = bb;
+    }
+
+    /**
+     * @return the buffer written to, positioned after the last write
+     */
+    public ByteBuffer getBuffer() {
+        return bb;
+    }
+
+    /**
+     * Forget the last zxid written, so the next message starts over.
+     */
+    public void reset() {
+        lastZxid = 0;
+    }
+
+    /**
+     * @return whether tag names a zxid that is delta encoded
+     */
+    static boolean isZxid(String tag) {
+        return tag != null && tag.regionMatches(true,
+                tag.length() - 4, "zxid", 0, 4);
+    }
+
+    private void ensureRemaining(int n) {
+        if (bb.remaining() >= n) {
+            return;
+        }
+        int capacity = Math.max(bb.capacity() << 1, bb.position() + n);
+        ByteBuffer grown = bb.isDirect() ? ByteBuffer.allocateDirect(capacity)
+                : ByteBuffer.allocate(capacity);
+        bb.flip();
+        grown.put(bb);
+        bb = grown;
+    }
+
+    private void writeVarint(long l) {
+        long v = (l << 1) ^ (l >> 63);
+        if (bb.remaining() < 10) {
+            // Only grow if this value does not fit
+            ensureRemaining((64 - Long.numberOfLeadingZeros(v | 1) + 6) / 7);
+        }
+        while ((v & ~0x7fL) != 0) {
+            bb.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        bb.put((byte) v);
+    }
+
+    public void writeByte(byte b, String tag) throws IOException {
+        ensureRemaining(1);
+        bb.put(b);
+    }
+
+    public void writeBool(boolean b, String tag) throws IOException {
+        ensureRemaining(1);
+        bb.put(b ? (byte) 1 : (byte) 0);
+    }
+
+    public void writeInt(int i, String tag) throws IOException {
+        writeVarint(i);
+    }
+
+    public void writeLong(long l, String tag) throws IOException {
+        if (isZxid(tag)) {
+            writeVarint(l - lastZxid);
+            lastZxid = l;
+        } else {
+            writeVarint(l);
+        }
+    }
+
+    public void writeFloat(float f, String tag) throws IOException {
+        ensureRemaining(4);
+        bb.putFloat(f);
+    }
+
+    public void writeDouble(double d, String tag) throws IOException {
+        ensureRemaining(8);
+        bb.putDouble(d);
+    }
+
+    public void writeString(String s, String tag) throws IOException {
+        if (s == null) {
+            writeVarint(-1);
+            return;
+        }
+        final int size = ByteBufferOutputArchive.utf8Length(s);
+        writeVarint(size);
+        ensureRemaining(size);
+        ByteBufferOutputArchive.putString(bb, s, size);
+    }
+
+    public void writeBuffer(byte barr[], String tag) throws IOException {
+        if (barr == null) {
+            writeVarint(-1);
+            return;
+        }
+        writeVarint(barr.length);
+        ensureRemaining(barr.length);
+        bb.put(barr);
+    }
+
+    public void writeRecord(Record r, String tag) throws IOException {
+        r.serialize(this, tag);
+    }
+
+    public void startRecord(Record r, String tag) throws IOException {}
+
+    public void endRecord(Record r, String tag) throws IOException {}
+
+    public void startVector(List<?> v, String tag) throws IOException {
+        writeVarint(v == null ? -1 : v.size());
+    }
+
+    public void endVector(List<?> v, String tag) throws IOException {}
+
+    public void startMap(TreeMap<?,?> v, String tag) throws IOException {
+        writeVarint(v.size());
+    }
+
+    public void endMap(TreeMap<?,?> v, String tag) throws IOException {}
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A bounded table of decoded strings keyed by their encoded bytes, so that
+ * strings that are read over and over again, like the paths of popular
+ * znodes, decode to the same instance without allocating. Each slot holds
+ * a single entry and a colliding string simply replaces it. The table is
+ * shared between threads without locking: entries are immutable, a thread
+ * that does not see the latest entry of a slot just decodes the string.
+ */
+public final class StringInterner {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final class Entry {
+        final int hash;
+        final byte[] bytes;
+        final String string;
+
+        Entry(int hash, byte[] bytes, String string) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.string = string;
+        }
+    }
+
+    private final Entry[] table;
+
+    private final int mask;
+
+    private final int maxLength;
+
+    /**
+     * @param size number of slots, rounded up to a power of two
+     * @param maxLength longest encoded string that is interned
+     */
+    public StringInterner(int size, int maxLength) {
+        int slots = Integer.highestOneBit(Math.max(size, 1));
+        if (slots < size) {
+            slots <<= 1;
+        }
+        this.table = new Entry[slots];
+        this.mask = slots - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Decode len UTF-8 bytes of b starting at off, returning the instance
+     * decoded last time if the same bytes are still in the table.
+     */
+    public String intern(byte b[], int off, int len) {
+        if (len > maxLength) {
+            return new String(b, off, len, UTF8);
+        }
+        int h = 0;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + b[i];
+        }
+        h ^= (h >>> 16);
+        int idx = h & mask;
+        Entry e = table[idx];
+        if (e != null && e.hash == h && e.bytes.length == len
+                && equals(e.bytes, b, off)) {
+            return e.string;
+        }
+        String s = new String(b, off, len, UTF8);
+        table[idx] = new Entry(h, Arrays.copyOfRange(b, off, off + len), s);
+        return s;
+    }
+
+    private static boolean equals(byte a[], byte b[], int off) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -31,11 +31,19 @@ public JBoolean() {
     public String getSignature() {
         return "z";
     }
+
+    String genJavaSerializedSize(String fname) {
+        return "    size_ += 1;\n";
+    }
     
     public String genJavaCompareTo(String fname) {
         return "    ret = ("+fname+" == peer."+fname+")? 0 : ("+fname+"?1:-1);\n";
     }
     
+    String genJavaReset(String fname) {
+        return "    "+fname+"=false;\n";
+    }
+    
     public String genJavaHashCode(String fname) {
         return "     ret = ("+fname+")?0:1;\n";
     }
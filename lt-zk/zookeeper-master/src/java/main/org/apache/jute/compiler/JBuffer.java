@@ -41,6 +41,10 @@ public String genCppGetSet(String fname, int fIdx) {
     public String getSignature() {
         return "B";
     }
+
+    String genJavaSerializedSize(String fname) {
+        return "    size_ += ByteBufferOutputArchive.bufferSize("+fname+");\n";
+    }
     
     public String genJavaReadWrapper(String fname, String tag, boolean decl) {
         String ret = "";
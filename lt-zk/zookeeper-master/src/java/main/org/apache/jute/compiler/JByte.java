@@ -31,4 +31,8 @@ public JByte() {
     public String getSignature() {
         return "b";
     }
+
+    String genJavaSerializedSize(String fname) {
+        return "    size_ += 1;\n";
+    }
 }
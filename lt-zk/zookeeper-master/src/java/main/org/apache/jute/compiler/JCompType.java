@@ -47,6 +47,10 @@ String genJavaEquals(String fname, String peer) {
         return "    ret = "+fname+".equals("+peer+");\n";
     }
     
+    String genJavaReset(String fname) {
+        return "    "+fname+"=null;\n";
+    }
+    
     String genJavaHashCode(String fname) {
         return "    ret = "+fname+".hashCode();\n";
     }
@@ -31,6 +31,10 @@ public JDouble() {
     public String getSignature() {
         return "d";
     }
+
+    String genJavaSerializedSize(String fname) {
+        return "    size_ += 8;\n";
+    }
     
     public String genJavaHashCode(String fname) {
         String tmp = "Double.doubleToLongBits("+fname+")";
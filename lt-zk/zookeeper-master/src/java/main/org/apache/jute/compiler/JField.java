@@ -121,6 +121,10 @@ public String genJavaReadMethodName() {
         return mType.genJavaReadMethod(getName(), getTag());
     }
     
+    public String genJavaSerializedSize() {
+        return mType.genJavaSerializedSize(getName());
+    }
+    
     public String genJavaCompareTo() {
         return mType.genJavaCompareTo(getName());
     }
@@ -133,6 +137,10 @@ public String genJavaHashCode() {
         return mType.genJavaHashCode(getName());
     }
 
+    public String genJavaReset() {
+        return mType.genJavaReset(getName());
+    }
+
     public String genJavaConstructorSet(String fname) {
         return mType.genJavaConstructorSet(mName, fname);
     }
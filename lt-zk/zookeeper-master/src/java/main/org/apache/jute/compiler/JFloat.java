@@ -31,6 +31,10 @@ public JFloat() {
     public String getSignature() {
         return "f";
     }
+
+    String genJavaSerializedSize(String fname) {
+        return "    size_ += 4;\n";
+    }
     
     public String genJavaHashCode(String fname) {
         return "    ret = Float.floatToIntBits("+fname+");\n";
@@ -31,4 +31,8 @@ public JInt() {
     public String getSignature() {
         return "i";
     }
+
+    String genJavaSerializedSize(String fname) {
+        return "    size_ += 4;\n";
+    }
 }
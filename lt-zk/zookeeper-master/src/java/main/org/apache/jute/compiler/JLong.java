@@ -31,6 +31,10 @@ public JLong() {
     public String getSignature() {
         return "l";
     }
+
+    String genJavaSerializedSize(String fname) {
+        return "    size_ += 8;\n";
+    }
     
     public String genJavaHashCode(String fname) {
         return "    ret = (int) ("+fname+"^("+fname+">>>32));\n";
@@ -98,6 +98,23 @@ public String genJavaWriteWrapper(String fname, String tag) {
     public String genJavaWriteMethod(String fname, String tag) {
         return genJavaWriteWrapper(fname, tag);
     }
+    
+    String genJavaSerializedSize(String fname) {
+        StringBuilder ret = new StringBuilder("    {\n");
+        incrLevel();
+        ret.append("      size_ += 4;\n");
+        ret.append("      java.util.Set "+getId("es")+" = "+fname+".entrySet();\n");
+        ret.append("      for(java.util.Iterator "+getId("midx")+" = "+getId("es")+".iterator(); "+getId("midx")+".hasNext(); ) {\n");
+        ret.append("        java.util.Map.Entry "+getId("me")+" = (java.util.Map.Entry) "+getId("midx")+".next();\n");
+        ret.append("        "+mKey.getJavaWrapperType()+" "+getId("k")+" = ("+mKey.getJavaWrapperType()+") "+getId("me")+".getKey();\n");
+        ret.append("        "+mValue.getJavaWrapperType()+" "+getId("v")+" = ("+mValue.getJavaWrapperType()+") "+getId("me")+".getValue();\n");
+        ret.append(mKey.genJavaSerializedSize(getId("k")));
+        ret.append(mValue.genJavaSerializedSize(getId("v")));
+        ret.append("      }\n");
+        ret.append("    }\n");
+        decrLevel();
+        return ret.toString();
+    }
 
     public String genCsharpWriteWrapper(String fname, int tag) {
         StringBuilder ret = new StringBuilder("    {\n");
@@ -122,6 +122,10 @@ public String genJavaWriteWrapper(String fname, String tag) {
         return "    a_.writeRecord("+fname+",\""+tag+"\");\n";
     }
 
+    String genJavaSerializedSize(String fname) {
+        return "    size_ += "+fname+".serializedSize();\n";
+    }
+
     String genCsharpReadMethod(String fname, String tag) {
         //return "    "+capitalize(fname)+"=a_.Read"+mMethodSuffix+"(" + capitalize(fname) + ",\""+tag+"\");\n";
         return genCsharpReadWrapper(capitalize(fname), tag, false);
@@ -429,7 +433,7 @@ public void genJavaCode(File outputDirectory) throws IOException {
             jj.write("import org.apache.jute.*;\n");
             jj.write("import org.apache.yetus.audience.InterfaceAudience;\n");
             jj.write("@InterfaceAudience.Public\n");
-            jj.write("public class " + getName() + " implements Record {\n");
+            jj.write("public class " + getName() + " implements ByteBufferRecord {\n");
             for (Iterator<JField> i = mFields.iterator(); i.hasNext(); ) {
                 JField jf = i.next();
                 jj.write(jf.genJavaDecl());
@@ -477,6 +481,40 @@ public void genJavaCode(File outputDirectory) throws IOException {
             jj.write("    a_.endRecord(tag);\n");
             jj.write("}\n");
 
+            jj.write("  public void reset() {\n");
+            for (Iterator<JField> i = mFields.iterator(); i.hasNext(); ) {
+                JField jf = i.next();
+                jj.write(jf.genJavaReset());
+            }
+            jj.write("  }\n");
+
+            jj.write("  public int serializedSize() {\n");
+            jj.write("    int size_ = 0;\n");
+            for (Iterator<JField> i = mFields.iterator(); i.hasNext(); ) {
+                JField jf = i.next();
+                jj.write(jf.genJavaSerializedSize());
+            }
+            jj.write("    return size_;\n");
+            jj.write("  }\n");
+
+            jj.write("  public void serialize(ByteBufferOutputArchive a_, String tag) throws java.io.IOException {\n");
+            jj.write("    a_.startRecord(this,tag);\n");
+            for (Iterator<JField> i = mFields.iterator(); i.hasNext(); ) {
+                JField jf = i.next();
+                jj.write(jf.genJavaWriteMethodName());
+            }
+            jj.write("    a_.endRecord(this,tag);\n");
+            jj.write("  }\n");
+
+            jj.write("  public void deserialize(ByteBufferInputArchive a_, String tag) throws java.io.IOException {\n");
+            jj.write("    a_.startRecord(tag);\n");
+            for (Iterator<JField> i = mFields.iterator(); i.hasNext(); ) {
+                JField jf = i.next();
+                jj.write(jf.genJavaReadMethodName());
+            }
+            jj.write("    a_.endRecord(tag);\n");
+            jj.write("  }\n");
+
             jj.write("  public String toString() {\n");
             jj.write("    try {\n");
             jj.write("      java.io.ByteArrayOutputStream s =\n");
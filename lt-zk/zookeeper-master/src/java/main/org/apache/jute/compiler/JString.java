@@ -31,6 +31,10 @@ public JString() {
     public String getSignature() {
         return "s";
     }
+
+    String genJavaSerializedSize(String fname) {
+        return "    size_ += ByteBufferOutputArchive.stringSize("+fname+");\n";
+    }
     
     public String genJavaReadWrapper(String fname, String tag, boolean decl) {
         String ret = "";
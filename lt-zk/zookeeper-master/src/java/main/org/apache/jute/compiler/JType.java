@@ -48,6 +48,11 @@ abstract public class JType {
     }
     
     abstract String getSignature();
+
+    /**
+     * Code adding the binary size of the field to size_
+     */
+    abstract String genJavaSerializedSize(String fname);
     
     String genCppDecl(String fname) {
         return "  "+mCppName+" m"+fname+";\n"; 
@@ -156,6 +161,10 @@ String genJavaHashCode(String fname) {
         return "    ret = (int)"+fname+";\n";
     }
 
+    String genJavaReset(String fname) {
+        return "    "+fname+"=0;\n";
+    }
+
     String genJavaConstructorSet(String fname, String name) {
         return "    this."+fname+"="+name+";\n";
     }
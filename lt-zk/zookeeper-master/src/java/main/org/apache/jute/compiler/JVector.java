@@ -97,6 +97,22 @@ public String genJavaWriteMethod(String fname, String tag) {
         return genJavaWriteWrapper(fname, tag);
     }
     
+    String genJavaSerializedSize(String fname) {
+        StringBuilder ret = new StringBuilder("    {\n");
+        incrLevel();
+        ret.append("      size_ += 4;\n");
+        ret.append("      if ("+fname+"!= null) {");
+        ret.append("          int "+getId("len")+" = "+fname+".size();\n");
+        ret.append("          for(int "+getId("vidx")+" = 0; "+getId("vidx")+"<"+getId("len")+"; "+getId("vidx")+"++) {\n");
+        ret.append("            "+mElement.getJavaWrapperType()+" "+getId("e")+" = ("+mElement.getJavaWrapperType()+") "+fname+".get("+getId("vidx")+");\n");
+        ret.append(mElement.genJavaSerializedSize(getId("e")));
+        ret.append("          }\n");
+        ret.append("      }\n");
+        ret.append("    }\n");
+        decrLevel();
+        return ret.toString();
+    }
+    
     public JType getElementType() {
     	return mElement;
     }
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper;
+
+import org.apache.yetus.audience.InterfaceAudience;
+
+/**
+ * Modes of the watches added by {@link ZooKeeper#addWatch}. Unlike the
+ * watches left by the read operations, these are not removed when they
+ * trigger.
+ */
+@InterfaceAudience.Public
+public enum AddWatchMode {
+    /**
+     * The watch triggers for the data and children changes of the node, and
+     * for its creation and deletion, like a data watch plus a child watch
+     * that are set again every time.
+     */
+    PERSISTENT (0),
+    /**
+     * The watch triggers for the data changes, creation and deletion of the
+     * node and of all the nodes below it. There are no
+     * {@link org.apache.zookeeper.Watcher.Event.EventType#NodeChildrenChanged}
+     * events, the creations and deletions of the children are reported
+     * instead.
+     */
+    PERSISTENT_RECURSIVE (1);
+
+    private final int mode;
+
+    AddWatchMode(int mode) {
+        this.mode = mode;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Map an integer value to an AddWatchMode value
+     */
+    static public AddWatchMode fromMode(int mode) throws KeeperException {
+        switch (mode) {
+        case 0: return AddWatchMode.PERSISTENT;
+
+        case 1: return AddWatchMode.PERSISTENT_RECURSIVE;
+
+        default:
+            throw new KeeperException.BadArgumentsException(
+                    "Received an invalid mode value: " + mode
+                    + " to convert to an AddWatchMode");
+        }
+    }
+}
@@ -21,6 +21,7 @@
 
 import org.apache.yetus.audience.InterfaceAudience;
 import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.ChildData;
 import org.apache.zookeeper.data.Stat;
 
 /**
@@ -187,6 +188,53 @@ public void processResult(int rc, String path, Object ctx,
                 List<String> children, Stat stat);
     }
 
+    /**
+     * This callback is used to retrieve a page of the children and the stat
+     * of the node.
+     */
+    @InterfaceAudience.Public
+    interface ChildrenPageCallback extends AsyncCallback {
+        /**
+         * Process the result of the asynchronous call.
+         * See {@link org.apache.zookeeper.AsyncCallback.Children2Callback}.
+         *
+         * @param rc       The return code or the result of the call.
+         * @param path     The path that we passed to asynchronous calls.
+         * @param ctx      Whatever context object that we passed to
+         *                 asynchronous calls.
+         * @param children A page of the children of the node on given path,
+         *                 in sorted order.
+         * @param hasMore  Whether more children follow this page.
+         * @param stat     {@link org.apache.zookeeper.data.Stat} object of
+         *                 the node on given path.
+         */
+        public void processResult(int rc, String path, Object ctx,
+                List<String> children, boolean hasMore, Stat stat);
+    }
+
+    /**
+     * This callback is used to retrieve the data and stat of the descendants
+     * of a node.
+     */
+    @InterfaceAudience.Public
+    interface ChildrenWithDataCallback extends AsyncCallback {
+        /**
+         * Process the result of the asynchronous call.
+         * See {@link org.apache.zookeeper.AsyncCallback.ChildrenCallback}.
+         *
+         * @param rc        The return code or the result of the call.
+         * @param path      The path that we passed to asynchronous calls.
+         * @param ctx       Whatever context object that we passed to
+         *                  asynchronous calls.
+         * @param children  The descendants of the node on given path, with
+         *                  their paths relative to it.
+         * @param truncated Whether the descendants were cut short at the
+         *                  maximum number of bytes asked for.
+         */
+        public void processResult(int rc, String path, Object ctx,
+                List<ChildData> children, boolean truncated);
+    }
+
     /**
      * This callback is used to retrieve the name and stat of the node.
      */
@@ -210,6 +258,27 @@ public void processResult(int rc, String path, Object ctx,
         		String name, Stat stat);
     }
 
+    /**
+     * This callback is used to retrieve the name and data of the child
+     * taken by pollFirstChild.
+     */
+    @InterfaceAudience.Public
+    interface PollFirstChildCallback extends AsyncCallback {
+        /**
+         * Process the result of the asynchronous call.
+         * See {@link org.apache.zookeeper.AsyncCallback.DataCallback}.
+         *
+         * @param rc    The return code or the result of the call.
+         * @param path  The path that we passed to asynchronous calls.
+         * @param ctx   Whatever context object that we passed to
+         *              asynchronous calls.
+         * @param child The name of the child that was deleted.
+         * @param data  The data the child had when it was deleted.
+         */
+        public void processResult(int rc, String path, Object ctx,
+                String child, byte data[]);
+    }
+
     /**
      * This callback is used to retrieve the name of the node.
      */
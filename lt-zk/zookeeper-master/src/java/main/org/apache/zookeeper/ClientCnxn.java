@@ -19,7 +19,6 @@
 package org.apache.zookeeper;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.ConnectException;
@@ -44,15 +43,21 @@
 import javax.security.auth.login.LoginException;
 import javax.security.sasl.SaslException;
 
-import org.apache.jute.BinaryInputArchive;
-import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferInputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
+import org.apache.jute.ByteBufferRecord;
+import org.apache.jute.CompactInputArchive;
+import org.apache.jute.InputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.AsyncCallback.ACLCallback;
 import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.ChildrenPageCallback;
+import org.apache.zookeeper.AsyncCallback.ChildrenWithDataCallback;
 import org.apache.zookeeper.AsyncCallback.Create2Callback;
 import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.AsyncCallback.PollFirstChildCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.AsyncCallback.VoidCallback;
@@ -62,6 +67,7 @@
 import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.ZooDefs.ProtocolVersion;
 import org.apache.zookeeper.ZooKeeper.States;
 import org.apache.zookeeper.ZooKeeper.WatchRegistration;
 import org.apache.zookeeper.client.ZKClientConfig;
@@ -75,16 +81,21 @@
 import org.apache.zookeeper.proto.ExistsResponse;
 import org.apache.zookeeper.proto.GetACLResponse;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPageResponse;
 import org.apache.zookeeper.proto.GetChildrenResponse;
+import org.apache.zookeeper.proto.GetChildrenWithDataResponse;
 import org.apache.zookeeper.proto.GetDataResponse;
 import org.apache.zookeeper.proto.GetSASLRequest;
+import org.apache.zookeeper.proto.PollFirstChildResponse;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.proto.SequentialChildResponse;
 import org.apache.zookeeper.proto.SetACLResponse;
 import org.apache.zookeeper.proto.SetDataResponse;
 import org.apache.zookeeper.proto.SetWatches;
+import org.apache.zookeeper.proto.SetWatches2;
 import org.apache.zookeeper.proto.WatcherEvent;
-import org.apache.zookeeper.server.ByteBufferInputStream;
+import org.apache.zookeeper.proto.WatcherEventBatch;
 import org.apache.zookeeper.server.ZooKeeperThread;
 import org.apache.zookeeper.server.ZooTrace;
 import org.slf4j.Logger;
@@ -288,22 +299,32 @@ static class Packet {
 
         public void createBB() {
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+                int size = 4;
+                if (requestHeader != null) {
+                    size += requestHeader.serializedSize();
+                }
+                if (request instanceof ByteBufferRecord) {
+                    size += ((ByteBufferRecord) request).serializedSize();
+                }
+                if (request instanceof ConnectRequest) {
+                    size++;
+                }
+                ByteBufferOutputArchive boa = new ByteBufferOutputArchive(
+                        ByteBuffer.allocate(size));
                 boa.writeInt(-1, "len"); // We'll fill this in later
                 if (requestHeader != null) {
                     requestHeader.serialize(boa, "header");
                 }
                 if (request instanceof ConnectRequest) {
-                    request.serialize(boa, "connect");
+                    boa.writeRecord(request, "connect");
                     // append "am-I-allowed-to-be-readonly" flag
                     boa.writeBool(readOnly, "readOnly");
                 } else if (request != null) {
-                    request.serialize(boa, "request");
+                    boa.writeRecord(request, "request");
                 }
-                baos.close();
-                this.bb = ByteBuffer.wrap(baos.toByteArray());
-                this.bb.putInt(this.bb.capacity() - 4);
+                this.bb = boa.getBuffer();
+                this.bb.flip();
+                this.bb.putInt(this.bb.limit() - 4);
                 this.bb.rewind();
             } catch (IOException e) {
                 LOG.warn("Ignoring unexpected exception", e);
@@ -544,6 +565,15 @@ private void processEvent(Object event) {
                     } else if (lcb.cb instanceof Children2Callback) {
                         ((Children2Callback) lcb.cb).processResult(lcb.rc,
                                 lcb.path, lcb.ctx, null, null);
+                    } else if (lcb.cb instanceof ChildrenPageCallback) {
+                        ((ChildrenPageCallback) lcb.cb).processResult(lcb.rc,
+                                lcb.path, lcb.ctx, null, false, null);
+                    } else if (lcb.cb instanceof ChildrenWithDataCallback) {
+                        ((ChildrenWithDataCallback) lcb.cb).processResult(
+                                lcb.rc, lcb.path, lcb.ctx, null, false);
+                    } else if (lcb.cb instanceof PollFirstChildCallback) {
+                        ((PollFirstChildCallback) lcb.cb).processResult(lcb.rc,
+                                lcb.path, lcb.ctx, null, null);
                     } else if (lcb.cb instanceof StringCallback) {
                         ((StringCallback) lcb.cb).processResult(lcb.rc,
                                 lcb.path, lcb.ctx, null);
@@ -619,6 +649,42 @@ private void processEvent(Object event) {
                       } else {
                           cb.processResult(rc, clientPath, p.ctx, null, null);
                       }
+                  } else if (p.response instanceof GetChildrenPageResponse) {
+                      ChildrenPageCallback cb = (ChildrenPageCallback) p.cb;
+                      GetChildrenPageResponse rsp = (GetChildrenPageResponse) p.response;
+                      if (rc == 0) {
+                          cb.processResult(rc, clientPath, p.ctx,
+                                  rsp.getChildren(), rsp.getHasMore(), rsp.getStat());
+                      } else {
+                          cb.processResult(rc, clientPath, p.ctx, null, false, null);
+                      }
+                  } else if (p.response instanceof GetChildrenWithDataResponse) {
+                      ChildrenWithDataCallback cb = (ChildrenWithDataCallback) p.cb;
+                      GetChildrenWithDataResponse rsp =
+                          (GetChildrenWithDataResponse) p.response;
+                      if (rc == 0) {
+                          cb.processResult(rc, clientPath, p.ctx,
+                                  rsp.getChildren(), rsp.getTruncated());
+                      } else {
+                          cb.processResult(rc, clientPath, p.ctx, null, false);
+                      }
+                  } else if (p.response instanceof SequentialChildResponse) {
+                      StringCallback cb = (StringCallback) p.cb;
+                      SequentialChildResponse rsp = (SequentialChildResponse) p.response;
+                      if (rc == 0) {
+                          cb.processResult(rc, clientPath, p.ctx, rsp.getChild());
+                      } else {
+                          cb.processResult(rc, clientPath, p.ctx, null);
+                      }
+                  } else if (p.response instanceof PollFirstChildResponse) {
+                      PollFirstChildCallback cb = (PollFirstChildCallback) p.cb;
+                      PollFirstChildResponse rsp = (PollFirstChildResponse) p.response;
+                      if (rc == 0) {
+                          cb.processResult(rc, clientPath, p.ctx,
+                                  rsp.getChild(), rsp.getData());
+                      } else {
+                          cb.processResult(rc, clientPath, p.ctx, null, null);
+                      }
                   } else if (p.response instanceof CreateResponse) {
                       StringCallback cb = (StringCallback) p.cb;
                       CreateResponse rsp = (CreateResponse) p.response;
@@ -797,13 +863,42 @@ class SendThread extends ZooKeeperThread {
         private Random r = new Random(System.nanoTime());        
         private boolean isFirstConnect = true;
 
+        // Only read from while a response is processed, never handed out
+        private final ReplyHeader replyHdr = new ReplyHeader();
+
+        // Whether the server agreed to write replies in the compact encoding
+        private boolean compactReplies;
+
+        private void queueNotification(WatcherEvent event) {
+            // convert from a server path to a client path
+            if (chrootPath != null) {
+                String serverPath = event.getPath();
+                if(serverPath.compareTo(chrootPath)==0)
+                    event.setPath("/");
+                else if (serverPath.length() > chrootPath.length())
+                    event.setPath(serverPath.substring(chrootPath.length()));
+                else {
+                	LOG.warn("Got server path " + event.getPath()
+                			+ " which is too short for chroot path "
+                			+ chrootPath);
+                }
+            }
+
+            WatchedEvent we = new WatchedEvent(event);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Got " + we + " for sessionid 0x"
+                        + Long.toHexString(sessionId));
+            }
+
+            eventThread.queueEvent( we );
+        }
+
         void readResponse(ByteBuffer incomingBuffer) throws IOException {
-            ByteBufferInputStream bbis = new ByteBufferInputStream(
-                    incomingBuffer);
-            BinaryInputArchive bbia = BinaryInputArchive.getArchive(bbis);
-            ReplyHeader replyHdr = new ReplyHeader();
+            InputArchive bbia = compactReplies
+                ? new CompactInputArchive(incomingBuffer)
+                : new ByteBufferInputArchive(incomingBuffer);
 
-            replyHdr.deserialize(bbia, "header");
+            bbia.readRecord(replyHdr, "header");
             if (replyHdr.getXid() == -2) {
                 // -2 is the xid for pings
                 if (LOG.isDebugEnabled()) {
@@ -835,29 +930,22 @@ void readResponse(ByteBuffer incomingBuffer) throws IOException {
                         + Long.toHexString(sessionId));
                 }
                 WatcherEvent event = new WatcherEvent();
-                event.deserialize(bbia, "response");
-
-                // convert from a server path to a client path
-                if (chrootPath != null) {
-                    String serverPath = event.getPath();
-                    if(serverPath.compareTo(chrootPath)==0)
-                        event.setPath("/");
-                    else if (serverPath.length() > chrootPath.length())
-                        event.setPath(serverPath.substring(chrootPath.length()));
-                    else {
-                    	LOG.warn("Got server path " + event.getPath()
-                    			+ " which is too short for chroot path "
-                    			+ chrootPath);
-                    }
-                }
+                bbia.readRecord(event, "response");
+                queueNotification(event);
+                return;
+            }
 
-                WatchedEvent we = new WatchedEvent(event);
+            if (replyHdr.getXid() == ProtocolVersion.NOTIFICATION_BATCH_XID) {
+                WatcherEventBatch batch = new WatcherEventBatch();
+                bbia.readRecord(batch, "response");
                 if (LOG.isDebugEnabled()) {
-                    LOG.debug("Got " + we + " for sessionid 0x"
-                            + Long.toHexString(sessionId));
+                    LOG.debug("Got " + batch.getEvents().size()
+                        + " notifications sessionid:0x"
+                        + Long.toHexString(sessionId));
+                }
+                for (WatcherEvent event : batch.getEvents()) {
+                    queueNotification(event);
                 }
-
-                eventThread.queueEvent( we );
                 return;
             }
 
@@ -866,7 +954,7 @@ else if (serverPath.length() > chrootPath.length())
             // response as with other packets.
             if (tunnelAuthInProgress()) {
                 GetSASLRequest request = new GetSASLRequest();
-                request.deserialize(bbia,"token");
+                bbia.readRecord(request, "token");
                 zooKeeperSaslClient.respondToServer(request.getToken(),
                   ClientCnxn.this);
                 return;
@@ -904,7 +992,7 @@ else if (serverPath.length() > chrootPath.length())
                     lastZxid = replyHdr.getZxid();
                 }
                 if (packet.response != null && replyHdr.getErr() == 0) {
-                    packet.response.deserialize(bbia, "response");
+                    bbia.readRecord(packet.response, "response");
                 }
 
                 if (LOG.isDebugEnabled()) {
@@ -949,8 +1037,14 @@ void primeConnection() throws IOException {
                     clientCnxnSocket.getRemoteSocketAddress());
             isFirstConnect = false;
             long sessId = (seenRwServerBefore) ? sessionId : 0;
-            ConnectRequest conReq = new ConnectRequest(0, lastZxid,
-                    sessionTimeout, sessId, sessionPasswd);
+            int protocolVersion = clientConfig.getBoolean(
+                    ZKClientConfig.COMPACT_ENCODING) ? ProtocolVersion.COMPACT
+                    : ProtocolVersion.BINARY;
+            if (clientConfig.getBoolean(ZKClientConfig.NOTIFICATION_BATCH)) {
+                protocolVersion |= ProtocolVersion.NOTIFICATION_BATCH;
+            }
+            ConnectRequest conReq = new ConnectRequest(protocolVersion,
+                    lastZxid, sessionTimeout, sessId, sessionPasswd);
             // We add backwards since we are pushing into the front
             // Only send if there's a pending watch
             // TODO: here we have the only remaining use of zooKeeper in
@@ -959,18 +1053,28 @@ void primeConnection() throws IOException {
                 List<String> dataWatches = zooKeeper.getDataWatches();
                 List<String> existWatches = zooKeeper.getExistWatches();
                 List<String> childWatches = zooKeeper.getChildWatches();
+                List<String> persistentWatches = zooKeeper.getPersistentWatches();
+                List<String> persistentRecursiveWatches = zooKeeper.getPersistentRecursiveWatches();
                 if (!dataWatches.isEmpty()
-                        || !existWatches.isEmpty() || !childWatches.isEmpty()) {
+                        || !existWatches.isEmpty() || !childWatches.isEmpty()
+                        || !persistentWatches.isEmpty()
+                        || !persistentRecursiveWatches.isEmpty()) {
                     Iterator<String> dataWatchesIter = prependChroot(dataWatches).iterator();
                     Iterator<String> existWatchesIter = prependChroot(existWatches).iterator();
                     Iterator<String> childWatchesIter = prependChroot(childWatches).iterator();
+                    Iterator<String> persistentWatchesIter = prependChroot(persistentWatches).iterator();
+                    Iterator<String> persistentRecursiveWatchesIter = prependChroot(persistentRecursiveWatches).iterator();
                     long setWatchesLastZxid = lastZxid;
 
                     while (dataWatchesIter.hasNext()
-                           || existWatchesIter.hasNext() || childWatchesIter.hasNext()) {
+                           || existWatchesIter.hasNext() || childWatchesIter.hasNext()
+                           || persistentWatchesIter.hasNext()
+                           || persistentRecursiveWatchesIter.hasNext()) {
                         List<String> dataWatchesBatch = new ArrayList<String>();
                         List<String> existWatchesBatch = new ArrayList<String>();
                         List<String> childWatchesBatch = new ArrayList<String>();
+                        List<String> persistentWatchesBatch = new ArrayList<String>();
+                        List<String> persistentRecursiveWatchesBatch = new ArrayList<String>();
                         int batchLength = 0;
 
                         // Note, we may exceed our max length by a bit when we add the last
@@ -986,18 +1090,40 @@ void primeConnection() throws IOException {
                             } else if (childWatchesIter.hasNext()) {
                                 watch = childWatchesIter.next();
                                 childWatchesBatch.add(watch);
+                            } else if (persistentWatchesIter.hasNext()) {
+                                watch = persistentWatchesIter.next();
+                                persistentWatchesBatch.add(watch);
+                            } else if (persistentRecursiveWatchesIter.hasNext()) {
+                                watch = persistentRecursiveWatchesIter.next();
+                                persistentRecursiveWatchesBatch.add(watch);
                             } else {
                                 break;
                             }
                             batchLength += watch.length();
                         }
 
-                        SetWatches sw = new SetWatches(setWatchesLastZxid,
-                                                       dataWatchesBatch,
-                                                       existWatchesBatch,
-                                                       childWatchesBatch);
-                        RequestHeader header = new RequestHeader(-8, OpCode.setWatches);
-                        Packet packet = new Packet(header, new ReplyHeader(), sw, null, null);
+                        Record record;
+                        int opcode;
+                        if (persistentWatchesBatch.isEmpty()
+                                && persistentRecursiveWatchesBatch.isEmpty()) {
+                            // servers that don't know about persistent
+                            // watches still get the request they understand
+                            record = new SetWatches(setWatchesLastZxid,
+                                                    dataWatchesBatch,
+                                                    existWatchesBatch,
+                                                    childWatchesBatch);
+                            opcode = OpCode.setWatches;
+                        } else {
+                            record = new SetWatches2(setWatchesLastZxid,
+                                                     dataWatchesBatch,
+                                                     existWatchesBatch,
+                                                     childWatchesBatch,
+                                                     persistentWatchesBatch,
+                                                     persistentRecursiveWatchesBatch);
+                            opcode = OpCode.setWatches2;
+                        }
+                        RequestHeader header = new RequestHeader(-8, opcode);
+                        Packet packet = new Packet(header, new ReplyHeader(), record, null, null);
                         outgoingQueue.addFirst(packet);
                     }
                 }
@@ -1348,10 +1474,13 @@ private void cleanup() {
          * @param _sessionId
          * @param _sessionPasswd
          * @param isRO
+         * @param compact whether the server is going to write replies in
+         *                the compact encoding
          * @throws IOException
          */
         void onConnected(int _negotiatedSessionTimeout, long _sessionId,
-                byte[] _sessionPasswd, boolean isRO) throws IOException {
+                byte[] _sessionPasswd, boolean isRO, boolean compact)
+                throws IOException {
             negotiatedSessionTimeout = _negotiatedSessionTimeout;
             if (negotiatedSessionTimeout <= 0) {
                 state = States.CLOSED;
@@ -1375,6 +1504,7 @@ void onConnected(int _negotiatedSessionTimeout, long _sessionId,
             hostProvider.onConnected();
             sessionId = _sessionId;
             sessionPasswd = _sessionPasswd;
+            compactReplies = compact;
             state = (isRO) ?
                     States.CONNECTEDREADONLY : States.CONNECTED;
             seenRwServerBefore |= !isRO;
@@ -26,13 +26,13 @@
 import java.util.List;
 import java.util.concurrent.LinkedBlockingDeque;
 
-import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.ByteBufferInputArchive;
 import org.apache.zookeeper.ClientCnxn.Packet;
+import org.apache.zookeeper.ZooDefs.ProtocolVersion;
 import org.apache.zookeeper.client.ZKClientConfig;
 import org.apache.zookeeper.common.ZKConfig;
 import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.proto.ConnectResponse;
-import org.apache.zookeeper.server.ByteBufferInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -133,8 +133,7 @@ void readConnectResult() throws IOException {
             LOG.trace("readConnectResult " + incomingBuffer.remaining() + " "
                     + buf.toString());
         }
-        ByteBufferInputStream bbis = new ByteBufferInputStream(incomingBuffer);
-        BinaryInputArchive bbia = BinaryInputArchive.getArchive(bbis);
+        ByteBufferInputArchive bbia = new ByteBufferInputArchive(incomingBuffer);
         ConnectResponse conRsp = new ConnectResponse();
         conRsp.deserialize(bbia, "connect");
 
@@ -150,7 +149,8 @@ void readConnectResult() throws IOException {
 
         this.sessionId = conRsp.getSessionId();
         sendThread.onConnected(conRsp.getTimeOut(), this.sessionId,
-                conRsp.getPasswd(), isRO);
+                conRsp.getPasswd(), isRO,
+                (conRsp.getProtocolVersion() & ProtocolVersion.COMPACT) != 0);
     }
 
     abstract boolean isConnected();
@@ -125,7 +125,8 @@ public enum EventType {
             NodeDataChanged (3),
             NodeChildrenChanged (4),
             DataWatchRemoved (5),
-            ChildWatchRemoved (6);
+            ChildWatchRemoved (6),
+            PersistentWatchRemoved (7);
 
             private final int intValue;     // Integer representation of value
                                             // for sending over wire
@@ -147,6 +148,7 @@ public static EventType fromInt(int intValue) {
                     case  4: return EventType.NodeChildrenChanged;
                     case  5: return EventType.DataWatchRemoved;
                     case  6: return EventType.ChildWatchRemoved;
+                    case  7: return EventType.PersistentWatchRemoved;
 
                     default:
                         throw new RuntimeException("Invalid integer value for conversion to EventType");
@@ -74,12 +74,28 @@ public interface OpCode {
 
         public final int createTTL = 21;
 
+        public final int readIndex = 22;
+
+        public final int getChildrenWithData = 23;
+
+        public final int getChildrenPage = 24;
+
+        public final int getFirstChild = 25;
+
+        public final int getPredecessor = 26;
+
+        public final int pollFirstChild = 27;
+
+        public final int addWatch = 28;
+
         public final int auth = 100;
 
         public final int setWatches = 101;
 
         public final int sasl = 102;
 
+        public final int setWatches2 = 103;
+
         public final int createSession = -10;
 
         public final int closeSession = -11;
@@ -87,6 +103,30 @@ public interface OpCode {
         public final int error = -1;
     }
 
+    /**
+     * The protocolVersion of ConnectRequest and ConnectResponse, a set of
+     * flags. The client asks for the features it supports, the server
+     * answers with those it is going to use, servers that do not know about
+     * it answer 0.
+     */
+    @InterfaceAudience.Public
+    public interface ProtocolVersion {
+        /** replies are written by BinaryOutputArchive */
+        int BINARY = 0;
+
+        /** replies are written by CompactOutputArchive */
+        int COMPACT = 1;
+
+        /**
+         * watch events may be sent together as a WatcherEventBatch, with
+         * the xid {@link #NOTIFICATION_BATCH_XID}
+         */
+        int NOTIFICATION_BATCH = 2;
+
+        /** the xid of a reply carrying a WatcherEventBatch */
+        int NOTIFICATION_BATCH_XID = -9;
+    }
+
     @InterfaceAudience.Public
     public interface Perms {
         int READ = 1 << 0;
@@ -23,9 +23,12 @@
 import org.apache.zookeeper.AsyncCallback.ACLCallback;
 import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.ChildrenPageCallback;
+import org.apache.zookeeper.AsyncCallback.ChildrenWithDataCallback;
 import org.apache.zookeeper.AsyncCallback.Create2Callback;
 import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.AsyncCallback.PollFirstChildCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.AsyncCallback.VoidCallback;
@@ -42,6 +45,7 @@
 import org.apache.zookeeper.common.PathUtils;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.AddWatchRequest;
 import org.apache.zookeeper.proto.CheckWatchesRequest;
 import org.apache.zookeeper.proto.Create2Response;
 import org.apache.zookeeper.proto.CreateRequest;
@@ -53,13 +57,22 @@
 import org.apache.zookeeper.proto.GetACLResponse;
 import org.apache.zookeeper.proto.GetChildren2Request;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPageRequest;
+import org.apache.zookeeper.proto.GetChildrenPageResponse;
 import org.apache.zookeeper.proto.GetChildrenRequest;
 import org.apache.zookeeper.proto.GetChildrenResponse;
+import org.apache.zookeeper.proto.GetChildrenWithDataRequest;
+import org.apache.zookeeper.proto.GetChildrenWithDataResponse;
 import org.apache.zookeeper.proto.GetDataRequest;
 import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.proto.GetFirstChildRequest;
+import org.apache.zookeeper.proto.GetPredecessorRequest;
 import org.apache.zookeeper.proto.RemoveWatchesRequest;
+import org.apache.zookeeper.proto.PollFirstChildRequest;
+import org.apache.zookeeper.proto.PollFirstChildResponse;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.proto.SequentialChildResponse;
 import org.apache.zookeeper.proto.SetACLRequest;
 import org.apache.zookeeper.proto.SetACLResponse;
 import org.apache.zookeeper.proto.SetDataRequest;
@@ -249,6 +262,18 @@ protected List<String> getChildWatches() {
             return rc;
         }
     }
+    protected List<String> getPersistentWatches() {
+        synchronized(watchManager.persistentWatches) {
+            List<String> rc = new ArrayList<String>(watchManager.persistentWatches.keySet());
+            return rc;
+        }
+    }
+    protected List<String> getPersistentRecursiveWatches() {
+        synchronized(watchManager.persistentRecursiveWatches) {
+            List<String> rc = new ArrayList<String>(watchManager.persistentRecursiveWatches.keySet());
+            return rc;
+        }
+    }
 
     /**
      * Manage watchers & handle events generated by the ClientCnxn object.
@@ -264,6 +289,10 @@ static class ZKWatchManager implements ClientWatchManager {
             new HashMap<String, Set<Watcher>>();
         private final Map<String, Set<Watcher>> childWatches =
             new HashMap<String, Set<Watcher>>();
+        private final Map<String, Set<Watcher>> persistentWatches =
+            new HashMap<String, Set<Watcher>>();
+        private final Map<String, Set<Watcher>> persistentRecursiveWatches =
+            new HashMap<String, Set<Watcher>>();
         private boolean disableAutoWatchReset;
 
         ZKWatchManager(boolean disableAutoWatchReset) {
@@ -291,6 +320,9 @@ public Map<EventType, Set<Watcher>> removeWatcher(String clientPath,
                     .put(EventType.ChildWatchRemoved, childWatchersToRem);
             HashSet<Watcher> dataWatchersToRem = new HashSet<Watcher>();
             removedWatchers.put(EventType.DataWatchRemoved, dataWatchersToRem);
+            HashSet<Watcher> persistentWatchersToRem = new HashSet<Watcher>();
+            removedWatchers.put(EventType.PersistentWatchRemoved,
+                    persistentWatchersToRem);
             boolean removedWatcher = false;
             switch (watcherType) {
             case Children: {
@@ -329,6 +361,18 @@ public Map<EventType, Set<Watcher>> removeWatcher(String clientPath,
                             watcher, clientPath, local, rc, dataWatchersToRem);
                     removedWatcher |= removedDataWatcher;
                 }
+                synchronized (persistentWatches) {
+                    boolean removedPersistentWatcher = removeWatches(
+                            persistentWatches, watcher, clientPath, local, rc,
+                            persistentWatchersToRem);
+                    removedWatcher |= removedPersistentWatcher;
+                }
+                synchronized (persistentRecursiveWatches) {
+                    boolean removedPersistentWatcher = removeWatches(
+                            persistentRecursiveWatches, watcher, clientPath,
+                            local, rc, persistentWatchersToRem);
+                    removedWatcher |= removedPersistentWatcher;
+                }
             }
             }
             // Watcher function doesn't exists for the specified params
@@ -404,6 +448,16 @@ void containsWatcher(String path, Watcher watcher,
                             existWatches);
                     containsWatcher |= contains_temp;
                 }
+                synchronized (persistentWatches) {
+                    boolean contains_temp = contains(path, watcher,
+                            persistentWatches);
+                    containsWatcher |= contains_temp;
+                }
+                synchronized (persistentRecursiveWatches) {
+                    boolean contains_temp = contains(path, watcher,
+                            persistentRecursiveWatches);
+                    containsWatcher |= contains_temp;
+                }
             }
             }
             // Watcher function doesn't exists for the specified params
@@ -492,6 +546,24 @@ public Set<Watcher> materialize(Watcher.Event.KeeperState state,
                     }
                 }
 
+                synchronized(persistentWatches) {
+                    for(Set<Watcher> ws: persistentWatches.values()) {
+                        result.addAll(ws);
+                    }
+                    if (clear) {
+                        persistentWatches.clear();
+                    }
+                }
+
+                synchronized(persistentRecursiveWatches) {
+                    for(Set<Watcher> ws: persistentRecursiveWatches.values()) {
+                        result.addAll(ws);
+                    }
+                    if (clear) {
+                        persistentRecursiveWatches.clear();
+                    }
+                }
+
                 return result;
             case NodeDataChanged:
             case NodeCreated:
@@ -501,11 +573,15 @@ public Set<Watcher> materialize(Watcher.Event.KeeperState state,
                 synchronized (existWatches) {
                     addTo(existWatches.remove(clientPath), result);
                 }
+                addPersistentWatches(clientPath, result);
                 break;
             case NodeChildrenChanged:
                 synchronized (childWatches) {
                     addTo(childWatches.remove(clientPath), result);
                 }
+                synchronized (persistentWatches) {
+                    addTo(persistentWatches.get(clientPath), result);
+                }
                 break;
             case NodeDeleted:
                 synchronized (dataWatches) {
@@ -522,6 +598,7 @@ public Set<Watcher> materialize(Watcher.Event.KeeperState state,
                 synchronized (childWatches) {
                     addTo(childWatches.remove(clientPath), result);
                 }
+                addPersistentWatches(clientPath, result);
                 break;
             default:
                 String msg = "Unhandled watch event type " + type
@@ -532,6 +609,31 @@ public Set<Watcher> materialize(Watcher.Event.KeeperState state,
 
             return result;
         }
+
+        /**
+         * Add the persistent watchers of clientPath, and the recursive ones
+         * of clientPath and of its ancestors. They stay registered.
+         */
+        private void addPersistentWatches(String clientPath,
+                Set<Watcher> result) {
+            synchronized (persistentWatches) {
+                addTo(persistentWatches.get(clientPath), result);
+            }
+            synchronized (persistentRecursiveWatches) {
+                if (persistentRecursiveWatches.isEmpty()) {
+                    return;
+                }
+                String path = clientPath;
+                while (true) {
+                    addTo(persistentRecursiveWatches.get(path), result);
+                    if (path.length() <= 1) {
+                        break;
+                    }
+                    int lastSlash = path.lastIndexOf('/');
+                    path = lastSlash == 0 ? "/" : path.substring(0, lastSlash);
+                }
+            }
+        }
     }
 
     /**
@@ -556,6 +658,7 @@ public WatchRegistration(Watcher watcher, String clientPath)
         public void register(int rc) {
             if (shouldAddWatch(rc)) {
                 Map<String, Set<Watcher>> watches = getWatches(rc);
+                String clientPath = getClientPath();
                 synchronized(watches) {
                     Set<Watcher> watchers = watches.get(clientPath);
                     if (watchers == null) {
@@ -575,6 +678,14 @@ public void register(int rc) {
         protected boolean shouldAddWatch(int rc) {
             return rc == 0;
         }
+
+        /**
+         * @return the path the watch is added on, known once the response
+         * has been read
+         */
+        protected String getClientPath() {
+            return clientPath;
+        }
     }
 
     /** Handle the special case of exists watches - they add a watcher
@@ -607,6 +718,36 @@ protected Map<String, Set<Watcher>> getWatches(int rc) {
         }
     }
 
+    /** The data watch getPredecessor leaves on the sibling it returns.
+     */
+    class PredecessorWatchRegistration extends WatchRegistration {
+        private final String clientParent;
+        private final SequentialChildResponse response;
+
+        public PredecessorWatchRegistration(Watcher watcher, String clientPath,
+                SequentialChildResponse response) {
+            super(watcher, clientPath);
+            int lastSlash = clientPath.lastIndexOf('/');
+            this.clientParent = clientPath.substring(0, lastSlash + 1);
+            this.response = response;
+        }
+
+        @Override
+        protected Map<String, Set<Watcher>> getWatches(int rc) {
+            return watchManager.dataWatches;
+        }
+
+        @Override
+        protected boolean shouldAddWatch(int rc) {
+            return rc == 0 && response.getChild() != null;
+        }
+
+        @Override
+        protected String getClientPath() {
+            return clientParent + response.getChild();
+        }
+    }
+
     class ChildWatchRegistration extends WatchRegistration {
         public ChildWatchRegistration(Watcher watcher, String clientPath) {
             super(watcher, clientPath);
@@ -618,6 +759,28 @@ protected Map<String, Set<Watcher>> getWatches(int rc) {
         }
     }
 
+    class AddWatchRegistration extends WatchRegistration {
+        private final AddWatchMode mode;
+
+        public AddWatchRegistration(Watcher watcher, String clientPath,
+                AddWatchMode mode) {
+            super(watcher, clientPath);
+            this.mode = mode;
+        }
+
+        @Override
+        protected Map<String, Set<Watcher>> getWatches(int rc) {
+            return mode == AddWatchMode.PERSISTENT_RECURSIVE
+                    ? watchManager.persistentRecursiveWatches
+                    : watchManager.persistentWatches;
+        }
+
+        @Override
+        protected boolean shouldAddWatch(int rc) {
+            return rc == 0;
+        }
+    }
+
     @InterfaceAudience.Public
     public enum States {
         CONNECTING, ASSOCIATING, CONNECTED, CONNECTEDREADONLY,
@@ -2015,6 +2178,35 @@ public void exists(String path, boolean watch, StatCallback cb, Object ctx) {
     public byte[] getData(final String path, Watcher watcher, Stat stat)
         throws KeeperException, InterruptedException
      {
+        return getData(path, watcher, stat, false);
+    }
+
+    /**
+     * Return the data and the stat of the node of the given path.
+     * <p>
+     * If linearizable is true the read reflects every update committed
+     * before the call was made, as if it had been preceded by a sync, but the
+     * server only fetches the commit index of the leader instead of sending
+     * the sync through the leader's write pipeline. The commit index fetch is
+     * shared by all the linearizable reads a server has outstanding.
+     * <p>
+     * See {@link #getData(String, Watcher, Stat)} for the watch semantics.
+     *
+     * @since 3.6.0
+     *
+     * @param path the given path
+     * @param watcher explicit watcher
+     * @param stat the stat of the node
+     * @param linearizable wait for the leader's commit index before reading
+     * @return the data of the node
+     * @throws KeeperException If the server signals an error with a non-zero error code
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public byte[] getData(final String path, Watcher watcher, Stat stat,
+            boolean linearizable)
+        throws KeeperException, InterruptedException
+    {
         final String clientPath = path;
         PathUtils.validatePath(clientPath);
 
@@ -2032,7 +2224,9 @@ public byte[] getData(final String path, Watcher watcher, Stat stat)
         request.setPath(serverPath);
         request.setWatch(watcher != null);
         GetDataResponse response = new GetDataResponse();
+        ReplyHeader readIndex = linearizable ? queueReadIndex() : null;
         ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        checkReadIndex(readIndex, clientPath);
         if (r.getErr() != 0) {
             throw KeeperException.create(KeeperException.Code.get(r.getErr()),
                     clientPath);
@@ -2073,6 +2267,19 @@ public byte[] getData(String path, boolean watch, Stat stat)
      */
     public void getData(final String path, Watcher watcher,
             DataCallback cb, Object ctx)
+    {
+        getData(path, watcher, false, cb, ctx);
+    }
+
+    /**
+     * The asynchronous version of getData.
+     *
+     * @since 3.6.0
+     *
+     * @see #getData(String, Watcher, Stat, boolean)
+     */
+    public void getData(final String path, Watcher watcher,
+            boolean linearizable, DataCallback cb, Object ctx)
     {
         final String clientPath = path;
         PathUtils.validatePath(clientPath);
@@ -2091,6 +2298,12 @@ public void getData(final String path, Watcher watcher,
         request.setPath(serverPath);
         request.setWatch(watcher != null);
         GetDataResponse response = new GetDataResponse();
+        if (linearizable) {
+            ReplyHeader readIndex = queueReadIndex();
+            if (cb != null) {
+                cb = new ReadIndexDataCallback(readIndex, cb);
+            }
+        }
         cnxn.queuePacket(h, new ReplyHeader(), request, response, cb,
                 clientPath, serverPath, ctx, wcb);
     }
@@ -2553,6 +2766,33 @@ public void getChildren(String path, boolean watch, ChildrenCallback cb,
     public List<String> getChildren(final String path, Watcher watcher,
             Stat stat)
         throws KeeperException, InterruptedException
+    {
+        return getChildren(path, watcher, stat, false);
+    }
+
+    /**
+     * For the given znode path return the stat and children list.
+     * <p>
+     * If linearizable is true the read reflects every update committed
+     * before the call was made, see
+     * {@link #getData(String, Watcher, Stat, boolean)}.
+     * <p>
+     * See {@link #getChildren(String, Watcher, Stat)} for the watch semantics.
+     *
+     * @since 3.6.0
+     *
+     * @param path
+     * @param watcher explicit watcher
+     * @param stat stat of the znode designated by path
+     * @param linearizable wait for the leader's commit index before reading
+     * @return an unordered array of children of the node with the given path
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public List<String> getChildren(final String path, Watcher watcher,
+            Stat stat, boolean linearizable)
+        throws KeeperException, InterruptedException
     {
         final String clientPath = path;
         PathUtils.validatePath(clientPath);
@@ -2571,7 +2811,9 @@ public List<String> getChildren(final String path, Watcher watcher,
         request.setPath(serverPath);
         request.setWatch(watcher != null);
         GetChildren2Response response = new GetChildren2Response();
+        ReplyHeader readIndex = linearizable ? queueReadIndex() : null;
         ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        checkReadIndex(readIndex, clientPath);
         if (r.getErr() != 0) {
             throw KeeperException.create(KeeperException.Code.get(r.getErr()),
                     clientPath);
@@ -2621,6 +2863,19 @@ public List<String> getChildren(String path, boolean watch, Stat stat)
      */
     public void getChildren(final String path, Watcher watcher,
             Children2Callback cb, Object ctx)
+    {
+        getChildren(path, watcher, false, cb, ctx);
+    }
+
+    /**
+     * The asynchronous version of getChildren.
+     *
+     * @since 3.6.0
+     *
+     * @see #getChildren(String, Watcher, Stat, boolean)
+     */
+    public void getChildren(final String path, Watcher watcher,
+            boolean linearizable, Children2Callback cb, Object ctx)
     {
         final String clientPath = path;
         PathUtils.validatePath(clientPath);
@@ -2639,6 +2894,12 @@ public void getChildren(final String path, Watcher watcher,
         request.setPath(serverPath);
         request.setWatch(watcher != null);
         GetChildren2Response response = new GetChildren2Response();
+        if (linearizable) {
+            ReplyHeader readIndex = queueReadIndex();
+            if (cb != null) {
+                cb = new ReadIndexChildren2Callback(readIndex, cb);
+            }
+        }
         cnxn.queuePacket(h, new ReplyHeader(), request, response, cb,
                 clientPath, serverPath, ctx, wcb);
     }
@@ -2656,6 +2917,467 @@ public void getChildren(String path, boolean watch, Children2Callback cb,
         getChildren(path, watch ? watchManager.defaultWatcher : null, cb, ctx);
     }
 
+    /**
+     * For the given znode path return its stat and a page of its children,
+     * in sorted order. Listing a node page by page costs the server
+     * O(limit log n) per page instead of copying all n children, and keeps
+     * the response within jute.maxbuffer for nodes with a very large
+     * number of children.
+     * <p>
+     * To list all children, start with an empty startAfter and pass the
+     * last child of each page as the startAfter of the next one, until
+     * {@link GetChildrenPageResponse#getHasMore()} is false. Children created
+     * or deleted in between may or may not be listed. A limit of 0 only
+     * returns the stat, whose numChildren counts the children.
+     * <p>
+     * If the watch is non-null and the call is successful (no exception is thrown),
+     * a watch will be left on the node with the given path, see
+     * {@link #getChildren(String, Watcher, Stat)}.
+     * <p>
+     * A KeeperException with error code KeeperException.NoNode will be thrown
+     * if no node with the given path exists.
+     *
+     * @since 3.6.0
+     *
+     * @param path
+     * @param startAfter the last child of the previous page, null or empty
+     *  for the first page
+     * @param limit the maximum number of children in the page
+     * @param watcher explicit watcher
+     * @return the page of children, whether more follow and the stat
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero
+     *  error code.
+     * @throws IllegalArgumentException if an invalid path or limit is
+     *  specified
+     */
+    public GetChildrenPageResponse getChildrenPage(final String path,
+            String startAfter, int limit, Watcher watcher)
+        throws KeeperException, InterruptedException
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new ChildWatchRegistration(watcher, clientPath);
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenPage);
+        GetChildrenPageRequest request = new GetChildrenPageRequest(serverPath,
+                startAfter == null ? "" : startAfter, limit, watcher != null);
+        GetChildrenPageResponse response = new GetChildrenPageResponse();
+        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()),
+                    clientPath);
+        }
+        return response;
+    }
+
+    /**
+     * For the given znode path return its stat and a page of its children,
+     * in sorted order.
+     * <p>
+     * If the watch is true and the call is successful (no exception is thrown),
+     * a watch will be left on the node with the given path.
+     *
+     * @since 3.6.0
+     *
+     * @see #getChildrenPage(String, String, int, Watcher)
+     */
+    public GetChildrenPageResponse getChildrenPage(String path,
+            String startAfter, int limit, boolean watch)
+        throws KeeperException, InterruptedException
+    {
+        return getChildrenPage(path, startAfter, limit,
+                watch ? watchManager.defaultWatcher : null);
+    }
+
+    /**
+     * The asynchronous version of getChildrenPage.
+     *
+     * @since 3.6.0
+     *
+     * @see #getChildrenPage(String, String, int, Watcher)
+     */
+    public void getChildrenPage(final String path, String startAfter,
+            int limit, Watcher watcher, ChildrenPageCallback cb, Object ctx)
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new ChildWatchRegistration(watcher, clientPath);
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenPage);
+        GetChildrenPageRequest request = new GetChildrenPageRequest(serverPath,
+                startAfter == null ? "" : startAfter, limit, watcher != null);
+        GetChildrenPageResponse response = new GetChildrenPageResponse();
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb,
+                clientPath, serverPath, ctx, wcb);
+    }
+
+    /**
+     * Return the child of the node of the given path with the lowest
+     * sequence number, the head of a queue or the holder of a lock. Only
+     * children whose names end with the sequence number of a sequential
+     * node are considered. The server keeps these ordered, so this is
+     * O(log n) in the number of children instead of a getChildren and a
+     * sort on the client.
+     * <p>
+     * If the watch is non-null and the call is successful (no exception is thrown),
+     * a watch will be left on the node with the given path, see
+     * {@link #getChildren(String, Watcher, Stat)}.
+     * <p>
+     * A KeeperException with error code KeeperException.NoNode will be thrown
+     * if no node with the given path exists.
+     *
+     * @since 3.6.0
+     *
+     * @param path the parent node
+     * @param watcher explicit watcher
+     * @return the name of the child, null if the node has no sequential
+     *  children
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero
+     *  error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public String getFirstChild(final String path, Watcher watcher)
+        throws KeeperException, InterruptedException
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new ChildWatchRegistration(watcher, clientPath);
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getFirstChild);
+        GetFirstChildRequest request = new GetFirstChildRequest(serverPath,
+                watcher != null);
+        SequentialChildResponse response = new SequentialChildResponse();
+        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()),
+                    clientPath);
+        }
+        return response.getChild();
+    }
+
+    /**
+     * Return the child of the node of the given path with the lowest
+     * sequence number.
+     *
+     * @since 3.6.0
+     *
+     * @see #getFirstChild(String, Watcher)
+     */
+    public String getFirstChild(String path, boolean watch)
+        throws KeeperException, InterruptedException
+    {
+        return getFirstChild(path, watch ? watchManager.defaultWatcher : null);
+    }
+
+    /**
+     * The asynchronous version of getFirstChild. The name passed to the
+     * callback is null if the node has no sequential children.
+     *
+     * @since 3.6.0
+     *
+     * @see #getFirstChild(String, Watcher)
+     */
+    public void getFirstChild(final String path, Watcher watcher,
+            StringCallback cb, Object ctx)
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new ChildWatchRegistration(watcher, clientPath);
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getFirstChild);
+        GetFirstChildRequest request = new GetFirstChildRequest(serverPath,
+                watcher != null);
+        SequentialChildResponse response = new SequentialChildResponse();
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb,
+                clientPath, serverPath, ctx, wcb);
+    }
+
+    /**
+     * Return the sibling of the sequential node of the given path with the
+     * next lower sequence number, the one a lock waiter has to wait for.
+     * Siblings whose names don't end with a sequence number are ignored.
+     * <p>
+     * If the watch is non-null, a sibling is returned and the call is
+     * successful (no exception is thrown), a data watch will be left on the
+     * sibling, which is triggered when it is deleted. This replaces the
+     * getChildren, sort and exists calls of the lock recipes, and only
+     * the next waiter is woken up when a node goes away.
+     * <p>
+     * A KeeperException with error code KeeperException.NoNode will be thrown
+     * if no node with the given path exists, and one with
+     * KeeperException.BadArguments if its name doesn't end with a sequence
+     * number.
+     *
+     * @since 3.6.0
+     *
+     * @param path a sequential node
+     * @param watcher explicit watcher for the sibling
+     * @return the name of the sibling, null if the node is the first one
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero
+     *  error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public String getPredecessor(final String path, Watcher watcher)
+        throws KeeperException, InterruptedException
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getPredecessor);
+        GetPredecessorRequest request = new GetPredecessorRequest(serverPath,
+                watcher != null);
+        SequentialChildResponse response = new SequentialChildResponse();
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new PredecessorWatchRegistration(watcher, clientPath, response);
+        }
+        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()),
+                    clientPath);
+        }
+        return response.getChild();
+    }
+
+    /**
+     * Return the sibling of the sequential node of the given path with the
+     * next lower sequence number.
+     *
+     * @since 3.6.0
+     *
+     * @see #getPredecessor(String, Watcher)
+     */
+    public String getPredecessor(String path, boolean watch)
+        throws KeeperException, InterruptedException
+    {
+        return getPredecessor(path, watch ? watchManager.defaultWatcher : null);
+    }
+
+    /**
+     * The asynchronous version of getPredecessor. The name passed to the
+     * callback is null if the node is the first one.
+     *
+     * @since 3.6.0
+     *
+     * @see #getPredecessor(String, Watcher)
+     */
+    public void getPredecessor(final String path, Watcher watcher,
+            StringCallback cb, Object ctx)
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getPredecessor);
+        GetPredecessorRequest request = new GetPredecessorRequest(serverPath,
+                watcher != null);
+        SequentialChildResponse response = new SequentialChildResponse();
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new PredecessorWatchRegistration(watcher, clientPath, response);
+        }
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb,
+                clientPath, serverPath, ctx, wcb);
+    }
+
+    /**
+     * Delete the child of the node of the given path with the lowest
+     * sequence number and return its name and data, atomically. Concurrent
+     * consumers of a queue each get a different child, without listing
+     * the children or retrying deletes that lost a race.
+     * <p>
+     * This needs the DELETE permission on the node and the READ permission
+     * on the child. The delete is written to the transaction log and
+     * triggers watches like any other delete.
+     * <p>
+     * A KeeperException with error code KeeperException.NoNode will be thrown
+     * if no node with the given path exists or if it has no sequential
+     * children.
+     *
+     * @since 3.6.0
+     *
+     * @param path the parent node
+     * @return the name and data of the deleted child
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero
+     *  error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public PollFirstChildResponse pollFirstChild(final String path)
+        throws KeeperException, InterruptedException
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.pollFirstChild);
+        PollFirstChildRequest request = new PollFirstChildRequest(serverPath);
+        PollFirstChildResponse response = new PollFirstChildResponse();
+        ReplyHeader r = cnxn.submitRequest(h, request, response, null);
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()),
+                    clientPath);
+        }
+        return response;
+    }
+
+    /**
+     * The asynchronous version of pollFirstChild.
+     *
+     * @since 3.6.0
+     *
+     * @see #pollFirstChild(String)
+     */
+    public void pollFirstChild(final String path, PollFirstChildCallback cb,
+            Object ctx)
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.pollFirstChild);
+        PollFirstChildRequest request = new PollFirstChildRequest(serverPath);
+        PollFirstChildResponse response = new PollFirstChildResponse();
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb,
+                clientPath, serverPath, ctx, null);
+    }
+
+    /**
+     * Return the data and stat of the descendants of the node of the given
+     * path in a single round trip, instead of a getChildren followed by a
+     * getData for every child.
+     * <p>
+     * Descendants are returned breadth first, the children of a node in
+     * sorted order, with their paths relative to the given path. Each node
+     * is read atomically, but nodes may change while the server collects
+     * them, so the result is not a snapshot of the subtree. Descendants
+     * the client is not allowed to read are left out, together with
+     * everything below them.
+     * <p>
+     * If the data of the descendants exceeds maxBytes, the server stops
+     * adding them and sets the truncated flag of the response. The first
+     * descendant is returned even if its data alone exceeds maxBytes. The
+     * server never returns more than its jute.maxbuffer.
+     * <p>
+     * A KeeperException with error code KeeperException.NoNode will be thrown
+     * if no node with the given path exists.
+     *
+     * @since 3.6.0
+     *
+     * @param path the node whose descendants are returned
+     * @param maxDepth 1 for the children of path only, more to recurse
+     * @param maxBytes size to stop adding descendants at, 0 for no limit
+     * @return the descendants and whether they were truncated
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero
+     *  error code.
+     * @throws IllegalArgumentException if an invalid path or maxDepth is
+     *  specified
+     */
+    public GetChildrenWithDataResponse getChildrenWithData(final String path,
+            int maxDepth, int maxBytes)
+        throws KeeperException, InterruptedException
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth must be at least 1");
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenWithData);
+        GetChildrenWithDataRequest request = new GetChildrenWithDataRequest(
+                serverPath, maxDepth, maxBytes);
+        GetChildrenWithDataResponse response = new GetChildrenWithDataResponse();
+        ReplyHeader r = cnxn.submitRequest(h, request, response, null);
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()),
+                    clientPath);
+        }
+        return response;
+    }
+
+    /**
+     * The asynchronous version of getChildrenWithData.
+     *
+     * @since 3.6.0
+     *
+     * @see #getChildrenWithData(String, int, int)
+     */
+    public void getChildrenWithData(final String path, int maxDepth,
+            int maxBytes, ChildrenWithDataCallback cb, Object ctx)
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth must be at least 1");
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenWithData);
+        GetChildrenWithDataRequest request = new GetChildrenWithDataRequest(
+                serverPath, maxDepth, maxBytes);
+        GetChildrenWithDataResponse response = new GetChildrenWithDataResponse();
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb,
+                clientPath, serverPath, ctx, null);
+    }
+
     /**
      * Asynchronous sync. Flushes channel between process and leader.
      * @param path
@@ -2678,6 +3400,77 @@ public void sync(final String path, VoidCallback cb, Object ctx){
                 clientPath, serverPath, ctx, null);
     }
 
+    /**
+     * Queue a readIndex request ahead of a read. The server holds the
+     * following requests of the session until its state caught up with the
+     * leader's commit index.
+     */
+    private ReplyHeader queueReadIndex() {
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.readIndex);
+        ReplyHeader r = new ReplyHeader();
+        cnxn.queuePacket(h, r, null, null, null, null, null, null, null);
+        return r;
+    }
+
+    /**
+     * Replies come back in order, so the readIndex reply has been read by
+     * the time the read that followed it returns.
+     */
+    private void checkReadIndex(ReplyHeader readIndex, String clientPath)
+        throws KeeperException
+    {
+        if (readIndex != null && readIndex.getErr() != 0) {
+            throw KeeperException.create(
+                    KeeperException.Code.get(readIndex.getErr()), clientPath);
+        }
+    }
+
+    /**
+     * Reports the error of the readIndex queued ahead of an asynchronous
+     * read, whose reply has been read by the time the read completes.
+     */
+    private static class ReadIndexDataCallback implements DataCallback {
+        private final ReplyHeader readIndex;
+        private final DataCallback cb;
+
+        ReadIndexDataCallback(ReplyHeader readIndex, DataCallback cb) {
+            this.readIndex = readIndex;
+            this.cb = cb;
+        }
+
+        public void processResult(int rc, String path, Object ctx,
+                byte[] data, Stat stat) {
+            if (readIndex.getErr() != 0) {
+                cb.processResult(readIndex.getErr(), path, ctx, null, null);
+            } else {
+                cb.processResult(rc, path, ctx, data, stat);
+            }
+        }
+    }
+
+    /**
+     * The {@link ReadIndexDataCallback} of getChildren.
+     */
+    private static class ReadIndexChildren2Callback implements Children2Callback {
+        private final ReplyHeader readIndex;
+        private final Children2Callback cb;
+
+        ReadIndexChildren2Callback(ReplyHeader readIndex, Children2Callback cb) {
+            this.readIndex = readIndex;
+            this.cb = cb;
+        }
+
+        public void processResult(int rc, String path, Object ctx,
+                List<String> children, Stat stat) {
+            if (readIndex.getErr() != 0) {
+                cb.processResult(readIndex.getErr(), path, ctx, null, null);
+            } else {
+                cb.processResult(rc, path, ctx, children, stat);
+            }
+        }
+    }
+
     /**
      * For the given znode path, removes the specified watcher of given
      * watcherType.
@@ -2777,6 +3570,86 @@ public void removeAllWatches(String path, WatcherType watcherType,
                 watcherType, local, cb, ctx);
     }
 
+    /**
+     * Add a watch to the given znode path that is not removed when it
+     * triggers, so it doesn't have to be set again after every event. With
+     * {@link AddWatchMode#PERSISTENT} the watcher gets the data and children
+     * changes of the node, and its creation and deletion, like a data and a
+     * child watch would. With {@link AddWatchMode#PERSISTENT_RECURSIVE} it
+     * gets the data changes, creations and deletions of the node and of all
+     * the nodes below it, without any NodeChildrenChanged events. A single
+     * recursive watch replaces the data and child watches a client would
+     * otherwise keep on every node of a subtree.
+     * <p>
+     * The node doesn't need to exist. The watch stays until the session
+     * ends, or until it is removed with {@link #removeAllWatches} and
+     * {@link WatcherType#Any}; {@link #removeWatches} only stops the given
+     * watcher from being called. It is set again after a reconnection, but
+     * the changes made while the client was disconnected are not reported.
+     *
+     * @param basePath the path of the node to watch
+     * @param watcher the watcher, not null
+     * @param mode whether the nodes below basePath are watched as well
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero
+     *  error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     *
+     * @since 3.6.0
+     */
+    public void addWatch(String basePath, Watcher watcher, AddWatchMode mode)
+            throws KeeperException, InterruptedException {
+        validateWatcher(watcher);
+        final String clientPath = basePath;
+        PathUtils.validatePath(clientPath);
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.addWatch);
+        AddWatchRequest request = new AddWatchRequest(serverPath, mode.getMode());
+        ReplyHeader r = cnxn.submitRequest(h, request, null,
+                new AddWatchRegistration(watcher, clientPath, mode));
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()),
+                    clientPath);
+        }
+    }
+
+    /**
+     * Add a watch for the default watcher that is not removed when it
+     * triggers.
+     *
+     * @see #addWatch(String, Watcher, AddWatchMode)
+     *
+     * @since 3.6.0
+     */
+    public void addWatch(String basePath, AddWatchMode mode)
+            throws KeeperException, InterruptedException {
+        addWatch(basePath, watchManager.defaultWatcher, mode);
+    }
+
+    /**
+     * The asynchronous version of addWatch.
+     *
+     * @see #addWatch(String, Watcher, AddWatchMode)
+     *
+     * @since 3.6.0
+     */
+    public void addWatch(String basePath, Watcher watcher, AddWatchMode mode,
+            VoidCallback cb, Object ctx) {
+        validateWatcher(watcher);
+        final String clientPath = basePath;
+        PathUtils.validatePath(clientPath);
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.addWatch);
+        AddWatchRequest request = new AddWatchRequest(serverPath, mode.getMode());
+        cnxn.queuePacket(h, new ReplyHeader(), request, null, cb, clientPath,
+                serverPath, ctx, new AddWatchRegistration(watcher, clientPath,
+                        mode));
+    }
+
     private void validateWatcher(Watcher watcher) {
         if (watcher == null) {
             throw new IllegalArgumentException(
@@ -55,6 +55,18 @@ public class ZKClientConfig extends ZKConfig {
      */
     @SuppressWarnings("deprecation")
     public static final String SECURE_CLIENT = ZooKeeper.SECURE_CLIENT;
+    /**
+     * Setting this to "true" asks the server to write replies in the compact
+     * encoding of CompactOutputArchive. Servers that do not support it keep
+     * using the binary encoding.
+     */
+    public static final String COMPACT_ENCODING = "zookeeper.client.compactEncoding";
+    /**
+     * Setting this to "true" lets the server send the watch events
+     * triggered within a short window together. Servers that do not support
+     * it keep sending them one by one.
+     */
+    public static final String NOTIFICATION_BATCH = "zookeeper.client.notificationBatch";
     public static final int CLIENT_MAX_PACKET_LENGTH_DEFAULT = 4096 * 1024; /* 4 MB */
 
     public ZKClientConfig() {
@@ -87,6 +99,8 @@ protected void handleBackwardCompatibility() {
         setProperty(DISABLE_AUTO_WATCH_RESET, System.getProperty(DISABLE_AUTO_WATCH_RESET));
         setProperty(ZOOKEEPER_CLIENT_CNXN_SOCKET, System.getProperty(ZOOKEEPER_CLIENT_CNXN_SOCKET));
         setProperty(SECURE_CLIENT, System.getProperty(SECURE_CLIENT));
+        setProperty(COMPACT_ENCODING, System.getProperty(COMPACT_ENCODING));
+        setProperty(NOTIFICATION_BATCH, System.getProperty(NOTIFICATION_BATCH));
     }
 
     /**
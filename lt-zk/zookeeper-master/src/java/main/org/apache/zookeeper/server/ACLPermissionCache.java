@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.zookeeper.data.Id;
+
+/**
+ * A bounded table of the permissions that the ACL of a given id of the
+ * {@link ReferenceCountedACLCache} grants to a given set of client
+ * credentials. Each slot holds a single entry and a colliding key simply
+ * replaces it, the table is shared between threads without locking.
+ *
+ * An acl id always stands for the same ACL for the life of a DataTree, a
+ * setACL moves the node to another id and an addAuth changes the
+ * credentials of the session, so both naturally stop matching the entries
+ * made before. The table is cleared when the DataTree is deserialized,
+ * since the ids of a snapshot may be reused.
+ */
+class ACLPermissionCache {
+    public static final String SIZE = "zookeeper.aclPermissionCacheSize";
+
+    private static final int DEFAULT_SIZE = 1024;
+
+    private static final class Entry {
+        final long aclId;
+        final List<Id> ids;
+        final int perms;
+
+        Entry(long aclId, List<Id> ids, int perms) {
+            this.aclId = aclId;
+            this.ids = ids;
+            this.perms = perms;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> table;
+
+    private final int mask;
+
+    ACLPermissionCache() {
+        this(Integer.getInteger(SIZE, DEFAULT_SIZE));
+    }
+
+    /**
+     * @param size number of slots, rounded up to a power of two, nothing is
+     *             cached if it is not positive
+     */
+    ACLPermissionCache(int size) {
+        int slots = 0;
+        if (size > 0) {
+            slots = Integer.highestOneBit(size);
+            if (slots < size) {
+                slots <<= 1;
+            }
+        }
+        this.table = new AtomicReferenceArray<Entry>(slots);
+        this.mask = slots - 1;
+    }
+
+    private static int hash(long aclId, List<Id> ids) {
+        int h = 31 * (int) (aclId ^ (aclId >>> 32)) + ids.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the permissions the acl grants to ids, or -1 if not cached
+     */
+    int get(long aclId, List<Id> ids) {
+        if (table.length() == 0) {
+            return -1;
+        }
+        Entry e = table.get(hash(aclId, ids) & mask);
+        if (e != null && e.aclId == aclId && e.ids.equals(ids)) {
+            return e.perms;
+        }
+        return -1;
+    }
+
+    void put(long aclId, List<Id> ids, int perms) {
+        if (table.length() == 0) {
+            return;
+        }
+        table.set(hash(aclId, ids) & mask, new Entry(aclId, ids, perms));
+    }
+
+    void clear() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, null);
+        }
+    }
+}
@@ -22,10 +22,32 @@
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 
-import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.ByteBufferInputArchive;
 import org.apache.jute.Record;
+import org.apache.jute.StringInterner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ByteBufferInputStream extends InputStream {
+    private static final Logger LOG = LoggerFactory.getLogger(ByteBufferInputStream.class);
+
+    /**
+     * Number of slots of the table the strings of requests, mostly paths,
+     * are interned in while decoding. 0 disables interning.
+     */
+    public static final String PATH_INTERNER_SIZE = "zookeeper.pathInternerSize";
+
+    private static final int PATH_INTERNER_MAX_LENGTH = 256;
+
+    private static final StringInterner pathInterner;
+
+    static {
+        int size = Integer.getInteger(PATH_INTERNER_SIZE, 4096);
+        pathInterner = size > 0
+                ? new StringInterner(size, PATH_INTERNER_MAX_LENGTH) : null;
+        LOG.info("{} = {}", PATH_INTERNER_SIZE, size);
+    }
+
     ByteBuffer bb;
 
     public ByteBufferInputStream(ByteBuffer bb) {
@@ -74,9 +96,7 @@ public long skip(long n) throws IOException {
 
     static public void byteBuffer2Record(ByteBuffer bb, Record record)
             throws IOException {
-        BinaryInputArchive ia;
-        ia = BinaryInputArchive.getArchive(new ByteBufferInputStream(bb));
-        record.deserialize(ia, "request");
+        new ByteBufferInputArchive(bb, pathInterner).readRecord(record, "request");
     }
 
 }
@@ -35,6 +35,8 @@
  * checks container nodes that have a cversion > 0 and have no children. A
  * delete is attempted on the node. The result of the delete is unimportant.
  * If the proposal fails or the container node is not empty there's no harm.
+ * The DataTree keeps the empty containers and the ttl nodes by deadline, so
+ * a check only visits the nodes that can actually be deleted.
  */
 public class ContainerManager {
     private static final Logger LOG = LoggerFactory.getLogger(ContainerManager.class);
@@ -140,8 +142,9 @@ protected long getMinIntervalMs() {
     // VisibleForTesting
     protected Collection<String> getCandidates() {
         Set<String> candidates = new HashSet<String>();
-        for (String containerPath : zkDb.getDataTree().getContainers()) {
-            DataNode node = zkDb.getDataTree().getNode(containerPath);
+        DataTree dataTree = zkDb.getDataTree();
+        for (String containerPath : dataTree.getEmptyContainers()) {
+            DataNode node = dataTree.getNode(containerPath);
             /*
                 cversion > 0: keep newly created containers from being deleted
                 before any children have been added. If you were to create the
@@ -153,16 +156,23 @@ protected Collection<String> getCandidates() {
                 candidates.add(containerPath);
             }
         }
-        for (String ttlPath : zkDb.getDataTree().getTtls()) {
-            DataNode node = zkDb.getDataTree().getNode(ttlPath);
+        /*
+            The ttl nodes come by increasing deadline, the first one that is
+            still alive ends the walk so only the expired nodes are looked at.
+         */
+        for (DataTree.TtlDeadline deadline : dataTree.getTtlDeadlines()) {
+            String ttlPath = deadline.getPath();
+            DataNode node = dataTree.getNode(ttlPath);
             if (node != null) {
-                Set<String> children = node.getChildren();
-                if (children.isEmpty()) {
-                    long elapsed = getElapsed(node);
-                    long ttl = EphemeralType.getTTL(node.stat.getEphemeralOwner());
-                    if ((ttl != 0) && (elapsed > ttl)) {
-                        candidates.add(ttlPath);
-                    }
+                long ttl = EphemeralType.getTTL(node.stat.getEphemeralOwner());
+                if (ttl == 0) {
+                    continue;
+                }
+                if (getElapsed(node) <= ttl) {
+                    break;
+                }
+                if (node.getChildren().isEmpty()) {
+                    candidates.add(ttlPath);
                 }
             }
         }
@@ -0,0 +1,650 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.Record;
+import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.persistence.FileHeader;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.apache.zookeeper.txn.CreateContainerTxn;
+import org.apache.zookeeper.txn.CreateTTLTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetACLTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+
+/**
+ * Aggregate reports over snapshots and txn logs, for capacity planning of
+ * ensembles whose data is too large to go through {@link SnapshotFormatter}
+ * and {@link LogFormatter}.
+ *
+ * Every file is decoded by its own task on a thread pool and nodes and txns
+ * are folded into the reports as they are read, so a snapshot is never
+ * loaded into a DataTree. The result is written to stdout as JSON:
+ * <ul>
+ * <li>for each snapshot, the node count and data bytes by path prefix, the
+ * largest znodes and the ephemeral count of each session</li>
+ * <li>for the txn logs, the writes by path prefix in each time interval and
+ * the sessions which wrote the most</li>
+ * </ul>
+ */
+@InterfaceAudience.Public
+public class DataDirAnalyzer {
+    private static final String USAGE =
+        "USAGE: DataDirAnalyzer [-depth n] [-top n] [-interval seconds]"
+        + " [-threads n] (dir|snapshot_file|log_file)...";
+
+    /** number of path components the nodes and writes are grouped by */
+    private int prefixDepth = 2;
+
+    /** length of the largest znode and top writer lists */
+    private int top = 10;
+
+    /** width of the write rate intervals */
+    private long intervalMs = 60000;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * USAGE: DataDirAnalyzer [-depth n] [-top n] [-interval seconds]
+     * [-threads n] (dir|snapshot_file|log_file)...
+     *
+     * A directory stands for its most recent snapshot and all its txn logs.
+     */
+    public static void main(String[] args) throws Exception {
+        DataDirAnalyzer analyzer = new DataDirAnalyzer();
+        List<File> snapshots = new ArrayList<File>();
+        List<File> logs = new ArrayList<File>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-depth")) {
+                    analyzer.setPrefixDepth(Integer.parseInt(args[++i]));
+                } else if (args[i].equals("-top")) {
+                    analyzer.setTop(Integer.parseInt(args[++i]));
+                } else if (args[i].equals("-interval")) {
+                    analyzer.setIntervalMs(Long.parseLong(args[++i]) * 1000);
+                } else if (args[i].equals("-threads")) {
+                    analyzer.setThreads(Integer.parseInt(args[++i]));
+                } else {
+                    addFiles(new File(args[i]), snapshots, logs);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        if (snapshots.isEmpty() && logs.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        PrintWriter out = new PrintWriter(System.out);
+        analyzer.write(analyzer.analyze(snapshots, logs), out);
+        out.println();
+        out.flush();
+    }
+
+    private static void addFiles(File f, List<File> snapshots, List<File> logs) {
+        if (f.isDirectory()) {
+            File[] files = f.listFiles();
+            for (File snap : Util.sortDataDir(files,
+                    FileSnap.SNAPSHOT_FILE_PREFIX, false)) {
+                if (Util.isSnapshotFileName(snap.getName())) {
+                    snapshots.add(snap);
+                    break;
+                }
+            }
+            for (File log : Util.sortDataDir(files,
+                    FileTxnLog.LOG_FILE_PREFIX, true)) {
+                if (Util.isLogFileName(log.getName())) {
+                    logs.add(log);
+                }
+            }
+        } else if (Util.isSnapshotFileName(f.getName())) {
+            snapshots.add(f);
+        } else if (Util.isLogFileName(f.getName())) {
+            logs.add(f);
+        } else {
+            throw new IllegalArgumentException("Not a snapshot, txn log or "
+                    + "directory: " + f);
+        }
+    }
+
+    public void setPrefixDepth(int prefixDepth) {
+        if (prefixDepth < 0) {
+            throw new IllegalArgumentException("Invalid depth " + prefixDepth);
+        }
+        this.prefixDepth = prefixDepth;
+    }
+
+    public void setTop(int top) {
+        if (top < 0) {
+            throw new IllegalArgumentException("Invalid top " + top);
+        }
+        this.top = top;
+    }
+
+    public void setIntervalMs(long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("Invalid interval " + intervalMs);
+        }
+        this.intervalMs = intervalMs;
+    }
+
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Invalid threads " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Decode the snapshots and the txn logs in parallel.
+     *
+     * @return the report, maps and lists of numbers and strings
+     */
+    public Map<String, Object> analyze(List<File> snapshots, List<File> logs)
+            throws IOException, InterruptedException {
+        long start = Time.currentElapsedTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<SnapshotReport>> snapFutures =
+                new ArrayList<Future<SnapshotReport>>();
+            for (final File snap : snapshots) {
+                snapFutures.add(executor.submit(new Callable<SnapshotReport>() {
+                    @Override
+                    public SnapshotReport call() throws IOException {
+                        return readSnapshot(snap);
+                    }
+                }));
+            }
+            List<Future<LogReport>> logFutures = new ArrayList<Future<LogReport>>();
+            for (final File log : logs) {
+                logFutures.add(executor.submit(new Callable<LogReport>() {
+                    @Override
+                    public LogReport call() throws IOException {
+                        return readLog(log);
+                    }
+                }));
+            }
+
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            List<Object> snapResults = new ArrayList<Object>();
+            for (Future<SnapshotReport> f : snapFutures) {
+                snapResults.add(get(f).toMap());
+            }
+            result.put("snapshots", snapResults);
+            LogReport logReport = new LogReport();
+            for (Future<LogReport> f : logFutures) {
+                logReport.merge(get(f));
+            }
+            result.put("txnlogs", logReport.toMap());
+            result.put("elapsed_ms", Time.currentElapsedTime() - start);
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T get(Future<T> f)
+            throws IOException, InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public void write(Map<String, Object> result, Writer out)
+            throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
+        mapper.writeValue(out, result);
+    }
+
+    /**
+     * @return the first prefixDepth components of path
+     */
+    String prefix(String path) {
+        int end = 0;
+        for (int i = 0; i < prefixDepth; i++) {
+            end = path.indexOf('/', end + 1);
+            if (end == -1) {
+                return path;
+            }
+        }
+        return end == 0 ? "/" : path.substring(0, end);
+    }
+
+    /**
+     * Stream the nodes of a snapshot, the same way DataTree.deserialize
+     * reads them, without keeping them.
+     */
+    SnapshotReport readSnapshot(File snap) throws IOException {
+        SnapshotReport report = new SnapshotReport(snap);
+        try (InputStream snapIS = new BufferedInputStream(new FileInputStream(snap));
+             CheckedInputStream crcIn = new CheckedInputStream(snapIS, new Adler32())) {
+            InputArchive ia = BinaryInputArchive.getArchive(crcIn);
+            FileHeader header = new FileHeader();
+            header.deserialize(ia, "fileheader");
+            if (header.getMagic() != FileSnap.SNAP_MAGIC) {
+                throw new IOException("Invalid magic number for " + snap);
+            }
+            int count = ia.readInt("count");
+            while (count > 0) {
+                long id = ia.readLong("id");
+                report.sessions.put(id, ia.readInt("timeout"));
+                count--;
+            }
+            new ReferenceCountedACLCache().deserialize(ia);
+            String path = ia.readString("path");
+            while (!"/".equals(path)) {
+                DataNode node = new DataNode();
+                ia.readRecord(node, "node");
+                report.add(path, node);
+                path = ia.readString("path");
+            }
+            long checkSum = crcIn.getChecksum().getValue();
+            if (ia.readLong("val") != checkSum) {
+                throw new IOException("CRC corruption in snapshot " + snap);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Read a txn log file the same way LogFormatter does, up to its
+     * preallocated end or a partial txn.
+     */
+    LogReport readLog(File log) throws IOException {
+        LogReport report = new LogReport();
+        try (InputStream logIS = new BufferedInputStream(new FileInputStream(log))) {
+            InputArchive ia = BinaryInputArchive.getArchive(logIS);
+            FileHeader header = new FileHeader();
+            header.deserialize(ia, "fileheader");
+            if (header.getMagic() != FileTxnLog.TXNLOG_MAGIC) {
+                throw new IOException("Invalid magic number for " + log);
+            }
+            report.files++;
+            List<String> paths = new ArrayList<String>();
+            while (true) {
+                long crcValue;
+                try {
+                    crcValue = ia.readLong("crcvalue");
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] bytes = Util.readTxnBytes(ia);
+                if (bytes == null || bytes.length == 0) {
+                    break;
+                }
+                Checksum crc = new Adler32();
+                crc.update(bytes, 0, bytes.length);
+                if (crcValue != crc.getValue()) {
+                    throw new IOException("CRC doesn't match " + crcValue
+                            + " vs " + crc.getValue() + " in " + log);
+                }
+                TxnHeader hdr = new TxnHeader();
+                Record txn = SerializeUtils.deserializeTxn(bytes, hdr);
+                paths.clear();
+                addPaths(hdr.getType(), txn, paths);
+                report.add(hdr, bytes.length, paths);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Add the paths written by txn to paths, nothing for a failed multi.
+     */
+    private static void addPaths(int type, Record txn, List<String> paths)
+            throws IOException {
+        switch (type) {
+        case OpCode.create:
+        case OpCode.create2:
+            paths.add(((CreateTxn) txn).getPath());
+            break;
+        case OpCode.createTTL:
+            paths.add(((CreateTTLTxn) txn).getPath());
+            break;
+        case OpCode.createContainer:
+            paths.add(((CreateContainerTxn) txn).getPath());
+            break;
+        case OpCode.delete:
+        case OpCode.deleteContainer:
+            paths.add(((DeleteTxn) txn).getPath());
+            break;
+        case OpCode.setData:
+        case OpCode.reconfig:
+            paths.add(((SetDataTxn) txn).getPath());
+            break;
+        case OpCode.setACL:
+            paths.add(((SetACLTxn) txn).getPath());
+            break;
+        case OpCode.multi:
+            List<Txn> txns = ((MultiTxn) txn).getTxns();
+            for (Txn subtxn : txns) {
+                if (subtxn.getType() == OpCode.error) {
+                    return;
+                }
+            }
+            for (Txn subtxn : txns) {
+                Record record;
+                switch (subtxn.getType()) {
+                case OpCode.create:
+                    record = new CreateTxn();
+                    break;
+                case OpCode.createTTL:
+                    record = new CreateTTLTxn();
+                    break;
+                case OpCode.createContainer:
+                    record = new CreateContainerTxn();
+                    break;
+                case OpCode.delete:
+                case OpCode.deleteContainer:
+                    record = new DeleteTxn();
+                    break;
+                case OpCode.setData:
+                    record = new SetDataTxn();
+                    break;
+                case OpCode.check:
+                    // only reads the node
+                    continue;
+                default:
+                    throw new IOException("Invalid type of op: "
+                            + subtxn.getType());
+                }
+                ByteBufferInputStream.byteBuffer2Record(
+                        ByteBuffer.wrap(subtxn.getData()), record);
+                addPaths(subtxn.getType(), record, paths);
+            }
+            break;
+        default:
+            // session and error txns don't write any node
+            break;
+        }
+    }
+
+    private static String hex(long sid) {
+        return "0x" + Long.toHexString(sid);
+    }
+
+    private static final class Sized {
+        final String path;
+        final long size;
+
+        Sized(String path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private static final Comparator<Sized> SMALLEST_FIRST = new Comparator<Sized>() {
+        @Override
+        public int compare(Sized a, Sized b) {
+            return Long.compare(a.size, b.size);
+        }
+    };
+
+    final class SnapshotReport {
+        final File file;
+
+        final Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+
+        long nodeCount;
+
+        long dataBytes;
+
+        /** count and data bytes of the nodes under each prefix */
+        final Map<String, long[]> prefixes = new TreeMap<String, long[]>();
+
+        final Map<Long, Integer> ephemerals = new HashMap<Long, Integer>();
+
+        final PriorityQueue<Sized> largest =
+            new PriorityQueue<Sized>(Math.max(top, 1), SMALLEST_FIRST);
+
+        SnapshotReport(File file) {
+            this.file = file;
+        }
+
+        void add(String path, DataNode node) {
+            int size = node.data == null ? 0 : node.data.length;
+            if (path.isEmpty()) {
+                // the root is in the snapshot as ""
+                path = "/";
+            }
+            nodeCount++;
+            dataBytes += size;
+            String prefix = prefix(path);
+            long[] counts = prefixes.get(prefix);
+            if (counts == null) {
+                counts = new long[2];
+                prefixes.put(prefix, counts);
+            }
+            counts[0]++;
+            counts[1] += size;
+
+            long owner = node.stat.getEphemeralOwner();
+            if (owner != 0 && EphemeralType.get(owner) == EphemeralType.NORMAL) {
+                Integer n = ephemerals.get(owner);
+                ephemerals.put(owner, n == null ? 1 : n + 1);
+            }
+
+            if (top > 0 && (largest.size() < top || largest.peek().size < size)) {
+                if (largest.size() == top) {
+                    largest.poll();
+                }
+                largest.add(new Sized(path, size));
+            }
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("file", file.getPath());
+            map.put("zxid", hex(Util.getZxidFromName(file.getName(),
+                    FileSnap.SNAPSHOT_FILE_PREFIX)));
+            map.put("node_count", nodeCount);
+            map.put("data_bytes", dataBytes);
+
+            Map<String, Object> byPrefix = new LinkedHashMap<String, Object>();
+            for (Map.Entry<String, long[]> e : prefixes.entrySet()) {
+                Map<String, Object> counts = new LinkedHashMap<String, Object>();
+                counts.put("node_count", e.getValue()[0]);
+                counts.put("data_bytes", e.getValue()[1]);
+                byPrefix.put(e.getKey(), counts);
+            }
+            map.put("prefixes", byPrefix);
+
+            List<Sized> nodes = new ArrayList<Sized>(largest);
+            Collections.sort(nodes, Collections.reverseOrder(SMALLEST_FIRST));
+            List<Object> largestNodes = new ArrayList<Object>();
+            for (Sized n : nodes) {
+                Map<String, Object> node = new LinkedHashMap<String, Object>();
+                node.put("path", n.path);
+                node.put("data_bytes", n.size);
+                largestNodes.add(node);
+            }
+            map.put("largest_nodes", largestNodes);
+
+            List<Object> sessionList = new ArrayList<Object>();
+            for (Map.Entry<Long, Integer> e : new TreeMap<Long, Integer>(sessions).entrySet()) {
+                Integer count = ephemerals.get(e.getKey());
+                Map<String, Object> session = new LinkedHashMap<String, Object>();
+                session.put("session_id", hex(e.getKey()));
+                session.put("timeout", e.getValue());
+                session.put("ephemeral_count", count == null ? 0 : count);
+                sessionList.add(session);
+            }
+            map.put("sessions", sessionList);
+            return map;
+        }
+    }
+
+    final class LogReport {
+        int files;
+
+        long txnCount;
+
+        long txnBytes;
+
+        long firstZxid = -1;
+
+        long lastZxid = -1;
+
+        /** nodes written under each prefix, by start of interval */
+        final Map<String, TreeMap<Long, Long>> writes =
+            new TreeMap<String, TreeMap<Long, Long>>();
+
+        /** txns and txn bytes of each session */
+        final Map<Long, long[]> writers = new HashMap<Long, long[]>();
+
+        void add(TxnHeader hdr, int size, List<String> paths) {
+            txnCount++;
+            txnBytes += size;
+            if (firstZxid == -1 || hdr.getZxid() < firstZxid) {
+                firstZxid = hdr.getZxid();
+            }
+            lastZxid = Math.max(lastZxid, hdr.getZxid());
+
+            long interval = hdr.getTime() - hdr.getTime() % intervalMs;
+            for (String path : paths) {
+                String prefix = prefix(path);
+                TreeMap<Long, Long> counts = writes.get(prefix);
+                if (counts == null) {
+                    counts = new TreeMap<Long, Long>();
+                    writes.put(prefix, counts);
+                }
+                Long n = counts.get(interval);
+                counts.put(interval, n == null ? 1 : n + 1);
+            }
+
+            long[] writer = writers.get(hdr.getClientId());
+            if (writer == null) {
+                writer = new long[2];
+                writers.put(hdr.getClientId(), writer);
+            }
+            writer[0]++;
+            writer[1] += size;
+        }
+
+        void merge(LogReport other) {
+            files += other.files;
+            txnCount += other.txnCount;
+            txnBytes += other.txnBytes;
+            if (other.firstZxid != -1
+                    && (firstZxid == -1 || other.firstZxid < firstZxid)) {
+                firstZxid = other.firstZxid;
+            }
+            lastZxid = Math.max(lastZxid, other.lastZxid);
+            for (Map.Entry<String, TreeMap<Long, Long>> e : other.writes.entrySet()) {
+                TreeMap<Long, Long> counts = writes.get(e.getKey());
+                if (counts == null) {
+                    writes.put(e.getKey(), e.getValue());
+                    continue;
+                }
+                for (Map.Entry<Long, Long> c : e.getValue().entrySet()) {
+                    Long n = counts.get(c.getKey());
+                    counts.put(c.getKey(), n == null ? c.getValue() : n + c.getValue());
+                }
+            }
+            for (Map.Entry<Long, long[]> e : other.writers.entrySet()) {
+                long[] writer = writers.get(e.getKey());
+                if (writer == null) {
+                    writers.put(e.getKey(), e.getValue());
+                } else {
+                    writer[0] += e.getValue()[0];
+                    writer[1] += e.getValue()[1];
+                }
+            }
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("files", files);
+            map.put("txn_count", txnCount);
+            map.put("txn_bytes", txnBytes);
+            map.put("first_zxid", hex(firstZxid));
+            map.put("last_zxid", hex(lastZxid));
+            map.put("interval_ms", intervalMs);
+            map.put("writes", writes);
+
+            List<Map.Entry<Long, long[]>> sorted =
+                new ArrayList<Map.Entry<Long, long[]>>(writers.entrySet());
+            Collections.sort(sorted, new Comparator<Map.Entry<Long, long[]>>() {
+                @Override
+                public int compare(Map.Entry<Long, long[]> a, Map.Entry<Long, long[]> b) {
+                    return Long.compare(b.getValue()[0], a.getValue()[0]);
+                }
+            });
+            List<Object> topWriters = new ArrayList<Object>();
+            for (Map.Entry<Long, long[]> e : sorted.subList(0, Math.min(top, sorted.size()))) {
+                Map<String, Object> writer = new LinkedHashMap<String, Object>();
+                writer.put("session_id", hex(e.getKey()));
+                writer.put("txn_count", e.getValue()[0]);
+                writer.put("txn_bytes", e.getValue()[1]);
+                topWriters.add(writer);
+            }
+            map.put("top_writers", topWriters);
+            return map;
+        }
+    }
+}
@@ -19,10 +19,15 @@
 package org.apache.zookeeper.server;
 
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
 import java.util.Set;
 import java.util.Collections;
+import java.util.TreeSet;
 
+import org.apache.jute.ByteBufferOutputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -57,6 +62,43 @@ public class DataNode implements Record {
      */
     private Set<String> children = null;
 
+    /**
+     * the children in sorted order, only built the first time a page of
+     * them is asked for and kept up to date from then on, so that parents
+     * that are never paged through don't pay for it.
+     */
+    private NavigableSet<String> sortedChildren = null;
+
+    /**
+     * the children whose names end with a sequence number, ordered by it.
+     * Built the first time it is needed, like sortedChildren.
+     */
+    private NavigableSet<String> sequentialChildren = null;
+
+    /**
+     * the counter of the quota this node is under, cached by the DataTree
+     * while quotaEpoch matches its own. Not persisted.
+     */
+    QuotaCounter quotaCounter;
+
+    int quotaEpoch;
+
+    /**
+     * Orders the names of sequential nodes by their sequence number, then
+     * by name for the nodes that have the same number.
+     */
+    static final Comparator<String> SEQUENCE_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            long sa = sequenceOf(a);
+            long sb = sequenceOf(b);
+            if (sa != sb) {
+                return sa < sb ? -1 : 1;
+            }
+            return a.compareTo(b);
+        }
+    };
+
     private static final Set<String> EMPTY_SET = Collections.emptySet();
 
     /**
@@ -96,6 +138,12 @@ public synchronized boolean addChild(String child) {
             // let's be conservative on the typical number of children
             children = new HashSet<String>(8);
         }
+        if (sortedChildren != null) {
+            sortedChildren.add(child);
+        }
+        if (sequentialChildren != null && isSequential(child)) {
+            sequentialChildren.add(child);
+        }
         return children.add(child);
     }
 
@@ -109,6 +157,12 @@ public synchronized boolean removeChild(String child) {
         if (children == null) {
             return false;
         }
+        if (sortedChildren != null) {
+            sortedChildren.remove(child);
+        }
+        if (sequentialChildren != null && isSequential(child)) {
+            sequentialChildren.remove(child);
+        }
         return children.remove(child);
     }
 
@@ -119,6 +173,8 @@ public synchronized boolean removeChild(String child) {
      */
     public synchronized void setChildren(HashSet<String> children) {
         this.children = children;
+        this.sortedChildren = null;
+        this.sequentialChildren = null;
     }
 
     /**
@@ -135,6 +191,108 @@ public synchronized Set<String> getChildren() {
         return Collections.unmodifiableSet(children);
     }
 
+    /**
+     * Add the children that sort after startAfter to page, in sorted order.
+     * Costs O(log n) plus the size of the page once the sorted index of the
+     * children is built.
+     *
+     * @param startAfter the last child of the previous page, null or empty
+     *                   to start from the first child
+     * @param limit the maximum number of children to add
+     * @param maxBytes stop before the serialized children exceed this
+     * @param page the children are added to this
+     * @return true if more children follow the ones added
+     */
+    public synchronized boolean getChildren(String startAfter, int limit,
+            int maxBytes, List<String> page) {
+        if (children == null) {
+            return false;
+        }
+        if (sortedChildren == null) {
+            sortedChildren = new TreeSet<String>(children);
+        }
+        NavigableSet<String> tail = startAfter == null || startAfter.isEmpty()
+            ? sortedChildren : sortedChildren.tailSet(startAfter, false);
+        int bytes = 0;
+        int added = 0;
+        for (String child : tail) {
+            bytes += ByteBufferOutputArchive.stringSize(child);
+            if (added == limit || bytes > maxBytes) {
+                return true;
+            }
+            page.add(child);
+            added++;
+        }
+        return false;
+    }
+
+    /**
+     * Whether name ends with the ten digit sequence number the server
+     * appends to sequential nodes.
+     */
+    static boolean isSequential(String name) {
+        int start = name.length() - 10;
+        if (start < 0) {
+            return false;
+        }
+        // the number is negative once the cversion of the parent overflowed
+        if (name.charAt(start) == '-') {
+            start++;
+        }
+        for (int i = start; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the sequence number of a name for which isSequential is true
+     */
+    static long sequenceOf(String name) {
+        return Long.parseLong(name.substring(name.length() - 10));
+    }
+
+    private NavigableSet<String> sequentialChildren() {
+        if (sequentialChildren == null) {
+            sequentialChildren = new TreeSet<String>(SEQUENCE_ORDER);
+            if (children != null) {
+                for (String child : children) {
+                    if (isSequential(child)) {
+                        sequentialChildren.add(child);
+                    }
+                }
+            }
+        }
+        return sequentialChildren;
+    }
+
+    /**
+     * Return the sequential child that follows another one in sequence
+     * order, in O(log n) once the index of the sequential children is
+     * built. Children whose names don't end with a sequence number are
+     * ignored.
+     *
+     * @param after a sequential child, null for the first one
+     * @return the next sequential child, null if there is none
+     */
+    public synchronized String nextSequentialChild(String after) {
+        NavigableSet<String> seq = sequentialChildren();
+        return after == null ? (seq.isEmpty() ? null : seq.first())
+            : seq.higher(after);
+    }
+
+    /**
+     * @param child a sequential child
+     * @return the sequential child before it in sequence order, null if
+     *         there is none
+     */
+    public synchronized String previousSequentialChild(String child) {
+        return sequentialChildren().lower(child);
+    }
+
     public synchronized long getApproximateDataSize() {
         if(null==data) return 0;
         return data.length;
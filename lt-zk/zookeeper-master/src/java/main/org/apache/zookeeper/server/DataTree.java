@@ -21,6 +21,7 @@
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.KeeperException.NoNodeException;
@@ -37,6 +38,7 @@
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.PathTrie;
 import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.ChildData;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.data.StatPersisted;
 import org.apache.zookeeper.txn.CheckVersionTxn;
@@ -57,6 +59,7 @@
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -66,6 +69,13 @@
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class maintains the tree data structure. It doesn't have any networking
@@ -86,6 +96,20 @@ public class DataTree {
     private final ConcurrentHashMap<String, DataNode> nodes =
         new ConcurrentHashMap<String, DataNode>();
 
+    /** sum of the lengths of the paths and data of nodes */
+    private final AtomicLong approximateDataSize = new AtomicLong();
+
+    /** stats of the subtree of each top level znode */
+    private final ConcurrentHashMap<String, NamespaceStats> namespaceStats =
+        new ConcurrentHashMap<String, NamespaceStats>();
+
+    private final AtomicInteger ephemeralsCount = new AtomicInteger();
+
+    /**
+     * The sum of the {@link NodeDigest} of every node
+     */
+    private final AtomicLong treeDigest = new AtomicLong();
+
     private final WatchManager dataWatches = new WatchManager();
 
     private final WatchManager childWatches = new WatchManager();
@@ -124,6 +148,20 @@ public class DataTree {
      */
     private final PathTrie pTrie = new PathTrie();
 
+    /**
+     * the counters of the quotas in this datatree, by the path that has the
+     * quota. The nodes cache the counter of the quota they are under, these
+     * caches are only valid while their epoch is quotaEpoch.
+     */
+    private final Map<String, QuotaCounter> quotaCounters =
+        new ConcurrentHashMap<String, QuotaCounter>();
+
+    /**
+     * changed when a quota is added or removed. Like the caches of the
+     * nodes it is only used by the thread that applies the transactions.
+     */
+    private int quotaEpoch = 1;
+
     /**
      * This hashtable lists the paths of the ephemeral nodes of a session.
      */
@@ -142,8 +180,23 @@ public class DataTree {
     private final Set<String> ttls =
             Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
+    /**
+     * This set contains the paths of the container nodes that had children
+     * (cversion > 0) and have none left
+     */
+    private final Set<String> emptyContainers =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The ttl nodes ordered by the time their ttl runs out
+     */
+    private final ConcurrentSkipListSet<TtlDeadline> ttlDeadlines =
+            new ConcurrentSkipListSet<TtlDeadline>();
+
     private final ReferenceCountedACLCache aclCache = new ReferenceCountedACLCache();
 
+    private final ACLPermissionCache aclPermissionCache = new ACLPermissionCache();
+
     @SuppressWarnings("unchecked")
     public Set<String> getEphemerals(long sessionId) {
         HashSet<String> retv = ephemerals.get(sessionId);
@@ -165,6 +218,93 @@ public Set<String> getTtls() {
         return new HashSet<String>(ttls);
     }
 
+    /**
+     * @return the container nodes that had children and are empty now
+     */
+    public Set<String> getEmptyContainers() {
+        return Collections.unmodifiableSet(emptyContainers);
+    }
+
+    /**
+     * @return the ttl nodes by increasing deadline, a live view which is
+     *         safe to iterate while the tree changes
+     */
+    public Set<TtlDeadline> getTtlDeadlines() {
+        return Collections.unmodifiableSet(ttlDeadlines);
+    }
+
+    /**
+     * The wall clock time after which a ttl node that has not been modified
+     * may be deleted: its mtime plus its ttl.
+     */
+    public static final class TtlDeadline implements Comparable<TtlDeadline> {
+        private final long deadline;
+
+        private final String path;
+
+        TtlDeadline(long deadline, String path) {
+            this.deadline = deadline;
+            this.path = path;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public int compareTo(TtlDeadline o) {
+            if (deadline != o.deadline) {
+                return deadline < o.deadline ? -1 : 1;
+            }
+            return path.compareTo(o.path);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TtlDeadline)) {
+                return false;
+            }
+            TtlDeadline other = (TtlDeadline) o;
+            return deadline == other.deadline && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (deadline ^ (deadline >>> 32)) + path.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return path + "@" + deadline;
+        }
+    }
+
+    private static TtlDeadline ttlDeadline(String path, StatPersisted stat) {
+        return new TtlDeadline(stat.getMtime()
+                + EphemeralType.getTTL(stat.getEphemeralOwner()), path);
+    }
+
+    /**
+     * Add the container node of path to the empty containers if it had
+     * children and has none left, remove it otherwise. The caller holds
+     * the lock of node.
+     */
+    private void updateEmptyContainer(String path, DataNode node) {
+        if (EphemeralType.get(node.stat.getEphemeralOwner())
+                != EphemeralType.CONTAINER) {
+            return;
+        }
+        if (node.stat.getCversion() > 0 && node.getChildren().isEmpty()) {
+            emptyContainers.add(path);
+        } else {
+            emptyContainers.remove(path);
+        }
+    }
+
     public Collection<Long> getSessions() {
         return ephemerals.keySet();
     }
@@ -182,11 +322,15 @@ public int getWatchCount() {
     }
 
     public int getEphemeralsCount() {
-        int result = 0;
-        for (HashSet<String> set : ephemerals.values()) {
-            result += set.size();
-        }
-        return result;
+        return ephemeralsCount.get();
+    }
+
+    /**
+     * @return a hash of the paths, data and stats of the nodes of the tree,
+     *         equal on two servers that applied the same transactions
+     */
+    public long getTreeDigest() {
+        return treeDigest.get();
     }
 
     /**
@@ -195,15 +339,77 @@ public int getEphemeralsCount() {
      * @return size of the data
      */
     public long approximateDataSize() {
-        long result = 0;
-        for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
-            DataNode value = entry.getValue();
-            synchronized (value) {
-                result += entry.getKey().length();
-                result += value.getApproximateDataSize();
+        return approximateDataSize.get();
+    }
+
+    /**
+     * Node count and size of the subtree of a top level znode, which
+     * usually holds the data of one application.
+     */
+    public static class NamespaceStats {
+        private final AtomicLong nodeCount = new AtomicLong();
+
+        private final AtomicLong approximateDataSize = new AtomicLong();
+
+        public long getNodeCount() {
+            return nodeCount.get();
+        }
+
+        /**
+         * @return sum of the lengths of the paths and data of the nodes
+         */
+        public long getApproximateDataSize() {
+            return approximateDataSize.get();
+        }
+    }
+
+    /**
+     * @return the stats of the subtree of each top level znode, by path
+     */
+    public Map<String, NamespaceStats> getNamespaceStats() {
+        return Collections.unmodifiableMap(namespaceStats);
+    }
+
+    /**
+     * Account for a node of path that was added (count 1), removed
+     * (count -1) or whose data changed size.
+     */
+    private void updateStats(String path, int count, long bytes) {
+        approximateDataSize.addAndGet(bytes);
+        int slash = path.indexOf('/', 1);
+        String namespace = slash == -1 ? path : path.substring(0, slash);
+        if (namespace.length() <= 1) {
+            // the root
+            return;
+        }
+        NamespaceStats stats = namespaceStats.get(namespace);
+        if (stats == null) {
+            stats = new NamespaceStats();
+            NamespaceStats existing = namespaceStats.putIfAbsent(namespace, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.approximateDataSize.addAndGet(bytes);
+        if (stats.nodeCount.addAndGet(count) == 0 && count < 0) {
+            // the top level znode itself is gone
+            namespaceStats.remove(namespace, stats);
+        }
+    }
+
+    private static long approximateSize(String path, byte[] data) {
+        return path.length() + (data == null ? 0 : data.length);
+    }
+
+    private void putNode(String path, DataNode node) {
+        nodes.put(path, node);
+        synchronized (node) {
+            updateStats(path, 1, approximateSize(path, node.data));
+            if (!rootZookeeper.equals(path)) {
+                // the alias of the root is not counted twice
+                treeDigest.addAndGet(NodeDigest.of(path, node));
             }
         }
-        return result;
     }
 
     /**
@@ -225,15 +431,15 @@ public long approximateDataSize() {
 
     public DataTree() {
         /* Rather than fight it, let root have an alias */
-        nodes.put("", root);
-        nodes.put(rootZookeeper, root);
+        putNode("", root);
+        putNode(rootZookeeper, root);
 
         /** add the proc node and quota node */
         root.addChild(procChildZookeeper);
-        nodes.put(procZookeeper, procDataNode);
+        putNode(procZookeeper, procDataNode);
 
         procDataNode.addChild(quotaChildZookeeper);
-        nodes.put(quotaZookeeper, quotaDataNode);
+        putNode(quotaZookeeper, quotaDataNode);
 
         addConfigNode();
     }
@@ -250,7 +456,7 @@ public void addConfigNode() {
             assert false : "There's no /zookeeper znode - this should never happen.";
         }
 
-        nodes.put(configZookeeper, new DataNode(new byte[0], -1L, new StatPersisted()));
+        putNode(configZookeeper, new DataNode(new byte[0], -1L, new StatPersisted()));
         try {
             // Reconfig node is access controlled by default (ZOOKEEPER-2014).
             setACL(configZookeeper, ZooDefs.Ids.READ_ACL_UNSAFE, -1);
@@ -310,37 +516,14 @@ static public void copyStat(Stat from, Stat to) {
      *            the diff to be added to the count
      */
     public void updateCount(String lastPrefix, int diff) {
-        String statNode = Quotas.statPath(lastPrefix);
-        DataNode node = nodes.get(statNode);
-        StatsTrack updatedStat = null;
-        if (node == null) {
-            // should not happen
-            LOG.error("Missing count node for stat " + statNode);
-            return;
-        }
-        synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
-            updatedStat.setCount(updatedStat.getCount() + diff);
-            node.data = updatedStat.toString().getBytes();
-        }
-        // now check if the counts match the quota
-        String quotaNode = Quotas.quotaPath(lastPrefix);
-        node = nodes.get(quotaNode);
-        StatsTrack thisStats = null;
-        if (node == null) {
+        QuotaCounter counter = quotaCounters.get(lastPrefix);
+        if (counter == null) {
             // should not happen
-            LOG.error("Missing count node for quota " + quotaNode);
+            LOG.error("Missing quota for " + lastPrefix);
             return;
         }
-        synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
-        }
-        if (thisStats.getCount() > -1 && (thisStats.getCount() < updatedStat.getCount())) {
-            LOG
-            .warn("Quota exceeded: " + lastPrefix + " count="
-                    + updatedStat.getCount() + " limit="
-                    + thisStats.getCount());
-        }
+        counter.updateCount(diff);
+        flushQuota(counter);
     }
 
     /**
@@ -350,45 +533,96 @@ public void updateCount(String lastPrefix, int diff) {
      *            the path of the node that is quotaed
      * @param diff
      *            the diff to added to number of bytes
-     * @throws IOException
-     *             if path is not found
      */
     public void updateBytes(String lastPrefix, long diff) {
-        String statNode = Quotas.statPath(lastPrefix);
-        DataNode node = nodes.get(statNode);
-        if (node == null) {
-            // should never be null but just to make
-            // findbugs happy
-            LOG.error("Missing stat node for bytes " + statNode);
+        QuotaCounter counter = quotaCounters.get(lastPrefix);
+        if (counter == null) {
+            // should not happen
+            LOG.error("Missing quota for " + lastPrefix);
             return;
         }
-        StatsTrack updatedStat = null;
-        synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
-            updatedStat.setBytes(updatedStat.getBytes() + diff);
-            node.data = updatedStat.toString().getBytes();
+        counter.updateBytes(diff);
+        flushQuota(counter);
+    }
+
+    /**
+     * Return the counter of the quota the node is under, null if there is
+     * none. The answer is cached in the node until a quota is added or
+     * removed, a new node gets it from its parent, so the writes only look
+     * at the path trie after a quota changed, and don't look at anything
+     * when there are no quotas.
+     *
+     * @param path the path of the node
+     * @param node the node
+     * @param parent the parent of the node, may be null
+     */
+    private QuotaCounter getQuotaCounter(String path, DataNode node,
+            DataNode parent) {
+        if (quotaCounters.isEmpty()) {
+            return null;
         }
-        // now check if the bytes match the quota
-        String quotaNode = Quotas.quotaPath(lastPrefix);
-        node = nodes.get(quotaNode);
-        if (node == null) {
-            // should never be null but just to make
-            // findbugs happy
-            LOG.error("Missing quota node for bytes " + quotaNode);
-            return;
+        if (node.quotaEpoch == quotaEpoch) {
+            return node.quotaCounter;
         }
-        StatsTrack thisStats = null;
-        synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
+        QuotaCounter counter;
+        if (parent != null && parent.quotaEpoch == quotaEpoch) {
+            counter = quotaCounters.get(path);
+            if (counter == null) {
+                counter = parent.quotaCounter;
+            }
+        } else {
+            String lastPrefix = getMaxPrefixWithQuota(path);
+            counter = lastPrefix == null ? null : quotaCounters.get(lastPrefix);
         }
-        if (thisStats.getBytes() > -1 && (thisStats.getBytes() < updatedStat.getBytes())) {
-            LOG
-            .warn("Quota exceeded: " + lastPrefix + " bytes="
-                    + updatedStat.getBytes() + " limit="
-                    + thisStats.getBytes());
+        node.quotaCounter = counter;
+        node.quotaEpoch = quotaEpoch;
+        return counter;
+    }
+
+    /**
+     * Add a counter for the quota of path, or only update its limit if
+     * there is one already.
+     *
+     * @return true if the counter was added, it still needs to be set up
+     *         with the current counts of the subtree
+     */
+    private boolean addQuota(String path, byte limit[]) {
+        if (rootZookeeper.equals(path) || "".equals(path)) {
+            // like getMaxPrefixWithQuota, there is no quota on the root
+            return false;
+        }
+        QuotaCounter counter = quotaCounters.get(path);
+        if (counter != null) {
+            counter.setLimit(limit);
+            return false;
+        }
+        counter = new QuotaCounter(path);
+        counter.setLimit(limit);
+        quotaCounters.put(path, counter);
+        quotaEpoch++;
+        return true;
+    }
+
+    private void removeQuota(String path) {
+        if (quotaCounters.remove(path) != null) {
+            quotaEpoch++;
         }
     }
 
+    /**
+     * Write the counters of a quota to its stat node. Only the transactions
+     * call this, so reads and snapshots never change the tree.
+     */
+    private void flushQuota(QuotaCounter counter) {
+        String statPath = Quotas.statPath(counter.path);
+        DataNode node = nodes.get(statPath);
+        if (node == null) {
+            // the quota is being removed
+            return;
+        }
+        updateStats(statPath, 0, counter.flush(node));
+    }
+
     /**
      * Add a new node to the DataTree.
      * @param path
@@ -453,6 +687,7 @@ public void createNode(final String path, byte data[], List<ACL> acl,
         if (parent == null) {
             throw new KeeperException.NoNodeException();
         }
+        DataNode child;
         synchronized (parent) {
             Set<String> children = parent.getChildren();
             if (children.contains(childName)) {
@@ -463,17 +698,21 @@ public void createNode(final String path, byte data[], List<ACL> acl,
                 parentCVersion = parent.stat.getCversion();
                 parentCVersion++;
             }
+            long parentDigest = NodeDigest.of(parentName, parent);
             parent.stat.setCversion(parentCVersion);
             parent.stat.setPzxid(zxid);
+            treeDigest.addAndGet(NodeDigest.of(parentName, parent) - parentDigest);
             Long longval = aclCache.convertAcls(acl);
-            DataNode child = new DataNode(data, longval, stat);
+            child = new DataNode(data, longval, stat);
             parent.addChild(childName);
-            nodes.put(path, child);
+            putNode(path, child);
+            updateEmptyContainer(parentName, parent);
             EphemeralType ephemeralType = EphemeralType.get(ephemeralOwner);
             if (ephemeralType == EphemeralType.CONTAINER) {
                 containers.add(path);
             } else if (ephemeralType == EphemeralType.TTL) {
                 ttls.add(path);
+                ttlDeadlines.add(ttlDeadline(path, stat));
             } else if (ephemeralOwner != 0) {
                 HashSet<String> list = ephemerals.get(ephemeralOwner);
                 if (list == null) {
@@ -481,7 +720,9 @@ public void createNode(final String path, byte data[], List<ACL> acl,
                     ephemerals.put(ephemeralOwner, list);
                 }
                 synchronized (list) {
-                    list.add(path);
+                    if (list.add(path)) {
+                        ephemeralsCount.incrementAndGet();
+                    }
                 }
             }
             if (outputStat != null) {
@@ -494,7 +735,12 @@ public void createNode(final String path, byte data[], List<ACL> acl,
             if (Quotas.limitNode.equals(childName)) {
                 // this is the limit node
                 // get the parent and add it to the trie
-                pTrie.addPath(parentName.substring(quotaZookeeper.length()));
+                String quotaPath = parentName.substring(quotaZookeeper.length());
+                pTrie.addPath(quotaPath);
+                if (addQuota(quotaPath, data)
+                        && nodes.get(Quotas.statPath(quotaPath)) != null) {
+                    updateQuotaForPath(quotaPath);
+                }
             }
             if (Quotas.statNode.equals(childName)) {
                 updateQuotaForPath(parentName
@@ -502,11 +748,12 @@ public void createNode(final String path, byte data[], List<ACL> acl,
             }
         }
         // also check to update the quotas for this node
-        String lastPrefix = getMaxPrefixWithQuota(path);
-        if(lastPrefix != null) {
+        QuotaCounter quota = getQuotaCounter(path, child, parent);
+        if (quota != null) {
             // ok we have some match and need to update
-            updateCount(lastPrefix, 1);
-            updateBytes(lastPrefix, data == null ? 0 : data.length);
+            quota.updateCount(1);
+            quota.updateBytes(data == null ? 0 : data.length);
+            flushQuota(quota);
         }
         dataWatches.triggerWatch(path, Event.EventType.NodeCreated);
         childWatches.triggerWatch(parentName.equals("") ? "/" : parentName,
@@ -534,6 +781,12 @@ public void deleteNode(String path, long zxid)
         nodes.remove(path);
         synchronized (node) {
             aclCache.removeUsage(node.acl);
+            updateStats(path, -1, -approximateSize(path, node.data));
+            treeDigest.addAndGet(-NodeDigest.of(path, node));
+            if (EphemeralType.get(node.stat.getEphemeralOwner())
+                    == EphemeralType.TTL) {
+                ttlDeadlines.remove(ttlDeadline(path, node.stat));
+            }
         }
         DataNode parent = nodes.get(parentName);
         if (parent == null) {
@@ -541,18 +794,24 @@ public void deleteNode(String path, long zxid)
         }
         synchronized (parent) {
             parent.removeChild(childName);
+            long parentDigest = NodeDigest.of(parentName, parent);
             parent.stat.setPzxid(zxid);
+            treeDigest.addAndGet(NodeDigest.of(parentName, parent) - parentDigest);
+            updateEmptyContainer(parentName, parent);
             long eowner = node.stat.getEphemeralOwner();
             EphemeralType ephemeralType = EphemeralType.get(eowner);
             if (ephemeralType == EphemeralType.CONTAINER) {
                 containers.remove(path);
+                emptyContainers.remove(path);
             } else if (ephemeralType == EphemeralType.TTL) {
                 ttls.remove(path);
             } else if (eowner != 0) {
                 Set<String> nodes = ephemerals.get(eowner);
                 if (nodes != null) {
                     synchronized (nodes) {
-                        nodes.remove(path);
+                        if (nodes.remove(path)) {
+                            ephemeralsCount.decrementAndGet();
+                        }
                     }
                 }
             }
@@ -561,18 +820,20 @@ public void deleteNode(String path, long zxid)
             // delete the node in the trie.
             // we need to update the trie as well
             pTrie.deletePath(parentName.substring(quotaZookeeper.length()));
+            removeQuota(parentName.substring(quotaZookeeper.length()));
         }
 
         // also check to update the quotas for this node
-        String lastPrefix = getMaxPrefixWithQuota(path);
-        if(lastPrefix != null) {
+        QuotaCounter quota = getQuotaCounter(path, node, parent);
+        if (quota != null) {
             // ok we have some match and need to update
-            updateCount(lastPrefix, -1);
+            quota.updateCount(-1);
             int bytes = 0;
             synchronized (node) {
                 bytes = (node.data == null ? 0 : -(node.data.length));
             }
-            updateBytes(lastPrefix, bytes);
+            quota.updateBytes(bytes);
+            flushQuota(quota);
         }
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK,
@@ -596,18 +857,41 @@ public Stat setData(String path, byte data[], int version, long zxid,
         }
         byte lastdata[] = null;
         synchronized (n) {
+            long digest = NodeDigest.of(path, n);
             lastdata = n.data;
             n.data = data;
+            boolean ttl = EphemeralType.get(n.stat.getEphemeralOwner())
+                    == EphemeralType.TTL;
+            if (ttl) {
+                ttlDeadlines.remove(ttlDeadline(path, n.stat));
+            }
             n.stat.setMtime(time);
+            if (ttl) {
+                ttlDeadlines.add(ttlDeadline(path, n.stat));
+            }
             n.stat.setMzxid(zxid);
             n.stat.setVersion(version);
+            treeDigest.addAndGet(NodeDigest.of(path, n) - digest);
             n.copyStat(s);
         }
+        long bytes = (data == null ? 0 : data.length)
+            - (lastdata == null ? 0 : lastdata.length);
+        updateStats(path, 0, bytes);
         // now update if the path is in a quota subtree.
-        String lastPrefix = getMaxPrefixWithQuota(path);
-        if(lastPrefix != null) {
-          this.updateBytes(lastPrefix, (data == null ? 0 : data.length)
-              - (lastdata == null ? 0 : lastdata.length));
+        QuotaCounter quota = getQuotaCounter(path, n, null);
+        if (quota != null) {
+            quota.updateBytes(bytes);
+            flushQuota(quota);
+        }
+        // or if it is the limit of one
+        if (path.startsWith(quotaZookeeper)
+                && path.endsWith("/" + Quotas.limitNode)) {
+            QuotaCounter limited = quotaCounters.get(path.substring(
+                    quotaZookeeper.length(),
+                    path.length() - Quotas.limitNode.length() - 1));
+            if (limited != null) {
+                limited.setLimit(data);
+            }
         }
         dataWatches.triggerWatch(path, EventType.NodeDataChanged);
         return s;
@@ -683,6 +967,171 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher)
         }
     }
 
+    /**
+     * Return a page of the children of a node, in sorted order.
+     *
+     * @param path the node whose children are listed
+     * @param startAfter the last child of the previous page, null or empty
+     *                   to start from the first child
+     * @param limit the maximum number of children in the page, 0 for none
+     * @param maxBytes stop before the serialized children exceed this
+     * @param stat the stat of the node is copied to this, may be null
+     * @param watcher left as a child watch on the node, may be null
+     * @param page the children are added to this
+     * @return true if more children follow the page
+     * @throws KeeperException.NoNodeException
+     */
+    public boolean getChildren(String path, String startAfter, int limit,
+            int maxBytes, Stat stat, Watcher watcher, List<String> page)
+            throws KeeperException.NoNodeException {
+        DataNode n = nodes.get(path);
+        if (n == null) {
+            throw new KeeperException.NoNodeException();
+        }
+        synchronized (n) {
+            if (stat != null) {
+                n.copyStat(stat);
+            }
+            boolean hasMore = n.getChildren(startAfter, limit, maxBytes, page);
+            if (watcher != null) {
+                childWatches.addWatch(path, watcher);
+            }
+            return hasMore;
+        }
+    }
+
+    /**
+     * Return the child of a node with the lowest sequence number.
+     *
+     * @param path the parent node
+     * @param watcher left as a child watch on the node, may be null
+     * @return the name of the child, null if the node has no sequential
+     *         children
+     * @throws KeeperException.NoNodeException
+     */
+    public String getFirstSequentialChild(String path, Watcher watcher)
+            throws KeeperException.NoNodeException {
+        DataNode n = nodes.get(path);
+        if (n == null) {
+            throw new KeeperException.NoNodeException();
+        }
+        synchronized (n) {
+            String first = n.nextSequentialChild(null);
+            if (watcher != null) {
+                childWatches.addWatch(path, watcher);
+            }
+            return first;
+        }
+    }
+
+    /**
+     * Return the sibling of a sequential node with the next lower sequence
+     * number, the node a lock or queue recipe waits on.
+     *
+     * @param path a sequential node
+     * @param watcher left as a data watch on the sibling, may be null
+     * @return the name of the sibling, null if the node is the first
+     * @throws KeeperException.NoNodeException
+     */
+    public String getSequentialPredecessor(String path, Watcher watcher)
+            throws KeeperException.NoNodeException {
+        int lastSlash = path.lastIndexOf('/');
+        String parentName = path.substring(0, lastSlash);
+        String childName = path.substring(lastSlash + 1);
+        DataNode parent = nodes.get(parentName);
+        if (parent == null || nodes.get(path) == null) {
+            throw new KeeperException.NoNodeException();
+        }
+        synchronized (parent) {
+            String predecessor = parent.previousSequentialChild(childName);
+            if (predecessor != null && watcher != null) {
+                dataWatches.addWatch(parentName + "/" + predecessor, watcher);
+            }
+            return predecessor;
+        }
+    }
+
+    /**
+     * Decides which descendants getChildrenWithData returns.
+     */
+    public interface ChildFilter {
+        /**
+         * @return false to leave out the node at path and everything
+         *         below it
+         */
+        boolean accept(String path, DataNode node);
+    }
+
+    /**
+     * Collect the data and stat of the descendants of a node, breadth first
+     * and in sorted order within a parent, taking the lock of one node at
+     * a time.
+     *
+     * @param path the node to start from, it is not returned itself
+     * @param maxDepth 1 for the children of path only
+     * @param maxBytes stop before the serialized size of the collected
+     *                 descendants exceeds this, but the first one is always
+     *                 added, so that no reply is truncated and empty
+     * @param filter may be null to accept every node
+     * @param children the descendants are added to this, with their paths
+     *                 relative to path
+     * @return true if maxBytes was reached before all descendants up to
+     *         maxDepth were added
+     * @throws KeeperException.NoNodeException
+     */
+    public boolean getChildrenWithData(String path, int maxDepth,
+            int maxBytes, ChildFilter filter, List<ChildData> children)
+            throws KeeperException.NoNodeException {
+        if (nodes.get(path) == null) {
+            throw new KeeperException.NoNodeException();
+        }
+        String prefix = path.equals("/") ? "/" : path + "/";
+        int bytes = 0;
+        int added = 0;
+        List<String> parents = Collections.singletonList("");
+        for (int depth = 1; depth <= maxDepth && !parents.isEmpty(); depth++) {
+            List<String> next = new ArrayList<String>();
+            for (String parent : parents) {
+                DataNode p = nodes.get(parent.isEmpty() ? path : prefix + parent);
+                if (p == null) {
+                    // deleted since we saw it
+                    continue;
+                }
+                String names[];
+                synchronized (p) {
+                    Set<String> c = p.getChildren();
+                    names = c.toArray(new String[c.size()]);
+                }
+                Arrays.sort(names);
+                for (String name : names) {
+                    String relative = parent.isEmpty() ? name : parent + "/" + name;
+                    DataNode n = nodes.get(prefix + relative);
+                    if (n == null
+                            || (filter != null && !filter.accept(prefix + relative, n))) {
+                        continue;
+                    }
+                    ChildData child = new ChildData();
+                    child.setPath(relative);
+                    Stat stat = new Stat();
+                    synchronized (n) {
+                        n.copyStat(stat);
+                        child.setData(n.data);
+                    }
+                    child.setStat(stat);
+                    bytes += child.serializedSize();
+                    if (added > 0 && bytes > maxBytes) {
+                        return true;
+                    }
+                    children.add(child);
+                    added++;
+                    next.add(relative);
+                }
+            }
+            parents = next;
+        }
+        return false;
+    }
+
     public Stat setACL(String path, List<ACL> acl, int version)
             throws KeeperException.NoNodeException {
         Stat stat = new Stat();
@@ -692,7 +1141,9 @@ public Stat setACL(String path, List<ACL> acl, int version)
         }
         synchronized (n) {
             aclCache.removeUsage(n.acl);
+            long digest = NodeDigest.of(path, n);
             n.stat.setAversion(version);
+            treeDigest.addAndGet(NodeDigest.of(path, n) - digest);
             n.acl = aclCache.convertAcls(acl);
             n.copyStat(stat);
             return stat;
@@ -1004,6 +1455,7 @@ void killSession(long session, long zxid) {
         // are again called from FinalRequestProcessor in sequence.
         Set<String> list = ephemerals.remove(session);
         if (list != null) {
+            ephemeralsCount.addAndGet(-list.size());
             for (String path : list) {
                 try {
                     deleteNode(path, zxid);
@@ -1067,9 +1519,6 @@ private void getCounts(String path, Counts counts) {
     private void updateQuotaForPath(String path) {
         Counts c = new Counts();
         getCounts(path, c);
-        StatsTrack strack = new StatsTrack();
-        strack.setBytes(c.bytes);
-        strack.setCount(c.count);
         String statPath = Quotas.quotaZookeeper + path + "/" + Quotas.statNode;
         DataNode node = getNode(statPath);
         // it should exist
@@ -1077,8 +1526,20 @@ private void updateQuotaForPath(String path) {
             LOG.warn("Missing quota stat node " + statPath);
             return;
         }
+        QuotaCounter counter = quotaCounters.get(path);
+        if (counter != null) {
+            counter.set(c.count, c.bytes);
+            updateStats(statPath, 0, counter.flush(node));
+            return;
+        }
+        StatsTrack strack = new StatsTrack();
+        strack.setBytes(c.bytes);
+        strack.setCount(c.count);
+        byte[] data = strack.toString().getBytes();
         synchronized (node) {
-            node.data = strack.toString().getBytes();
+            updateStats(statPath, 0, data.length
+                    - (node.data == null ? 0 : node.data.length));
+            node.data = data;
         }
     }
 
@@ -1086,13 +1547,17 @@ private void updateQuotaForPath(String path) {
      * this method traverses the quota path and update the path trie and sets
      *
      * @param path
+     * @param quotaPaths
+     *            the paths with a quota found so far
      */
-    private void traverseNode(String path) {
+    private void traverseNode(String path, List<String> quotaPaths) {
         DataNode node = getNode(path);
         String children[] = null;
+        byte data[];
         synchronized (node) {
             Set<String> childs = node.getChildren();
             children = childs.toArray(new String[childs.size()]);
+            data = node.data;
         }
         if (children.length == 0) {
             // this node does not have a child
@@ -1101,30 +1566,65 @@ private void traverseNode(String path) {
             String endString = "/" + Quotas.limitNode;
             if (path.endsWith(endString)) {
                 // ok this is the limit node
-                // get the real node and update
-                // the count and the bytes
+                // get the real node, the count and the bytes
+                // are updated once all of them are known
                 String realPath = path.substring(Quotas.quotaZookeeper
                         .length(), path.indexOf(endString));
-                updateQuotaForPath(realPath);
                 this.pTrie.addPath(realPath);
+                if (addQuota(realPath, data)) {
+                    quotaPaths.add(realPath);
+                }
             }
             return;
         }
         for (String child : children) {
-            traverseNode(path + "/" + child);
+            traverseNode(path + "/" + child, quotaPaths);
         }
     }
 
     /**
-     * this method sets up the path trie and sets up stats for quota nodes
+     * this method sets up the path trie and sets up stats for quota nodes.
+     * The subtrees of the quotas are counted in parallel.
      */
-    private void setupQuota() {
+    private void setupQuota() throws IOException {
         String quotaPath = Quotas.quotaZookeeper;
         DataNode node = getNode(quotaPath);
         if (node == null) {
             return;
         }
-        traverseNode(quotaPath);
+        List<String> quotaPaths = new ArrayList<String>();
+        traverseNode(quotaPath, quotaPaths);
+
+        int threads = Math.min(quotaPaths.size(),
+                Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            for (String path : quotaPaths) {
+                updateQuotaForPath(path);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> counts = new ArrayList<Future<?>>();
+            for (final String path : quotaPaths) {
+                counts.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateQuotaForPath(path);
+                    }
+                }));
+            }
+            for (Future<?> count : counts) {
+                count.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while counting the quotas", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to count the quotas", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
     /**
@@ -1181,13 +1681,21 @@ public void serialize(OutputArchive oa, String tag) throws IOException {
 
     public void deserialize(InputArchive ia, String tag) throws IOException {
         aclCache.deserialize(ia);
+        aclPermissionCache.clear();
         nodes.clear();
+        approximateDataSize.set(0);
+        treeDigest.set(0);
+        namespaceStats.clear();
         pTrie.clear();
+        quotaCounters.clear();
+        quotaEpoch++;
+        emptyContainers.clear();
+        ttlDeadlines.clear();
         String path = ia.readString("path");
         while (!"/".equals(path)) {
             DataNode node = new DataNode();
             ia.readRecord(node, "node");
-            nodes.put(path, node);
+            putNode(path, node);
             synchronized (node) {
                 aclCache.addUsage(node.acl);
             }
@@ -1208,18 +1716,29 @@ public void deserialize(InputArchive ia, String tag) throws IOException {
                     containers.add(path);
                 } else if (ephemeralType == EphemeralType.TTL) {
                     ttls.add(path);
+                    ttlDeadlines.add(ttlDeadline(path, node.stat));
                 } else if (eowner != 0) {
                     HashSet<String> list = ephemerals.get(eowner);
                     if (list == null) {
                         list = new HashSet<String>();
                         ephemerals.put(eowner, list);
                     }
-                    list.add(path);
+                    if (list.add(path)) {
+                        ephemeralsCount.incrementAndGet();
+                    }
                 }
             }
             path = ia.readString("path");
         }
-        nodes.put("/", root);
+        putNode("/", root);
+        for (String containerPath : containers) {
+            DataNode container = nodes.get(containerPath);
+            if (container != null) {
+                synchronized (container) {
+                    updateEmptyContainer(containerPath, container);
+                }
+            }
+        }
         // we are done with deserializing the
         // the datatree
         // update the quotas - create path trie
@@ -1317,9 +1836,41 @@ public void removeCnxn(Watcher watcher) {
         childWatches.removeWatcher(watcher);
     }
 
+    /**
+     * Add a watch that is not removed when it triggers. A recursive watch
+     * only goes to the data watches, they trigger for all the creations,
+     * deletions and data changes below the path, which is what it reports
+     * instead of the children changes.
+     */
+    public void addWatch(String basePath, Watcher watcher, AddWatchMode mode) {
+        dataWatches.addWatch(basePath, watcher, mode);
+        if (mode != AddWatchMode.PERSISTENT_RECURSIVE) {
+            childWatches.addWatch(basePath, watcher, mode);
+        }
+    }
+
     public void setWatches(long relativeZxid, List<String> dataWatches,
             List<String> existWatches, List<String> childWatches,
             Watcher watcher) {
+        setWatches(relativeZxid, dataWatches, existWatches, childWatches,
+                Collections.<String>emptyList(),
+                Collections.<String>emptyList(), watcher);
+    }
+
+    /**
+     * The persistent watches are added back as they are, changes the client
+     * missed while it was disconnected are not reported for them.
+     */
+    public void setWatches(long relativeZxid, List<String> dataWatches,
+            List<String> existWatches, List<String> childWatches,
+            List<String> persistentWatches,
+            List<String> persistentRecursiveWatches, Watcher watcher) {
+        for (String path : persistentWatches) {
+            addWatch(path, watcher, AddWatchMode.PERSISTENT);
+        }
+        for (String path : persistentRecursiveWatches) {
+            addWatch(path, watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+        }
         for (String path : dataWatches) {
             DataNode node = getNode(path);
             WatchedEvent e = null;
@@ -1386,8 +1937,11 @@ public void setCversionPzxid(String path, int newCversion, long zxid)
                 newCversion = node.stat.getCversion() + 1;
             }
             if (newCversion > node.stat.getCversion()) {
+                long digest = NodeDigest.of(path, node);
                 node.stat.setCversion(newCversion);
                 node.stat.setPzxid(zxid);
+                treeDigest.addAndGet(NodeDigest.of(path, node) - digest);
+                updateEmptyContainer(path, node);
             }
         }
     }
@@ -1438,4 +1992,8 @@ public boolean removeWatch(String path, WatcherType type, Watcher watcher) {
     public ReferenceCountedACLCache getReferenceCountedAclCache() {
         return aclCache;
     }
+
+    ACLPermissionCache getAclPermissionCache() {
+        return aclPermissionCache;
+    }
 }
@@ -18,7 +18,9 @@
 
 package org.apache.zookeeper.server;
 
+import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.KeeperException.SessionMovedException;
@@ -34,7 +36,10 @@
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.ChildData;
+import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.AddWatchRequest;
 import org.apache.zookeeper.proto.CheckWatchesRequest;
 import org.apache.zookeeper.proto.Create2Response;
 import org.apache.zookeeper.proto.CreateResponse;
@@ -46,18 +51,28 @@
 import org.apache.zookeeper.proto.GetChildren2Response;
 import org.apache.zookeeper.proto.GetChildrenRequest;
 import org.apache.zookeeper.proto.GetChildrenResponse;
+import org.apache.zookeeper.proto.GetChildrenPageRequest;
+import org.apache.zookeeper.proto.GetChildrenPageResponse;
+import org.apache.zookeeper.proto.GetChildrenWithDataRequest;
+import org.apache.zookeeper.proto.GetChildrenWithDataResponse;
 import org.apache.zookeeper.proto.GetDataRequest;
 import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.proto.GetFirstChildRequest;
+import org.apache.zookeeper.proto.GetPredecessorRequest;
+import org.apache.zookeeper.proto.PollFirstChildResponse;
 import org.apache.zookeeper.proto.RemoveWatchesRequest;
 import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.proto.SequentialChildResponse;
 import org.apache.zookeeper.proto.SetACLResponse;
 import org.apache.zookeeper.proto.SetDataResponse;
 import org.apache.zookeeper.proto.SetWatches;
+import org.apache.zookeeper.proto.SetWatches2;
 import org.apache.zookeeper.proto.SyncRequest;
 import org.apache.zookeeper.proto.SyncResponse;
 import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
 import org.apache.zookeeper.server.ZooKeeperServer.ChangeRecord;
 import org.apache.zookeeper.server.quorum.QuorumZooKeeperServer;
+import org.apache.zookeeper.txn.DeleteTxn;
 import org.apache.zookeeper.txn.ErrorTxn;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.slf4j.Logger;
@@ -65,6 +80,7 @@
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -80,6 +96,27 @@
 public class FinalRequestProcessor implements RequestProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(FinalRequestProcessor.class);
 
+    /**
+     * Records of the most frequent requests, reused by every request a
+     * thread processes. None of them is referenced any more once the
+     * response has been serialized.
+     */
+    private static class PooledRecords {
+        final GetDataRequest getDataRequest = new GetDataRequest();
+        final GetDataResponse getDataResponse = new GetDataResponse();
+        final ExistsRequest existsRequest = new ExistsRequest();
+        final ExistsResponse existsResponse = new ExistsResponse();
+        final Stat stat = new Stat();
+        final ReplyHeader replyHeader = new ReplyHeader();
+    }
+
+    private static final ThreadLocal<PooledRecords> pooledRecords =
+        new ThreadLocal<PooledRecords>() {
+            @Override protected PooledRecords initialValue() {
+                return new PooledRecords();
+            }
+        };
+
     ZooKeeperServer zks;
 
     public FinalRequestProcessor(ZooKeeperServer zks) {
@@ -99,33 +136,40 @@ public void processRequest(Request request) {
             ZooTrace.logRequest(LOG, traceMask, 'E', request, "");
         }
         ProcessTxnResult rc = null;
-        synchronized (zks.outstandingChanges) {
-            // Need to process local session requests
-            rc = zks.processTxn(request);
-
-            // request.hdr is set for write requests, which are the only ones
-            // that add to outstandingChanges.
-            if (request.getHdr() != null) {
-                TxnHeader hdr = request.getHdr();
-                Record txn = request.getTxn();
-                long zxid = hdr.getZxid();
-                while (!zks.outstandingChanges.isEmpty()
-                       && zks.outstandingChanges.get(0).zxid <= zxid) {
-                    ChangeRecord cr = zks.outstandingChanges.remove(0);
-                    if (cr.zxid < zxid) {
-                        LOG.warn("Zxid outstanding " + cr.zxid
-                                 + " is less than current " + zxid);
-                    }
-                    if (zks.outstandingChangesForPath.get(cr.path) == cr) {
-                        zks.outstandingChangesForPath.remove(cr.path);
-                    }
+        byte[] polledData = null;
+        if (request.type == OpCode.pollFirstChild && request.cnxn != null) {
+            // The reply carries the data the child had when deleted
+            polledData = getDataToDelete(request);
+        }
+        // Need to process local session requests
+        rc = zks.processTxn(request);
+
+        // request.hdr is set for write requests, which are the only ones
+        // that add to outstandingChanges. The txn is applied before its
+        // records are removed, a path without a record is read from the
+        // DataTree by the PrepRequestProcessor.
+        if (request.getHdr() != null) {
+            TxnHeader hdr = request.getHdr();
+            Record txn = request.getTxn();
+            long zxid = hdr.getZxid();
+            if (zxid > zks.lastAppliedChangeZxid) {
+                zks.lastAppliedChangeZxid = zxid;
+            }
+            ChangeRecord cr;
+            while ((cr = zks.outstandingChanges.peek()) != null
+                   && cr.zxid <= zxid) {
+                zks.outstandingChanges.poll();
+                if (cr.zxid < zxid) {
+                    LOG.warn("Zxid outstanding " + cr.zxid
+                             + " is less than current " + zxid);
                 }
+                zks.outstandingChangesForPath.remove(cr.path, cr);
             }
+        }
 
-            // do not add non quorum packets to the queue.
-            if (request.isQuorum()) {
-                zks.getZKDatabase().addCommittedProposal(request);
-            }
+        // do not add non quorum packets to the queue.
+        if (request.isQuorum()) {
+            zks.getZKDatabase().addCommittedProposal(request);
         }
 
         // ZOOKEEPER-558:
@@ -258,6 +302,16 @@ public void processRequest(Request request) {
                 err = Code.get(rc.err);
                 break;
             }
+            case OpCode.pollFirstChild: {
+                lastOp = "POLL";
+                err = Code.get(rc.err);
+                if (err == Code.OK) {
+                    rsp = new PollFirstChildResponse(
+                            rc.path.substring(rc.path.lastIndexOf('/') + 1),
+                            polledData);
+                }
+                break;
+            }
             case OpCode.setData: {
                 lastOp = "SETD";
                 rsp = new SetDataResponse(rc.stat);
@@ -289,6 +343,10 @@ public void processRequest(Request request) {
                 rsp = new SyncResponse(syncRequest.getPath());
                 break;
             }
+            case OpCode.readIndex: {
+                lastOp = "RIDX";
+                break;
+            }
             case OpCode.check: {
                 lastOp = "CHEC";
                 rsp = new SetDataResponse(rc.stat);
@@ -298,7 +356,7 @@ public void processRequest(Request request) {
             case OpCode.exists: {
                 lastOp = "EXIS";
                 // TODO we need to figure out the security requirement for this!
-                ExistsRequest existsRequest = new ExistsRequest();
+                ExistsRequest existsRequest = pooledRecords.get().existsRequest;
                 ByteBufferInputStream.byteBuffer2Record(request.request,
                         existsRequest);
                 String path = existsRequest.getPath();
@@ -307,25 +365,32 @@ public void processRequest(Request request) {
                 }
                 Stat stat = zks.getZKDatabase().statNode(path, existsRequest
                         .getWatch() ? cnxn : null);
-                rsp = new ExistsResponse(stat);
+                ExistsResponse existsResponse = pooledRecords.get().existsResponse;
+                existsResponse.setStat(stat);
+                rsp = existsResponse;
                 break;
             }
             case OpCode.getData: {
                 lastOp = "GETD";
-                GetDataRequest getDataRequest = new GetDataRequest();
+                PooledRecords pooled = pooledRecords.get();
+                GetDataRequest getDataRequest = pooled.getDataRequest;
                 ByteBufferInputStream.byteBuffer2Record(request.request,
                         getDataRequest);
                 DataNode n = zks.getZKDatabase().getNode(getDataRequest.getPath());
                 if (n == null) {
                     throw new KeeperException.NoNodeException();
                 }
-                PrepRequestProcessor.checkACL(zks, request.cnxn, zks.getZKDatabase().aclForNode(n),
+                PrepRequestProcessor.checkACL(zks, request.cnxn, n,
                         ZooDefs.Perms.READ,
                         request.authInfo, getDataRequest.getPath(), null);
-                Stat stat = new Stat();
+                Stat stat = pooled.stat;
+                stat.reset();
                 byte b[] = zks.getZKDatabase().getData(getDataRequest.getPath(), stat,
                         getDataRequest.getWatch() ? cnxn : null);
-                rsp = new GetDataResponse(b, stat);
+                GetDataResponse getDataResponse = pooled.getDataResponse;
+                getDataResponse.setData(b);
+                getDataResponse.setStat(stat);
+                rsp = getDataResponse;
                 break;
             }
             case OpCode.setWatches: {
@@ -341,6 +406,36 @@ public void processRequest(Request request) {
                         setWatches.getChildWatches(), cnxn);
                 break;
             }
+            case OpCode.setWatches2: {
+                lastOp = "STW2";
+                SetWatches2 setWatches = new SetWatches2();
+                request.request.rewind();
+                ByteBufferInputStream.byteBuffer2Record(request.request, setWatches);
+                long relativeZxid = setWatches.getRelativeZxid();
+                zks.getZKDatabase().setWatches(relativeZxid,
+                        setWatches.getDataWatches(),
+                        setWatches.getExistWatches(),
+                        setWatches.getChildWatches(),
+                        setWatches.getPersistentWatches(),
+                        setWatches.getPersistentRecursiveWatches(), cnxn);
+                break;
+            }
+            case OpCode.addWatch: {
+                lastOp = "ADDW";
+                AddWatchRequest addWatcherRequest = new AddWatchRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request,
+                        addWatcherRequest);
+                String path = addWatcherRequest.getPath();
+                AddWatchMode mode = AddWatchMode.fromMode(addWatcherRequest.getMode());
+                // like exists, the node does not need to be there yet
+                DataNode n = zks.getZKDatabase().getNode(path);
+                if (n != null) {
+                    PrepRequestProcessor.checkACL(zks, request.cnxn, n,
+                            ZooDefs.Perms.READ, request.authInfo, path, null);
+                }
+                zks.getZKDatabase().addWatch(path, cnxn, mode);
+                break;
+            }
             case OpCode.getACL: {
                 lastOp = "GETA";
                 GetACLRequest getACLRequest = new GetACLRequest();
@@ -361,7 +456,7 @@ public void processRequest(Request request) {
                 if (n == null) {
                     throw new KeeperException.NoNodeException();
                 }
-                PrepRequestProcessor.checkACL(zks, request.cnxn, zks.getZKDatabase().aclForNode(n),
+                PrepRequestProcessor.checkACL(zks, request.cnxn, n,
                         ZooDefs.Perms.READ,
                         request.authInfo, getChildrenRequest.getPath(), null);
                 List<String> children = zks.getZKDatabase().getChildren(
@@ -380,7 +475,7 @@ public void processRequest(Request request) {
                 if (n == null) {
                     throw new KeeperException.NoNodeException();
                 }
-                PrepRequestProcessor.checkACL(zks, request.cnxn, zks.getZKDatabase().aclForNode(n),
+                PrepRequestProcessor.checkACL(zks, request.cnxn, n,
                         ZooDefs.Perms.READ,
                         request.authInfo, getChildren2Request.getPath(), null);
                 List<String> children = zks.getZKDatabase().getChildren(
@@ -389,6 +484,121 @@ public void processRequest(Request request) {
                 rsp = new GetChildren2Response(children, stat);
                 break;
             }
+            case OpCode.getChildrenPage: {
+                lastOp = "GETC";
+                GetChildrenPageRequest getChildrenPageRequest =
+                    new GetChildrenPageRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request,
+                        getChildrenPageRequest);
+                String path = getChildrenPageRequest.getPath();
+                if (getChildrenPageRequest.getLimit() < 0) {
+                    throw new KeeperException.BadArgumentsException(path);
+                }
+                Stat stat = new Stat();
+                DataNode n = zks.getZKDatabase().getNode(path);
+                if (n == null) {
+                    throw new KeeperException.NoNodeException();
+                }
+                PrepRequestProcessor.checkACL(zks, request.cnxn, n,
+                        ZooDefs.Perms.READ,
+                        request.authInfo, path, null);
+                List<String> children = new ArrayList<String>();
+                // Leave room for the stat, the page has to fit the
+                // jute.maxbuffer of the client
+                boolean hasMore = zks.getZKDatabase().getChildren(path,
+                        getChildrenPageRequest.getStartAfter(),
+                        getChildrenPageRequest.getLimit(),
+                        BinaryInputArchive.maxBuffer - 1024, stat,
+                        getChildrenPageRequest.getWatch() ? cnxn : null,
+                        children);
+                rsp = new GetChildrenPageResponse(children, hasMore, stat);
+                break;
+            }
+            case OpCode.getFirstChild: {
+                lastOp = "GETF";
+                GetFirstChildRequest getFirstChildRequest = new GetFirstChildRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request,
+                        getFirstChildRequest);
+                String path = getFirstChildRequest.getPath();
+                DataNode n = zks.getZKDatabase().getNode(path);
+                if (n == null) {
+                    throw new KeeperException.NoNodeException();
+                }
+                PrepRequestProcessor.checkACL(zks, request.cnxn, n,
+                        ZooDefs.Perms.READ,
+                        request.authInfo, path, null);
+                String child = zks.getZKDatabase().getFirstSequentialChild(path,
+                        getFirstChildRequest.getWatch() ? cnxn : null);
+                rsp = new SequentialChildResponse(child);
+                break;
+            }
+            case OpCode.getPredecessor: {
+                lastOp = "GETP";
+                GetPredecessorRequest getPredecessorRequest = new GetPredecessorRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request,
+                        getPredecessorRequest);
+                String path = getPredecessorRequest.getPath();
+                int lastSlash = path.lastIndexOf('/');
+                if (lastSlash < 0
+                        || !DataNode.isSequential(path.substring(lastSlash + 1))) {
+                    throw new KeeperException.BadArgumentsException(path);
+                }
+                String parentPath = lastSlash == 0 ? "/" : path.substring(0, lastSlash);
+                DataNode n = zks.getZKDatabase().getNode(parentPath);
+                if (n == null) {
+                    throw new KeeperException.NoNodeException();
+                }
+                PrepRequestProcessor.checkACL(zks, request.cnxn, n,
+                        ZooDefs.Perms.READ,
+                        request.authInfo, parentPath, null);
+                String predecessor = zks.getZKDatabase().getSequentialPredecessor(path,
+                        getPredecessorRequest.getWatch() ? cnxn : null);
+                rsp = new SequentialChildResponse(predecessor);
+                break;
+            }
+            case OpCode.getChildrenWithData: {
+                lastOp = "GETC";
+                GetChildrenWithDataRequest getChildrenWithDataRequest =
+                    new GetChildrenWithDataRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request,
+                        getChildrenWithDataRequest);
+                String path = getChildrenWithDataRequest.getPath();
+                if (getChildrenWithDataRequest.getMaxDepth() < 1) {
+                    throw new KeeperException.BadArgumentsException(path);
+                }
+                final ZKDatabase zkDb = zks.getZKDatabase();
+                DataNode n = zkDb.getNode(path);
+                if (n == null) {
+                    throw new KeeperException.NoNodeException();
+                }
+                final ServerCnxn requestCnxn = request.cnxn;
+                final List<Id> authInfo = request.authInfo;
+                PrepRequestProcessor.checkACL(zks, requestCnxn, n,
+                        ZooDefs.Perms.READ, authInfo, path, null);
+                // The reply has to fit the jute.maxbuffer of the client
+                int maxBytes = getChildrenWithDataRequest.getMaxBytes();
+                if (maxBytes <= 0 || maxBytes > BinaryInputArchive.maxBuffer) {
+                    maxBytes = BinaryInputArchive.maxBuffer;
+                }
+                List<ChildData> children = new ArrayList<ChildData>();
+                // Descendants the client may not read are left out
+                boolean truncated = zkDb.getChildrenWithData(path,
+                        getChildrenWithDataRequest.getMaxDepth(), maxBytes,
+                        new DataTree.ChildFilter() {
+                            @Override
+                            public boolean accept(String childPath, DataNode node) {
+                                try {
+                                    PrepRequestProcessor.checkACL(zks, requestCnxn, node, ZooDefs.Perms.READ,
+                                            authInfo, childPath, null);
+                                    return true;
+                                } catch (KeeperException.NoAuthException e) {
+                                    return false;
+                                }
+                            }
+                        }, children);
+                rsp = new GetChildrenWithDataResponse(children, truncated);
+                break;
+            }
             case OpCode.checkWatches: {
                 lastOp = "CHKW";
                 CheckWatchesRequest checkWatches = new CheckWatchesRequest();
@@ -448,8 +658,10 @@ public void processRequest(Request request) {
         }
 
         long lastZxid = zks.getZKDatabase().getDataTreeLastProcessedZxid();
-        ReplyHeader hdr =
-            new ReplyHeader(request.cxid, lastZxid, err.intValue());
+        ReplyHeader hdr = pooledRecords.get().replyHeader;
+        hdr.setXid(request.cxid);
+        hdr.setZxid(lastZxid);
+        hdr.setErr(err.intValue());
 
         zks.serverStats().updateLatency(request.createTime);
         cnxn.updateStatsForResponse(request.cxid, lastZxid, lastOp,
@@ -465,6 +677,25 @@ public void processRequest(Request request) {
         }
     }
 
+    /**
+     * @return the data of the node a pollFirstChild request deletes, null
+     *         if it failed in the PrepRequestProcessor
+     */
+    private byte[] getDataToDelete(Request request) {
+        if (request.getHdr() == null
+                || request.getHdr().getType() != OpCode.delete) {
+            return null;
+        }
+        DataNode n = zks.getZKDatabase().getNode(
+                ((DeleteTxn) request.getTxn()).getPath());
+        if (n == null) {
+            return null;
+        }
+        synchronized (n) {
+            return n.data;
+        }
+    }
+
     private boolean closeSession(ServerCnxnFactory serverCnxnFactory, long sessionId) {
         if (serverCnxnFactory == null) {
             return false;
@@ -19,7 +19,6 @@
 package org.apache.zookeeper.server;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -36,9 +35,9 @@
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.jute.BinaryInputArchive;
-import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.ZooDefs.ProtocolVersion;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
@@ -404,11 +403,13 @@ private boolean getWriteInterest() {
     // returns whether we are interested in taking new requests, which is
     // determined by whether we are currently throttled or not
     private boolean getReadInterest() {
-        return !throttled.get();
+        return !throttled.get() && !authPending.get();
     }
 
     private final AtomicBoolean throttled = new AtomicBoolean(false);
 
+    private final AtomicBoolean authPending = new AtomicBoolean(false);
+
     // Throttle acceptance of new requests. If this entailed a state change,
     // register an interest op update request with the selector.
     public void disableRecv() {
@@ -426,6 +427,20 @@ public void enableRecv() {
         }
     }
 
+    @Override
+    void suspendForAuth() {
+        if (authPending.compareAndSet(false, true)) {
+            requestInterestOpsUpdate();
+        }
+    }
+
+    @Override
+    void resumeAfterAuth() {
+        if (authPending.compareAndSet(true, false)) {
+            requestInterestOpsUpdate();
+        }
+    }
+
     private void readConnectRequest() throws IOException, InterruptedException {
         if (!isZKServerRunning()) {
             throw new IOException("ZooKeeperServer not running");
@@ -678,8 +693,6 @@ public static void closeSock(SocketChannel sock) {
         }
     }
 
-    private final static byte fourBytes[] = new byte[4];
-
     /*
      * (non-Javadoc)
      *
@@ -688,24 +701,11 @@ public static void closeSock(SocketChannel sock) {
      */
     @Override
     public void sendResponse(ReplyHeader h, Record r, String tag) {
+        if (h.getXid() != -1 && h.getXid() != ProtocolVersion.NOTIFICATION_BATCH_XID) {
+            flushNotifications();
+        }
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            // Make space for length
-            BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
-            try {
-                baos.write(fourBytes);
-                bos.writeRecord(h, "header");
-                if (r != null) {
-                    bos.writeRecord(r, tag);
-                }
-                baos.close();
-            } catch (IOException e) {
-                LOG.error("Error serializing response");
-            }
-            byte b[] = baos.toByteArray();
-            ByteBuffer bb = ByteBuffer.wrap(b);
-            bb.putInt(b.length - 4).rewind();
-            sendBuffer(bb);
+            sendBuffer(serializeResponse(h, r, tag, compactEncoding));
             if (h.getXid() > 0) {
                 // check throttling
                 if (outstandingRequests.decrementAndGet() < 1 ||
@@ -735,6 +735,9 @@ public void process(WatchedEvent event) {
 
         // Convert WatchedEvent to a type that can be sent over the wire
         WatcherEvent e = event.getWrapper();
+        if (holdNotification(e)) {
+            return;
+        }
 
         sendResponse(h, e, "notification");
     }
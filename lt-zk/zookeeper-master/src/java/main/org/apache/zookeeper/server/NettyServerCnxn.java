@@ -21,7 +21,6 @@
 import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -34,9 +33,9 @@
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.jute.BinaryInputArchive;
-import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.ZooDefs.ProtocolVersion;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.command.CommandExecutor;
@@ -57,6 +56,7 @@ public class NettyServerCnxn extends ServerCnxn {
     Channel channel;
     ChannelBuffer queuedBuffer;
     volatile boolean throttled;
+    volatile boolean authPending;
     ByteBuffer bb;
     ByteBuffer bbLen = ByteBuffer.allocate(4);
     long sessionId;
@@ -149,6 +149,9 @@ public void process(WatchedEvent event) {
 
         // Convert WatchedEvent to a type that can be sent over the wire
         WatcherEvent e = event.getWrapper();
+        if (holdNotification(e)) {
+            return;
+        }
 
         try {
             sendResponse(h, e, "notification");
@@ -160,7 +163,6 @@ public void process(WatchedEvent event) {
         }
     }
 
-    private static final byte[] fourBytes = new byte[4];
     static class ResumeMessageEvent implements MessageEvent {
         Channel channel;
         ResumeMessageEvent(Channel channel) {
@@ -182,23 +184,10 @@ public void sendResponse(ReplyHeader h, Record r, String tag)
         if (closingChannel || !channel.isOpen()) {
             return;
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        // Make space for length
-        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
-        try {
-            baos.write(fourBytes);
-            bos.writeRecord(h, "header");
-            if (r != null) {
-                bos.writeRecord(r, tag);
-            }
-            baos.close();
-        } catch (IOException e) {
-            LOG.error("Error serializing response");
+        if (h.getXid() != -1 && h.getXid() != ProtocolVersion.NOTIFICATION_BATCH_XID) {
+            flushNotifications();
         }
-        byte b[] = baos.toByteArray();
-        ByteBuffer bb = ByteBuffer.wrap(b);
-        bb.putInt(b.length - 4).rewind();
-        sendBuffer(bb);
+        sendBuffer(serializeResponse(h, r, tag, compactEncoding));
         if (h.getXid() > 0) {
             // zks cannot be null otherwise we would not have gotten here!
             if (!zkServer.shouldThrottle(outstandingCount.decrementAndGet())) {
@@ -322,7 +311,7 @@ private boolean checkFourLetterWord(final Channel channel,
 
     public void receiveMessage(ChannelBuffer message) {
         try {
-            while(message.readable() && !throttled) {
+            while(message.readable() && !throttled && !authPending) {
                 if (bb != null) {
                     if (LOG.isTraceEnabled()) {
                         LOG.trace("message readable " + message.readableBytes()
@@ -433,6 +422,20 @@ public void disableRecv() {
         disableRecvNoWait().awaitUninterruptibly();
     }
     
+    @Override
+    void suspendForAuth() {
+        authPending = true;
+        channel.setReadable(false);
+    }
+
+    @Override
+    void resumeAfterAuth() {
+        authPending = false;
+        if (!throttled) {
+            channel.getPipeline().sendUpstream(new ResumeMessageEvent(channel));
+        }
+    }
+
     private ChannelFuture disableRecvNoWait() {
         throttled = true;
         if (LOG.isDebugEnabled()) {
@@ -205,7 +205,7 @@ private void processMessage(MessageEvent e, NettyServerCnxn cnxn) {
                             + ChannelBuffers.hexDump(buf));
                 }
                 
-                if (cnxn.throttled) {
+                if (cnxn.throttled || cnxn.authPending) {
                     LOG.debug("Received message while throttled");
                     // we are throttled, so we need to queue
                     if (cnxn.queuedBuffer == null) {
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.Quotas;
+import org.apache.zookeeper.data.StatPersisted;
+
+/**
+ * The 64 bit hash of a znode that makes up the digest of a DataTree. The
+ * digest of a tree is the sum of the hashes of its nodes, so it does not
+ * depend on the order in which they were added and is updated by
+ * subtracting the old hash of a node and adding the new one.
+ *
+ * The hash covers the path, the data and the persisted stat of the node,
+ * which are the same on every server that applied the same transactions.
+ * The acl is left out, its id is only meaningful to the ACL cache of one
+ * server, and so is the /zookeeper subtree, which each server updates on
+ * its own (quota stats, the configuration).
+ */
+final class NodeDigest {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final String LOCAL_PREFIX = Quotas.procZookeeper + "/";
+
+    private NodeDigest() {
+    }
+
+    /**
+     * @return the hash of the node of path, the caller holds the lock of
+     *         node
+     */
+    static long of(String path, DataNode node) {
+        if (path.equals(Quotas.procZookeeper) || path.startsWith(LOCAL_PREFIX)) {
+            return 0;
+        }
+        if (path.equals("/")) {
+            // the root is in the tree as ""
+            path = "";
+        }
+        long h = FNV_OFFSET;
+        for (int i = 0; i < path.length(); i++) {
+            h = (h ^ path.charAt(i)) * FNV_PRIME;
+        }
+        byte data[] = node.data;
+        if (data == null) {
+            h = mix(h ^ -1L);
+        } else {
+            h = mix(h ^ data.length);
+            for (byte b : data) {
+                h = (h ^ (b & 0xff)) * FNV_PRIME;
+            }
+        }
+        StatPersisted stat = node.stat;
+        h = mix(h ^ stat.getCzxid());
+        h = mix(h ^ stat.getMzxid());
+        h = mix(h ^ stat.getCtime());
+        h = mix(h ^ stat.getMtime());
+        h = mix(h ^ stat.getVersion());
+        h = mix(h ^ stat.getCversion());
+        h = mix(h ^ stat.getAversion());
+        h = mix(h ^ stat.getEphemeralOwner());
+        h = mix(h ^ stat.getPzxid());
+        return h;
+    }
+
+    /** the finalizer of splitmix64 */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
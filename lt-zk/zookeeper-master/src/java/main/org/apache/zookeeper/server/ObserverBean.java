@@ -46,4 +46,12 @@ public String getQuorumAddress() {
         return observer.getSocket().toString();
     }
 
+    public long getInformLag() {
+        return observer.getInformLag();
+    }
+
+    public int getRelayedObserverCount() {
+        return observer.getRelayedObserverCount();
+    }
+
 }
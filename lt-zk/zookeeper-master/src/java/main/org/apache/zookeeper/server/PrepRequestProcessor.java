@@ -38,6 +38,7 @@
 import org.apache.zookeeper.proto.CreateRequest;
 import org.apache.zookeeper.proto.CreateTTLRequest;
 import org.apache.zookeeper.proto.DeleteRequest;
+import org.apache.zookeeper.proto.PollFirstChildRequest;
 import org.apache.zookeeper.proto.ReconfigRequest;
 import org.apache.zookeeper.proto.SetACLRequest;
 import org.apache.zookeeper.proto.SetDataRequest;
@@ -72,9 +73,9 @@
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
@@ -156,18 +157,16 @@ public void run() {
     }
 
     private ChangeRecord getRecordForPath(String path) throws KeeperException.NoNodeException {
-        ChangeRecord lastChange = null;
-        synchronized (zks.outstandingChanges) {
-            lastChange = zks.outstandingChangesForPath.get(path);
-            if (lastChange == null) {
-                DataNode n = zks.getZKDatabase().getNode(path);
-                if (n != null) {
-                    Set<String> children;
-                    synchronized(n) {
-                        children = n.getChildren();
-                    }
-                    lastChange = new ChangeRecord(-1, path, n.stat, children.size(),
+        // the FinalRequestProcessor applies a txn to the DataTree before it
+        // removes its change records, so without a record the tree is current
+        ChangeRecord lastChange = zks.outstandingChangesForPath.get(path);
+        if (lastChange == null) {
+            DataNode n = zks.getZKDatabase().getNode(path);
+            if (n != null) {
+                synchronized(n) {
+                    lastChange = new ChangeRecord(-1, path, n.stat, n.getChildren().size(),
                             zks.getZKDatabase().aclForNode(n));
+                    lastChange.aclId = n.acl;
                 }
             }
         }
@@ -177,17 +176,36 @@ private ChangeRecord getRecordForPath(String path) throws KeeperException.NoNode
         return lastChange;
     }
 
-    private ChangeRecord getOutstandingChange(String path) {
-        synchronized (zks.outstandingChanges) {
-            return zks.outstandingChangesForPath.get(path);
+    /**
+     * Find the sequential child of a node with the lowest sequence number,
+     * skipping the children that an outstanding change already deletes.
+     */
+    private String getFirstSequentialChild(String parentPath)
+            throws KeeperException.NoNodeException {
+        DataNode parent = zks.getZKDatabase().getNode(parentPath);
+        if (parent != null) {
+            String prefix = parentPath.equals("/") ? "/" : parentPath + "/";
+            String child = null;
+            while ((child = parent.nextSequentialChild(child)) != null) {
+                ChangeRecord c = zks.outstandingChangesForPath.get(prefix + child);
+                if (c != null ? c.stat != null
+                        // the delete of the child may have been applied
+                        // since the parent was read
+                        : zks.getZKDatabase().getNode(prefix + child) != null) {
+                    return prefix + child;
+                }
+            }
         }
+        throw new KeeperException.NoNodeException(parentPath);
+    }
+
+    private ChangeRecord getOutstandingChange(String path) {
+        return zks.outstandingChangesForPath.get(path);
     }
 
     private void addChangeRecord(ChangeRecord c) {
-        synchronized (zks.outstandingChanges) {
-            zks.outstandingChanges.add(c);
-            zks.outstandingChangesForPath.put(c.path, c);
-        }
+        zks.outstandingChanges.add(c);
+        zks.outstandingChangesForPath.put(c.path, c);
     }
 
     /**
@@ -245,38 +263,34 @@ private Map<String, ChangeRecord> getPendingChanges(MultiTransactionRecord multi
      * @param pendingChangeRecords
      */
     void rollbackPendingChanges(long zxid, Map<String, ChangeRecord>pendingChangeRecords) {
-        synchronized (zks.outstandingChanges) {
-            // Grab a list iterator starting at the END of the list so we can iterate in reverse
-            ListIterator<ChangeRecord> iter = zks.outstandingChanges.listIterator(zks.outstandingChanges.size());
-            while (iter.hasPrevious()) {
-                ChangeRecord c = iter.previous();
-                if (c.zxid == zxid) {
-                    iter.remove();
-                    // Remove all outstanding changes for paths of this multi.
-                    // Previous records will be added back later.
-                    zks.outstandingChangesForPath.remove(c.path);
-                } else {
-                    break;
-                }
+        // The records of this multi are the last ones, it is not proposed
+        // yet so the FinalRequestProcessor does not touch them
+        Iterator<ChangeRecord> iter = zks.outstandingChanges.descendingIterator();
+        while (iter.hasNext()) {
+            ChangeRecord c = iter.next();
+            if (c.zxid == zxid) {
+                iter.remove();
+                // Remove all outstanding changes for paths of this multi.
+                // Previous records will be added back later.
+                zks.outstandingChangesForPath.remove(c.path);
+            } else {
+                break;
             }
+        }
 
-            // we don't need to roll back any records because there is nothing left.
-            if (zks.outstandingChanges.isEmpty()) {
-                return;
+        for (ChangeRecord c : pendingChangeRecords.values()) {
+            // Don't apply any prior change records that are already applied.
+            // Note that previous outstanding requests might have been removed
+            // once they are completed.
+            if (c.zxid <= zks.lastAppliedChangeZxid) {
+                continue;
             }
 
-            long firstZxid = zks.outstandingChanges.get(0).zxid;
-
-            for (ChangeRecord c : pendingChangeRecords.values()) {
-                // Don't apply any prior change records less than firstZxid.
-                // Note that previous outstanding requests might have been removed
-                // once they are completed.
-                if (c.zxid < firstZxid) {
-                    continue;
-                }
-
-                // add previously existing records back.
-                zks.outstandingChangesForPath.put(c.path, c);
+            // add previously existing records back.
+            zks.outstandingChangesForPath.put(c.path, c);
+            // the FinalRequestProcessor may have removed the record meanwhile
+            if (c.zxid <= zks.lastAppliedChangeZxid) {
+                zks.outstandingChangesForPath.remove(c.path, c);
             }
         }
     }
@@ -293,6 +307,34 @@ void rollbackPendingChanges(long zxid, Map<String, ChangeRecord>pendingChangeRec
      */
     static void checkACL(ZooKeeperServer zks, ServerCnxn cnxn, List<ACL> acl, int perm, List<Id> ids,
                          String path, List<ACL> setAcls) throws KeeperException.NoAuthException {
+        checkACL(zks, cnxn, null, acl, perm, ids, path, setAcls);
+    }
+
+    /**
+     * Check the acl of a node of the DataTree, reading its id and list
+     * together so that the permissions cached for the id are right.
+     */
+    static void checkACL(ZooKeeperServer zks, ServerCnxn cnxn, DataNode node, int perm, List<Id> ids,
+                         String path, List<ACL> setAcls) throws KeeperException.NoAuthException {
+        Long aclId;
+        List<ACL> acl;
+        synchronized (node) {
+            aclId = node.acl;
+            acl = zks.getZKDatabase().aclForNode(node);
+        }
+        checkACL(zks, cnxn, aclId, acl, perm, ids, path, setAcls);
+    }
+
+    /**
+     * Check the acl with the given id in the DataTree, the permissions it
+     * grants to ids are cached as long as none of its schemes is a
+     * {@link ServerAuthenticationProvider}, which may look at the path. The
+     * older providers wrapped for it only match ids.
+     *
+     * @param aclId id of acl in the DataTree, null if not known
+     */
+    static void checkACL(ZooKeeperServer zks, ServerCnxn cnxn, Long aclId, List<ACL> acl, int perm,
+                         List<Id> ids, String path, List<ACL> setAcls) throws KeeperException.NoAuthException {
         if (skipACL) {
             return;
         }
@@ -309,29 +351,65 @@ static void checkACL(ZooKeeperServer zks, ServerCnxn cnxn, List<ACL> acl, int pe
                 return;
             }
         }
-        for (ACL a : acl) {
-            Id id = a.getId();
-            if ((a.getPerms() & perm) != 0) {
-                if (id.getScheme().equals("world")
-                        && id.getId().equals("anyone")) {
-                    return;
-                }
-                ServerAuthenticationProvider ap = ProviderRegistry.getServerProvider(id
-                        .getScheme());
-                if (ap != null) {
-                    for (Id authId : ids) {
-                        if (authId.getScheme().equals(id.getScheme())
-                                && ap.matches(new ServerAuthenticationProvider.ServerObjs(zks, cnxn),
-                                new ServerAuthenticationProvider.MatchValues(path, authId.getId(), id.getId(), perm, setAcls))) {
-                            return;
-                        }
+        if (aclId != null) {
+            ACLPermissionCache cache = zks.getZKDatabase().getDataTree().getAclPermissionCache();
+            int granted = cache.get(aclId, ids);
+            if (granted == -1 && isCacheable(acl)) {
+                granted = 0;
+                for (ACL a : acl) {
+                    if (matches(zks, cnxn, a, a.getPerms(), ids, path, setAcls)) {
+                        granted |= a.getPerms();
                     }
                 }
+                cache.put(aclId, ids, granted);
+            }
+            if (granted != -1) {
+                if ((granted & perm) != 0) {
+                    return;
+                }
+                throw new KeeperException.NoAuthException();
+            }
+        }
+        for (ACL a : acl) {
+            if ((a.getPerms() & perm) != 0 && matches(zks, cnxn, a, perm, ids, path, setAcls)) {
+                return;
             }
         }
         throw new KeeperException.NoAuthException();
     }
 
+    private static boolean isCacheable(List<ACL> acl) {
+        for (ACL a : acl) {
+            String scheme = a.getId().getScheme();
+            if (!scheme.equals("world")
+                    && ProviderRegistry.getProvider(scheme) instanceof ServerAuthenticationProvider) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(ZooKeeperServer zks, ServerCnxn cnxn, ACL a, int perm, List<Id> ids,
+                                   String path, List<ACL> setAcls) {
+        Id id = a.getId();
+        if (id.getScheme().equals("world")
+                && id.getId().equals("anyone")) {
+            return true;
+        }
+        ServerAuthenticationProvider ap = ProviderRegistry.getServerProvider(id
+                .getScheme());
+        if (ap != null) {
+            for (Id authId : ids) {
+                if (authId.getScheme().equals(id.getScheme())
+                        && ap.matches(new ServerAuthenticationProvider.ServerObjs(zks, cnxn),
+                        new ServerAuthenticationProvider.MatchValues(path, authId.getId(), id.getId(), perm, setAcls))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Performs basic validation of a path for a create request.
      * Throws if the path is not valid and returns the parent path.
@@ -399,7 +477,7 @@ protected void pRequest2Txn(int type, long zxid, Request request,
                 String parentPath = getParentPathAndValidate(path);
                 ChangeRecord parentRecord = getRecordForPath(parentPath);
                 ChangeRecord nodeRecord = getRecordForPath(path);
-                checkACL(zks, request.cnxn, parentRecord.acl, ZooDefs.Perms.DELETE, request.authInfo, path, null);
+                checkACL(zks, request.cnxn, parentRecord.aclId, parentRecord.acl, ZooDefs.Perms.DELETE, request.authInfo, path, null);
                 checkAndIncVersion(nodeRecord.stat.getVersion(), deleteRequest.getVersion(), path);
                 if (nodeRecord.childCount > 0) {
                     throw new KeeperException.NotEmptyException(path);
@@ -410,6 +488,30 @@ protected void pRequest2Txn(int type, long zxid, Request request,
                 addChangeRecord(parentRecord);
                 addChangeRecord(new ChangeRecord(request.getHdr().getZxid(), path, null, -1, null));
                 break;
+            case OpCode.pollFirstChild: {
+                zks.sessionTracker.checkSession(request.sessionId, request.getOwner());
+                PollFirstChildRequest pollRequest = (PollFirstChildRequest)record;
+                if(deserialize)
+                    ByteBufferInputStream.byteBuffer2Record(request.request, pollRequest);
+                String queuePath = pollRequest.getPath();
+                validatePath(queuePath, request.sessionId);
+                ChangeRecord queueRecord = getRecordForPath(queuePath);
+                checkACL(zks, request.cnxn, queueRecord.aclId, queueRecord.acl, ZooDefs.Perms.DELETE, request.authInfo, queuePath, null);
+                String headPath = getFirstSequentialChild(queuePath);
+                ChangeRecord headRecord = getRecordForPath(headPath);
+                checkACL(zks, request.cnxn, headRecord.aclId, headRecord.acl, ZooDefs.Perms.READ, request.authInfo, headPath, null);
+                if (headRecord.childCount > 0) {
+                    throw new KeeperException.NotEmptyException(headPath);
+                }
+                // Logged and replicated as a plain delete of the child
+                request.getHdr().setType(OpCode.delete);
+                request.setTxn(new DeleteTxn(headPath));
+                queueRecord = queueRecord.duplicate(request.getHdr().getZxid());
+                queueRecord.childCount--;
+                addChangeRecord(queueRecord);
+                addChangeRecord(new ChangeRecord(request.getHdr().getZxid(), headPath, null, -1, null));
+                break;
+            }
             case OpCode.setData:
                 zks.sessionTracker.checkSession(request.sessionId, request.getOwner());
                 SetDataRequest setDataRequest = (SetDataRequest)record;
@@ -418,7 +520,7 @@ protected void pRequest2Txn(int type, long zxid, Request request,
                 path = setDataRequest.getPath();
                 validatePath(path, request.sessionId);
                 nodeRecord = getRecordForPath(path);
-                checkACL(zks, request.cnxn, nodeRecord.acl, ZooDefs.Perms.WRITE, request.authInfo, path, null);
+                checkACL(zks, request.cnxn, nodeRecord.aclId, nodeRecord.acl, ZooDefs.Perms.WRITE, request.authInfo, path, null);
                 int newVersion = checkAndIncVersion(nodeRecord.stat.getVersion(), setDataRequest.getVersion(), path);
                 request.setTxn(new SetDataTxn(path, setDataRequest.getData(), newVersion));
                 nodeRecord = nodeRecord.duplicate(request.getHdr().getZxid());
@@ -552,7 +654,7 @@ protected void pRequest2Txn(int type, long zxid, Request request,
                 }
                 
                 nodeRecord = getRecordForPath(ZooDefs.CONFIG_NODE);               
-                checkACL(zks, request.cnxn, nodeRecord.acl, ZooDefs.Perms.WRITE, request.authInfo, null, null);
+                checkACL(zks, request.cnxn, nodeRecord.aclId, nodeRecord.acl, ZooDefs.Perms.WRITE, request.authInfo, null, null);
                 request.setTxn(new SetDataTxn(ZooDefs.CONFIG_NODE, request.qv.toString().getBytes(), -1));    
                 nodeRecord = nodeRecord.duplicate(request.getHdr().getZxid());
                 nodeRecord.stat.setVersion(-1);                
@@ -567,7 +669,7 @@ protected void pRequest2Txn(int type, long zxid, Request request,
                 validatePath(path, request.sessionId);
                 List<ACL> listACL = fixupACL(path, request.authInfo, setAclRequest.getAcl());
                 nodeRecord = getRecordForPath(path);
-                checkACL(zks, request.cnxn, nodeRecord.acl, ZooDefs.Perms.ADMIN, request.authInfo, path, listACL);
+                checkACL(zks, request.cnxn, nodeRecord.aclId, nodeRecord.acl, ZooDefs.Perms.ADMIN, request.authInfo, path, listACL);
                 newVersion = checkAndIncVersion(nodeRecord.stat.getAversion(), setAclRequest.getVersion(), path);
                 request.setTxn(new SetACLTxn(path, listACL, newVersion));
                 nodeRecord = nodeRecord.duplicate(request.getHdr().getZxid());
@@ -593,24 +695,25 @@ protected void pRequest2Txn(int type, long zxid, Request request,
                 // queues up this operation without being the session owner.
                 // this request is the last of the session so it should be ok
                 //zks.sessionTracker.checkSession(request.sessionId, request.getOwner());
+                // Take the outstanding changes before the ephemerals, a
+                // change applied meanwhile is then seen in the DataTree
+                List<ChangeRecord> pending = new ArrayList<ChangeRecord>(zks.outstandingChanges);
                 Set<String> es = zks.getZKDatabase()
                         .getEphemerals(request.sessionId);
-                synchronized (zks.outstandingChanges) {
-                    for (ChangeRecord c : zks.outstandingChanges) {
-                        if (c.stat == null) {
-                            // Doing a delete
-                            es.remove(c.path);
-                        } else if (c.stat.getEphemeralOwner() == request.sessionId) {
-                            es.add(c.path);
-                        }
-                    }
-                    for (String path2Delete : es) {
-                        addChangeRecord(new ChangeRecord(request.getHdr().getZxid(), path2Delete, null, 0, null));
+                for (ChangeRecord c : pending) {
+                    if (c.stat == null) {
+                        // Doing a delete
+                        es.remove(c.path);
+                    } else if (c.stat.getEphemeralOwner() == request.sessionId) {
+                        es.add(c.path);
                     }
-
-                    zks.sessionTracker.setSessionClosing(request.sessionId);
+                }
+                for (String path2Delete : es) {
+                    addChangeRecord(new ChangeRecord(request.getHdr().getZxid(), path2Delete, null, 0, null));
                 }
 
+                zks.sessionTracker.setSessionClosing(request.sessionId);
+
                 LOG.info("Processed session termination for sessionid: 0x"
                         + Long.toHexString(request.sessionId));
                 break;
@@ -622,7 +725,7 @@ protected void pRequest2Txn(int type, long zxid, Request request,
                 path = checkVersionRequest.getPath();
                 validatePath(path, request.sessionId);
                 nodeRecord = getRecordForPath(path);
-                checkACL(zks, request.cnxn, nodeRecord.acl, ZooDefs.Perms.READ, request.authInfo, path, null);
+                checkACL(zks, request.cnxn, nodeRecord.aclId, nodeRecord.acl, ZooDefs.Perms.READ, request.authInfo, path, null);
                 request.setTxn(new CheckVersionTxn(path, checkAndIncVersion(nodeRecord.stat.getVersion(),
                         checkVersionRequest.getVersion(), path)));
                 break;
@@ -664,7 +767,7 @@ private void pRequest2TxnCreate(int type, Request request, Record record, boolea
         List<ACL> listACL = fixupACL(path, request.authInfo, acl);
         ChangeRecord parentRecord = getRecordForPath(parentPath);
 
-        checkACL(zks, request.cnxn, parentRecord.acl, ZooDefs.Perms.CREATE, request.authInfo, path, listACL);
+        checkACL(zks, request.cnxn, parentRecord.aclId, parentRecord.acl, ZooDefs.Perms.CREATE, request.authInfo, path, listACL);
         int parentCVersion = parentRecord.stat.getCversion();
         if (createMode.isSequential()) {
             path = path + String.format(Locale.ENGLISH, "%010d", parentCVersion);
@@ -758,6 +861,10 @@ protected void pRequest(Request request) throws RequestProcessorException {
                 DeleteRequest deleteRequest = new DeleteRequest();
                 pRequest2Txn(request.type, zks.getNextZxid(), request, deleteRequest, true);
                 break;
+            case OpCode.pollFirstChild:
+                PollFirstChildRequest pollRequest = new PollFirstChildRequest();
+                pRequest2Txn(request.type, zks.getNextZxid(), request, pollRequest, true);
+                break;
             case OpCode.setData:
                 SetDataRequest setDataRequest = new SetDataRequest();                
                 pRequest2Txn(request.type, zks.getNextZxid(), request, setDataRequest, true);
@@ -857,15 +964,22 @@ protected void pRequest(Request request) throws RequestProcessorException {
 
             //All the rest don't need to create a Txn - just verify session
             case OpCode.sync:
+            case OpCode.readIndex:
             case OpCode.exists:
             case OpCode.getData:
             case OpCode.getACL:
             case OpCode.getChildren:
             case OpCode.getChildren2:
+            case OpCode.getChildrenWithData:
+            case OpCode.getChildrenPage:
+            case OpCode.getFirstChild:
+            case OpCode.getPredecessor:
             case OpCode.ping:
             case OpCode.setWatches:
+            case OpCode.setWatches2:
             case OpCode.checkWatches:
             case OpCode.removeWatches:
+            case OpCode.addWatch:
                 zks.sessionTracker.checkSession(request.sessionId,
                         request.getOwner());
                 break;
@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+/**
+ * Provides statistics about the purges of the snapshots and txn logs done
+ * by this process.
+ */
+public class PurgeStats {
+    /**
+     * Number of files deleted since the process was started.
+     */
+    private long filesDeleted;
+
+    /**
+     * Size of the files deleted since the process was started.
+     */
+    private long bytesDeleted;
+
+    /**
+     * Time the last purge took, -1 before the first one.
+     */
+    private long lastPurgeTimeMs = -1;
+
+    /**
+     * Size of the snapshots and txn logs kept by the last purge, -1 before
+     * the first one.
+     */
+    private long retainedBytes = -1;
+
+    public synchronized long getFilesDeleted() {
+        return filesDeleted;
+    }
+
+    public synchronized long getBytesDeleted() {
+        return bytesDeleted;
+    }
+
+    synchronized void fileDeleted(long size) {
+        filesDeleted++;
+        bytesDeleted += size;
+    }
+
+    public synchronized long getLastPurgeTimeMs() {
+        return lastPurgeTimeMs;
+    }
+
+    synchronized void setLastPurgeTimeMs(long value) {
+        lastPurgeTimeMs = value;
+    }
+
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    synchronized void setRetainedBytes(long value) {
+        retainedBytes = value;
+    }
+
+    public synchronized void reset() {
+        filesDeleted = 0;
+        bytesDeleted = 0;
+        lastPurgeTimeMs = -1;
+        retainedBytes = -1;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d/%d/%d/%d", filesDeleted, bytesDeleted,
+                lastPurgeTimeMs, retainedBytes);
+    }
+}
@@ -24,11 +24,14 @@
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.persistence.Util;
 import org.slf4j.Logger;
@@ -60,6 +63,32 @@ static void printUsage(){
     private static final String PREFIX_SNAPSHOT = "snapshot";
     private static final String PREFIX_LOG = "log";
 
+    /**
+     * The snapshots and logs to keep are also limited to this many MB, the
+     * oldest of the snapshots to keep are dropped, down to 3 of them, until
+     * they and their logs fit. 0, the default, keeps num snapshots whatever
+     * their size.
+     */
+    public static final String MAX_RETAINED_SIZE_MB = "zookeeper.purge.maxRetainedSizeMB";
+
+    /**
+     * Files are deleted at no more than this many MB per second so that a
+     * large purge does not compete with the txn log for the disk. 0, the
+     * default, does not limit the rate.
+     */
+    public static final String DELETE_RATE_MB = "zookeeper.purge.deleteRateMB";
+
+    private static final int MIN_RETAIN_COUNT = 3;
+
+    private static final PurgeStats stats = new PurgeStats();
+
+    /**
+     * @return the statistics of the purges done by this process
+     */
+    public static PurgeStats getStats() {
+        return stats;
+    }
+
     /**
      * Purges the snapshot and logs keeping the last num snapshots and the
      * corresponding logs. If logs are rolling or a new snapshot is created
@@ -72,17 +101,79 @@ static void printUsage(){
      * @throws IOException
      */
     public static void purge(File dataDir, File snapDir, int num) throws IOException {
-        if (num < 3) {
+        if (num < MIN_RETAIN_COUNT) {
             throw new IllegalArgumentException(COUNT_ERR_MSG);
         }
 
+        long startMs = Time.currentElapsedTime();
         FileTxnSnapLog txnLog = new FileTxnSnapLog(dataDir, snapDir);
 
         List<File> snaps = txnLog.findNRecentSnapshots(num);
         int numSnaps = snaps.size();
         if (numSnaps > 0) {
-            purgeOlderSnapshots(txnLog, snaps.get(numSnaps - 1));
+            snaps = limitRetainedSize(txnLog, snaps,
+                    Long.getLong(MAX_RETAINED_SIZE_MB, 0) * 1024 * 1024);
+            purgeOlderSnapshots(txnLog, snaps.get(snaps.size() - 1));
         }
+        stats.setLastPurgeTimeMs(Time.currentElapsedTime() - startMs);
+    }
+
+    /**
+     * Drop the oldest of the snapshots to retain, but no more than leaves
+     * {@value #MIN_RETAIN_COUNT} of them, until they and the logs needed to
+     * recover them fit in maxBytes.
+     *
+     * @param snaps the snapshots to retain, newest first
+     * @param maxBytes the size to fit in, no limit if not positive
+     * @return the newest snapshots of snaps to retain
+     */
+    // VisibleForTesting
+    static List<File> limitRetainedSize(FileTxnSnapLog txnLog, List<File> snaps,
+            long maxBytes) {
+        // The zxid and size of each log, newest first
+        List<File> logFiles = Util.sortDataDir(txnLog.getDataDir().listFiles(),
+                PREFIX_LOG, false);
+        long logZxids[] = new long[logFiles.size()];
+        long logSizes[] = new long[logFiles.size()];
+        for (int i = 0; i < logZxids.length; i++) {
+            logZxids[i] = Util.getZxidFromName(logFiles.get(i).getName(), PREFIX_LOG);
+            logSizes[i] = logFiles.get(i).length();
+        }
+
+        long snapBytes = 0;
+        for (File snap : snaps) {
+            snapBytes += snap.length();
+        }
+        int count = snaps.size();
+        long retainedBytes;
+        while (true) {
+            long leastZxid = Util.getZxidFromName(
+                    snaps.get(count - 1).getName(), PREFIX_SNAPSHOT);
+            // The logs from the newest one that starts at or before the
+            // oldest snapshot, as purgeOlderSnapshots keeps them
+            retainedBytes = snapBytes;
+            for (int i = 0; i < logZxids.length; i++) {
+                retainedBytes += logSizes[i];
+                if (logZxids[i] <= leastZxid) {
+                    break;
+                }
+            }
+            if (maxBytes <= 0 || retainedBytes <= maxBytes
+                    || count <= MIN_RETAIN_COUNT) {
+                break;
+            }
+            count--;
+            snapBytes -= snaps.get(count).length();
+        }
+        if (maxBytes > 0 && retainedBytes > maxBytes) {
+            LOG.warn("Retaining " + count + " snapshots and their logs, "
+                    + retainedBytes + " bytes, over the limit of " + maxBytes);
+        } else if (count < snaps.size()) {
+            LOG.info("Retaining " + count + " snapshots to keep their logs under "
+                    + maxBytes + " bytes");
+        }
+        stats.setRetainedBytes(retainedBytes);
+        return snaps.subList(0, count);
     }
 
     // VisibleForTesting
@@ -147,7 +238,21 @@ public boolean accept(File f){
             files.addAll(Arrays.asList(snapshots));
         }
 
-        // remove the old files
+        // remove the old files, oldest first so that a purge that is cut
+        // short leaves the newer files
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long z1 = Util.getZxidFromName(f1.getName(),
+                        f1.getName().startsWith(PREFIX_LOG) ? PREFIX_LOG : PREFIX_SNAPSHOT);
+                long z2 = Util.getZxidFromName(f2.getName(),
+                        f2.getName().startsWith(PREFIX_LOG) ? PREFIX_LOG : PREFIX_SNAPSHOT);
+                return z1 < z2 ? -1 : (z1 == z2 ? 0 : 1);
+            }
+        });
+        long rateBytes = Long.getLong(DELETE_RATE_MB, 0) * 1024 * 1024;
+        long startMs = Time.currentElapsedTime();
+        long deletedBytes = 0;
         for(File f: files)
         {
             final String msg = "Removing file: "+
@@ -155,8 +260,25 @@ public boolean accept(File f){
                 "\t"+f.getPath();
             LOG.info(msg);
             System.out.println(msg);
+            long size = f.length();
             if(!f.delete()){
                 System.err.println("Failed to remove "+f.getPath());
+                continue;
+            }
+            stats.fileDeleted(size);
+            deletedBytes += size;
+            if (rateBytes > 0) {
+                long waitMs = deletedBytes * 1000 / rateBytes
+                        - (Time.currentElapsedTime() - startMs);
+                if (waitMs > 0) {
+                    try {
+                        Thread.sleep(waitMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        LOG.info("Purge interrupted, the remaining files are kept");
+                        return;
+                    }
+                }
             }
         }
 
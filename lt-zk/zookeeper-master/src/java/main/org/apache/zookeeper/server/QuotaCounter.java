@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.StatsTrack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The number of nodes and bytes below a quota root. The writes add to the
+ * counters without taking any lock and then bring the stat node of the
+ * quota up to date with {@link #flush(DataNode)}, without parsing it.
+ */
+class QuotaCounter {
+    private static final Logger LOG = LoggerFactory.getLogger(QuotaCounter.class);
+
+    /** the path that has the quota */
+    final String path;
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** the content of the limit node, parsed when it is set */
+    private volatile StatsTrack limit = new StatsTrack();
+
+    QuotaCounter(String path) {
+        this.path = path;
+    }
+
+    void setLimit(byte[] data) {
+        try {
+            limit = new StatsTrack(data == null ? null : new String(data));
+        } catch (RuntimeException e) {
+            LOG.warn("Invalid quota limit for " + path, e);
+            limit = new StatsTrack();
+        }
+    }
+
+    void set(long count, long bytes) {
+        this.count.set(count);
+        this.bytes.set(bytes);
+    }
+
+    void updateCount(long diff) {
+        long updated = count.addAndGet(diff);
+        long max = limit.getCount();
+        if (diff > 0 && max > -1 && max < updated) {
+            LOG.warn("Quota exceeded: " + path + " count=" + updated
+                    + " limit=" + max);
+        }
+    }
+
+    void updateBytes(long diff) {
+        long updated = bytes.addAndGet(diff);
+        long max = limit.getBytes();
+        if (diff > 0 && max > -1 && max < updated) {
+            LOG.warn("Quota exceeded: " + path + " bytes=" + updated
+                    + " limit=" + max);
+        }
+    }
+
+    /**
+     * Write the counters to the stat node of the quota.
+     *
+     * @return how much longer the data of the stat node got
+     */
+    int flush(DataNode statNode) {
+        StatsTrack stats = new StatsTrack();
+        stats.setCount((int) count.get());
+        stats.setBytes(bytes.get());
+        byte[] data = stats.toString().getBytes();
+        synchronized (statNode) {
+            int diff = data.length - (statNode.data == null ? 0 : statNode.data.length);
+            statNode.data = data;
+            return diff;
+        }
+    }
+}
@@ -97,6 +97,20 @@ public void setLocalSession(boolean isLocalSession) {
         this.isLocalSession = isLocalSession;
     }
 
+    /**
+     * If this is a readIndex request whose index has already been applied
+     * locally, so that it only has to keep its place in the session order.
+     */
+    private boolean readIndexReached = false;
+
+    public boolean isReadIndexReached() {
+        return readIndexReached;
+    }
+
+    public void setReadIndexReached(boolean readIndexReached) {
+        this.readIndexReached = readIndexReached;
+    }
+
     public Object getOwner() {
         return owner;
     }
@@ -146,6 +160,11 @@ static boolean isValid(int type) {
         case OpCode.getACL:
         case OpCode.getChildren:
         case OpCode.getChildren2:
+        case OpCode.getChildrenWithData:
+        case OpCode.getChildrenPage:
+        case OpCode.getFirstChild:
+        case OpCode.getPredecessor:
+        case OpCode.pollFirstChild:
         case OpCode.getData:
         case OpCode.multi:
         case OpCode.ping:
@@ -153,9 +172,12 @@ static boolean isValid(int type) {
         case OpCode.setACL:
         case OpCode.setData:
         case OpCode.setWatches:
+        case OpCode.setWatches2:
         case OpCode.sync:
+        case OpCode.readIndex:
         case OpCode.checkWatches:
         case OpCode.removeWatches:
+        case OpCode.addWatch:
             return true;
         default:
             return false;
@@ -168,6 +190,10 @@ public boolean isQuorum() {
         case OpCode.getACL:
         case OpCode.getChildren:
         case OpCode.getChildren2:
+        case OpCode.getChildrenWithData:
+        case OpCode.getChildrenPage:
+        case OpCode.getFirstChild:
+        case OpCode.getPredecessor:
         case OpCode.getData:
             return false;
         case OpCode.create:
@@ -177,6 +203,7 @@ public boolean isQuorum() {
         case OpCode.error:
         case OpCode.delete:
         case OpCode.deleteContainer:
+        case OpCode.pollFirstChild:
         case OpCode.setACL:
         case OpCode.setData:
         case OpCode.check:
@@ -205,6 +232,8 @@ static String op2String(int op) {
             return "createContainer";
         case OpCode.setWatches:
             return "setWatches";
+        case OpCode.setWatches2:
+            return "setWatches2";
         case OpCode.delete:
             return "delete";
         case OpCode.deleteContainer:
@@ -221,6 +250,8 @@ static String op2String(int op) {
             return "setData";
         case OpCode.sync:
               return "sync:";
+        case OpCode.readIndex:
+            return "readIndex";
         case OpCode.getACL:
             return "getACL";
         case OpCode.setACL:
@@ -229,6 +260,16 @@ static String op2String(int op) {
             return "getChildren";
         case OpCode.getChildren2:
             return "getChildren2";
+        case OpCode.getChildrenWithData:
+            return "getChildrenWithData";
+        case OpCode.getChildrenPage:
+            return "getChildrenPage";
+        case OpCode.getFirstChild:
+            return "getFirstChild";
+        case OpCode.getPredecessor:
+            return "getPredecessor";
+        case OpCode.pollFirstChild:
+            return "pollFirstChild";
         case OpCode.ping:
             return "ping";
         case OpCode.createSession:
@@ -243,6 +284,8 @@ static String op2String(int op) {
             return "checkWatches";
         case OpCode.removeWatches:
             return "removeWatches";
+        case OpCode.addWatch:
+            return "addWatch";
         default:
             return "unknown " + op;
         }
@@ -263,6 +306,7 @@ public String toString() {
         String path = "n/a";
         if (type != OpCode.createSession
                 && type != OpCode.setWatches
+                && type != OpCode.setWatches2
                 && type != OpCode.closeSession
                 && request != null
                 && request.remaining() >= 4)
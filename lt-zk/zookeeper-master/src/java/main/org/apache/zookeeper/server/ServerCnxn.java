@@ -32,14 +32,24 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.jute.ByteBufferOutputArchive;
+import org.apache.jute.ByteBufferRecord;
+import org.apache.jute.CompactOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.ProtocolVersion;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.proto.WatcherEvent;
+import org.apache.zookeeper.proto.WatcherEventBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,6 +72,41 @@ public abstract class ServerCnxn implements Stats, Watcher {
      */
     boolean isOldClient = true;
 
+    /**
+     * Set when the client asked for compact replies in its connect request
+     * and the server allows them, see ZooDefs.ProtocolVersion.
+     */
+    boolean compactEncoding = false;
+
+    /**
+     * How long the watch events of this connection are held to be sent
+     * together, 0 to send them one by one. Set when the client asked for
+     * batches in its connect request, see ZooDefs.ProtocolVersion.
+     */
+    int notificationBatchWindowMs = 0;
+
+    /**
+     * The held watch events by type and path, in the order they were last
+     * triggered. An event triggered again while held is only sent once.
+     */
+    private final Map<String, WatcherEvent> heldNotifications =
+        new LinkedHashMap<String, WatcherEvent>();
+
+    private boolean notificationFlushScheduled;
+
+    /** Sends the held watch events of the connections when their window ends */
+    private static class NotificationFlusher {
+        static final ScheduledExecutorService EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "NotificationFlusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
     abstract int getSessionTimeout();
 
     abstract void close();
@@ -69,11 +114,114 @@ public abstract class ServerCnxn implements Stats, Watcher {
     public abstract void sendResponse(ReplyHeader h, Record r, String tag)
         throws IOException;
 
+    /**
+     * Serialize a response, prefixed with its length, into a buffer sized
+     * up front from the records.
+     *
+     * @param compact write the records with CompactOutputArchive
+     */
+    protected static ByteBuffer serializeResponse(ReplyHeader h, Record r,
+            String tag, boolean compact) {
+        int size = 4 + h.serializedSize();
+        if (r instanceof ByteBufferRecord) {
+            size += ((ByteBufferRecord) r).serializedSize();
+        }
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        // Make space for length
+        bb.position(4);
+        try {
+            if (compact) {
+                CompactOutputArchive coa = new CompactOutputArchive(bb);
+                coa.writeRecord(h, "header");
+                if (r != null) {
+                    coa.writeRecord(r, tag);
+                }
+                bb = coa.getBuffer();
+            } else {
+                ByteBufferOutputArchive bos = new ByteBufferOutputArchive(bb);
+                bos.writeRecord(h, "header");
+                if (r != null) {
+                    bos.writeRecord(r, tag);
+                }
+                bb = bos.getBuffer();
+            }
+        } catch (IOException e) {
+            LOG.error("Error serializing response");
+        }
+        bb.flip();
+        bb.putInt(bb.limit() - 4).rewind();
+        return bb;
+    }
+
     /* notify the client the session is closing and close/cleanup socket */
     abstract void sendCloseSession();
 
     public abstract void process(WatchedEvent event);
 
+    /**
+     * Hold a watch event to send it with the others triggered within the
+     * window of the connection.
+     *
+     * @return false if the connection sends its events one by one
+     */
+    boolean holdNotification(WatcherEvent event) {
+        if (notificationBatchWindowMs <= 0) {
+            return false;
+        }
+        String key = event.getType() + event.getPath();
+        synchronized (heldNotifications) {
+            heldNotifications.remove(key);
+            heldNotifications.put(key, event);
+            if (!notificationFlushScheduled) {
+                notificationFlushScheduled = true;
+                NotificationFlusher.EXECUTOR.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushNotifications();
+                    }
+                }, notificationBatchWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send the held watch events. This is called before any other reply, so
+     * the client still gets the event of a change before the data it reads
+     * after it.
+     */
+    void flushNotifications() {
+        if (notificationBatchWindowMs <= 0) {
+            return;
+        }
+        synchronized (heldNotifications) {
+            notificationFlushScheduled = false;
+            if (heldNotifications.isEmpty()) {
+                return;
+            }
+            try {
+                if (heldNotifications.size() == 1) {
+                    sendResponse(new ReplyHeader(-1, -1L, 0),
+                            heldNotifications.values().iterator().next(),
+                            "notification");
+                } else {
+                    sendResponse(new ReplyHeader(
+                            ProtocolVersion.NOTIFICATION_BATCH_XID, -1L, 0),
+                            new WatcherEventBatch(new ArrayList<WatcherEvent>(
+                                    heldNotifications.values())),
+                            "notification");
+                }
+            } catch (IOException e) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Problem sending to " + getRemoteSocketAddress(), e);
+                }
+                close();
+            } finally {
+                heldNotifications.clear();
+            }
+        }
+    }
+
     public abstract long getSessionId();
 
     abstract void setSessionId(long sessionId);
@@ -97,6 +245,20 @@ public boolean removeAuthInfo(Id id) {
 
     abstract void disableRecv();
 
+    /**
+     * Stop reading packets while an auth packet of this connection is
+     * handled by the auth workers, so the packets after it see its result.
+     * Unlike disableRecv, this holds until {@link #resumeAfterAuth()}
+     * whatever the throttling does meanwhile.
+     */
+    void suspendForAuth() {
+        disableRecv();
+    }
+
+    void resumeAfterAuth() {
+        enableRecv();
+    }
+
     abstract void setSessionTimeout(int sessionTimeout);
 
     protected ZooKeeperSaslServer zooKeeperSaslServer = null;
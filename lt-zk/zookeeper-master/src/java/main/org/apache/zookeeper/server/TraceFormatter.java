@@ -61,6 +61,18 @@ public static String op2String(int op) {
             return "getChildren";
         case OpCode.getChildren2:
             return "getChildren2";
+        case OpCode.getChildrenWithData:
+            return "getChildrenWithData";
+        case OpCode.getChildrenPage:
+            return "getChildrenPage";
+        case OpCode.getFirstChild:
+            return "getFirstChild";
+        case OpCode.getPredecessor:
+            return "getPredecessor";
+        case OpCode.pollFirstChild:
+            return "pollFirstChild";
+        case OpCode.addWatch:
+            return "addWatch";
         case OpCode.ping:
             return "ping";
         case OpCode.createSession:
@@ -21,11 +21,13 @@
 import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event.EventType;
@@ -36,6 +38,10 @@
 /**
  * This class manages watches. It allows watches to be associated with a string
  * and removes watchers and their watches in addition to managing triggers.
+ * Watches are removed when they trigger, unless they were added in one of the
+ * persistent {@link AddWatchMode}s. Recursive watches are kept in a trie of
+ * path components, so a trigger finds the ones on the ancestors of its path
+ * in O(depth) lookups.
  */
 class WatchManager {
     private static final Logger LOG = LoggerFactory.getLogger(WatchManager.class);
@@ -46,12 +52,24 @@ class WatchManager {
     private final Map<Watcher, Set<String>> watch2Paths =
         new HashMap<Watcher, Set<String>>();
 
-    synchronized int size(){
-        int result = 0;
-        for(Set<Watcher> watches : watchTable.values()) {
-            result += watches.size();
-        }
-        return result;
+    /**
+     * paths of watch2Paths whose watch is not removed when it triggers,
+     * recursive ones included
+     */
+    private final Map<Watcher, Set<String>> watch2PersistentPaths =
+        new HashMap<Watcher, Set<String>>();
+
+    /** paths of watch2Paths whose watch also triggers for descendants */
+    private final Map<Watcher, Set<String>> watch2RecursivePaths =
+        new HashMap<Watcher, Set<String>>();
+
+    private final RecursiveWatchTrie recursiveWatches = new RecursiveWatchTrie();
+
+    /** number of watches in watchTable, only changed under the lock */
+    private volatile int watchCount;
+
+    int size(){
+        return watchCount;
     }
 
     synchronized void addWatch(String path, Watcher watcher) {
@@ -63,7 +81,9 @@ synchronized void addWatch(String path, Watcher watcher) {
             list = new HashSet<Watcher>(4);
             watchTable.put(path, list);
         }
-        list.add(watcher);
+        if (list.add(watcher)) {
+            watchCount++;
+        }
 
         Set<String> paths = watch2Paths.get(watcher);
         if (paths == null) {
@@ -74,6 +94,29 @@ synchronized void addWatch(String path, Watcher watcher) {
         paths.add(path);
     }
 
+    /**
+     * Add a watch that stays after it triggers. A watch that is already
+     * recursive is not turned into a plain persistent one.
+     */
+    synchronized void addWatch(String path, Watcher watcher, AddWatchMode mode) {
+        addWatch(path, watcher);
+        addPath(watch2PersistentPaths, watcher, path);
+        if (mode == AddWatchMode.PERSISTENT_RECURSIVE
+                && addPath(watch2RecursivePaths, watcher, path)) {
+            recursiveWatches.add(path, watcher);
+        }
+    }
+
+    private static boolean addPath(Map<Watcher, Set<String>> watch2PathsOfMode,
+            Watcher watcher, String path) {
+        Set<String> paths = watch2PathsOfMode.get(watcher);
+        if (paths == null) {
+            paths = new HashSet<String>();
+            watch2PathsOfMode.put(watcher, paths);
+        }
+        return paths.add(path);
+    }
+
     synchronized void removeWatcher(Watcher watcher) {
         Set<String> paths = watch2Paths.remove(watcher);
         if (paths == null) {
@@ -82,12 +125,21 @@ synchronized void removeWatcher(Watcher watcher) {
         for (String p : paths) {
             Set<Watcher> list = watchTable.get(p);
             if (list != null) {
-                list.remove(watcher);
+                if (list.remove(watcher)) {
+                    watchCount--;
+                }
                 if (list.size() == 0) {
                     watchTable.remove(p);
                 }
             }
         }
+        watch2PersistentPaths.remove(watcher);
+        Set<String> recursivePaths = watch2RecursivePaths.remove(watcher);
+        if (recursivePaths != null) {
+            for (String p : recursivePaths) {
+                recursiveWatches.remove(p, watcher);
+            }
+        }
     }
 
     Set<Watcher> triggerWatch(String path, EventType type) {
@@ -99,7 +151,12 @@ Set<Watcher> triggerWatch(String path, EventType type, Set<Watcher> supress) {
                 KeeperState.SyncConnected, path);
         Set<Watcher> watchers;
         synchronized (this) {
-            watchers = watchTable.remove(path);
+            if (watch2PersistentPaths.isEmpty()) {
+                watchers = removeWatches(path);
+            } else {
+                watchers = removeOneShotWatches(path);
+                watchers = recursiveWatches.collect(path, watchers);
+            }
             if (watchers == null || watchers.isEmpty()) {
                 if (LOG.isTraceEnabled()) {
                     ZooTrace.logTraceMessage(LOG,
@@ -108,6 +165,23 @@ Set<Watcher> triggerWatch(String path, EventType type, Set<Watcher> supress) {
                 }
                 return null;
             }
+        }
+        for (Watcher w : watchers) {
+            if (supress != null && supress.contains(w)) {
+                continue;
+            }
+            w.process(e);
+        }
+        return watchers;
+    }
+
+    /**
+     * Remove all the watches on path, they all are one-shot watches.
+     */
+    private Set<Watcher> removeWatches(String path) {
+        Set<Watcher> watchers = watchTable.remove(path);
+        if (watchers != null) {
+            watchCount -= watchers.size();
             for (Watcher w : watchers) {
                 Set<String> paths = watch2Paths.get(w);
                 if (paths != null) {
@@ -115,11 +189,34 @@ Set<Watcher> triggerWatch(String path, EventType type, Set<Watcher> supress) {
                 }
             }
         }
-        for (Watcher w : watchers) {
-            if (supress != null && supress.contains(w)) {
-                continue;
+        return watchers;
+    }
+
+    /**
+     * Remove the watches on path that are not persistent.
+     *
+     * @return all the watchers of path, a copy the caller may add to
+     */
+    private Set<Watcher> removeOneShotWatches(String path) {
+        Set<Watcher> list = watchTable.get(path);
+        if (list == null) {
+            return null;
+        }
+        Set<Watcher> watchers = new HashSet<Watcher>(list);
+        for (Iterator<Watcher> it = list.iterator(); it.hasNext();) {
+            Watcher w = it.next();
+            Set<String> persistentPaths = watch2PersistentPaths.get(w);
+            if (persistentPaths == null || !persistentPaths.contains(path)) {
+                it.remove();
+                watchCount--;
+                Set<String> paths = watch2Paths.get(w);
+                if (paths != null) {
+                    paths.remove(path);
+                }
             }
-            w.process(e);
+        }
+        if (list.isEmpty()) {
+            watchTable.remove(path);
         }
         return watchers;
     }
@@ -203,10 +300,25 @@ synchronized boolean removeWatcher(String path, Watcher watcher) {
             return false;
         }
 
+        Set<String> persistentPaths = watch2PersistentPaths.get(watcher);
+        if (persistentPaths != null && persistentPaths.remove(path)) {
+            if (persistentPaths.isEmpty()) {
+                watch2PersistentPaths.remove(watcher);
+            }
+            Set<String> recursivePaths = watch2RecursivePaths.get(watcher);
+            if (recursivePaths != null && recursivePaths.remove(path)) {
+                if (recursivePaths.isEmpty()) {
+                    watch2RecursivePaths.remove(watcher);
+                }
+                recursiveWatches.remove(path, watcher);
+            }
+        }
+
         Set<Watcher> list = watchTable.get(path);
         if (list == null || !list.remove(watcher)) {
             return false;
         }
+        watchCount--;
 
         if (list.size() == 0) {
             watchTable.remove(path);
@@ -263,4 +375,96 @@ synchronized WatchesSummary getWatchesSummary() {
         return new WatchesSummary (watch2Paths.size(), watchTable.size(),
                                    totalWatches);
     }
+
+    /**
+     * The watchers of recursive watches, in a trie that has an edge for every
+     * path component. /a/b and /a/c share the node of /a.
+     */
+    private static class RecursiveWatchTrie {
+        private static class TrieNode {
+            final Map<String, TrieNode> children =
+                new HashMap<String, TrieNode>(4);
+            final Set<Watcher> watchers = new HashSet<Watcher>(4);
+        }
+
+        private final TrieNode root = new TrieNode();
+
+        boolean isEmpty() {
+            return root.children.isEmpty() && root.watchers.isEmpty();
+        }
+
+        void add(String path, Watcher watcher) {
+            TrieNode node = root;
+            int start = 1;
+            while (start < path.length()) {
+                int end = componentEnd(path, start);
+                String component = path.substring(start, end);
+                TrieNode child = node.children.get(component);
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(component, child);
+                }
+                node = child;
+                start = end + 1;
+            }
+            node.watchers.add(watcher);
+        }
+
+        void remove(String path, Watcher watcher) {
+            remove(root, path, 1, watcher);
+        }
+
+        /**
+         * @return true if node is left without watchers and children, and
+         * can be dropped by its parent
+         */
+        private static boolean remove(TrieNode node, String path, int start,
+                Watcher watcher) {
+            if (start >= path.length()) {
+                node.watchers.remove(watcher);
+            } else {
+                int end = componentEnd(path, start);
+                String component = path.substring(start, end);
+                TrieNode child = node.children.get(component);
+                if (child != null && remove(child, path, end + 1, watcher)) {
+                    node.children.remove(component);
+                }
+            }
+            return node.watchers.isEmpty() && node.children.isEmpty();
+        }
+
+        /**
+         * Add the watchers of the recursive watches on path and on all its
+         * ancestors to watchers.
+         *
+         * @return watchers, or a new set if it was null and any were found
+         */
+        Set<Watcher> collect(String path, Set<Watcher> watchers) {
+            TrieNode node = root;
+            int start = 1;
+            while (true) {
+                if (!node.watchers.isEmpty()) {
+                    if (watchers == null) {
+                        watchers = new HashSet<Watcher>();
+                    }
+                    watchers.addAll(node.watchers);
+                }
+                if (start >= path.length()) {
+                    break;
+                }
+                int end = componentEnd(path, start);
+                node = node.children.get(path.substring(start, end));
+                if (node == null) {
+                    break;
+                }
+                start = end + 1;
+            }
+            return watchers;
+        }
+
+        private static int componentEnd(String path, int start) {
+            int end = path.indexOf('/', start);
+            return end == -1 ? path.length() : end;
+        }
+    }
 }
@@ -34,6 +34,7 @@
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.apache.zookeeper.Watcher;
@@ -41,6 +42,7 @@
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.ChildData;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
@@ -281,6 +283,7 @@ public void addCommittedProposal(Request request) {
             Proposal p = new Proposal();
             p.packet = pp;
             p.request = request;
+            p.digest = dataTree.getTreeDigest();
             committedLog.add(p);
             maxCommittedLog = p.packet.getZxid();
         } finally {
@@ -476,6 +479,35 @@ public void setWatches(long relativeZxid, List<String> dataWatches,
         dataTree.setWatches(relativeZxid, dataWatches, existWatches, childWatches, watcher);
     }
 
+    /**
+     * set watches on the datatree, the persistent ones included
+     * @param relativeZxid the relative zxid that client has seen
+     * @param dataWatches the data watches the client wants to reset
+     * @param existWatches the exists watches the client wants to reset
+     * @param childWatches the child watches the client wants to reset
+     * @param persistentWatches the persistent watches the client wants to reset
+     * @param persistentRecursiveWatches the persistent recursive watches the
+     * client wants to reset
+     * @param watcher the watcher function
+     */
+    public void setWatches(long relativeZxid, List<String> dataWatches,
+            List<String> existWatches, List<String> childWatches,
+            List<String> persistentWatches,
+            List<String> persistentRecursiveWatches, Watcher watcher) {
+        dataTree.setWatches(relativeZxid, dataWatches, existWatches, childWatches,
+                persistentWatches, persistentRecursiveWatches, watcher);
+    }
+
+    /**
+     * add a watch that stays after it triggers
+     * @param basePath the path to watch
+     * @param watcher the watcher function
+     * @param mode whether the watch also covers the nodes below basePath
+     */
+    public void addWatch(String basePath, Watcher watcher, AddWatchMode mode) {
+        dataTree.addWatch(basePath, watcher, mode);
+    }
+
     /**
      * get acl for a path
      * @param path the path to query for acl
@@ -487,6 +519,19 @@ public List<ACL> getACL(String path, Stat stat) throws NoNodeException {
         return dataTree.getACL(path, stat);
     }
 
+    /**
+     * get the data and stat of the descendants of a path
+     * @see DataTree#getChildrenWithData(String, int, int, DataTree.ChildFilter, List)
+     * @return true if the descendants were cut short at maxBytes
+     * @throws KeeperException.NoNodeException
+     */
+    public boolean getChildrenWithData(String path, int maxDepth, int maxBytes,
+            DataTree.ChildFilter filter, List<ChildData> children)
+            throws KeeperException.NoNodeException {
+        return dataTree.getChildrenWithData(path, maxDepth, maxBytes, filter,
+                children);
+    }
+
     /**
      * get children list for this path
      * @param path the path of the node
@@ -500,6 +545,49 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher)
         return dataTree.getChildren(path, stat, watcher);
     }
 
+    /**
+     * get a page of the children of this path, in sorted order
+     * @param path the path of the node
+     * @param startAfter the last child of the previous page
+     * @param limit the maximum number of children in the page
+     * @param maxBytes stop before the serialized children exceed this
+     * @param stat the stat of the node
+     * @param watcher the watcher function for this path
+     * @param page the children are added to this
+     * @return true if more children follow the page
+     * @throws KeeperException.NoNodeException
+     */
+    public boolean getChildren(String path, String startAfter, int limit,
+            int maxBytes, Stat stat, Watcher watcher, List<String> page)
+    throws KeeperException.NoNodeException {
+        return dataTree.getChildren(path, startAfter, limit, maxBytes, stat,
+                watcher, page);
+    }
+
+    /**
+     * get the sequential child of this path with the lowest sequence number
+     * @param path the path of the node
+     * @param watcher the watcher function for this path
+     * @return the name of the child, null if there is none
+     * @throws KeeperException.NoNodeException
+     */
+    public String getFirstSequentialChild(String path, Watcher watcher)
+    throws KeeperException.NoNodeException {
+        return dataTree.getFirstSequentialChild(path, watcher);
+    }
+
+    /**
+     * get the sequential sibling before this path
+     * @param path the path of a sequential node
+     * @param watcher the watcher function for the sibling
+     * @return the name of the sibling, null if there is none
+     * @throws KeeperException.NoNodeException
+     */
+    public String getSequentialPredecessor(String path, Watcher watcher)
+    throws KeeperException.NoNodeException {
+        return dataTree.getSequentialPredecessor(path, watcher);
+    }
+
     /**
      * check if the path is special or not
      * @param path the input path
@@ -21,30 +21,33 @@
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.Set;
 
 import javax.security.sasl.SaslException;
 
-import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferInputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.Environment;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.KeeperException.SessionExpiredException;
 import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.ZooDefs.ProtocolVersion;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.StatPersisted;
@@ -80,12 +83,49 @@
 public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
     protected static final Logger LOG;
 
+    /**
+     * Whether clients that ask for it get their replies written by the
+     * CompactOutputArchive, see ZooDefs.ProtocolVersion.
+     */
+    public static final String COMPACT_ENCODING_ENABLED =
+        "zookeeper.compactEncodingEnabled";
+
+    private static final boolean compactEncodingEnabled;
+
+    /**
+     * How long the watch events of a connection are held to be sent
+     * together, for the clients which support it, see
+     * ZooDefs.ProtocolVersion. 0 sends them one by one.
+     */
+    public static final String NOTIFICATION_BATCH_WINDOW_MS =
+        "zookeeper.notificationBatchWindowMs";
+
+    public static final int DEFAULT_NOTIFICATION_BATCH_WINDOW_MS = 10;
+
+    /**
+     * Number of threads that handle auth and sasl packets, 0 to handle them
+     * on the thread that read them.
+     */
+    public static final String AUTH_NUM_WORKER_THREADS =
+        "zookeeper.auth.numWorkerThreads";
+
     static {
         LOG = LoggerFactory.getLogger(ZooKeeperServer.class);
 
         Environment.logEnv("Server environment:", LOG);
+
+        compactEncodingEnabled = Boolean.parseBoolean(
+                System.getProperty(COMPACT_ENCODING_ENABLED, "true"));
+        LOG.info("{} = {}", COMPACT_ENCODING_ENABLED, compactEncodingEnabled);
     }
 
+    /**
+     * Handle the auth and sasl packets, null when they are handled on the
+     * thread that read them. The connection of a packet doesn't read the
+     * following packets until it is handled.
+     */
+    private volatile WorkerService authWorkers;
+
     protected ZooKeeperServerBean jmxServerBean;
     protected DataTreeBean jmxDataTreeBean;
 
@@ -114,10 +154,15 @@ protected enum State {
     static final private long superSecret = 0XB3415C00L;
 
     private final AtomicInteger requestsInProcess = new AtomicInteger(0);
-    final List<ChangeRecord> outstandingChanges = new ArrayList<ChangeRecord>();
-    // this data structure must be accessed under the outstandingChanges lock
-    final Map<String, ChangeRecord> outstandingChangesForPath =
-        new HashMap<String, ChangeRecord>();
+    // change records in zxid order, added by the PrepRequestProcessor and
+    // removed by the FinalRequestProcessor once their txn is applied
+    final Deque<ChangeRecord> outstandingChanges = new ConcurrentLinkedDeque<ChangeRecord>();
+    // latest change record of each path, removed after the txn is applied
+    // to the DataTree, so a path missing here can be read from the tree
+    final ConcurrentMap<String, ChangeRecord> outstandingChangesForPath =
+        new ConcurrentHashMap<String, ChangeRecord>();
+    // zxid of the last txn whose change records have been removed
+    volatile long lastAppliedChangeZxid = -1;
 
     protected ServerCnxnFactory serverCnxnFactory;
     protected ServerCnxnFactory secureServerCnxnFactory;
@@ -455,6 +500,12 @@ public synchronized void startup() {
         }
         startSessionTracker();
         setupRequestProcessors();
+        int authNumWorkerThreads = Integer.getInteger(AUTH_NUM_WORKER_THREADS, 0);
+        if (authNumWorkerThreads > 0 && authWorkers == null) {
+            LOG.info("Handling auth packets with " + authNumWorkerThreads
+                     + " worker threads.");
+            authWorkers = new WorkerService("AuthWork", authNumWorkerThreads, false);
+        }
 
         registerJMX();
 
@@ -556,6 +607,10 @@ public synchronized void shutdown(boolean fullyShutDown) {
         if (firstProcessor != null) {
             firstProcessor.shutdown();
         }
+        if (authWorkers != null) {
+            authWorkers.stop();
+            authWorkers = null;
+        }
 
         if (zkDb != null) {
             if (fullyShutDown) {
@@ -635,13 +690,17 @@ static class ChangeRecord {
 
         List<ACL> acl; /* Make sure to create a new object when changing */
 
+        Long aclId; /* Id of acl in the DataTree, null if not known */
+
         ChangeRecord duplicate(long zxid) {
             StatPersisted stat = new StatPersisted();
             if (this.stat != null) {
                 DataTree.copyStatPersisted(this.stat, stat);
             }
-            return new ChangeRecord(zxid, path, stat, childCount,
+            ChangeRecord c = new ChangeRecord(zxid, path, stat, childCount,
                     acl == null ? new ArrayList<ACL>() : new ArrayList<ACL>(acl));
+            c.aclId = aclId;
+            return c;
         }
     }
 
@@ -721,7 +780,13 @@ public void finishSessionInit(ServerCnxn cnxn, boolean valid) {
         }
 
         try {
-            ConnectResponse rsp = new ConnectResponse(0, valid ? cnxn.getSessionTimeout()
+            int protocolVersion = cnxn.compactEncoding
+                    ? ProtocolVersion.COMPACT : ProtocolVersion.BINARY;
+            if (cnxn.notificationBatchWindowMs > 0) {
+                protocolVersion |= ProtocolVersion.NOTIFICATION_BATCH;
+            }
+            ConnectResponse rsp = new ConnectResponse(protocolVersion,
+                    valid ? cnxn.getSessionTimeout()
                     : 0, valid ? cnxn.getSessionId() : 0, // send 0 if session is no
                             // longer valid
                             valid ? generatePasswd(cnxn.getSessionId()) : new byte[16]);
@@ -978,7 +1043,7 @@ public Map<Long, Set<String>> getEphemerals() {
     }
 
     public void processConnectRequest(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOException {
-        BinaryInputArchive bia = BinaryInputArchive.getArchive(new ByteBufferInputStream(incomingBuffer));
+        ByteBufferInputArchive bia = new ByteBufferInputArchive(incomingBuffer);
         ConnectRequest connReq = new ConnectRequest();
         connReq.deserialize(bia, "connect");
         if (LOG.isDebugEnabled()) {
@@ -998,6 +1063,12 @@ public void processConnectRequest(ServerCnxn cnxn, ByteBuffer incomingBuffer) th
                     + cnxn.getRemoteSocketAddress()
                     + "; will be dropped if server is in r-o mode");
         }
+        cnxn.compactEncoding = compactEncodingEnabled
+            && (connReq.getProtocolVersion() & ProtocolVersion.COMPACT) != 0;
+        if ((connReq.getProtocolVersion() & ProtocolVersion.NOTIFICATION_BATCH) != 0) {
+            cnxn.notificationBatchWindowMs = Integer.getInteger(
+                    NOTIFICATION_BATCH_WINDOW_MS, DEFAULT_NOTIFICATION_BATCH_WINDOW_MS);
+        }
         if (!readOnly && this instanceof ReadOnlyZooKeeperServer) {
             String msg = "Refusing session request for not-read-only client "
                 + cnxn.getRemoteSocketAddress();
@@ -1058,11 +1129,21 @@ public boolean shouldThrottle(long outStandingCount) {
         return false;
     }
 
+    /**
+     * The header is only read from while the packet is processed, so each
+     * thread reuses a single one.
+     */
+    private static final ThreadLocal<RequestHeader> requestHeader =
+        new ThreadLocal<RequestHeader>() {
+            @Override protected RequestHeader initialValue() {
+                return new RequestHeader();
+            }
+        };
+
     public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOException {
         // We have the request, now process and setup for next
-        InputStream bais = new ByteBufferInputStream(incomingBuffer);
-        BinaryInputArchive bia = BinaryInputArchive.getArchive(bais);
-        RequestHeader h = new RequestHeader();
+        ByteBufferInputArchive bia = new ByteBufferInputArchive(incomingBuffer);
+        RequestHeader h = requestHeader.get();
         h.deserialize(bia, "header");
         // Through the magic of byte buffers, txn will not be
         // pointing
@@ -1072,47 +1153,13 @@ public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOE
             LOG.info("got auth packet " + cnxn.getRemoteSocketAddress());
             AuthPacket authPacket = new AuthPacket();
             ByteBufferInputStream.byteBuffer2Record(incomingBuffer, authPacket);
-            String scheme = authPacket.getScheme();
-            ServerAuthenticationProvider ap = ProviderRegistry.getServerProvider(scheme);
-            Code authReturn = KeeperException.Code.AUTHFAILED;
-            if(ap != null) {
-                try {
-                    authReturn = ap.handleAuthentication(new ServerAuthenticationProvider.ServerObjs(this, cnxn), authPacket.getAuth());
-                } catch(RuntimeException e) {
-                    LOG.warn("Caught runtime exception from AuthenticationProvider: " + scheme + " due to " + e);
-                    authReturn = KeeperException.Code.AUTHFAILED;
-                }
-            }
-            if (authReturn == KeeperException.Code.OK) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Authentication succeeded for scheme: " + scheme);
-                }
-                LOG.info("auth success " + cnxn.getRemoteSocketAddress());
-                ReplyHeader rh = new ReplyHeader(h.getXid(), 0,
-                        KeeperException.Code.OK.intValue());
-                cnxn.sendResponse(rh, null, null);
-            } else {
-                if (ap == null) {
-                    LOG.warn("No authentication provider for scheme: "
-                            + scheme + " has "
-                            + ProviderRegistry.listProviders());
-                } else {
-                    LOG.warn("Authentication failed for scheme: " + scheme);
-                }
-                // send a response...
-                ReplyHeader rh = new ReplyHeader(h.getXid(), 0,
-                        KeeperException.Code.AUTHFAILED.intValue());
-                cnxn.sendResponse(rh, null, null);
-                // ... and close connection
-                cnxn.sendBuffer(ServerCnxnFactory.closeConn);
-                cnxn.disableRecv();
-            }
+            handleAuth(new AuthWorkRequest(cnxn, h.getXid(), authPacket));
             return;
         } else {
             if (h.getType() == OpCode.sasl) {
-                Record rsp = processSasl(incomingBuffer,cnxn);
-                ReplyHeader rh = new ReplyHeader(h.getXid(), 0, KeeperException.Code.OK.intValue());
-                cnxn.sendResponse(rh,rsp, "response"); // not sure about 3rd arg..what is it?
+                GetSASLRequest clientTokenRecord = new GetSASLRequest();
+                ByteBufferInputStream.byteBuffer2Record(incomingBuffer,clientTokenRecord);
+                handleAuth(new AuthWorkRequest(cnxn, h.getXid(), clientTokenRecord));
                 return;
             }
             else {
@@ -1128,10 +1175,100 @@ public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOE
         cnxn.incrOutstandingRequests(h);
     }
 
-    private Record processSasl(ByteBuffer incomingBuffer, ServerCnxn cnxn) throws IOException {
+    private void handleAuth(AuthWorkRequest workRequest) throws IOException {
+        WorkerService workers = authWorkers;
+        if (workers == null) {
+            workRequest.process();
+            return;
+        }
+        workRequest.cnxn.suspendForAuth();
+        workers.schedule(workRequest);
+    }
+
+    /**
+     * An auth or sasl packet, whose provider may be slow, a sasl server
+     * which talks to a KDC or a provider backed by an external service.
+     */
+    private class AuthWorkRequest extends WorkerService.WorkRequest {
+        private final ServerCnxn cnxn;
+        private final int xid;
+        private final Record packet;
+
+        AuthWorkRequest(ServerCnxn cnxn, int xid, Record packet) {
+            this.cnxn = cnxn;
+            this.xid = xid;
+            this.packet = packet;
+        }
+
+        @Override
+        public void doWork() throws Exception {
+            if (process()) {
+                cnxn.resumeAfterAuth();
+            }
+        }
+
+        @Override
+        public void cleanup() {
+            cnxn.close();
+        }
+
+        /**
+         * @return false if the connection is being closed
+         */
+        boolean process() throws IOException {
+            if (packet instanceof AuthPacket) {
+                return processAuth(cnxn, xid, (AuthPacket) packet);
+            }
+            Record rsp = processSasl((GetSASLRequest) packet, cnxn);
+            ReplyHeader rh = new ReplyHeader(xid, 0, KeeperException.Code.OK.intValue());
+            cnxn.sendResponse(rh,rsp, "response"); // not sure about 3rd arg..what is it?
+            return true;
+        }
+    }
+
+    private boolean processAuth(ServerCnxn cnxn, int xid, AuthPacket authPacket)
+            throws IOException {
+        String scheme = authPacket.getScheme();
+        ServerAuthenticationProvider ap = ProviderRegistry.getServerProvider(scheme);
+        Code authReturn = KeeperException.Code.AUTHFAILED;
+        if(ap != null) {
+            try {
+                authReturn = ap.handleAuthentication(new ServerAuthenticationProvider.ServerObjs(this, cnxn), authPacket.getAuth());
+            } catch(RuntimeException e) {
+                LOG.warn("Caught runtime exception from AuthenticationProvider: " + scheme + " due to " + e);
+                authReturn = KeeperException.Code.AUTHFAILED;
+            }
+        }
+        if (authReturn == KeeperException.Code.OK) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Authentication succeeded for scheme: " + scheme);
+            }
+            LOG.info("auth success " + cnxn.getRemoteSocketAddress());
+            ReplyHeader rh = new ReplyHeader(xid, 0,
+                    KeeperException.Code.OK.intValue());
+            cnxn.sendResponse(rh, null, null);
+            return true;
+        } else {
+            if (ap == null) {
+                LOG.warn("No authentication provider for scheme: "
+                        + scheme + " has "
+                        + ProviderRegistry.listProviders());
+            } else {
+                LOG.warn("Authentication failed for scheme: " + scheme);
+            }
+            // send a response...
+            ReplyHeader rh = new ReplyHeader(xid, 0,
+                    KeeperException.Code.AUTHFAILED.intValue());
+            cnxn.sendResponse(rh, null, null);
+            // ... and close connection
+            cnxn.sendBuffer(ServerCnxnFactory.closeConn);
+            cnxn.disableRecv();
+            return false;
+        }
+    }
+
+    private Record processSasl(GetSASLRequest clientTokenRecord, ServerCnxn cnxn) throws IOException {
         LOG.debug("Responding to client SASL token.");
-        GetSASLRequest clientTokenRecord = new GetSASLRequest();
-        ByteBufferInputStream.byteBuffer2Record(incomingBuffer,clientTokenRecord);
         byte[] clientToken = clientTokenRecord.getToken();
         LOG.debug("Size of client SASL token: " + clientToken.length);
         byte[] responseToken = null;
@@ -29,6 +29,8 @@
 import org.apache.zookeeper.Environment.Entry;
 import org.apache.zookeeper.Version;
 import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.PurgeStats;
+import org.apache.zookeeper.server.PurgeTxnLog;
 import org.apache.zookeeper.server.ServerStats;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperServer;
@@ -117,6 +119,7 @@ public static Command getCommand(String cmdName) {
         registerCommand(new GetTraceMaskCommand());
         registerCommand(new IsroCommand());
         registerCommand(new MonitorCommand());
+        registerCommand(new NamespaceStatsCommand());
         registerCommand(new RuokCommand());
         registerCommand(new SetTraceMaskCommand());
         registerCommand(new SrvrCommand());
@@ -329,6 +332,12 @@ public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs)
             response.put("open_file_descriptor_count", osMbean.getOpenFileDescriptorCount());
             response.put("max_file_descriptor_count", osMbean.getMaxFileDescriptorCount());
 
+            PurgeStats purgeStats = PurgeTxnLog.getStats();
+            response.put("purge_files_deleted", purgeStats.getFilesDeleted());
+            response.put("purge_bytes_deleted", purgeStats.getBytesDeleted());
+            response.put("purge_last_time_ms", purgeStats.getLastPurgeTimeMs());
+            response.put("purge_retained_bytes", purgeStats.getRetainedBytes());
+
             if (zkServer instanceof LeaderZooKeeperServer) {
                 Leader leader = ((LeaderZooKeeperServer) zkServer).getLeader();
 
@@ -341,6 +350,34 @@ public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs)
 
         }}
 
+    /**
+     * Size of the data of each application, as the subtree of each top level
+     * znode. Returned map contains:
+     *   - "namespaces": Map<String, Map<String, Long>> top level znode ->
+     *     "node_count" and "approximate_data_size" of its subtree
+     * @see DataTree#getNamespaceStats()
+     */
+    public static class NamespaceStatsCommand extends CommandBase {
+        public NamespaceStatsCommand() {
+            super(Arrays.asList("namespace_stats", "nsst"));
+        }
+
+        @Override
+        public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs) {
+            DataTree dt = zkServer.getZKDatabase().getDataTree();
+            CommandResponse response = initializeResponse();
+            Map<String, Map<String, Long>> namespaces = new HashMap<String, Map<String, Long>>();
+            for (Map.Entry<String, DataTree.NamespaceStats> e : dt.getNamespaceStats().entrySet()) {
+                Map<String, Long> stats = new HashMap<String, Long>();
+                stats.put("node_count", e.getValue().getNodeCount());
+                stats.put("approximate_data_size", e.getValue().getApproximateDataSize());
+                namespaces.put(e.getKey(), stats);
+            }
+            response.put("namespaces", namespaces);
+            return response;
+        }
+    }
+
     /**
      * No-op command, check if the server is running
      */
@@ -39,6 +39,10 @@ public class DigestAuthenticationProvider implements AuthenticationProvider {
     private final static String superDigest = System.getProperty(
         "zookeeper.DigestAuthenticationProvider.superDigest");
 
+    /** MessageDigest.getInstance looks up the providers on every call */
+    private static final ThreadLocal<MessageDigest> sha1 =
+        new ThreadLocal<MessageDigest>();
+
     public String getScheme() {
         return "digest";
     }
@@ -91,8 +95,12 @@ static final private char encode(int i) {
     static public String generateDigest(String idPassword)
             throws NoSuchAlgorithmException {
         String parts[] = idPassword.split(":", 2);
-        byte digest[] = MessageDigest.getInstance("SHA1").digest(
-                idPassword.getBytes());
+        MessageDigest md = sha1.get();
+        if (md == null) {
+            md = MessageDigest.getInstance("SHA1");
+            sha1.set(md);
+        }
+        byte digest[] = md.digest(idPassword.getBytes());
         return parts[0] + ":" + base64Encode(digest);
     }
 
@@ -21,6 +21,8 @@
 import java.io.PrintWriter;
 
 import org.apache.zookeeper.Version;
+import org.apache.zookeeper.server.PurgeStats;
+import org.apache.zookeeper.server.PurgeTxnLog;
 import org.apache.zookeeper.server.ServerCnxn;
 import org.apache.zookeeper.server.ServerStats;
 import org.apache.zookeeper.server.ZKDatabase;
@@ -68,6 +70,12 @@ public void commandRun() {
             print("max_file_descriptor_count", osMbean.getMaxFileDescriptorCount());
         }
 
+        PurgeStats purgeStats = PurgeTxnLog.getStats();
+        print("purge_files_deleted", purgeStats.getFilesDeleted());
+        print("purge_bytes_deleted", purgeStats.getBytesDeleted());
+        print("purge_last_time_ms", purgeStats.getLastPurgeTimeMs());
+        print("purge_retained_bytes", purgeStats.getRetainedBytes());
+
         if (stats.getServerState().equals("leader")) {
             Leader leader = ((LeaderZooKeeperServer)zkServer).getLeader();
 
@@ -137,6 +137,7 @@ protected boolean needCommit(Request request) {
             case OpCode.createContainer:
             case OpCode.delete:
             case OpCode.deleteContainer:
+            case OpCode.pollFirstChild:
             case OpCode.setData:
             case OpCode.reconfig:
             case OpCode.multi:
@@ -144,6 +145,9 @@ protected boolean needCommit(Request request) {
                 return true;
             case OpCode.sync:
                 return matchSyncs;    
+            case OpCode.readIndex:
+                // committed by the leader or the ReadIndexTracker
+                return !request.isReadIndexReached();
             case OpCode.createSession:
             case OpCode.closeSession:
                 return !request.isLocalSession();
@@ -178,6 +182,10 @@ public void run() {
                 if (requestsToProcess == 0 && !commitIsWaiting){
                     // Waiting for requests to process
                     synchronized (this) {
+                        // Check again under the lock, a commit or request
+                        // added since then has already called wakeup()
+                        commitIsWaiting = !committedRequests.isEmpty();
+                        requestsToProcess = queuedRequests.size();
                         while (!stopped && requestsToProcess == 0
                                 && !commitIsWaiting) {
                             wait();
@@ -249,6 +257,22 @@ public void run() {
                      */
                     LinkedList<Request> sessionQueue = pendingRequests
                             .get(request.sessionId);
+                    if (request.type == OpCode.readIndex
+                            && (sessionQueue == null || sessionQueue.peek() != request)) {
+                        /*
+                         * A read index does not wait for outstanding
+                         * proposals, so it can be committed while earlier
+                         * requests of the same session still wait for their
+                         * commits, or before we even polled it from
+                         * queuedRequests. Everything committed before it
+                         * has been applied by now, the request only has to
+                         * keep its place in the session order and is handed
+                         * on like a read once it gets to the head of the
+                         * session queue.
+                         */
+                        request.setReadIndexReached(true);
+                        continue;
+                    }
                     if (sessionQueue != null) {
                         // If session queue != null, then it is also not empty.
                         Request topPending = sessionQueue.poll();
@@ -48,7 +48,13 @@
  *
  * There are a few parameters that can be tuned to change its behavior. First,
  * finalizeWait determines the amount of time to wait until deciding upon a leader.
- * This is part of the leader election algorithm.
+ * This is part of the leader election algorithm. When leader leases are
+ * enabled (see {@link Leader#getLeaseTimeout(int, int)}), the wait is
+ * skipped once every reachable voter agrees on the proposal. Waiting could
+ * only hear from the old leader, and the lease keeps that one from acting
+ * on stale state: a server starts electing only once the lease of the last
+ * leader it answered a ping of has expired, so no quorum backs a new leader
+ * while the old one still holds its lease.
  */
 
 
@@ -755,6 +761,30 @@ private boolean termPredicate(Map<Long, Vote> votes, Vote vote) {
         return voteSet.hasAllQuorums();
     }
 
+    /**
+     * Checks whether every voter we currently have a connection to has voted
+     * for the given proposal, and no notification is waiting to be read.
+     * Voters only ever vote for a proposal at least as good as their own
+     * (epoch, lastLoggedZxid, sid), so in that case no reachable voter can
+     * come up with a better one and finalizeWait would be wasted. Voters
+     * we are not connected to, such as a crashed leader, are not waited for,
+     * and neither is a leader that went silent on us (see
+     * {@link QuorumPeer#isSilentLeader(long)}), frozen or not.
+     */
+    private boolean haveAllReachableVotes(Map<Long, Vote> votes, Vote vote) {
+        if (!recvqueue.isEmpty()) {
+            return false;
+        }
+        for (long sid : self.getCurrentAndNextConfigVoters()) {
+            if (sid != self.getId() && manager.connectedToPeer(sid)
+                    && !self.isSilentLeader(sid)
+                    && !vote.equals(votes.get(sid))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * In the case there is a leader elected, and a quorum supporting
      * this leader, we have to check if the leader has voted and acked
@@ -886,6 +916,17 @@ public Vote lookForLeader() throws InterruptedException {
 
             int notTimeout = finalizeWait;
 
+            // Leader leases opt in to fast failover
+            boolean fastFinalize = Leader.getLeaseTimeout(self.tickTime, self.syncLimit) > 0;
+            if (fastFinalize) {
+                long fenceWait = self.getLeaseFence() - Time.currentElapsedTime();
+                if (fenceWait > 0) {
+                    LOG.info("Waiting {} ms for the lease of the last leader to expire",
+                            fenceWait);
+                    Thread.sleep(fenceWait);
+                }
+            }
+
             synchronized(this){
                 logicalclock.incrementAndGet();
                 updateProposal(getInitId(), getInitLastLoggedZxid(), getPeerEpoch());
@@ -977,12 +1018,17 @@ else if (self.getCurrentAndNextConfigVoters().contains(n.sid)) {
 
                         recvset.put(n.sid, new Vote(n.leader, n.zxid, n.electionEpoch, n.peerEpoch));
 
-                        if (termPredicate(recvset,
-                                new Vote(proposedLeader, proposedZxid,
-                                        logicalclock.get(), proposedEpoch))) {
+                        Vote proposal = new Vote(proposedLeader, proposedZxid,
+                                logicalclock.get(), proposedEpoch);
+                        if (termPredicate(recvset, proposal)) {
+
+                            if (fastFinalize && haveAllReachableVotes(recvset, proposal)) {
+                                // Nobody is left who could propose a better leader
+                                n = null;
+                            }
 
                             // Verify if there is any change in the proposed leader
-                            while((n = recvqueue.poll(finalizeWait,
+                            while(n != null && (n = recvqueue.poll(finalizeWait,
                                     TimeUnit.MILLISECONDS)) != null){
                                 if(totalOrderPredicate(n.leader, n.zxid, n.peerEpoch,
                                         proposedLeader, proposedZxid, proposedEpoch)){
@@ -1011,6 +1057,11 @@ else if (self.getCurrentAndNextConfigVoters().contains(n.sid)) {
                         break;
                     case FOLLOWING:
                     case LEADING:
+                        if (self.isSilentLeader(n.leader, n.peerEpoch)) {
+                            LOG.debug("Ignoring notification for silent leader {} from {}",
+                                    n.leader, n.sid);
+                            break;
+                        }
                         /*
                          * Consider all notifications from the same epoch
                          * together.
@@ -20,6 +20,7 @@
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 
 import org.apache.jute.Record;
@@ -94,6 +95,9 @@ void followLeader() throws InterruptedException {
                 }
             } catch (Exception e) {
                 LOG.warn("Exception when following the leader", e);
+                if (e instanceof SocketTimeoutException) {
+                    self.leaderWentSilent();
+                }
                 try {
                     sock.close();
                 } catch (IOException e1) {
@@ -167,6 +171,9 @@ protected void processPacket(QuorumPacket qp) throws Exception{
         case Leader.SYNC:
             fzk.sync();
             break;
+        case Leader.READINDEX:
+            fzk.readIndexTracker.readIndex(qp.getZxid());
+            break;
         default:
             LOG.warn("Unknown packet type: {}", LearnerHandler.packetToString(qp));
             break;
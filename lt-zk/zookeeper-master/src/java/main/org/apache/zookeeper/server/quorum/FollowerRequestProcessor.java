@@ -82,12 +82,16 @@ public void run() {
                     zks.pendingSyncs.add(request);
                     zks.getFollower().request(request);
                     break;
+                case OpCode.readIndex:
+                    zks.readIndexTracker.add(request);
+                    break;
                 case OpCode.create:
                 case OpCode.create2:
                 case OpCode.createTTL:
                 case OpCode.createContainer:
                 case OpCode.delete:
                 case OpCode.deleteContainer:
+                case OpCode.pollFirstChild:
                 case OpCode.setData:
                 case OpCode.reconfig:
                 case OpCode.setACL:
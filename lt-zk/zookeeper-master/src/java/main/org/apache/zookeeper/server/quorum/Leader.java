@@ -35,6 +35,7 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -71,6 +72,11 @@ public class Leader {
     static public class Proposal  extends SyncedLearnerTracker {
         public QuorumPacket packet;
         public Request request;
+        /**
+         * digest of the DataTree once the txn was applied, only set on the
+         * proposals of the committed log
+         */
+        public long digest;
 
         @Override
         public String toString() {
@@ -90,6 +96,56 @@ public String toString() {
         LOG.info(MAX_CONCURRENT_SNAPSHOT_TIMEOUT + " = " + maxConcurrentSnapshotTimeout);
     }
 
+    // Leader lease, see getLeaseTimeout()
+    public static final String LEASE_TIMEOUT = "zookeeper.leader.leaseTimeout";
+
+    // Clock drift allowance of the leader lease, see getLearnerLeaseTimeout()
+    public static final String LEASE_DRIFT_MARGIN = "zookeeper.leader.leaseDriftMargin";
+
+    /**
+     * Returns the leader lease in milliseconds, or 0 if leases are disabled.
+     *
+     * With a lease, the leader pings its learners at least three times per
+     * lease and steps down once it has not heard from a quorum within the
+     * lease. The lease a learner grants starts when the leader sent the
+     * last ping the learner answered, not when the answer came in, so
+     * answers that were held up while the leader was paused don't renew it.
+     * Learners give up on a leader they have not heard from within
+     * {@link #getLearnerLeaseTimeout(int, int)}. A dead or partitioned
+     * leader is then detected after the lease instead of after syncLimit
+     * ticks. The value must be the same on all servers, and it is ignored
+     * unless it is shorter than tickTime * syncLimit.
+     */
+    static long getLeaseTimeout(int tickTime, int syncLimit) {
+        long lease = Long.getLong(LEASE_TIMEOUT, 0);
+        if (lease <= 0 || lease >= (long) tickTime * syncLimit) {
+            return 0;
+        }
+        return lease;
+    }
+
+    /**
+     * Returns how long after answering a ping a learner still considers
+     * the leader to hold its lease, or 0 if leases are disabled. This is
+     * the lease plus a margin for the clocks of the servers running at
+     * different rates, by default a quarter of the lease. Until then the
+     * learner neither gives up on the leader nor takes part in electing
+     * another one, so a new leader can only commit once the lease of the
+     * old one has expired, and the old leader can serve reads from its
+     * lease without missing writes of the new one.
+     */
+    static long getLearnerLeaseTimeout(int tickTime, int syncLimit) {
+        long lease = getLeaseTimeout(tickTime, syncLimit);
+        if (lease == 0) {
+            return 0;
+        }
+        long margin = Long.getLong(LEASE_DRIFT_MARGIN, -1);
+        if (margin < 0) {
+            margin = Math.max(1, lease / 4);
+        }
+        return lease + margin;
+    }
+
     private final LearnerSnapshotThrottler learnerSnapshotThrottler = 
         new LearnerSnapshotThrottler(maxConcurrentSnapshots, maxConcurrentSnapshotTimeout);
 
@@ -162,6 +218,12 @@ private void addObserverLearnerHandler(LearnerHandler lh) {
     private final Map<Long,List<LearnerSyncRequest>> pendingSyncs =
         new HashMap<Long,List<LearnerSyncRequest>>();
 
+    // Read indexes of learners and of local clients waiting for the lease
+    // to be confirmed. Must access under 'this' lock.
+    private final List<LearnerHandler> pendingLearnerReadIndexes =
+        new ArrayList<LearnerHandler>();
+    private final List<Request> pendingLocalReadIndexes = new ArrayList<Request>();
+
     synchronized public int getNumPendingSyncs() {
         return pendingSyncs.size();
     }
@@ -353,6 +415,32 @@ public boolean isQuorumSynced(QuorumVerifier qv) {
      * Similar to INFORM, only for a reconfig operation.
      */
     final static int INFORMANDACTIVATE = 19;
+
+    /**
+     * This message type is sent by a learner to ask for the last committed
+     * zxid, and is answered by the leader with the same type once the COMMITs
+     * up to that zxid are queued ahead of the reply.
+     */
+    final static int READINDEX = 20;
+
+    /**
+     * This message type is sent by the leader after a DIFF to tell a learner
+     * to fetch the txns up to the given zxid over a separate bulk
+     * connection. The learner opens that connection with the same type,
+     * and the leader closes the stream with it.
+     */
+    final static int BULKSYNC = 21;
+
+    /**
+     * This message type carries a chunk of serialized txns read from the
+     * txnlog on a bulk connection.
+     */
+    final static int BULKCHUNK = 22;
+
+    /**
+     * Protocol version of learners that understand BULKSYNC.
+     */
+    final static int BULK_SYNC_PROTOCOL_VERSION = 0x10001;
     
     final ConcurrentMap<Long, Proposal> outstandingProposals = new ConcurrentHashMap<Long, Proposal>();
 
@@ -571,56 +659,84 @@ void lead() throws IOException, InterruptedException {
             // If not null then shutdown this leader
             String shutdownMessage = null;
 
+            // With a lease we also ping in between, at least three times
+            // per lease
+            long leaseTimeout = getLeaseTimeout(self.tickTime, self.syncLimit);
+            long pingInterval = self.tickTime / 2;
+            if (leaseTimeout > 0) {
+                pingInterval = Math.min(pingInterval, Math.max(1, leaseTimeout / 3));
+                LOG.info("Leader lease of {} ms, pinging every {} ms",
+                        leaseTimeout, pingInterval);
+            }
+            long leaseStart = Time.currentElapsedTime();
+            long nextHalfTick = leaseStart + self.tickTime / 2;
+
             while (true) {
                 synchronized (this) {
                     long start = Time.currentElapsedTime();
                     long cur = start;
-                    long end = start + self.tickTime / 2;
+                    long end = Math.min(start + pingInterval, nextHalfTick);
                     while (cur < end) {
                         wait(end - cur);
                         cur = Time.currentElapsedTime();
                     }
 
-                    if (!tickSkip) {
-                        self.tick.incrementAndGet();
+                    // Give the learners a full lease to answer the first pings
+                    if (leaseTimeout > 0 && cur - leaseStart >= leaseTimeout
+                            && !leaseHeld(cur, leaseTimeout)) {
+                        shutdownMessage = "Leader lease of " + leaseTimeout
+                                + " ms expired, not heard from a quorum";
+                        break;
                     }
+                    processPendingReadIndexes();
 
-                    // We use an instance of SyncedLearnerTracker to
-                    // track synced learners to make sure we still have a
-                    // quorum of current (and potentially next pending) view.
-                    SyncedLearnerTracker syncedAckSet = new SyncedLearnerTracker();
-                    syncedAckSet.addQuorumVerifier(self.getQuorumVerifier());
-                    if (self.getLastSeenQuorumVerifier() != null
-                            && self.getLastSeenQuorumVerifier().getVersion() > self
-                                    .getQuorumVerifier().getVersion()) {
-                        syncedAckSet.addQuorumVerifier(self
-                                .getLastSeenQuorumVerifier());
-                    }
+                    // Only every half tick, the other iterations are
+                    // sub-tick heartbeats
+                    if (cur >= nextHalfTick) {
+                        nextHalfTick = cur + self.tickTime / 2;
 
-                    syncedAckSet.addAck(self.getId());
+                        if (!tickSkip) {
+                            self.tick.incrementAndGet();
+                        }
 
-                    for (LearnerHandler f : getLearners()) {
-                        if (f.synced()) {
-                            syncedAckSet.addAck(f.getSid());
+                        // We use an instance of SyncedLearnerTracker to
+                        // track synced learners to make sure we still have a
+                        // quorum of current (and potentially next pending) view.
+                        SyncedLearnerTracker syncedAckSet = new SyncedLearnerTracker();
+                        syncedAckSet.addQuorumVerifier(self.getQuorumVerifier());
+                        if (self.getLastSeenQuorumVerifier() != null
+                                && self.getLastSeenQuorumVerifier().getVersion() > self
+                                        .getQuorumVerifier().getVersion()) {
+                            syncedAckSet.addQuorumVerifier(self
+                                    .getLastSeenQuorumVerifier());
                         }
-                    }
 
-                    // check leader running status
-                    if (!this.isRunning()) {
-                        // set shutdown flag
-                        shutdownMessage = "Unexpected internal error";
-                        break;
-                    }
+                        syncedAckSet.addAck(self.getId());
 
-                    if (!tickSkip && !syncedAckSet.hasAllQuorums()) {
-                        // Lost quorum of last committed and/or last proposed
-                        // config, set shutdown flag
-                        shutdownMessage = "Not sufficient followers synced, only synced with sids: [ "
-                                + syncedAckSet.ackSetsToString() + " ]";
-                        break;
+                        for (LearnerHandler f : getLearners()) {
+                            if (f.synced()) {
+                                syncedAckSet.addAck(f.getSid());
+                            }
+                        }
+
+                        // check leader running status
+                        if (!this.isRunning()) {
+                            // set shutdown flag
+                            shutdownMessage = "Unexpected internal error";
+                            break;
+                        }
+
+                        if (!tickSkip && !syncedAckSet.hasAllQuorums()) {
+                            // Lost quorum of last committed and/or last proposed
+                            // config, set shutdown flag
+                            shutdownMessage = "Not sufficient followers synced, only synced with sids: [ "
+                                    + syncedAckSet.ackSetsToString() + " ]";
+                            break;
+                        }
+                        tickSkip = !tickSkip;
                     }
-                    tickSkip = !tickSkip;
                 }
+                awaitPause(leadingPause);
                 for (LearnerHandler f : getLearners()) {
                     f.ping();
                 }
@@ -634,6 +750,80 @@ void lead() throws IOException, InterruptedException {
         }
     }
 
+    /**
+     * Checks whether a quorum of the current (and next pending) view has
+     * answered a ping sent within the lease.
+     */
+    private boolean leaseHeld(long now, long leaseTimeout) {
+        SyncedLearnerTracker heardSet = new SyncedLearnerTracker();
+        heardSet.addQuorumVerifier(self.getQuorumVerifier());
+        if (self.getLastSeenQuorumVerifier() != null
+                && self.getLastSeenQuorumVerifier().getVersion() > self
+                        .getQuorumVerifier().getVersion()) {
+            heardSet.addQuorumVerifier(self.getLastSeenQuorumVerifier());
+        }
+        heardSet.addAck(self.getId());
+        for (LearnerHandler f : getLearners()) {
+            if (f.hasLease(now, leaseTimeout)) {
+                heardSet.addAck(f.getSid());
+            }
+        }
+        return heardSet.hasAllQuorums();
+    }
+
+    /**
+     * While set, the lead loop stops pinging and checking the learners,
+     * and the learner handlers stop processing what they read, see
+     * {@link #testPauseLeading()} and {@link #testPauseLearners()}
+     */
+    private volatile CountDownLatch leadingPause;
+    private volatile CountDownLatch learnersPause;
+
+    /**
+     * Stops the lead loop, so the learners no longer get pinged, without
+     * closing any connection, for testing purposes. Unlike suspending the
+     * thread, this never stops it while it holds a lock.
+     */
+    public void testPauseLeading() {
+        leadingPause = new CountDownLatch(1);
+    }
+
+    /**
+     * Stops the learner handlers from processing the packets of the
+     * learners, which queue up in the connections, for testing purposes
+     */
+    public void testPauseLearners() {
+        learnersPause = new CountDownLatch(1);
+    }
+
+    /**
+     * Lets the learner handlers and then the lead loop go on after
+     * {@link #testPauseLearners()} and {@link #testPauseLeading()}, for
+     * testing purposes
+     */
+    public void testResume() {
+        learnersPause = release(learnersPause);
+        leadingPause = release(leadingPause);
+    }
+
+    private static CountDownLatch release(CountDownLatch pause) {
+        if (pause != null) {
+            pause.countDown();
+        }
+        return null;
+    }
+
+    private static void awaitPause(CountDownLatch pause)
+            throws InterruptedException {
+        if (pause != null) {
+            pause.await();
+        }
+    }
+
+    void awaitLearnersPause() throws InterruptedException {
+        awaitPause(learnersPause);
+    }
+
     boolean isShutdown;
 
     /**
@@ -648,6 +838,7 @@ void shutdown(String reason) {
 
         LOG.info("Shutdown called",
                 new Exception("shutdown Leader! reason: " + reason));
+        testResume();
 
         if (cnxAcceptor != null) {
             cnxAcceptor.halt();
@@ -1111,6 +1302,70 @@ synchronized public void processSync(LearnerSyncRequest r){
         }
     }
 
+    /**
+     * Answers the read index of a learner. Commits are sent under the leader
+     * lock, so replying under it orders the reply after the COMMIT of every
+     * proposal committed so far.
+     *
+     * @param handler handler of the learner that asked
+     */
+    synchronized void processReadIndex(LearnerHandler handler) {
+        if (!readIndexLeaseHeld()) {
+            pendingLearnerReadIndexes.add(handler);
+            return;
+        }
+        handler.queuePacket(new QuorumPacket(Leader.READINDEX, lastCommitted,
+                null, null));
+    }
+
+    /**
+     * Process a readIndex request of a client of the leader. Proposals are
+     * handed to the CommitProcessor under the leader lock once committed, so
+     * committing the request under it holds the following reads of its
+     * session until everything committed so far, which the learners may
+     * already have applied, is applied here too.
+     *
+     * @param request the readIndex request
+     */
+    synchronized public void processReadIndex(Request request) {
+        if (!readIndexLeaseHeld()) {
+            pendingLocalReadIndexes.add(request);
+            return;
+        }
+        zk.commitProcessor.commit(request);
+    }
+
+    /**
+     * With a leader lease, read indexes are only answered while a quorum
+     * has been heard from within the lease. A leader that lost its quorum
+     * but has not stepped down yet would otherwise serve reads that miss
+     * the writes of a new leader. Without a lease a read index is as strong
+     * as a sync.
+     */
+    private boolean readIndexLeaseHeld() {
+        long leaseTimeout = getLeaseTimeout(self.tickTime, self.syncLimit);
+        return leaseTimeout <= 0
+                || leaseHeld(Time.currentElapsedTime(), leaseTimeout);
+    }
+
+    /**
+     * Answers the read indexes that waited for the lease.
+     */
+    private void processPendingReadIndexes() {
+        if ((pendingLearnerReadIndexes.isEmpty() && pendingLocalReadIndexes.isEmpty())
+                || !readIndexLeaseHeld()) {
+            return;
+        }
+        for (LearnerHandler handler : pendingLearnerReadIndexes) {
+            processReadIndex(handler);
+        }
+        pendingLearnerReadIndexes.clear();
+        for (Request request : pendingLocalReadIndexes) {
+            processReadIndex(request);
+        }
+        pendingLocalReadIndexes.clear();
+    }
+
     /**
      * Sends a sync message to the appropriate server
      */
@@ -43,6 +43,7 @@
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperThread;
 import org.apache.zookeeper.server.ZooTrace;
 import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
@@ -80,6 +81,9 @@ public Socket getSocket() {
     
     protected InputArchive leaderIs;
     protected OutputArchive leaderOs;  
+    /** the address and hostname we connected to, used by bulk syncs */
+    private InetSocketAddress leaderAddr;
+    private String leaderHostname;
     /** the protocol version of the leader */
     protected int leaderProtocolVersion = 0x01;
     
@@ -240,6 +244,8 @@ protected void sockConnect(Socket sock, InetSocketAddress addr, int timeout)
      */
     protected void connectToLeader(InetSocketAddress addr, String hostname)
     throws IOException, ConnectException, InterruptedException {
+        leaderAddr = addr;
+        leaderHostname = hostname;
         sock = new Socket();        
         sock.setSoTimeout(self.tickTime * self.initLimit);
 
@@ -247,9 +253,19 @@ protected void connectToLeader(InetSocketAddress addr, String hostname)
         int remainingInitLimitTime = initLimitTime;
         long startNanoTime = nanoTime();
 
-        for (int tries = 0; tries < 5; tries++) {
+        // With a leader lease the new leader is usually still opening its
+        // socket when we get here, retry at the lease interval instead of
+        // every second, over about the same total time
+        int retryDelay = 1000;
+        long leaseTimeout = Leader.getLeaseTimeout(self.tickTime, self.syncLimit);
+        if (leaseTimeout > 0 && leaseTimeout < retryDelay) {
+            retryDelay = (int) leaseTimeout;
+        }
+        int maxTries = 5 * 1000 / retryDelay;
+
+        for (int tries = 0; tries < maxTries; tries++) {
             try {
-                // recalculate the init limit time because retries sleep for 1000 milliseconds
+                // recalculate the init limit time because retries sleep for retryDelay milliseconds
                 remainingInitLimitTime = initLimitTime - (int)((nanoTime() - startNanoTime) / 1000000);
                 if (remainingInitLimitTime <= 0) {
                     LOG.error("initLimit exceeded on retries.");
@@ -262,12 +278,12 @@ protected void connectToLeader(InetSocketAddress addr, String hostname)
             } catch (IOException e) {
                 remainingInitLimitTime = initLimitTime - (int)((nanoTime() - startNanoTime) / 1000000);
 
-                if (remainingInitLimitTime <= 1000) {
+                if (remainingInitLimitTime <= retryDelay) {
                     LOG.error("Unexpected exception, initLimit exceeded. tries=" + tries +
                              ", remaining init limit=" + remainingInitLimitTime +
                              ", connecting to " + addr,e);
                     throw e;
-                } else if (tries >= 4) {
+                } else if (tries >= maxTries - 1) {
                     LOG.error("Unexpected exception, retries exceeded. tries=" + tries +
                              ", remaining init limit=" + remainingInitLimitTime +
                              ", connecting to " + addr,e);
@@ -280,7 +296,7 @@ protected void connectToLeader(InetSocketAddress addr, String hostname)
                     sock.setSoTimeout(self.tickTime * self.initLimit);
                 }
             }
-            Thread.sleep(1000);
+            Thread.sleep(retryDelay);
         }
 
         self.authLearner.authenticate(sock, hostname);
@@ -310,7 +326,9 @@ protected long registerWithLeader(int pktType) throws IOException{
         /*
          * Add sid to payload
          */
-        LearnerInfo li = new LearnerInfo(self.getId(), 0x10000, self.getQuorumVerifier().getVersion());
+        LearnerInfo li = new LearnerInfo(self.getId(), Leader.BULK_SYNC_PROTOCOL_VERSION,
+                self.getQuorumVerifier().getVersion(),
+                self.getZkDb().getDataTree().getTreeDigest());
         ByteArrayOutputStream bsid = new ByteArrayOutputStream();
         BinaryOutputArchive boa = BinaryOutputArchive.getArchive(bsid);
         boa.writeRecord(li, "LearnerInfo");
@@ -371,6 +389,7 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception{
         readPacket(qp);
         LinkedList<Long> packetsCommitted = new LinkedList<Long>();
         LinkedList<PacketInFlight> packetsNotCommitted = new LinkedList<PacketInFlight>();
+        BulkSyncReceiver bulkSync = null;
         synchronized (zk) {
             if (qp.getType() == Leader.DIFF) {
                 LOG.info("Getting a diff from the leader 0x{}", Long.toHexString(qp.getZxid()));
@@ -513,6 +532,14 @@ else if (qp.getType() == Leader.SNAP) {
                     }
 
                     break;                
+                case Leader.BULKSYNC:
+                    // The txns up to this zxid come over a bulk connection,
+                    // everything after it on this one
+                    bulkSync = new BulkSyncReceiver(
+                            ByteBuffer.wrap(qp.getData()).getLong(), qp.getZxid());
+                    bulkSync.start();
+                    lastQueued = qp.getZxid();
+                    break;
                 case Leader.UPTODATE:
                     LOG.info("Learner received UPTODATE message");                                      
                     if (newLeaderQV!=null) {
@@ -542,6 +569,26 @@ else if (qp.getType() == Leader.SNAP) {
                        }
                    }
 
+                   if (bulkSync != null) {
+                       // Splice the bulk txns in ahead of the ones
+                       // received on this connection since the BULKSYNC
+                       LinkedList<PacketInFlight> txns = bulkSync.getTxns();
+                       LinkedList<Long> zxids = new LinkedList<Long>();
+                       for (PacketInFlight p : txns) {
+                           if (p.hdr.getType() == OpCode.reconfig) {
+                               QuorumVerifier qv = self.configFromString(
+                                       new String(((SetDataTxn) p.rec).getData()));
+                               if (qv.getVersion() > self.getLastSeenQuorumVerifier().getVersion()) {
+                                   self.setLastSeenQuorumVerifier(qv, true);
+                               }
+                           }
+                           zxids.add(p.hdr.getZxid());
+                       }
+                       packetsNotCommitted.addAll(0, txns);
+                       packetsCommitted.addAll(0, zxids);
+                       bulkSync = null;
+                   }
+
                    if (snapshotNeeded) {
                        zk.takeSnapshot(syncSnapshot);
                    }
@@ -556,7 +603,14 @@ else if (qp.getType() == Leader.SNAP) {
         }
         ack.setZxid(ZxidUtils.makeZxid(newEpoch, 0));
         writePacket(ack, true);
-        sock.setSoTimeout(self.tickTime * self.syncLimit);
+        // With a leader lease, give up on a silent leader once it surely
+        // expired
+        long leaseTimeout = Leader.getLearnerLeaseTimeout(self.tickTime, self.syncLimit);
+        if (leaseTimeout > 0) {
+            sock.setSoTimeout((int) leaseTimeout);
+        } else {
+            sock.setSoTimeout(self.tickTime * self.syncLimit);
+        }
         zk.startup();
         /*
          * Update the election vote here to ensure that all members of the
@@ -603,6 +657,97 @@ else if (qp.getType() == Leader.SNAP) {
         }
     }
     
+    /**
+     * Fetches the txns in (startZxid, endZxid] over a separate connection to
+     * the leader, deserializing them while the main connection keeps
+     * receiving the rest of the DIFF.
+     */
+    class BulkSyncReceiver extends ZooKeeperThread {
+        private final long startZxid;
+        private final long endZxid;
+        private final LinkedList<PacketInFlight> txns = new LinkedList<PacketInFlight>();
+        private IOException failure;
+
+        BulkSyncReceiver(long startZxid, long endZxid) {
+            super("BulkSyncReceiver-" + leaderAddr);
+            this.startZxid = startZxid;
+            this.endZxid = endZxid;
+        }
+
+        @Override
+        public void run() {
+            Socket bulkSock = new Socket();
+            try {
+                bulkSock.setSoTimeout(self.tickTime * self.initLimit);
+                sockConnect(bulkSock, leaderAddr, self.tickTime * self.syncLimit);
+                bulkSock.setTcpNoDelay(nodelay);
+                self.authLearner.authenticate(bulkSock, leaderHostname);
+
+                BufferedOutputStream out = new BufferedOutputStream(bulkSock.getOutputStream());
+                ByteBuffer request = ByteBuffer.allocate(16);
+                request.putLong(endZxid);
+                request.putLong(self.getId());
+                BinaryOutputArchive.getArchive(out).writeRecord(new QuorumPacket(
+                        Leader.BULKSYNC, startZxid, request.array(), null), "packet");
+                out.flush();
+
+                BinaryInputArchive in = BinaryInputArchive.getArchive(
+                        new BufferedInputStream(bulkSock.getInputStream()));
+                long lastZxid = startZxid;
+                QuorumPacket qp = new QuorumPacket();
+                while (true) {
+                    in.readRecord(qp, "packet");
+                    if (qp.getType() == Leader.BULKSYNC) {
+                        break;
+                    }
+                    if (qp.getType() != Leader.BULKCHUNK) {
+                        throw new IOException("Unexpected packet on bulk connection: "
+                                + LearnerHandler.packetToString(qp));
+                    }
+                    ByteBuffer chunk = ByteBuffer.wrap(qp.getData());
+                    while (chunk.hasRemaining()) {
+                        byte[] txn = new byte[chunk.getInt()];
+                        chunk.get(txn);
+                        PacketInFlight pif = new PacketInFlight();
+                        pif.hdr = new TxnHeader();
+                        pif.rec = SerializeUtils.deserializeTxn(txn, pif.hdr);
+                        txns.add(pif);
+                        lastZxid = pif.hdr.getZxid();
+                    }
+                }
+                if (lastZxid != endZxid) {
+                    throw new IOException("Bulk sync ended at 0x" + Long.toHexString(lastZxid)
+                            + " instead of 0x" + Long.toHexString(endZxid));
+                }
+                LOG.info("Received {} txns from 0x{} to 0x{} over the bulk connection",
+                        txns.size(), Long.toHexString(startZxid), Long.toHexString(endZxid));
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                try {
+                    bulkSock.close();
+                } catch (IOException e) {
+                    LOG.warn("Ignoring exception closing bulk connection", e);
+                }
+            }
+        }
+
+        /**
+         * Wait for the bulk connection to complete.
+         *
+         * @return the txns received, in zxid order
+         * @throws IOException if the bulk sync failed
+         */
+        LinkedList<PacketInFlight> getTxns() throws IOException, InterruptedException {
+            join();
+            if (failure != null) {
+                throw new IOException("Bulk sync from 0x" + Long.toHexString(startZxid)
+                        + " failed", failure);
+            }
+            return txns;
+        }
+    }
+
     protected void revalidate(QuorumPacket qp) throws IOException {
         ByteArrayInputStream bis = new ByteArrayInputStream(qp
                 .getData());
@@ -626,6 +771,8 @@ protected void revalidate(QuorumPacket qp) throws IOException {
     }
         
     protected void ping(QuorumPacket qp) throws IOException {
+        // With a leader lease, answering grants the leader a lease
+        self.extendLeaseFence();
         // Send back the ping with our session data
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(bos);
@@ -40,6 +40,7 @@
 import org.apache.jute.Record;
 import org.apache.zookeeper.KeeperException.SessionExpiredException;
 import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.TxnLogProposalIterator;
 import org.apache.zookeeper.server.ZKDatabase;
@@ -74,6 +75,15 @@ public Socket getSocket() {
      * on the syncLimit. Once the deadline is past this learner should
      * be considered no longer "sync'd" with the leader. */
     volatile long tickOfNextAckDeadline;
+
+    /**
+     * With a leader lease, the time at which the leader sent the last ping
+     * this learner answered, which is when the lease it grants started.
+     * Only valid once leaseStarted is set.
+     */
+    private volatile long leaseStartTime;
+
+    private volatile boolean leaseStarted = false;
     
     /**
      * ZooKeeper server identifier of this learner
@@ -171,11 +181,33 @@ public synchronized boolean check(long time) {
     public static final String FORCE_SNAP_SYNC = "zookeeper.forceSnapshotSync";
     private boolean forceSnapSync = false;
 
+    /**
+     * Learners that missed the committedLog fetch the txns read from the
+     * txnlog over a separate bulk connection, in chunks of up to
+     * bulkSyncChunkSize bytes, while the committedLog and new proposals are
+     * queued on this one.
+     */
+    public static final String BULK_SYNC_ENABLED = "zookeeper.leader.bulkSyncEnabled";
+    public static final String BULK_SYNC_CHUNK_SIZE = "zookeeper.leader.bulkSyncChunkSize";
+    private static final boolean bulkSyncEnabled;
+    private static final int bulkSyncChunkSize;
+    static {
+        bulkSyncEnabled = Boolean.parseBoolean(System.getProperty(BULK_SYNC_ENABLED, "true"));
+        LOG.info(BULK_SYNC_ENABLED + " = " + bulkSyncEnabled);
+        bulkSyncChunkSize = Integer.getInteger(BULK_SYNC_CHUNK_SIZE, 256 * 1024);
+        LOG.info(BULK_SYNC_CHUNK_SIZE + " = " + bulkSyncChunkSize);
+    }
+
     /**
      * Keep track of whether we need to queue TRUNC or DIFF into packet queue
      * that we are going to blast it to the learner
      */
     private boolean needOpPacket = true;
+
+    /**
+     * Digest of the DataTree of the learner, null if it did not send one
+     */
+    private Long peerDigest;
     
     /**
      * Last zxid sent to the learner as part of synchronization
@@ -345,6 +377,15 @@ static public String packetToString(QuorumPacket p) {
         case Leader.INFORMANDACTIVATE:
             type = "INFORMANDACTIVATE";
             break;
+        case Leader.READINDEX:
+            type = "READINDEX";
+            break;
+        case Leader.BULKSYNC:
+            type = "BULKSYNC";
+            break;
+        case Leader.BULKCHUNK:
+            type = "BULKCHUNK";
+            break;
         default:
             type = "UNKNOWN" + p.getType();
         }
@@ -372,6 +413,12 @@ public void run() {
 
             QuorumPacket qp = new QuorumPacket();
             ia.readRecord(qp, "packet");
+            if (qp.getType() == Leader.BULKSYNC) {
+                // Not a learner, only serves the txnlog to one
+                leader.removeLearnerHandler(this);
+                sendBulkSync(qp, leader.zk.getZKDatabase());
+                return;
+            }
             if(qp.getType() != Leader.FOLLOWERINFO && qp.getType() != Leader.OBSERVERINFO){
                 LOG.error("First packet " + qp.toString()
                         + " is not FOLLOWERINFO or OBSERVERINFO!");
@@ -393,6 +440,9 @@ public void run() {
                         throw new IOException("Follower is ahead of the leader (has a later activated configuration)");
                     }
                 }
+                if (learnerInfoData.length >= 28) {
+                    peerDigest = bbsid.getLong();
+                }
             } else {
                 this.sid = leader.followerCounter.getAndDecrement();
             }
@@ -532,6 +582,7 @@ public void run() {
             while (true) {
                 qp = new QuorumPacket();
                 ia.readRecord(qp, "packet");
+                leader.awaitLearnersPause();
 
                 long traceMask = ZooTrace.SERVER_PACKET_TRACE_MASK;
                 if (qp.getType() == Leader.PING) {
@@ -542,7 +593,6 @@ public void run() {
                 }
                 tickOfNextAckDeadline = leader.self.tick.get() + leader.self.syncLimit;
 
-
                 ByteBuffer bb;
                 long sessionId;
                 int cxid;
@@ -559,6 +609,9 @@ public void run() {
                     leader.processAck(this.sid, qp.getZxid(), sock.getLocalSocketAddress());
                     break;
                 case Leader.PING:
+                    if (Leader.getLeaseTimeout(leader.self.tickTime, leader.self.syncLimit) > 0) {
+                        pingAnswered(qp.getZxid());
+                    }
                     // Process the touches
                     ByteArrayInputStream bis = new ByteArrayInputStream(qp
                             .getData());
@@ -614,6 +667,9 @@ public void run() {
                     si.setOwner(this);
                     leader.zk.submitLearnerRequest(si);
                     break;
+                case Leader.READINDEX:
+                    leader.processReadIndex(this);
+                    break;
                 default:
                     LOG.warn("unexpected quorum packet, type: {}", packetToString(qp));
                     break;
@@ -775,7 +831,26 @@ public boolean syncFollower(long peerLastZxid, ZKDatabase db, Leader leader) {
                 // is older than on-disk txnlog
                 Iterator<Proposal> txnLogItr = db.getProposalsFromTxnLog(
                         peerLastZxid, sizeLimit);
-                if (txnLogItr.hasNext()) {
+                if (txnLogItr.hasNext() && bulkSyncEnabled
+                        && getVersion() >= Leader.BULK_SYNC_PROTOCOL_VERSION
+                        && isInTxnLog(db, peerLastZxid, sizeLimit)) {
+                    // The peer's history is a prefix of ours, it will fetch
+                    // the txnlog from peerLastZxid up to minCommittedLog
+                    // over a bulk connection
+                    LOG.info("Sending DIFF zxid=0x" + Long.toHexString(maxCommittedLog)
+                             + " and BULKSYNC zxid=0x" + Long.toHexString(minCommittedLog)
+                             + " for peer sid: " + getSid());
+                    queueOpPacket(Leader.DIFF, maxCommittedLog);
+                    needOpPacket = false;
+                    ByteBuffer start = ByteBuffer.allocate(8);
+                    start.putLong(peerLastZxid);
+                    queuePacket(new QuorumPacket(Leader.BULKSYNC, minCommittedLog,
+                            start.array(), null));
+                    Iterator<Proposal> committedLogItr = db.getCommittedLog().iterator();
+                    currentZxid = queueCommittedProposals(committedLogItr, minCommittedLog,
+                                                         null, maxCommittedLog);
+                    needSnap = false;
+                } else if (txnLogItr.hasNext()) {
                     LOG.info("Use txnlog and committedLog for peer sid: " +  getSid());
                     currentZxid = queueCommittedProposals(txnLogItr, peerLastZxid,
                                                          minCommittedLog, maxCommittedLog);
@@ -794,6 +869,26 @@ public boolean syncFollower(long peerLastZxid, ZKDatabase db, Leader leader) {
             } else {
                 LOG.warn("Unhandled scenario for peer sid: " +  getSid());
             }
+            /*
+             * A peer with a new epoch zxid newer than our committedLog, after
+             * elections without any txn, is sent a snapshot above although
+             * it is likely to be in sync. A peer with an older zxid may have
+             * missed session txns that the tree digest does not cover, so it
+             * still needs the txnlog or a snapshot.
+             */
+            if (needSnap && needOpPacket && !forceSnapSync && peerDigest != null
+                    && isPeerNewEpochZxid) {
+                long digestZxid = findDigestZxid(db.getCommittedLog(),
+                        peerLastZxid, peerDigest);
+                if (digestZxid != -1) {
+                    LOG.info("Peer sid: " + getSid() + " has the tree of zxid=0x"
+                             + Long.toHexString(digestZxid) + ", using committedLog");
+                    Iterator<Proposal> itr = db.getCommittedLog().iterator();
+                    currentZxid = queueCommittedProposals(itr, digestZxid,
+                                                         null, maxCommittedLog);
+                    needSnap = false;
+                }
+            }
             LOG.debug("Start forwarding 0x" + Long.toHexString(currentZxid) +
                       " for peer sid: " +  getSid());
             leaderLastZxid = leader.startForwarding(this, currentZxid);
@@ -812,6 +907,58 @@ public boolean syncFollower(long peerLastZxid, ZKDatabase db, Leader leader) {
         return needSnap;
     }
 
+    /**
+     * Check the head of the txnlog for the zxid of a learner. If it is there
+     * the learner only needs a DIFF. If the txnlog skips it, the learner has
+     * txns the leader never committed, and queueCommittedProposals has to
+     * decide between TRUNC and SNAP.
+     *
+     * @return true if the txnlog has a txn with exactly this zxid
+     */
+    static boolean isInTxnLog(ZKDatabase db, long zxid, long sizeLimit) {
+        Iterator<Proposal> itr = db.getProposalsFromTxnLog(zxid, sizeLimit);
+        try {
+            while (itr.hasNext()) {
+                long packetZxid = itr.next().packet.getZxid();
+                if (packetZxid >= zxid) {
+                    return packetZxid == zxid;
+                }
+            }
+            return false;
+        } finally {
+            if (itr instanceof TxnLogProposalIterator) {
+                ((TxnLogProposalIterator) itr).close();
+            }
+        }
+    }
+
+    /**
+     * Check that the learner has the tree the leader had after the last
+     * proposal before peerLastZxid. A learner with a new epoch zxid got
+     * there by a sync with the leader of that epoch and has no txn of its
+     * own at that zxid, a match of the digests confirms that it is where the
+     * history of this leader says it should be, so it can be sent the
+     * proposals that follow instead of a snapshot.
+     *
+     * @return the zxid of the last proposal of the committed log before
+     *         peerLastZxid, or -1 if there is none or the learner has a
+     *         different tree
+     */
+    static long findDigestZxid(Iterable<Proposal> committedLog,
+            long peerLastZxid, long peerDigest) {
+        Proposal last = null;
+        for (Proposal p : committedLog) {
+            if (p.packet.getZxid() >= peerLastZxid) {
+                break;
+            }
+            last = p;
+        }
+        if (last == null || last.digest != peerDigest) {
+            return -1;
+        }
+        return last.packet.getZxid();
+    }
+
     /**
      * Queue committed proposals into packet queue. The range of packets which
      * is going to be queued are (peerLaxtZxid, maxZxid]
@@ -915,6 +1062,79 @@ protected long queueCommittedProposals(Iterator<Proposal> itr,
         return queuedZxid;
     }    
     
+    /**
+     * Serve a bulk connection: stream the txns in (startZxid, endZxid] from
+     * the txnlog in chunks, followed by a BULKSYNC with the last zxid sent.
+     * The txnlog is read without the log lock, so commits on the leader are
+     * not held up while the peer catches up.
+     *
+     * @param request the BULKSYNC packet sent by the learner, with the start
+     *        zxid and the end zxid and sid of the learner as data
+     * @param db the database to read the txnlog of
+     */
+    protected void sendBulkSync(QuorumPacket request, ZKDatabase db) throws IOException {
+        long startZxid = request.getZxid();
+        ByteBuffer bb = ByteBuffer.wrap(request.getData());
+        long endZxid = bb.getLong();
+        this.sid = bb.getLong();
+        LOG.info("Sending txnlog from 0x{} to 0x{} to peer sid: {}",
+                Long.toHexString(startZxid), Long.toHexString(endZxid), getSid());
+
+        long start = Time.currentElapsedTime();
+        long lastZxid = startZxid;
+        int count = 0;
+        Iterator<Proposal> itr = db.getProposalsFromTxnLog(startZxid, 0);
+        try {
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(bulkSyncChunkSize);
+            DataOutputStream dos = new DataOutputStream(chunk);
+            boolean startFound = false;
+            while (itr.hasNext()) {
+                QuorumPacket proposal = itr.next().packet;
+                if (!startFound) {
+                    // Only a peer whose history is a prefix of ours may
+                    // skip what it has
+                    if (proposal.getZxid() < startZxid) {
+                        continue;
+                    }
+                    if (proposal.getZxid() > startZxid) {
+                        break;
+                    }
+                    startFound = true;
+                    continue;
+                }
+                if (proposal.getZxid() > endZxid) {
+                    break;
+                }
+                byte[] txn = proposal.getData();
+                if (chunk.size() > 0 && chunk.size() + 4 + txn.length > bulkSyncChunkSize) {
+                    oa.writeRecord(new QuorumPacket(Leader.BULKCHUNK, lastZxid,
+                            chunk.toByteArray(), null), "packet");
+                    chunk.reset();
+                }
+                dos.writeInt(txn.length);
+                dos.write(txn);
+                lastZxid = proposal.getZxid();
+                count++;
+            }
+            if (!startFound) {
+                throw new IOException("Cannot bulk sync peer sid: " + getSid()
+                        + ", the txnlog has no txn 0x" + Long.toHexString(startZxid));
+            }
+            if (chunk.size() > 0) {
+                oa.writeRecord(new QuorumPacket(Leader.BULKCHUNK, lastZxid,
+                        chunk.toByteArray(), null), "packet");
+            }
+        } finally {
+            if (itr instanceof TxnLogProposalIterator) {
+                ((TxnLogProposalIterator) itr).close();
+            }
+        }
+        oa.writeRecord(new QuorumPacket(Leader.BULKSYNC, lastZxid, null, null), "packet");
+        bufferedOutput.flush();
+        LOG.info("Sent {} txns up to 0x{} to peer sid: {} in {} ms", count,
+                Long.toHexString(lastZxid), getSid(), Time.currentElapsedTime() - start);
+    }
+
     public void shutdown() {
         // Send the packet of death
         try {
@@ -937,6 +1157,31 @@ public long tickOfNextAckDeadline() {
         return tickOfNextAckDeadline;
     }
 
+    /**
+     * With a leader lease, pings carry the time the leader sent them, and
+     * the learner echoes them back.
+     *
+     * @param sentTime send time of the ping the learner answered
+     */
+    private void pingAnswered(long sentTime) {
+        if (sentTime > Time.currentElapsedTime()) {
+            LOG.warn("Ignoring ping answer of {} with a send time in the future", sid);
+            return;
+        }
+        if (!leaseStarted || sentTime > leaseStartTime) {
+            leaseStartTime = sentTime;
+            leaseStarted = true;
+        }
+    }
+
+    /**
+     * Checks whether this learner answered a ping that was sent less than
+     * leaseTimeout milliseconds before now.
+     */
+    boolean hasLease(long now, long leaseTimeout) {
+        return leaseStarted && now - leaseStartTime < leaseTimeout;
+    }
+
     /**
      * ping calls from the leader to the peers
      */
@@ -948,8 +1193,14 @@ public void ping() {
         }
         long id;
         if (syncLimitCheck.check(System.nanoTime())) {
-            synchronized(leader) {
-                id = leader.lastProposed;
+            if (Leader.getLeaseTimeout(leader.self.tickTime, leader.self.syncLimit) > 0) {
+                // The learner sends the ping back, so we learn since when
+                // it grants us the lease
+                id = Time.currentElapsedTime();
+            } else {
+                synchronized(leader) {
+                    id = leader.lastProposed;
+                }
             }
             QuorumPacket ping = new QuorumPacket(Leader.PING, id, null, null);
             queuePacket(ping);
@@ -992,4 +1243,11 @@ public Queue<QuorumPacket> getQueuedPackets() {
     public void setFirstPacket(boolean value) {
         needOpPacket = value;
     }
+
+    /**
+     * For testing, the digest the learner sent
+     */
+    void setPeerDigest(Long digest) {
+        peerDigest = digest;
+    }
 }
@@ -41,6 +41,11 @@ public abstract class LearnerZooKeeperServer extends QuorumZooKeeperServer {
     protected CommitProcessor commitProcessor;
     protected SyncRequestProcessor syncProcessor;
 
+    /*
+     * Batched readIndex requests waiting for the leader
+     */
+    final ReadIndexTracker readIndexTracker = new ReadIndexTracker(this);
+
     public LearnerZooKeeperServer(FileTxnSnapLog logFactory, int tickTime,
             int minSessionTimeout, int maxSessionTimeout,
             ZKDatabase zkDb, QuorumPeer self)
@@ -57,6 +62,10 @@ public LearnerZooKeeperServer(FileTxnSnapLog logFactory, int tickTime,
      */
     abstract public Learner getLearner();
 
+    public ReadIndexTracker getReadIndexTracker() {
+        return readIndexTracker;
+    }
+
     /**
      * Returns the current state of the session tracker. This is only currently
      * used by a Learner to build a ping response packet.
@@ -19,9 +19,11 @@
 package org.apache.zookeeper.server.quorum;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 
 import org.apache.jute.Record;
+import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.server.ObserverBean;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
@@ -41,6 +43,17 @@
  */
 public class Observer extends Learner{
 
+    /**
+     * Relays the INFORM stream to the observers following this one, if
+     * observerMasterPort is set
+     */
+    private volatile ObserverMaster observerMaster;
+
+    /**
+     * Time from the leader accepting the last txn until its INFORM arrived
+     */
+    private volatile long informLag = -1;
+
     Observer(QuorumPeer self,ObserverZooKeeperServer observerZooKeeperServer) {
         this.self = self;
         this.zk=observerZooKeeperServer;
@@ -63,15 +76,31 @@ void observeLeader() throws Exception {
         zk.registerJMX(new ObserverBean(this, zk), self.jmxLocalPeerBean);
 
         try {
-            QuorumServer leaderServer = findLeader();
-            LOG.info("Observing " + leaderServer.addr);
+            InetSocketAddress observerMasterAddr = self.nextObserverMaster();
+            QuorumServer leaderServer = null;
+            if (observerMasterAddr == null) {
+                leaderServer = findLeader();
+            }
+            boolean synced = false;
             try {
-                connectToLeader(leaderServer.addr, leaderServer.hostname);
+                if (observerMasterAddr != null) {
+                    LOG.info("Observing through observer master " + observerMasterAddr);
+                    connectToLeader(observerMasterAddr, observerMasterAddr.getHostString());
+                } else {
+                    LOG.info("Observing " + leaderServer.addr);
+                    connectToLeader(leaderServer.addr, leaderServer.hostname);
+                }
                 long newLeaderZxid = registerWithLeader(Leader.OBSERVERINFO);
                 if (self.isReconfigStateChange())
                    throw new Exception("learned about role change");
  
                 syncWithLeader(newLeaderZxid);
+                synced = true;
+                self.observerSynced(true);
+                if (self.getObserverMasterPort() > 0) {
+                    observerMaster = new ObserverMaster(this, self, self.getObserverMasterPort());
+                    observerMaster.start();
+                }
                 QuorumPacket qp = new QuorumPacket();
                 while (this.isRunning()) {
                     readPacket(qp);
@@ -87,6 +116,14 @@ void observeLeader() throws Exception {
 
                 // clear pending revalidations
                 pendingRevalidations.clear();
+            } finally {
+                if (!synced) {
+                    self.observerSynced(false);
+                }
+                if (observerMaster != null) {
+                    observerMaster.halt();
+                    observerMaster = null;
+                }
             }
         } finally {
             zk.unregisterJMX(this);
@@ -101,6 +138,9 @@ void observeLeader() throws Exception {
     protected void processPacket(QuorumPacket qp) throws Exception{
         switch (qp.getType()) {
         case Leader.PING:
+            if (observerMaster != null) {
+                observerMaster.ping(qp.getZxid());
+            }
             ping(qp);
             break;
         case Leader.PROPOSAL:
@@ -113,17 +153,26 @@ protected void processPacket(QuorumPacket qp) throws Exception{
             LOG.error("Received an UPTODATE message after Observer started");
             break;
         case Leader.REVALIDATE:
-            revalidate(qp);
+            if (observerMaster == null || !observerMaster.revalidate(qp)) {
+                revalidate(qp);
+            }
             break;
         case Leader.SYNC:
             ((ObserverZooKeeperServer)zk).sync();
             break;
+        case Leader.READINDEX:
+            ((ObserverZooKeeperServer)zk).readIndexTracker.readIndex(qp.getZxid());
+            break;
         case Leader.INFORM:
             TxnHeader hdr = new TxnHeader();
             Record txn = SerializeUtils.deserializeTxn(qp.getData(), hdr);
+            informLag = Time.currentWallTime() - hdr.getTime();
             Request request = new Request (hdr.getClientId(),  hdr.getCxid(), hdr.getType(), hdr, txn, 0);
             ObserverZooKeeperServer obs = (ObserverZooKeeperServer)zk;
             obs.commitRequest(request);
+            if (observerMaster != null) {
+                observerMaster.relay(qp);
+            }
             break;
         case Leader.INFORMANDACTIVATE:            
             hdr = new TxnHeader();
@@ -144,6 +193,9 @@ protected void processPacket(QuorumPacket qp) throws Exception{
                 self.processReconfig(qv, suggestedLeaderId, qp.getZxid(), true);
            
             obs.commitRequest(request);                                 
+            if (observerMaster != null) {
+                observerMaster.relay(qp);
+            }
 
             if (majorChange) {
                throw new Exception("changes proposed in reconfig");
@@ -155,6 +207,23 @@ protected void processPacket(QuorumPacket qp) throws Exception{
         }
     }
 
+    /**
+     * @return milliseconds from the leader accepting the last txn until its
+     * INFORM reached this observer, through any observer masters in between,
+     * or -1 if no txn was seen yet
+     */
+    public long getInformLag() {
+        return informLag;
+    }
+
+    /**
+     * @return number of observers following this one
+     */
+    public int getRelayedObserverCount() {
+        ObserverMaster master = observerMaster;
+        return master == null ? 0 : master.getObserverCount();
+    }
+
     /**
      * Shutdown the Observer.
      */
@@ -34,4 +34,15 @@ public interface ObserverMXBean extends ZooKeeperServerMXBean {
      * @return socket address
      */
     public String getQuorumAddress();
+
+    /**
+     * @return milliseconds from the leader accepting the last txn until it
+     * reached this observer
+     */
+    public long getInformLag();
+
+    /**
+     * @return number of observers following this one
+     */
+    public int getRelayedObserverCount();
 }
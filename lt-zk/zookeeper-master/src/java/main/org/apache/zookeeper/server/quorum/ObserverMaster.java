@@ -0,0 +1,425 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.ZooKeeperThread;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lets observers follow another observer instead of the leader, so that the
+ * leader keeps a single connection for a whole tree of observers.
+ *
+ * The relay observer listens on its observerMasterPort. A connecting observer
+ * goes through the usual OBSERVERINFO/LEADERINFO handshake, gets a snapshot
+ * of the relay's database and is then sent the INFORM stream the relay
+ * receives from the leader. Requests, session touches, revalidations, syncs
+ * and read index rounds of the downstream observers are passed up through the
+ * relay's own connection, and the answers are routed back.
+ */
+public class ObserverMaster extends ZooKeeperThread {
+    private static final Logger LOG = LoggerFactory.getLogger(ObserverMaster.class);
+
+    private final Observer observer;
+
+    private final QuorumPeer self;
+
+    private final ObserverZooKeeperServer zk;
+
+    private final ServerSocket ss;
+
+    private volatile boolean stop = false;
+
+    private final Set<RelayHandler> handlers =
+            Collections.newSetFromMap(new ConcurrentHashMap<RelayHandler, Boolean>());
+
+    /**
+     * Downstream observers waiting for the leader to revalidate a session
+     */
+    private final ConcurrentHashMap<Long, RelayHandler> pendingRevalidations =
+            new ConcurrentHashMap<Long, RelayHandler>();
+
+    ObserverMaster(Observer observer, QuorumPeer self, int port) throws IOException {
+        super("ObserverMaster-" + port);
+        this.observer = observer;
+        this.self = self;
+        this.zk = (ObserverZooKeeperServer) observer.zk;
+        if (self.getQuorumListenOnAllIPs()) {
+            ss = new ServerSocket(port);
+        } else {
+            ss = new ServerSocket();
+        }
+        ss.setReuseAddress(true);
+        if (!self.getQuorumListenOnAllIPs()) {
+            ss.bind(new InetSocketAddress(self.getQuorumAddress().getAddress(), port));
+        }
+    }
+
+    @Override
+    public void run() {
+        LOG.info("Relaying to observers on {}", ss.getLocalSocketAddress());
+        while (!stop) {
+            try {
+                Socket s = ss.accept();
+                // start with the initLimit, once synced switch to the syncLimit
+                s.setSoTimeout(self.tickTime * self.initLimit);
+                s.setTcpNoDelay(true);
+                new RelayHandler(s).start();
+            } catch (SocketException e) {
+                if (!stop) {
+                    LOG.warn("Exception while accepting observer", e);
+                }
+                break;
+            } catch (IOException e) {
+                LOG.warn("Exception while accepting observer", e);
+            }
+        }
+        LOG.info("ObserverMaster exited loop!");
+    }
+
+    /**
+     * Stop accepting observers and drop the connected ones, they will
+     * reconnect once this observer is following the leader again.
+     */
+    void halt() {
+        stop = true;
+        try {
+            ss.close();
+        } catch (IOException e) {
+            LOG.warn("Ignoring unexpected exception during close", e);
+        }
+        for (RelayHandler handler : handlers) {
+            handler.shutdown();
+        }
+    }
+
+    /**
+     * @return number of observers following this one
+     */
+    public int getObserverCount() {
+        return handlers.size();
+    }
+
+    /**
+     * Called by the observer after it committed an INFORM, in the order the
+     * leader sent them.
+     */
+    synchronized void relay(QuorumPacket qp) {
+        QuorumPacket copy = new QuorumPacket(qp.getType(), qp.getZxid(), qp.getData(), null);
+        for (RelayHandler handler : handlers) {
+            handler.queuePacket(copy);
+        }
+    }
+
+    /**
+     * Called by the observer when the leader pinged it, the downstream
+     * observers answer with their session touches.
+     */
+    void ping(long zxid) {
+        QuorumPacket ping = new QuorumPacket(Leader.PING, zxid, null, null);
+        for (RelayHandler handler : handlers) {
+            if (handler.synced) {
+                handler.queuePacket(ping);
+            }
+        }
+    }
+
+    /**
+     * Route a REVALIDATE answer of the leader to the observer that asked.
+     *
+     * @return false if the revalidation was for the relay itself
+     */
+    boolean revalidate(QuorumPacket qp) {
+        long sessionId = ByteBuffer.wrap(qp.getData()).getLong();
+        RelayHandler handler = pendingRevalidations.remove(sessionId);
+        if (handler == null) {
+            return false;
+        }
+        handler.queuePacket(new QuorumPacket(qp.getType(), qp.getZxid(), qp.getData(), null));
+        return true;
+    }
+
+    /**
+     * Answer a SYNC or READINDEX request that was relayed for a downstream
+     * observer. The relay read the answer after every INFORM that preceded
+     * it, and those have been relayed already.
+     *
+     * @return false if the request was not relayed
+     */
+    static boolean reply(Request request, int type, long zxid) {
+        if (!(request.getOwner() instanceof RelayHandler)) {
+            return false;
+        }
+        ((RelayHandler) request.getOwner()).queuePacket(
+                new QuorumPacket(type, zxid, null, null));
+        return true;
+    }
+
+    /**
+     * Start relaying the stream to a handler.
+     *
+     * @return the zxid of the last txn the relay committed, the snapshot has
+     * to cover it since the txn was not relayed to the handler
+     */
+    private synchronized long register(RelayHandler handler) {
+        handlers.add(handler);
+        return zk.getLastCommittedZxid();
+    }
+
+    /**
+     * Serves one downstream observer. Mirrors the observer side of
+     * LearnerHandler, except that the observer is always synced with a
+     * snapshot of the relay.
+     */
+    class RelayHandler extends ZooKeeperThread {
+        private final Socket sock;
+
+        private final BufferedInputStream bufferedInput;
+
+        private BinaryInputArchive ia;
+
+        private BinaryOutputArchive oa;
+
+        private BufferedOutputStream bufferedOutput;
+
+        private final LinkedBlockingQueue<QuorumPacket> queuedPackets =
+                new LinkedBlockingQueue<QuorumPacket>();
+
+        private final QuorumPacket packetOfDeath = new QuorumPacket();
+
+        private long sid = -1;
+
+        /**
+         * Zxid of the snapshot the observer got, relayed txns up to it are
+         * skipped
+         */
+        private long snapZxid;
+
+        private volatile boolean synced = false;
+
+        RelayHandler(Socket sock) throws IOException {
+            super("ObserverRelayHandler-" + sock.getRemoteSocketAddress());
+            this.sock = sock;
+            this.bufferedInput = new BufferedInputStream(sock.getInputStream());
+            try {
+                self.authServer.authenticate(sock, new DataInputStream(bufferedInput));
+            } catch (IOException e) {
+                LOG.error("Failed to authenticate observer, addr: {}, closing connection",
+                        sock.getRemoteSocketAddress(), e);
+                sock.close();
+                throw e;
+            }
+        }
+
+        void queuePacket(QuorumPacket p) {
+            queuedPackets.add(p);
+        }
+
+        @Override
+        public void run() {
+            try {
+                ia = BinaryInputArchive.getArchive(bufferedInput);
+                bufferedOutput = new BufferedOutputStream(sock.getOutputStream());
+                oa = BinaryOutputArchive.getArchive(bufferedOutput);
+
+                QuorumPacket qp = new QuorumPacket();
+                ia.readRecord(qp, "packet");
+                if (qp.getType() != Leader.OBSERVERINFO) {
+                    LOG.error("First packet {} is not OBSERVERINFO!", qp);
+                    return;
+                }
+                byte learnerInfoData[] = qp.getData();
+                if (learnerInfoData != null && learnerInfoData.length >= 8) {
+                    sid = ByteBuffer.wrap(learnerInfoData).getLong();
+                }
+                LOG.info("Observer sid: {} is following observer {}", sid, self.getId());
+
+                long newLeaderZxid = ZxidUtils.makeZxid(self.getCurrentEpoch(), 0);
+                byte ver[] = new byte[4];
+                ByteBuffer.wrap(ver).putInt(0x10000);
+                oa.writeRecord(new QuorumPacket(Leader.LEADERINFO, newLeaderZxid, ver, null), "packet");
+                bufferedOutput.flush();
+                ia.readRecord(qp, "packet");
+                if (qp.getType() != Leader.ACKEPOCH) {
+                    LOG.error("{} is not ACKEPOCH", qp);
+                    return;
+                }
+
+                sendSnapshot(register(this));
+
+                oa.writeRecord(new QuorumPacket(Leader.NEWLEADER, newLeaderZxid,
+                        self.getLastSeenQuorumVerifier().toString().getBytes(), null), "packet");
+                bufferedOutput.flush();
+                ia.readRecord(qp, "packet");
+                if (qp.getType() != Leader.ACK) {
+                    LOG.error("Next packet was supposed to be an ACK, but received packet: {}",
+                            LearnerHandler.packetToString(qp));
+                    return;
+                }
+                oa.writeRecord(new QuorumPacket(Leader.UPTODATE, -1, null, null), "packet");
+                bufferedOutput.flush();
+                sock.setSoTimeout(self.tickTime * self.syncLimit);
+                synced = true;
+
+                new ZooKeeperThread("Sender-" + sock.getRemoteSocketAddress()) {
+                    public void run() {
+                        sendPackets();
+                    }
+                }.start();
+
+                while (true) {
+                    qp = new QuorumPacket();
+                    ia.readRecord(qp, "packet");
+                    processPacket(qp);
+                }
+            } catch (IOException e) {
+                if (!stop && !sock.isClosed()) {
+                    LOG.warn("Unexpected exception relaying to observer " + sid, e);
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Interrupted while relaying to observer " + sid, e);
+            } finally {
+                LOG.warn("******* GOODBYE observer {} ********", sid);
+                shutdown();
+            }
+        }
+
+        private void sendSnapshot(long relayedZxid) throws IOException, InterruptedException {
+            // The txns committed before registering were not relayed to us,
+            // wait until they have been applied
+            ZKDatabase db = zk.getZKDatabase();
+            long deadline = Time.currentElapsedTime() + self.tickTime * self.initLimit;
+            while (db.getDataTreeLastProcessedZxid() < relayedZxid) {
+                if (stop || Time.currentElapsedTime() > deadline) {
+                    throw new IOException("Timed out waiting to apply 0x"
+                            + Long.toHexString(relayedZxid));
+                }
+                Thread.sleep(10);
+            }
+            snapZxid = db.getDataTreeLastProcessedZxid();
+            LOG.info("Sending snapshot to observer {}, zxid 0x{}", sid, Long.toHexString(snapZxid));
+            oa.writeRecord(new QuorumPacket(Leader.SNAP, snapZxid, null, null), "packet");
+            db.serializeSnapshot(oa);
+            oa.writeString("BenWasHere", "signature");
+            bufferedOutput.flush();
+        }
+
+        private void processPacket(QuorumPacket qp) throws IOException {
+            switch (qp.getType()) {
+            case Leader.ACK:
+                break;
+            case Leader.PING:
+                // Session touches of the downstream observer
+                observer.writePacket(qp, true);
+                break;
+            case Leader.REVALIDATE:
+                pendingRevalidations.put(ByteBuffer.wrap(qp.getData()).getLong(), this);
+                observer.writePacket(qp, true);
+                break;
+            case Leader.REQUEST:
+                ByteBuffer bb = ByteBuffer.wrap(qp.getData());
+                long sessionId = bb.getLong();
+                int cxid = bb.getInt();
+                int type = bb.getInt();
+                if (type == OpCode.sync) {
+                    // The leader answers syncs in order, keep our place
+                    // among the syncs of the relay
+                    Request marker = new Request(null, sessionId, cxid, type, null, null);
+                    marker.setOwner(this);
+                    synchronized (zk.pendingSyncs) {
+                        zk.pendingSyncs.add(marker);
+                        observer.writePacket(qp, true);
+                    }
+                } else {
+                    observer.writePacket(qp, true);
+                }
+                break;
+            case Leader.READINDEX:
+                Request marker = new Request(null, 0, 0, OpCode.readIndex, null, null);
+                marker.setOwner(this);
+                zk.readIndexTracker.add(marker);
+                break;
+            default:
+                LOG.warn("unexpected packet from observer {}: {}", sid,
+                        LearnerHandler.packetToString(qp));
+                break;
+            }
+        }
+
+        private void sendPackets() {
+            try {
+                while (true) {
+                    QuorumPacket p = queuedPackets.poll();
+                    if (p == null) {
+                        bufferedOutput.flush();
+                        p = queuedPackets.take();
+                    }
+                    if (p == packetOfDeath) {
+                        break;
+                    }
+                    if ((p.getType() == Leader.INFORM || p.getType() == Leader.INFORMANDACTIVATE)
+                            && p.getZxid() <= snapZxid) {
+                        // Already in the snapshot
+                        continue;
+                    }
+                    oa.writeRecord(p, "packet");
+                }
+            } catch (IOException e) {
+                if (!sock.isClosed()) {
+                    LOG.warn("Unexpected exception sending to observer " + sid, e);
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Interrupted while sending to observer " + sid, e);
+            } finally {
+                shutdown();
+            }
+        }
+
+        void shutdown() {
+            handlers.remove(this);
+            queuedPackets.add(packetOfDeath);
+            try {
+                sock.close();
+            } catch (IOException e) {
+                LOG.warn("Ignoring unexpected exception during socket close", e);
+            }
+        }
+    }
+}
@@ -88,8 +88,14 @@ public void run() {
                 // add it to pendingSyncs.
                 switch (request.type) {
                 case OpCode.sync:
-                    zks.pendingSyncs.add(request);
-                    zks.getObserver().request(request);
+                    // Syncs relayed for other observers share the queue
+                    synchronized (zks.pendingSyncs) {
+                        zks.pendingSyncs.add(request);
+                        zks.getObserver().request(request);
+                    }
+                    break;
+                case OpCode.readIndex:
+                    zks.readIndexTracker.add(request);
                     break;
                 case OpCode.create:
                 case OpCode.create2:
@@ -97,6 +103,7 @@ public void run() {
                 case OpCode.createContainer:
                 case OpCode.delete:
                 case OpCode.deleteContainer:
+                case OpCode.pollFirstChild:
                 case OpCode.setData:
                 case OpCode.reconfig:
                 case OpCode.setACL:
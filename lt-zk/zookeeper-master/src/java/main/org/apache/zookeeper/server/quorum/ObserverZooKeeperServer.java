@@ -51,11 +51,20 @@ public class ObserverZooKeeperServer extends LearnerZooKeeperServer {
     ConcurrentLinkedQueue<Request> pendingSyncs = 
         new ConcurrentLinkedQueue<Request>();
 
+    /*
+     * Zxid of the last txn handed to the commit processor
+     */
+    private volatile long lastCommittedZxid = -1;
+
     ObserverZooKeeperServer(FileTxnSnapLog logFactory, QuorumPeer self, ZKDatabase zkDb) throws IOException {
         super(logFactory, self.tickTime, self.minSessionTimeout, self.maxSessionTimeout, zkDb, self);
         LOG.info("syncEnabled =" + syncRequestProcessorEnabled);
     }
     
+    long getLastCommittedZxid() {
+        return lastCommittedZxid;
+    }
+
     public Observer getObserver() {
         return self.observer;
     }
@@ -74,6 +83,9 @@ public Learner getLearner() {
      * @param request
      */
     public void commitRequest(Request request) {     
+        if (request.getHdr() != null) {
+            lastCommittedZxid = request.getHdr().getZxid();
+        }
         if (syncRequestProcessorEnabled) {
             // Write to txnlog and take periodic snapshot
             syncProcessor.processRequest(request);
@@ -122,7 +134,9 @@ synchronized public void sync(){
         }
                 
         Request r = pendingSyncs.remove();
-        commitProcessor.commit(r);
+        if (!ObserverMaster.reply(r, Leader.SYNC, 0)) {
+            commitProcessor.commit(r);
+        }
     }
     
     @Override
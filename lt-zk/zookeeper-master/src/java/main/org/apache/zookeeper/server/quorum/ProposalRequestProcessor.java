@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server.quorum;
 
+import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
 import org.apache.zookeeper.server.SyncRequestProcessor;
@@ -72,7 +73,9 @@ public void processRequest(Request request) throws RequestProcessorException {
             zks.getLeader().processSync((LearnerSyncRequest)request);
         } else {
             nextProcessor.processRequest(request);
-            if (request.getHdr() != null) {
+            if (request.type == OpCode.readIndex) {
+                zks.getLeader().processReadIndex(request);
+            } else if (request.getHdr() != null) {
                 // We need to sync and get consensus on any transactions
                 try {
                     zks.getLeader().propose(request);
@@ -23,6 +23,8 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -30,14 +32,21 @@
 import java.net.SocketTimeoutException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -46,6 +55,7 @@
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.server.ZooKeeperThread;
 import org.apache.zookeeper.server.quorum.auth.QuorumAuthLearner;
 import org.apache.zookeeper.server.quorum.auth.QuorumAuthServer;
@@ -71,6 +81,12 @@
  * Although this is not a problem for the leader election, it could be a problem
  * when consolidating peer communication. This is to be verified, though.
  * 
+ * Unless disabled through {@link #ASYNC_CONNECT}, outgoing connections are
+ * opened by a single {@link Connector} thread with non-blocking connects on a
+ * selector, so that the election threads never block on a connect and all
+ * peers are dialed in parallel. A dead peer then only costs its own connect
+ * timeout instead of delaying every other peer.
+ * 
  */
 
 public class QuorumCnxManager {
@@ -165,6 +181,20 @@ public class QuorumCnxManager {
      */
     private final boolean tcpKeepAlive = Boolean.getBoolean("zookeeper.tcpKeepAlive");
 
+    /*
+     * Whether outgoing connections are opened asynchronously by the
+     * connector thread instead of on the caller's thread
+     */
+    public static final String ASYNC_CONNECT = "zookeeper.electionAsyncConnect";
+
+    private final boolean asyncConnect = Boolean.parseBoolean(
+            System.getProperty(ASYNC_CONNECT, "true"));
+
+    /*
+     * Connector thread, started on the first asynchronous connect
+     */
+    private Connector connector;
+
 
     static public class Message {
         Message(ByteBuffer buffer, long sid) {
@@ -324,6 +354,21 @@ public void testInitiateConnection(long sid) throws Exception {
         initiateConnection(sock, sid);
     }
 
+    /**
+     * Makes the connector thread quit as on an unexpected error and waits
+     * for it, for testing purposes
+     */
+    public void testKillConnector() throws Exception {
+        Connector c;
+        synchronized (this) {
+            c = connector;
+        }
+        if (c != null) {
+            c.selector.close();
+            c.join();
+        }
+    }
+
     /**
      * If this server has initiated the connection, then it gives up on the
      * connection if it loses challenge. Otherwise, it keeps the connection.
@@ -388,6 +433,322 @@ public void run() {
         }
     }
 
+    /**
+     * Starts the connector thread if it isn't running yet.
+     *
+     * @return false if the connector can't be used, in which case the
+     *         caller connects on its own thread
+     */
+    private synchronized boolean startConnector() {
+        if (connector != null) {
+            return true;
+        }
+        if (shutdown) {
+            return false;
+        }
+        try {
+            connector = new Connector();
+        } catch (IOException e) {
+            LOG.warn("Cannot open connector selector, connecting synchronously", e);
+            return false;
+        }
+        connector.start();
+        return true;
+    }
+
+    /**
+     * Thread that opens the outgoing connections. Every peer is dialed with a
+     * non-blocking connect registered on a single selector, and each attempt
+     * is abandoned after cnxTO milliseconds, after which the next candidate
+     * address of the peer is tried. Connected sockets are switched back to
+     * blocking mode and handed to initiateConnection, on the connection
+     * executor when quorum sasl authentication is enabled.
+     */
+    class Connector extends ZooKeeperThread {
+        private final Selector selector;
+        private final Queue<PendingConnect> requests =
+            new ConcurrentLinkedQueue<PendingConnect>();
+        private final Set<PendingConnect> pending = new HashSet<PendingConnect>();
+        private volatile boolean stopped = false;
+
+        Connector() throws IOException {
+            super("QuorumConnector-[myid=" + mySid + "]");
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Queues a connect to server sid, trying the given election
+         * addresses in order. Does nothing if a connection request to sid
+         * is already in progress.
+         */
+        void connect(long sid, List<InetSocketAddress> electionAddrs) {
+            if (!inprogressConnections.add(sid)) {
+                LOG.debug("Connection request to server id: {} is already in progress, so skipping this request",
+                        sid);
+                return;
+            }
+            requests.add(new PendingConnect(sid, electionAddrs));
+            selector.wakeup();
+        }
+
+        void halt() {
+            stopped = true;
+            selector.wakeup();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                LOG.warn("Got interrupted before joining the connector", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            List<PendingConnect> connected = new ArrayList<PendingConnect>();
+            try {
+                while (!stopped && !shutdown) {
+                    PendingConnect p;
+                    while ((p = requests.poll()) != null) {
+                        dialNext(p);
+                    }
+
+                    long now = Time.currentElapsedTime();
+                    long timeout = 0;
+                    for (PendingConnect pc : pending) {
+                        long left = Math.max(1, pc.deadline - now);
+                        timeout = timeout == 0 ? left : Math.min(timeout, left);
+                    }
+                    selector.select(timeout);
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        PendingConnect pc = (PendingConnect) key.attachment();
+                        try {
+                            if (pc.channel.finishConnect()) {
+                                key.cancel();
+                                pending.remove(pc);
+                                connected.add(pc);
+                            }
+                        } catch (IOException e) {
+                            LOG.warn("Cannot open channel to " + pc.sid
+                                    + " at election address " + pc.electionAddr, e);
+                            pc.close();
+                            dialNext(pc);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+
+                    now = Time.currentElapsedTime();
+                    for (PendingConnect pc : new ArrayList<PendingConnect>(pending)) {
+                        if (pc.deadline <= now) {
+                            LOG.warn("Cannot open channel to " + pc.sid
+                                    + " at election address " + pc.electionAddr
+                                    + ", timed out after " + cnxTO + " ms");
+                            pc.close();
+                            dialNext(pc);
+                        }
+                    }
+
+                    if (!connected.isEmpty()) {
+                        // flush the cancelled keys, a channel can only go
+                        // back to blocking mode once it is deregistered
+                        selector.selectNow();
+                        selector.selectedKeys().clear();
+                        for (PendingConnect pc : connected) {
+                            handOff(pc);
+                        }
+                        connected.clear();
+                    }
+                }
+            } catch (Exception e) {
+                LOG.error("Unexpected exception in connector, quitting", e);
+            } finally {
+                for (PendingConnect pc : pending) {
+                    pc.close();
+                    inprogressConnections.remove(pc.sid);
+                }
+                for (PendingConnect pc : connected) {
+                    pc.close();
+                    inprogressConnections.remove(pc.sid);
+                }
+                // Connects are queued under the manager's lock, so once this
+                // thread is unset there, nothing is queued on it any more
+                // and the next connect starts a new connector
+                synchronized (QuorumCnxManager.this) {
+                    if (connector == this) {
+                        connector = null;
+                    }
+                    PendingConnect pc;
+                    while ((pc = requests.poll()) != null) {
+                        inprogressConnections.remove(pc.sid);
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOG.debug("Error closing connector selector", e);
+                }
+            }
+        }
+
+        /**
+         * Starts a connect to the next candidate address of pc, giving up on
+         * the peer when there is none left.
+         */
+        private void dialNext(PendingConnect pc) {
+            pending.remove(pc);
+            while (pc.hasNext()) {
+                InetSocketAddress electionAddr = pc.next();
+                SocketChannel channel = null;
+                try {
+                    LOG.debug("Opening channel to server " + pc.sid);
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    setSockOpts(channel.socket());
+                    pc.channel = channel;
+                    pc.deadline = Time.currentElapsedTime() + cnxTO;
+                    if (channel.connect(electionAddr)) {
+                        // only a local peer connects right away, it is fine
+                        // to hand it over from here
+                        handOff(pc);
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT, pc);
+                        pending.add(pc);
+                    }
+                    return;
+                } catch (UnresolvedAddressException e) {
+                    LOG.warn("Cannot open channel to " + pc.sid
+                            + " at election address " + electionAddr, e);
+                } catch (IOException e) {
+                    LOG.warn("Cannot open channel to " + pc.sid
+                            + " at election address " + electionAddr, e);
+                }
+                pc.close();
+            }
+            inprogressConnections.remove(pc.sid);
+        }
+
+        private void handOff(PendingConnect pc) {
+            Socket sock = pc.channel.socket();
+            try {
+                pc.channel.configureBlocking(true);
+            } catch (IOException e) {
+                LOG.warn("Cannot use channel to " + pc.sid, e);
+                pc.close();
+                inprogressConnections.remove(pc.sid);
+                return;
+            }
+            LOG.debug("Connected to server " + pc.sid);
+            // Same as in connectOne, the sasl handshake may take a few
+            // seconds and must not hold up the other peers
+            if (quorumSaslAuthEnabled) {
+                try {
+                    connectionExecutor.execute(
+                            new QuorumConnectionReqThread(sock, pc.sid));
+                    connectionThreadCnt.incrementAndGet();
+                } catch (Throwable e) {
+                    inprogressConnections.remove(pc.sid);
+                    LOG.error("Exception while submitting quorum connection request", e);
+                    closeSocket(sock);
+                }
+            } else {
+                try {
+                    initiateConnection(sock, pc.sid);
+                } finally {
+                    inprogressConnections.remove(pc.sid);
+                }
+            }
+        }
+    }
+
+    /**
+     * A connect in progress by the connector.
+     */
+    private static class PendingConnect {
+        final long sid;
+        private final List<InetSocketAddress> electionAddrs;
+        private int index = 0;
+        InetSocketAddress electionAddr;
+        SocketChannel channel;
+        long deadline;
+
+        PendingConnect(long sid, List<InetSocketAddress> electionAddrs) {
+            this.sid = sid;
+            this.electionAddrs = electionAddrs;
+        }
+
+        boolean hasNext() {
+            return index < electionAddrs.size();
+        }
+
+        InetSocketAddress next() {
+            electionAddr = electionAddrs.get(index++);
+            return electionAddr;
+        }
+
+        void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing channel to " + sid, e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Sockets opened by the connector belong to a channel, and the streams
+     * of such a socket take the channel's blocking lock for every read and
+     * write. The RecvWorker would then keep the SendWorker from writing while
+     * it waits for data, so these sockets are read and written through the
+     * channel directly, which has separate read and write locks.
+     */
+    private static InputStream getInputStream(Socket sock) throws IOException {
+        final SocketChannel channel = sock.getChannel();
+        if (channel == null) {
+            return sock.getInputStream();
+        }
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                return n == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    private static OutputStream getOutputStream(Socket sock) throws IOException {
+        final SocketChannel channel = sock.getChannel();
+        if (channel == null) {
+            return sock.getOutputStream();
+        }
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+            }
+        };
+    }
+
     private boolean startConnection(Socket sock, Long sid)
             throws IOException {
         DataOutputStream dout = null;
@@ -395,7 +756,7 @@ private boolean startConnection(Socket sock, Long sid)
         try {
             // Use BufferedOutputStream to reduce the number of IP packets. This is
             // important for x-DC scenarios.
-            BufferedOutputStream buf = new BufferedOutputStream(sock.getOutputStream());
+            BufferedOutputStream buf = new BufferedOutputStream(getOutputStream(sock));
             dout = new DataOutputStream(buf);
 
             // Sending id and challenge
@@ -410,7 +771,7 @@ private boolean startConnection(Socket sock, Long sid)
             dout.flush();
 
             din = new DataInputStream(
-                    new BufferedInputStream(sock.getInputStream()));
+                    new BufferedInputStream(getInputStream(sock)));
         } catch (IOException e) {
             LOG.warn("Ignoring exception reading or writing challenge: ", e);
             closeSocket(sock);
@@ -633,6 +994,11 @@ synchronized private boolean connectOne(long sid, InetSocketAddress electionAddr
             return true;
         }
 
+        if (asyncConnect && startConnector()) {
+            connector.connect(sid, Collections.singletonList(electionAddr));
+            return true;
+        }
+
         Socket sock = null;
         try {
              LOG.debug("Opening channel to server " + sid);
@@ -680,29 +1046,34 @@ synchronized void connectOne(long sid){
             return;
         }
         synchronized (self.QV_LOCK) {
-            boolean knownId = false;
             // Resolve hostname for the remote server before attempting to
             // connect in case the underlying ip address has changed.
             self.recreateSocketAddresses(sid);
             Map<Long, QuorumPeer.QuorumServer> lastCommittedView = self.getView();
             QuorumVerifier lastSeenQV = self.getLastSeenQuorumVerifier();
             Map<Long, QuorumPeer.QuorumServer> lastProposedView = lastSeenQV.getAllMembers();
+            // Candidate addresses in order, the committed one first
+            List<InetSocketAddress> electionAddrs = new ArrayList<InetSocketAddress>(2);
             if (lastCommittedView.containsKey(sid)) {
-                knownId = true;
-                if (connectOne(sid, lastCommittedView.get(sid).electionAddr))
-                    return;
+                electionAddrs.add(lastCommittedView.get(sid).electionAddr);
             }
             if (lastSeenQV != null && lastProposedView.containsKey(sid)
-                    && (!knownId || (lastProposedView.get(sid).electionAddr !=
+                    && (electionAddrs.isEmpty() || (lastProposedView.get(sid).electionAddr !=
                     lastCommittedView.get(sid).electionAddr))) {
-                knownId = true;
-                if (connectOne(sid, lastProposedView.get(sid).electionAddr))
-                    return;
+                electionAddrs.add(lastProposedView.get(sid).electionAddr);
             }
-            if (!knownId) {
+            if (electionAddrs.isEmpty()) {
                 LOG.warn("Invalid server id: " + sid);
                 return;
             }
+            if (asyncConnect && startConnector()) {
+                connector.connect(sid, electionAddrs);
+                return;
+            }
+            for (InetSocketAddress electionAddr : electionAddrs) {
+                if (connectOne(sid, electionAddr))
+                    return;
+            }
         }
     }
     
@@ -752,6 +1123,14 @@ public void halt() {
         }
         softHalt();
 
+        Connector c;
+        synchronized (this) {
+            c = connector;
+        }
+        if (c != null) {
+            c.halt();
+        }
+
         // clear data structures used for auth
         if (connectionExecutor != null) {
             connectionExecutor.shutdown();
@@ -814,6 +1193,13 @@ public long getConnectionThreadCount() {
         return connectionThreadCnt.get();
     }
 
+    /**
+     * Return number of connection requests still in progress.
+     */
+    public int getPendingConnectionCount() {
+        return inprogressConnections.size();
+    }
+
     /**
      * Reset the value of connection processing threads count to zero.
      */
@@ -916,6 +1302,14 @@ public void run() {
             }
         }
 
+        /**
+         * Whether the listener accepts connections, for testing purposes
+         */
+        public boolean isBound() {
+            ServerSocket s = ss;
+            return s != null && s.isBound() && !s.isClosed();
+        }
+
         /**
          * Halts this listener thread.
          */
@@ -960,7 +1354,7 @@ class SendWorker extends ZooKeeperThread {
             this.sock = sock;
             recvWorker = null;
             try {
-                dout = new DataOutputStream(sock.getOutputStream());
+                dout = new DataOutputStream(getOutputStream(sock));
             } catch (IOException e) {
                 LOG.error("Unable to access socket output stream", e);
                 closeSocket(sock);
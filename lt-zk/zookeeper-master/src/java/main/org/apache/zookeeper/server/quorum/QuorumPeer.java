@@ -538,6 +538,43 @@ public synchronized void setCurrentVote(Vote v){
      */
     protected boolean quorumListenOnAllIPs = false;
 
+    /**
+     * Port on which an observer relays the INFORM stream to other observers,
+     * 0 if it does not.
+     */
+    protected int observerMasterPort = 0;
+
+    /**
+     * Observer masters this observer follows instead of the leader, empty
+     * if it follows the leader.
+     */
+    protected List<InetSocketAddress> observerMasters =
+        Collections.emptyList();
+
+    /**
+     * Index of the observer master to try next and the number of attempts
+     * in a row that failed before the observer was synced.
+     */
+    private int nextObserverMaster = 0;
+    private int observerMasterFailures = 0;
+
+    /**
+     * With leader leases, the time until which a leader this server answered
+     * a ping of, or restarted under, may still hold its lease. The server
+     * takes no part in an election before then, see
+     * {@link Leader#getLearnerLeaseTimeout(int, int)}.
+     */
+    private volatile long leaseFence;
+
+    /**
+     * With leader leases, the vote for the leader this server last gave up
+     * on because it went silent. Until silentLeaderUntil, elections ignore
+     * servers that still report following it, see
+     * {@link #isSilentLeader(long, long)}.
+     */
+    private volatile Vote silentLeader;
+    private volatile long silentLeaderUntil;
+
     /**
      * Keeps time taken for leader election in milliseconds. Sets the value to
      * this variable only after the completion of leader election.
@@ -850,6 +887,8 @@ public synchronized void start() {
             throw new RuntimeException("My id " + myid + " not in the peer list");
          }
         loadDataBase();
+        // We may have answered a ping just before a restart
+        extendLeaseFence();
         startServerCnxnFactory();
         try {
             adminServer.start();
@@ -861,6 +900,55 @@ public synchronized void start() {
         super.start();
     }
 
+    /**
+     * Keeps this server out of elections for the learner lease timeout from
+     * now on, if leader leases are enabled.
+     */
+    void extendLeaseFence() {
+        long timeout = Leader.getLearnerLeaseTimeout(tickTime, syncLimit);
+        if (timeout > 0) {
+            leaseFence = Time.currentElapsedTime() + timeout;
+        }
+    }
+
+    long getLeaseFence() {
+        return leaseFence;
+    }
+
+    /**
+     * Called by a follower whose leader went silent, if leader leases are
+     * enabled. The other followers usually notice at the same time, but
+     * while they shut down they still report following the old leader, and
+     * a frozen leader still answers notifications. Both together look like
+     * an established ensemble that we would otherwise go back to.
+     */
+    void leaderWentSilent() {
+        long timeout = Leader.getLearnerLeaseTimeout(tickTime, syncLimit);
+        if (timeout > 0) {
+            silentLeaderUntil = Time.currentElapsedTime() + timeout;
+            silentLeader = getCurrentVote();
+        }
+    }
+
+    /**
+     * Checks whether sid is the leader of peerEpoch that this server gave up
+     * on for being silent within the last learner lease timeout.
+     */
+    boolean isSilentLeader(long sid, long peerEpoch) {
+        Vote v = silentLeader;
+        return isSilentLeader(sid) && v.getPeerEpoch() == peerEpoch;
+    }
+
+    /**
+     * Checks whether sid is the leader that this server gave up on for
+     * being silent within the last learner lease timeout, in any epoch.
+     */
+    boolean isSilentLeader(long sid) {
+        Vote v = silentLeader;
+        return v != null && v.getId() == sid
+                && Time.currentElapsedTime() < silentLeaderUntil;
+    }
+
     private void loadDataBase() {
         try {
             zkDb.loadDataBase();
@@ -1675,6 +1763,51 @@ public void setQuorumListenOnAllIPs(boolean quorumListenOnAllIPs) {
         this.quorumListenOnAllIPs = quorumListenOnAllIPs;
     }
 
+    public int getObserverMasterPort() {
+        return observerMasterPort;
+    }
+
+    public void setObserverMasterPort(int observerMasterPort) {
+        this.observerMasterPort = observerMasterPort;
+    }
+
+    public List<InetSocketAddress> getObserverMasters() {
+        return observerMasters;
+    }
+
+    public void setObserverMasters(List<InetSocketAddress> observerMasters) {
+        this.observerMasters = observerMasters;
+    }
+
+    /**
+     * Picks what an observer connects to next. It goes through the
+     * observer masters in turn, and to the leader once each of them failed
+     * in a row, until an attempt succeeds again.
+     *
+     * @return the observer master to connect to, or null for the leader
+     */
+    synchronized InetSocketAddress nextObserverMaster() {
+        if (observerMasters.isEmpty()
+                || observerMasterFailures >= observerMasters.size()) {
+            return null;
+        }
+        InetSocketAddress addr = observerMasters.get(
+                nextObserverMaster % observerMasters.size());
+        nextObserverMaster++;
+        return addr;
+    }
+
+    /**
+     * Records whether the last attempt of the observer got it synced.
+     */
+    synchronized void observerSynced(boolean synced) {
+        if (synced) {
+            observerMasterFailures = 0;
+        } else {
+            observerMasterFailures++;
+        }
+    }
+
     public void setCnxnFactory(ServerCnxnFactory cnxnFactory) {
         this.cnxnFactory = cnxnFactory;
     }
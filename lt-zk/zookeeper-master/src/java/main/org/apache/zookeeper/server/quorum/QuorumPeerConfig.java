@@ -91,6 +91,9 @@ public class QuorumPeerConfig {
     protected int snapRetainCount = 3;
     protected int purgeInterval = 0;
     protected boolean syncEnabled = true;
+    protected int observerMasterPort = 0;
+    protected List<InetSocketAddress> observerMasters =
+        new ArrayList<InetSocketAddress>();
 
     protected LearnerType peerType = LearnerType.PARTICIPANT;
 
@@ -284,6 +287,20 @@ public void parseProperties(Properties zkProp)
                 }
             } else if (key.equals( "syncEnabled" )) {
                 syncEnabled = Boolean.parseBoolean(value);
+            } else if (key.equals("observerMasterPort")) {
+                observerMasterPort = Integer.parseInt(value);
+            } else if (key.equals("observerMaster")) {
+                observerMasters.clear();
+                for (String hostPort : value.split(",")) {
+                    hostPort = hostPort.trim();
+                    int colon = hostPort.lastIndexOf(':');
+                    if (colon < 0) {
+                        throw new ConfigException("observerMaster should be a comma "
+                                + "separated list of host:port, got " + value);
+                    }
+                    observerMasters.add(new InetSocketAddress(hostPort.substring(0, colon),
+                            Integer.parseInt(hostPort.substring(colon + 1))));
+                }
             } else if (key.equals("dynamicConfigFile")){
                 dynamicConfigFileStr = value;
             } else if (key.equals("autopurge.snapRetainCount")) {
@@ -754,6 +771,14 @@ public boolean getSyncEnabled() {
         return syncEnabled;
     }
 
+    public int getObserverMasterPort() {
+        return observerMasterPort;
+    }
+
+    public List<InetSocketAddress> getObserverMasters() {
+        return observerMasters;
+    }
+
     public QuorumVerifier getQuorumVerifier() {
         return quorumVerifier;
     }
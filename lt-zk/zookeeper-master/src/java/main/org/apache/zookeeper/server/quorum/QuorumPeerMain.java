@@ -183,6 +183,8 @@ public void runFromConfig(QuorumPeerConfig config)
           quorumPeer.setSecureCnxnFactory(secureCnxnFactory);
           quorumPeer.setLearnerType(config.getPeerType());
           quorumPeer.setSyncEnabled(config.getSyncEnabled());
+          quorumPeer.setObserverMasterPort(config.getObserverMasterPort());
+          quorumPeer.setObserverMasters(config.getObserverMasters());
           quorumPeer.setQuorumListenOnAllIPs(config.getQuorumListenOnAllIPs());
 
           // sets quorum sasl authentication configurations
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.server.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batches the readIndex requests of a learner. At most one READINDEX packet
+ * is outstanding at the leader; requests that arrive while it is in flight
+ * wait for the next round, since the leader may have answered the current
+ * one before they were issued. The leader replies after the COMMITs of
+ * everything it has committed so far, so once the reply is read all of those
+ * have been handed to the CommitProcessor, and committing the readIndex
+ * requests behind them holds the reads of their sessions until the local
+ * state caught up.
+ */
+public class ReadIndexTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(ReadIndexTracker.class);
+
+    private final LearnerZooKeeperServer zks;
+
+    private List<Request> waiting = new ArrayList<Request>();
+
+    private List<Request> inFlight = null;
+
+    private long rounds = 0;
+
+    private long requests = 0;
+
+    ReadIndexTracker(LearnerZooKeeperServer zks) {
+        this.zks = zks;
+    }
+
+    /**
+     * Queue a readIndex request, starting a round at the leader if none is
+     * outstanding.
+     */
+    synchronized void add(Request request) throws IOException {
+        requests++;
+        waiting.add(request);
+        if (inFlight == null) {
+            sendRound();
+        }
+    }
+
+    /**
+     * Called when the leader answered the outstanding round.
+     *
+     * @param zxid the last zxid committed by the leader
+     */
+    synchronized void readIndex(long zxid) throws IOException {
+        if (inFlight == null) {
+            LOG.warn("Not expecting a read index, zxid 0x{}", Long.toHexString(zxid));
+            return;
+        }
+        for (Request request : inFlight) {
+            if (!ObserverMaster.reply(request, Leader.READINDEX, zxid)) {
+                zks.commitProcessor.commit(request);
+            }
+        }
+        inFlight = null;
+        if (!waiting.isEmpty()) {
+            sendRound();
+        }
+    }
+
+    private void sendRound() throws IOException {
+        inFlight = waiting;
+        waiting = new ArrayList<Request>();
+        rounds++;
+        zks.getLearner().writePacket(
+                new QuorumPacket(Leader.READINDEX, -1, null, null), true);
+    }
+
+    /**
+     * @return number of READINDEX rounds sent to the leader
+     */
+    public synchronized long getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return number of readIndex requests served by those rounds
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+}
@@ -80,12 +80,14 @@ public void run() {
                 // filter read requests
                 switch (request.type) {
                 case OpCode.sync:
+                case OpCode.readIndex:
                 case OpCode.create:
                 case OpCode.create2:
                 case OpCode.createTTL:
                 case OpCode.createContainer:
                 case OpCode.delete:
                 case OpCode.deleteContainer:
+                case OpCode.pollFirstChild:
                 case OpCode.setData:
                 case OpCode.reconfig:
                 case OpCode.setACL:
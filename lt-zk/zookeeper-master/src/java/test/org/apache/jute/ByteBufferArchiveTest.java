@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.CreateRequest;
+import org.apache.zookeeper.proto.GetChildren2Response;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ByteBufferArchiveTest {
+
+    private static byte[] binarySerialize(Record r) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(baos).writeRecord(r, "r");
+        return baos.toByteArray();
+    }
+
+    private static byte[] bufferSerialize(ByteBufferRecord r, int capacity)
+            throws IOException {
+        ByteBufferOutputArchive oa = new ByteBufferOutputArchive(
+                ByteBuffer.allocate(capacity));
+        oa.writeRecord(r, "r");
+        ByteBuffer bb = oa.getBuffer();
+        bb.flip();
+        byte b[] = new byte[bb.remaining()];
+        bb.get(b);
+        return b;
+    }
+
+    @Test
+    public void testSameBytesAsBinaryArchive() throws IOException {
+        Stat stat = new Stat(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+        GetChildren2Response rsp = new GetChildren2Response(
+                Arrays.asList("a", "\u00e9t\u00e9", "\u4e2d\u6587", "\ud83d\ude00"), stat);
+        CreateRequest req = new CreateRequest("/foo/bar", new byte[] {1, 2, 3},
+                Ids.OPEN_ACL_UNSAFE, 0);
+        CreateRequest nulls = new CreateRequest(null, null, null, 0);
+
+        for (ByteBufferRecord r : new ByteBufferRecord[] {stat, rsp, req, nulls}) {
+            byte expected[] = binarySerialize(r);
+            Assert.assertEquals(expected.length, r.serializedSize());
+            Assert.assertArrayEquals(expected, bufferSerialize(r, r.serializedSize()));
+            // The archive grows a buffer that is too small
+            Assert.assertArrayEquals(expected, bufferSerialize(r, 1));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        GetChildren2Response rsp = new GetChildren2Response(
+                Arrays.asList("a", "\u00e9t\u00e9", "\u4e2d\u6587"),
+                new Stat(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11));
+        ByteBuffer bb = ByteBuffer.wrap(binarySerialize(rsp));
+        GetChildren2Response read = new GetChildren2Response();
+        new ByteBufferInputArchive(bb).readRecord(read, "r");
+        Assert.assertEquals(rsp, read);
+        Assert.assertEquals(0, bb.remaining());
+
+        // Direct buffers have no array to decode strings from
+        ByteBuffer direct = ByteBuffer.allocateDirect(rsp.serializedSize());
+        new ByteBufferOutputArchive(direct).writeRecord(rsp, "r");
+        direct.flip();
+        read = new GetChildren2Response();
+        new ByteBufferInputArchive(direct).readRecord(read, "r");
+        Assert.assertEquals(rsp, read);
+    }
+
+    @Test
+    public void testReset() throws IOException {
+        Stat stat = new Stat(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+        stat.reset();
+        Assert.assertEquals(new Stat(), stat);
+
+        // A reset record reads the same as a new one
+        CreateRequest req = new CreateRequest("/foo", new byte[10],
+                Ids.OPEN_ACL_UNSAFE, 1);
+        byte b[] = binarySerialize(new CreateRequest("/bar", null, null, 0));
+        req.reset();
+        new ByteBufferInputArchive(ByteBuffer.wrap(b)).readRecord(req, "r");
+        CreateRequest fresh = new CreateRequest();
+        new ByteBufferInputArchive(ByteBuffer.wrap(b)).readRecord(fresh, "r");
+        Assert.assertEquals(fresh.getPath(), req.getPath());
+        Assert.assertNull(req.getData());
+        Assert.assertNull(req.getAcl());
+        Assert.assertEquals(0, req.getFlags());
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        byte b[] = binarySerialize(new CreateRequest("/foo", new byte[10],
+                Ids.OPEN_ACL_UNSAFE, 0));
+        ByteBuffer bb = ByteBuffer.wrap(b, 0, b.length - 1);
+        try {
+            new ByteBufferInputArchive(bb).readRecord(new CreateRequest(), "r");
+            Assert.fail("Should have thrown an EOFException");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReadStringCheckLength() {
+        ByteBuffer bb = ByteBuffer.wrap(new byte[] {
+                Byte.MAX_VALUE, Byte.MAX_VALUE, Byte.MAX_VALUE, Byte.MAX_VALUE});
+        try {
+            new ByteBufferInputArchive(bb).readString("");
+            Assert.fail("Should have thrown an IOException");
+        } catch (IOException e) {
+            Assert.assertTrue("Not 'Unreasonable length' exception: " + e,
+                    e.getMessage().startsWith(BinaryInputArchive.UNREASONBLE_LENGTH));
+        }
+    }
+}
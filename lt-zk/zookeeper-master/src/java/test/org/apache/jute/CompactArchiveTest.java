@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.CreateRequest;
+import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactArchiveTest {
+
+    private static ByteBuffer compactSerialize(int capacity, Record... records)
+            throws IOException {
+        CompactOutputArchive oa = new CompactOutputArchive(
+                ByteBuffer.allocate(capacity));
+        for (Record r : records) {
+            oa.writeRecord(r, "r");
+        }
+        ByteBuffer bb = oa.getBuffer();
+        bb.flip();
+        return bb;
+    }
+
+    private static int binarySize(Record... records) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(baos);
+        for (Record r : records) {
+            oa.writeRecord(r, "r");
+        }
+        return baos.size();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Stat stat = new Stat(0x100000001L, 0x100000005L, 1500000000000L,
+                1500000001000L, 3, 7, 0, 0x15e5a2b3c4d0001L, 5, 7, 0x100000007L);
+        GetChildren2Response rsp = new GetChildren2Response(
+                Arrays.asList("a", "\u00e9t\u00e9", "\u4e2d\u6587"), stat);
+        CreateRequest req = new CreateRequest("/foo/bar", new byte[] {1, 2, 3},
+                Ids.OPEN_ACL_UNSAFE, 0);
+        CreateRequest nulls = new CreateRequest(null, null, null, 0);
+        Stat extremes = new Stat(Long.MIN_VALUE, Long.MAX_VALUE, -1, 0,
+                Integer.MIN_VALUE, Integer.MAX_VALUE, -1, Long.MIN_VALUE,
+                0, 1, Long.MAX_VALUE);
+        ReplyHeader h = new ReplyHeader(-1, 0x100000009L, -101);
+
+        // A single slot buffer has to grow
+        ByteBuffer bb = compactSerialize(1, h, stat, rsp, req, nulls, extremes);
+        CompactInputArchive ia = new CompactInputArchive(bb);
+        for (Record expected : new Record[] {h, stat, rsp, req, nulls, extremes}) {
+            Record read = expected.getClass().newInstance();
+            ia.readRecord(read, "r");
+            if (expected instanceof CreateRequest) {
+                CreateRequest e = (CreateRequest) expected;
+                CreateRequest r = (CreateRequest) read;
+                Assert.assertEquals(e.getPath(), r.getPath());
+                Assert.assertArrayEquals(e.getData(), r.getData());
+                Assert.assertEquals(e.getAcl(), r.getAcl());
+                Assert.assertEquals(e.getFlags(), r.getFlags());
+            } else {
+                Assert.assertEquals(expected, read);
+            }
+        }
+        Assert.assertEquals(0, bb.remaining());
+    }
+
+    @Test
+    public void testReplySizes() throws IOException {
+        ReplyHeader h = new ReplyHeader(42, 0x100000123L, 0);
+        Stat stat = new Stat(0x100000100L, 0x100000120L, 1500000000000L,
+                1500000060000L, 4, 0, 0, 0, 16, 0, 0x100000100L);
+        GetDataResponse rsp = new GetDataResponse(new byte[16], stat);
+
+        Assert.assertEquals(68, binarySize(stat));
+        int compact = compactSerialize(16, h, rsp).remaining();
+        Assert.assertEquals(16 + 68 + 4 + 16, binarySize(h, rsp));
+        // zxids are two bytes, the times six bytes
+        Assert.assertTrue("compact reply of " + compact + " bytes",
+                compact <= 50);
+    }
+
+    @Test
+    public void testZxidDeltasPerArchive() throws IOException {
+        ReplyHeader h = new ReplyHeader(1, 0x500000001L, 0);
+        ByteBuffer first = compactSerialize(16, h);
+        ByteBuffer second = compactSerialize(16, h);
+        // Every archive starts from zero
+        Assert.assertEquals(first, second);
+        ReplyHeader read = new ReplyHeader();
+        new CompactInputArchive(second).readRecord(read, "r");
+        Assert.assertEquals(h, read);
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        ByteBuffer bb = compactSerialize(16, new CreateRequest("/foo",
+                new byte[10], Ids.OPEN_ACL_UNSAFE, 0));
+        bb.limit(bb.limit() - 1);
+        try {
+            new CompactInputArchive(bb).readRecord(new CreateRequest(), "r");
+            Assert.fail("Should have thrown an EOFException");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIntOverflow() {
+        ByteBuffer bb = ByteBuffer.allocate(16);
+        try {
+            new CompactOutputArchive(bb).writeLong(1L << 40, "l");
+            bb.flip();
+            new CompactInputArchive(bb).readInt("i");
+            Assert.fail("Should have thrown an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
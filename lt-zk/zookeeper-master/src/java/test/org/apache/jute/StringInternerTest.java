@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StringInternerTest {
+
+    private static ByteBuffer encode(String... strings) throws IOException {
+        ByteBufferOutputArchive oa = new ByteBufferOutputArchive(ByteBuffer.allocate(16));
+        for (String s : strings) {
+            oa.writeString(s, "s");
+        }
+        ByteBuffer bb = oa.getBuffer();
+        bb.flip();
+        return bb;
+    }
+
+    @Test
+    public void testRepeatedStringsShareInstance() throws IOException {
+        StringInterner interner = new StringInterner(16, 64);
+        ByteBuffer bb = encode("/foo/bar", "/foo/bar", "/foo/baz", "/\u00e9t\u00e9");
+        ByteBufferInputArchive ia = new ByteBufferInputArchive(bb, interner);
+        String first = ia.readString("s");
+        String second = ia.readString("s");
+        Assert.assertEquals("/foo/bar", first);
+        Assert.assertSame(first, second);
+        Assert.assertEquals("/foo/baz", ia.readString("s"));
+        Assert.assertEquals("/\u00e9t\u00e9", ia.readString("s"));
+
+        // Decoded from another buffer, still the same instance
+        String third = new ByteBufferInputArchive(encode("/foo/bar"), interner)
+                .readString("s");
+        Assert.assertSame(first, third);
+    }
+
+    @Test
+    public void testCollisionsReplaceEntry() throws IOException {
+        // A single slot, every string collides
+        StringInterner interner = new StringInterner(1, 64);
+        ByteBufferInputArchive ia = new ByteBufferInputArchive(
+                encode("/a", "/b", "/a", "/a"), interner);
+        Assert.assertEquals("/a", ia.readString("s"));
+        Assert.assertEquals("/b", ia.readString("s"));
+        String a = ia.readString("s");
+        Assert.assertEquals("/a", a);
+        Assert.assertSame(a, ia.readString("s"));
+    }
+
+    @Test
+    public void testLongStringsNotInterned() throws IOException {
+        StringInterner interner = new StringInterner(16, 4);
+        ByteBufferInputArchive ia = new ByteBufferInputArchive(
+                encode("/long/path", "/long/path"), interner);
+        String first = ia.readString("s");
+        String second = ia.readString("s");
+        Assert.assertEquals(first, second);
+        Assert.assertNotSame(first, second);
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Id;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ACLPermissionCacheTest {
+    private static final List<Id> ALICE = Arrays.asList(
+            new Id("ip", "127.0.0.1"), new Id("digest", "alice:xyz"));
+
+    @Test
+    public void testKeyedByAclAndIds() {
+        ACLPermissionCache cache = new ACLPermissionCache(16);
+        assertEquals(-1, cache.get(1, ALICE));
+        cache.put(1, ALICE, ZooDefs.Perms.READ);
+        assertEquals(ZooDefs.Perms.READ, cache.get(1, ALICE));
+        // Equal credentials of another request
+        assertEquals(ZooDefs.Perms.READ, cache.get(1, Arrays.asList(
+                new Id("ip", "127.0.0.1"), new Id("digest", "alice:xyz"))));
+        assertEquals(-1, cache.get(2, ALICE));
+        assertEquals(-1, cache.get(1, Collections.singletonList(new Id("ip", "127.0.0.1"))));
+
+        cache.clear();
+        assertEquals(-1, cache.get(1, ALICE));
+    }
+
+    @Test
+    public void testCollisionsReplaceEntry() {
+        // A single slot, every key collides
+        ACLPermissionCache cache = new ACLPermissionCache(1);
+        cache.put(1, ALICE, ZooDefs.Perms.READ);
+        cache.put(2, ALICE, ZooDefs.Perms.ALL);
+        assertEquals(-1, cache.get(1, ALICE));
+        assertEquals(ZooDefs.Perms.ALL, cache.get(2, ALICE));
+    }
+
+    @Test
+    public void testDisabled() {
+        ACLPermissionCache cache = new ACLPermissionCache(0);
+        cache.put(1, ALICE, ZooDefs.Perms.READ);
+        assertEquals(-1, cache.get(1, ALICE));
+    }
+}
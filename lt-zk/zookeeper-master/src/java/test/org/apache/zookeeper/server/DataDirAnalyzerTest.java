@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.common.IOUtils;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateSessionTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.ErrorTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataDirAnalyzerTest extends ZKTestCase {
+    private File tmpDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = ClientBase.createTmpDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ClientBase.recursiveDelete(tmpDir);
+    }
+
+    @Test
+    public void testSnapshotReport() throws Exception {
+        DataTree dt = new DataTree();
+        dt.createNode("/a", new byte[10], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 1, 1, 1);
+        dt.createNode("/a/b", new byte[100], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 1, 2, 1);
+        dt.createNode("/a/b/c", new byte[5], ZooDefs.Ids.OPEN_ACL_UNSAFE, 5, 1, 3, 1);
+        dt.createNode("/x", new byte[1], ZooDefs.Ids.OPEN_ACL_UNSAFE, 5, 1, 4, 1);
+        dt.createNode("/y", new byte[2], ZooDefs.Ids.OPEN_ACL_UNSAFE, 6, 1, 5, 1);
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        sessions.put(5L, 3000);
+        sessions.put(6L, 4000);
+        sessions.put(7L, 5000);
+        new FileSnap(tmpDir).serialize(dt, sessions,
+                new File(tmpDir, Util.makeSnapshotName(5)), false);
+
+        DataDirAnalyzer analyzer = new DataDirAnalyzer();
+        analyzer.setTop(2);
+        Map<String, Object> result = analyze(analyzer,
+                Collections.singletonList(new File(tmpDir, Util.makeSnapshotName(5))),
+                Collections.<File>emptyList());
+
+        List<?> snapshots = (List<?>) result.get("snapshots");
+        Assert.assertEquals(1, snapshots.size());
+        Map<?, ?> snap = (Map<?, ?>) snapshots.get(0);
+        Assert.assertEquals("0x5", snap.get("zxid"));
+        // the tree has the root under both "" and "/"
+        Assert.assertEquals(dt.getNodeCount() - 1, ((Number) snap.get("node_count")).intValue());
+
+        Map<?, ?> prefixes = (Map<?, ?>) snap.get("prefixes");
+        assertCounts(1, 10, prefixes.get("/a"));
+        assertCounts(2, 105, prefixes.get("/a/b"));
+        assertCounts(1, 1, prefixes.get("/x"));
+        assertCounts(1, 0, prefixes.get("/"));
+
+        List<?> largest = (List<?>) snap.get("largest_nodes");
+        Assert.assertEquals(2, largest.size());
+        Assert.assertEquals("/a/b", ((Map<?, ?>) largest.get(0)).get("path"));
+        Assert.assertEquals("/a", ((Map<?, ?>) largest.get(1)).get("path"));
+
+        List<?> sessionList = (List<?>) snap.get("sessions");
+        Assert.assertEquals(3, sessionList.size());
+        assertSession("0x5", 3000, 2, sessionList.get(0));
+        assertSession("0x6", 4000, 1, sessionList.get(1));
+        assertSession("0x7", 5000, 0, sessionList.get(2));
+    }
+
+    @Test
+    public void testLogReport() throws Exception {
+        FileTxnLog log = new FileTxnLog(tmpDir);
+        log.append(new TxnHeader(1, 1, 1, 1000, OpCode.createSession),
+                new CreateSessionTxn(3000));
+        log.append(new TxnHeader(1, 2, 2, 2000, OpCode.create),
+                new CreateTxn("/a/b/c", new byte[1], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0));
+        log.rollLog();
+        log.append(new TxnHeader(1, 3, 3, 61000, OpCode.setData),
+                new SetDataTxn("/a/b", new byte[1], 1));
+        log.append(new TxnHeader(2, 1, 4, 62000, OpCode.multi), new MultiTxn(Arrays.asList(
+                txn(OpCode.create, new CreateTxn("/x/y", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0)),
+                txn(OpCode.setData, new SetDataTxn("/a/d", new byte[0], 1)))));
+        log.append(new TxnHeader(2, 2, 5, 63000, OpCode.multi), new MultiTxn(Arrays.asList(
+                txn(OpCode.error, new ErrorTxn(0)),
+                txn(OpCode.error, new ErrorTxn(-101)))));
+        log.append(new TxnHeader(1, 4, 6, 64000, OpCode.delete),
+                new DeleteTxn("/a/b/c"));
+        log.commit();
+        log.close();
+
+        List<File> logs = new ArrayList<File>();
+        for (File f : tmpDir.listFiles()) {
+            if (Util.isLogFileName(f.getName())) {
+                logs.add(f);
+            }
+        }
+        Assert.assertEquals(2, logs.size());
+
+        DataDirAnalyzer analyzer = new DataDirAnalyzer();
+        analyzer.setThreads(2);
+        Map<String, Object> result = analyze(analyzer,
+                Collections.<File>emptyList(), logs);
+
+        Map<?, ?> report = (Map<?, ?>) result.get("txnlogs");
+        Assert.assertEquals(2, ((Number) report.get("files")).intValue());
+        Assert.assertEquals(6, ((Number) report.get("txn_count")).intValue());
+        Assert.assertEquals("0x1", report.get("first_zxid"));
+        Assert.assertEquals("0x6", report.get("last_zxid"));
+
+        Map<?, ?> writes = (Map<?, ?>) report.get("writes");
+        Assert.assertEquals(3, writes.size());
+        Map<?, ?> ab = (Map<?, ?>) writes.get("/a/b");
+        Assert.assertEquals(1, ((Number) ab.get("0")).intValue());
+        Assert.assertEquals(2, ((Number) ab.get("60000")).intValue());
+        Assert.assertEquals(1, ((Number) ((Map<?, ?>) writes.get("/x/y")).get("60000")).intValue());
+        Assert.assertEquals(1, ((Number) ((Map<?, ?>) writes.get("/a/d")).get("60000")).intValue());
+
+        List<?> writers = (List<?>) report.get("top_writers");
+        Assert.assertEquals(2, writers.size());
+        Map<?, ?> writer = (Map<?, ?>) writers.get(0);
+        Assert.assertEquals("0x1", writer.get("session_id"));
+        Assert.assertEquals(4, ((Number) writer.get("txn_count")).intValue());
+        writer = (Map<?, ?>) writers.get(1);
+        Assert.assertEquals("0x2", writer.get("session_id"));
+        Assert.assertEquals(2, ((Number) writer.get("txn_count")).intValue());
+    }
+
+    /**
+     * Analyze and read the JSON back, the report should only be made of
+     * maps, lists, strings and numbers.
+     */
+    private Map<String, Object> analyze(DataDirAnalyzer analyzer,
+            List<File> snapshots, List<File> logs) throws Exception {
+        StringWriter out = new StringWriter();
+        analyzer.write(analyzer.analyze(snapshots, logs), out);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = new ObjectMapper().readValue(out.toString(), Map.class);
+        return result;
+    }
+
+    private void assertCounts(int count, int bytes, Object counts) {
+        Assert.assertNotNull(counts);
+        Assert.assertEquals(count, ((Number) ((Map<?, ?>) counts).get("node_count")).intValue());
+        Assert.assertEquals(bytes, ((Number) ((Map<?, ?>) counts).get("data_bytes")).intValue());
+    }
+
+    private void assertSession(String id, int timeout, int ephemerals, Object o) {
+        Map<?, ?> session = (Map<?, ?>) o;
+        Assert.assertEquals(id, session.get("session_id"));
+        Assert.assertEquals(timeout, ((Number) session.get("timeout")).intValue());
+        Assert.assertEquals(ephemerals, ((Number) session.get("ephemeral_count")).intValue());
+    }
+
+    private static Txn txn(int type, Record record) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            record.serialize(BinaryOutputArchive.getArchive(baos), "txn");
+        } finally {
+            IOUtils.closeStream(baos);
+        }
+        return new Txn(type, baos.toByteArray());
+    }
+}
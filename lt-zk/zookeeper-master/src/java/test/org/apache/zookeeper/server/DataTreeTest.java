@@ -27,6 +27,7 @@
 import org.apache.zookeeper.ZKTestCase;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.ChildData;
 import org.apache.zookeeper.data.Stat;
 import org.junit.After;
 import org.junit.Assert;
@@ -40,6 +41,7 @@
 import java.io.StringWriter;
 
 import org.apache.zookeeper.Quotas;
+import org.apache.zookeeper.StatsTrack;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
@@ -50,6 +52,9 @@
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 
 public class DataTreeTest extends ZKTestCase {
     protected static final Logger LOG = LoggerFactory.getLogger(DataTreeTest.class);
@@ -153,6 +158,194 @@ public void testIncrementCversion() throws Exception {
                 (newCversion == prevCversion + 1 && newPzxid == prevPzxid + 1));
     }
 
+    /** the stat node as it is in the tree, the writes keep it up to date */
+    private StatsTrack quotaStats(DataTree tree, String path) throws Exception {
+        return new StatsTrack(new String(
+                tree.getNode(Quotas.statPath(path)).data));
+    }
+
+    /** approximateDataSize as it used to be computed, walking all nodes */
+    @SuppressWarnings("unchecked")
+    private static long walkDataSize(DataTree tree) throws Exception {
+        Field field = DataTree.class.getDeclaredField("nodes");
+        field.setAccessible(true);
+        long result = 0;
+        for (Map.Entry<String, DataNode> e
+                : ((Map<String, DataNode>) field.get(tree)).entrySet()) {
+            result += e.getKey().length() + e.getValue().getApproximateDataSize();
+        }
+        return result;
+    }
+
+    @Test(timeout = 60000)
+    public void testIncrementalStats() throws Exception {
+        dt.createNode("/app1", new byte[5], null, 0, 1, 1, 1);
+        dt.createNode("/app1/a", new byte[10], null, 1, 1, 1, 1);
+        dt.createNode("/app2", null, null, 0, 1, 1, 1);
+        dt.setData("/app1", new byte[2], 1, 1, 1);
+        Assert.assertEquals(walkDataSize(dt), dt.approximateDataSize());
+        Assert.assertEquals(1, dt.getEphemeralsCount());
+        DataTree.NamespaceStats app1 = dt.getNamespaceStats().get("/app1");
+        Assert.assertEquals(2, app1.getNodeCount());
+        Assert.assertEquals("/app1".length() + 2 + "/app1/a".length() + 10,
+                app1.getApproximateDataSize());
+        Assert.assertEquals(1, dt.getNamespaceStats().get("/app2").getNodeCount());
+
+        dt.getData("/app1", new Stat(), new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+            }
+        });
+        Assert.assertEquals(1, dt.getWatchCount());
+        dt.setData("/app1", new byte[3], 2, 2, 2);
+        Assert.assertEquals(0, dt.getWatchCount());
+
+        dt.killSession(1, 3);
+        Assert.assertEquals(0, dt.getEphemeralsCount());
+        Assert.assertEquals(1, app1.getNodeCount());
+        dt.deleteNode("/app2", 4);
+        Assert.assertNull(dt.getNamespaceStats().get("/app2"));
+        Assert.assertEquals(walkDataSize(dt), dt.approximateDataSize());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serialize(BinaryOutputArchive.getArchive(baos), "test");
+        DataTree loaded = new DataTree();
+        loaded.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "test");
+        Assert.assertEquals(walkDataSize(loaded), loaded.approximateDataSize());
+        Assert.assertEquals(dt.approximateDataSize(), loaded.approximateDataSize());
+        Assert.assertEquals(1, loaded.getNamespaceStats().get("/app1").getNodeCount());
+    }
+
+    @Test(timeout = 60000)
+    public void testReapingIndexes() throws Exception {
+        long container = EphemeralType.CONTAINER_EPHEMERAL_OWNER;
+        dt.createNode("/c", null, null, container, -1, 1, 1);
+        Assert.assertTrue(dt.getEmptyContainers().isEmpty());
+        dt.createNode("/c/child", null, null, 0, -1, 2, 2);
+        Assert.assertTrue(dt.getEmptyContainers().isEmpty());
+        dt.deleteNode("/c/child", 3);
+        Assert.assertEquals(Collections.singleton("/c"), dt.getEmptyContainers());
+
+        dt.createNode("/t1", null, null,
+                EphemeralType.ttlToEphemeralOwner(300), -1, 4, 100);
+        dt.createNode("/t2", null, null,
+                EphemeralType.ttlToEphemeralOwner(100), -1, 5, 100);
+        Assert.assertEquals(Arrays.asList("/t2@200", "/t1@400"),
+                deadlines(dt));
+        dt.setData("/t2", null, 1, 6, 350);
+        Assert.assertEquals(Arrays.asList("/t1@400", "/t2@450"),
+                deadlines(dt));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serialize(BinaryOutputArchive.getArchive(baos), "test");
+        DataTree loaded = new DataTree();
+        loaded.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "test");
+        Assert.assertEquals(Collections.singleton("/c"), loaded.getEmptyContainers());
+        Assert.assertEquals(deadlines(dt), deadlines(loaded));
+
+        dt.deleteNode("/c", 7);
+        dt.deleteNode("/t1", 8);
+        Assert.assertTrue(dt.getEmptyContainers().isEmpty());
+        Assert.assertEquals(Arrays.asList("/t2@450"), deadlines(dt));
+    }
+
+    private static List<String> deadlines(DataTree tree) {
+        List<String> result = new ArrayList<String>();
+        for (DataTree.TtlDeadline deadline : tree.getTtlDeadlines()) {
+            result.add(deadline.toString());
+        }
+        return result;
+    }
+
+    @Test(timeout = 60000)
+    public void testTreeDigest() throws Exception {
+        long empty = dt.getTreeDigest();
+        dt.createNode("/a", new byte[] {1}, null, 0, -1, 1, 1);
+        dt.createNode("/a/b", null, null, 0, -1, 2, 2);
+        long digest = dt.getTreeDigest();
+        Assert.assertNotEquals(empty, digest);
+
+        // the same txns give the same digest
+        DataTree other = new DataTree();
+        other.createNode("/a", new byte[] {1}, null, 0, -1, 1, 1);
+        other.createNode("/a/b", null, null, 0, -1, 2, 2);
+        Assert.assertEquals(digest, other.getTreeDigest());
+
+        // the data, the stat and the /zookeeper subtree
+        dt.setData("/a/b", new byte[] {1}, 1, 3, 3);
+        Assert.assertNotEquals(digest, dt.getTreeDigest());
+        other.setData("/a/b", new byte[] {2}, 1, 3, 3);
+        Assert.assertNotEquals(dt.getTreeDigest(), other.getTreeDigest());
+        other.setData("/a/b", new byte[] {1}, 1, 4, 3);
+        Assert.assertNotEquals(dt.getTreeDigest(), other.getTreeDigest());
+        digest = dt.getTreeDigest();
+        dt.createNode(Quotas.quotaZookeeper + "/a", null, null, 0, -1, 4, 4);
+        Assert.assertEquals(digest, dt.getTreeDigest());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serialize(BinaryOutputArchive.getArchive(baos), "test");
+        DataTree loaded = new DataTree();
+        loaded.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "test");
+        Assert.assertEquals(digest, loaded.getTreeDigest());
+
+        dt.deleteNode("/a/b", 5);
+        loaded.deleteNode("/a/b", 5);
+        Assert.assertEquals(dt.getTreeDigest(), loaded.getTreeDigest());
+        Assert.assertNotEquals(digest, dt.getTreeDigest());
+    }
+
+    @Test(timeout = 60000)
+    public void testQuotaCounters() throws Exception {
+        dt.createNode("/a", new byte[5], null, -1, 1, 1, 1);
+        dt.createNode("/a/b", new byte[3], null, -1, 1, 1, 1);
+        dt.createNode("/other", new byte[7], null, -1, 1, 1, 1);
+        dt.createNode(Quotas.quotaZookeeper + "/a", null, null, -1, 1, 1, 1);
+        dt.createNode(Quotas.quotaPath("/a"), "count=10,bytes=-1".getBytes(),
+                null, -1, 1, 1, 1);
+        dt.createNode(Quotas.statPath("/a"), "count=0,bytes=0".getBytes(),
+                null, -1, 1, 1, 1);
+        StatsTrack stats = quotaStats(dt, "/a");
+        Assert.assertEquals(2, stats.getCount());
+        Assert.assertEquals(8, stats.getBytes());
+
+        dt.createNode("/a/b/c", new byte[10], null, -1, 1, 1, 1);
+        dt.setData("/a/b", new byte[1], 1, 1, 1);
+        dt.createNode("/other/x", new byte[100], null, -1, 1, 1, 1);
+        stats = quotaStats(dt, "/a");
+        Assert.assertEquals(3, stats.getCount());
+        Assert.assertEquals(16, stats.getBytes());
+
+        dt.deleteNode("/a/b/c", 1);
+        stats = quotaStats(dt, "/a");
+        Assert.assertEquals(2, stats.getCount());
+        Assert.assertEquals(6, stats.getBytes());
+
+        // a snapshot has the current counts, and they are counted again
+        // when it is loaded
+        dt.createNode("/a/d", new byte[4], null, -1, 1, 1, 1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serialize(BinaryOutputArchive.getArchive(baos), "test");
+        DataTree loaded = new DataTree();
+        loaded.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "test");
+        for (DataTree tree : new DataTree[] {dt, loaded}) {
+            stats = quotaStats(tree, "/a");
+            Assert.assertEquals(3, stats.getCount());
+            Assert.assertEquals(10, stats.getBytes());
+        }
+        loaded.createNode("/a/e", null, null, -1, 1, 1, 1);
+        Assert.assertEquals(4, quotaStats(loaded, "/a").getCount());
+
+        // without the limit node there is nothing to count any more
+        dt.deleteNode(Quotas.quotaPath("/a"), 1);
+        Assert.assertNull(dt.getMaxPrefixWithQuota("/a/d"));
+        dt.createNode("/a/f", null, null, -1, 1, 1, 1);
+        Assert.assertEquals(3, quotaStats(dt, "/a").getCount());
+    }
+
     @Test(timeout = 60000)
     public void testPathTrieClearOnDeserialize() throws Exception {
 
@@ -281,4 +474,166 @@ public void testReconfigACLClearOnDeserialize() throws Exception {
             "expected to have the same acl", ZooDefs.Ids.OPEN_ACL_UNSAFE,
             tree.getACL("/bug", new Stat()));
     }
+
+    @Test
+    public void testGetChildrenWithData() throws Exception {
+        DataTree tree = new DataTree();
+        tree.createNode("/app", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 1, 1);
+        tree.createNode("/app/b", "b".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 2, 1);
+        tree.createNode("/app/a", "a".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 3, 1);
+        tree.createNode("/app/a/x", "ax".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 4, 1);
+        tree.createNode("/app/a/x/y", "axy".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 5, 1);
+
+        List<ChildData> children = new ArrayList<ChildData>();
+        Assert.assertFalse(tree.getChildrenWithData("/app", 1, Integer.MAX_VALUE,
+                null, children));
+        Assert.assertEquals(2, children.size());
+        Assert.assertEquals("a", children.get(0).getPath());
+        Assert.assertEquals("a", new String(children.get(0).getData()));
+        Assert.assertEquals(3, children.get(0).getStat().getCzxid());
+        Assert.assertEquals(1, children.get(0).getStat().getNumChildren());
+        Assert.assertEquals("b", children.get(1).getPath());
+
+        // Breadth first
+        children.clear();
+        Assert.assertFalse(tree.getChildrenWithData("/app", Integer.MAX_VALUE,
+                Integer.MAX_VALUE, null, children));
+        List<String> paths = new ArrayList<String>();
+        for (ChildData child : children) {
+            paths.add(child.getPath());
+        }
+        Assert.assertEquals(Arrays.asList("a", "b", "a/x", "a/x/y"), paths);
+
+        // Stops before going over maxBytes
+        int firstTwo = children.get(0).serializedSize()
+            + children.get(1).serializedSize();
+        children.clear();
+        Assert.assertTrue(tree.getChildrenWithData("/app", 2, firstTwo,
+                null, children));
+        Assert.assertEquals(2, children.size());
+
+        // A rejected node is left out with its descendants
+        children.clear();
+        tree.getChildrenWithData("/app", Integer.MAX_VALUE, Integer.MAX_VALUE,
+                new DataTree.ChildFilter() {
+                    @Override
+                    public boolean accept(String path, DataNode node) {
+                        return !path.equals("/app/a/x");
+                    }
+                }, children);
+        Assert.assertEquals(2, children.size());
+
+        try {
+            tree.getChildrenWithData("/missing", 1, Integer.MAX_VALUE, null,
+                    children);
+            Assert.fail("Should have thrown NoNodeException");
+        } catch (NoNodeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGetChildrenPage() throws Exception {
+        DataTree tree = new DataTree();
+        tree.createNode("/queue", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 1, 1);
+        for (int i = 9; i >= 0; i--) {
+            tree.createNode("/queue/item-" + i, new byte[0],
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 10 - i, 1);
+        }
+
+        List<String> page = new ArrayList<String>();
+        Stat stat = new Stat();
+        Assert.assertTrue(tree.getChildren("/queue", null, 3, Integer.MAX_VALUE,
+                stat, null, page));
+        Assert.assertEquals(Arrays.asList("item-0", "item-1", "item-2"), page);
+        Assert.assertEquals(10, stat.getNumChildren());
+
+        // The sorted index follows creates and deletes once built
+        tree.deleteNode("/queue/item-3", 11);
+        tree.createNode("/queue/item-10", new byte[0],
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 12, 1);
+        page.clear();
+        Assert.assertTrue(tree.getChildren("/queue", "item-2", 3,
+                Integer.MAX_VALUE, null, null, page));
+        Assert.assertEquals(Arrays.asList("item-4", "item-5", "item-6"), page);
+        page.clear();
+        Assert.assertFalse(tree.getChildren("/queue", "item-6", 10,
+                Integer.MAX_VALUE, null, null, page));
+        Assert.assertEquals(Arrays.asList("item-7", "item-8", "item-9"), page);
+        // Lexical order, as for zero padded sequence numbers
+        page.clear();
+        Assert.assertTrue(tree.getChildren("/queue", "item-1", 1,
+                Integer.MAX_VALUE, null, null, page));
+        Assert.assertEquals(Arrays.asList("item-10"), page);
+
+        // Stops before going over maxBytes
+        page.clear();
+        Assert.assertTrue(tree.getChildren("/queue", null, 10,
+                2 * (4 + "item-0".length()), null, null, page));
+        Assert.assertEquals(2, page.size());
+
+        // Only the stat
+        page.clear();
+        Assert.assertTrue(tree.getChildren("/queue", null, 0, Integer.MAX_VALUE,
+                stat, null, page));
+        Assert.assertTrue(page.isEmpty());
+        Assert.assertEquals(10, stat.getNumChildren());
+    }
+
+    @Test
+    public void testSequentialChildren() throws Exception {
+        DataTree tree = new DataTree();
+        tree.createNode("/lock", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 1, 1);
+        // Different prefixes, ordered by the sequence number only
+        tree.createNode("/lock/x-2-0000000002", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 2, 1);
+        tree.createNode("/lock/x-1-0000000001", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 3, 1);
+        tree.createNode("/lock/a-0000000003", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 4, 1);
+        tree.createNode("/lock/config", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 5, 1);
+
+        Assert.assertEquals("x-1-0000000001", tree.getFirstSequentialChild("/lock", null));
+        Assert.assertEquals("x-2-0000000002",
+                tree.getSequentialPredecessor("/lock/a-0000000003", null));
+        Assert.assertNull(tree.getSequentialPredecessor("/lock/x-1-0000000001", null));
+
+        // The index follows creates and deletes once built
+        tree.deleteNode("/lock/x-1-0000000001", 6);
+        tree.createNode("/lock/x-1-0000000004", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 7, 1);
+        Assert.assertEquals("x-2-0000000002", tree.getFirstSequentialChild("/lock", null));
+        Assert.assertEquals("a-0000000003",
+                tree.getSequentialPredecessor("/lock/x-1-0000000004", null));
+
+        // The watch is left on the predecessor
+        final AtomicBoolean fired = new AtomicBoolean();
+        tree.getSequentialPredecessor("/lock/a-0000000003", new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                fired.set(event.getPath().equals("/lock/x-2-0000000002"));
+            }
+        });
+        tree.deleteNode("/lock/x-2-0000000002", 8);
+        Assert.assertTrue(fired.get());
+
+        tree.createNode("/empty", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, -1, 9, 1);
+        Assert.assertNull(tree.getFirstSequentialChild("/empty", null));
+        try {
+            tree.getSequentialPredecessor("/lock/x-3-0000000009", null);
+            Assert.fail("Should have thrown NoNodeException");
+        } catch (NoNodeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIsSequential() {
+        Assert.assertTrue(DataNode.isSequential("qn-0000000012"));
+        Assert.assertTrue(DataNode.isSequential("0000000000"));
+        Assert.assertTrue(DataNode.isSequential("lock--000000001"));
+        Assert.assertFalse(DataNode.isSequential("qn-12"));
+        Assert.assertFalse(DataNode.isSequential("config"));
+        Assert.assertFalse(DataNode.isSequential("qn-00000000x2"));
+        Assert.assertEquals(12, DataNode.sequenceOf("qn-0000000012"));
+        Assert.assertEquals(-1, DataNode.sequenceOf("lock--000000001"));
+        // Larger than an int, made by hand rather than by the server
+        Assert.assertTrue(DataNode.SEQUENCE_ORDER.compare("9999999999", "a-0000000001") > 0);
+    }
 }
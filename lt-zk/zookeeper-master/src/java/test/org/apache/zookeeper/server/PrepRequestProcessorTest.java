@@ -29,6 +29,7 @@
 import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.data.StatPersisted;
 import org.apache.zookeeper.proto.SetDataRequest;
 import org.apache.zookeeper.server.ZooKeeperServer.ChangeRecord;
 import org.apache.zookeeper.test.ClientBase;
@@ -181,6 +182,27 @@ public void testMultiRollbackNoLastChange() throws Exception {
         Assert.assertNull(zks.outstandingChangesForPath.get("/foo"));
     }
 
+    /**
+     * A rollback only restores the records of changes that have not been
+     * applied to the DataTree yet.
+     */
+    @Test
+    public void testMultiRollbackSkipsAppliedChanges() throws Exception {
+        processor = new PrepRequestProcessor(zks, new MyRequestProcessor());
+        ChangeRecord applied = new ChangeRecord(1, "/applied", new StatPersisted(), 0, null);
+        ChangeRecord pending = new ChangeRecord(3, "/pending", new StatPersisted(), 0, null);
+        zks.outstandingChanges.add(pending);
+        zks.lastAppliedChangeZxid = 2;
+
+        Map<String, ChangeRecord> records = new HashMap<String, ChangeRecord>();
+        records.put(applied.path, applied);
+        records.put(pending.path, pending);
+        processor.rollbackPendingChanges(4, records);
+
+        Assert.assertNull(zks.outstandingChangesForPath.get("/applied"));
+        Assert.assertSame(pending, zks.outstandingChangesForPath.get("/pending"));
+    }
+
     /**
      * It tests that PrepRequestProcessor will return BadArgument KeeperException
      * if the request path (if it exists) is not valid, e.g. empty string.
@@ -22,6 +22,7 @@
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -430,6 +431,58 @@ public void testPurgeTxnLogWithoutDataDir()
 
     }
 
+    /**
+     * Tests that the retained snapshots are also limited by the size of the
+     * snapshots and logs, but not below 3 snapshots, and that the deletes
+     * are counted in the purge stats
+     */
+    @Test
+    public void testRetainedSizeLimit() throws Exception {
+        AtomicInteger offset = new AtomicInteger(0);
+        tmpDir = ClientBase.createTmpDir();
+        File version2 = new File(tmpDir.toString(), "version-2");
+        Assert.assertTrue("Failed to create version_2 dir:" + version2.toString(),
+                version2.mkdir());
+        List<File> snaps = new ArrayList<File>();
+        List<File> logs = new ArrayList<File>();
+        createDataDirFiles(offset, 6, false, version2, snaps, logs);
+        for (File f : snaps) {
+            setLength(f, 100);
+        }
+        for (File f : logs) {
+            setLength(f, 100);
+        }
+
+        FileTxnSnapLog txnLog = new FileTxnSnapLog(tmpDir, tmpDir);
+        List<File> recent = txnLog.findNRecentSnapshots(6);
+        Assert.assertEquals(6, PurgeTxnLog.limitRetainedSize(txnLog, recent, 0).size());
+        // 4 snapshots and the 5 logs from the one before the oldest of them
+        Assert.assertEquals(snaps.subList(0, 4),
+                PurgeTxnLog.limitRetainedSize(txnLog, recent, 950));
+        Assert.assertEquals(900, PurgeTxnLog.getStats().getRetainedBytes());
+        Assert.assertEquals(3, PurgeTxnLog.limitRetainedSize(txnLog, recent, 10).size());
+
+        long filesDeleted = PurgeTxnLog.getStats().getFilesDeleted();
+        long bytesDeleted = PurgeTxnLog.getStats().getBytesDeleted();
+        PurgeTxnLog.purgeOlderSnapshots(txnLog, snaps.get(3));
+        txnLog.close();
+        verifyFilesAfterPurge(snaps.subList(0, 4), true);
+        verifyFilesAfterPurge(snaps.subList(4, 6), false);
+        verifyFilesAfterPurge(logs.subList(0, 5), true);
+        verifyFilesAfterPurge(logs.subList(5, 6), false);
+        Assert.assertEquals(filesDeleted + 3, PurgeTxnLog.getStats().getFilesDeleted());
+        Assert.assertEquals(bytesDeleted + 300, PurgeTxnLog.getStats().getBytesDeleted());
+    }
+
+    private void setLength(File f, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
     /**
      * Verifies that purge does not delete any log files which started before the oldest retained
      * snapshot but which might extend beyond it.
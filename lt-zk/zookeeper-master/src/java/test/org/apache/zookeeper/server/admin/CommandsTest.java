@@ -173,7 +173,17 @@ public void testMonitor() throws IOException, InterruptedException {
                     new Field("ephemerals_count", Integer.class),
                     new Field("approximate_data_size", Long.class),
                     new Field("open_file_descriptor_count", Long.class),
-                    new Field("max_file_descriptor_count", Long.class));
+                    new Field("max_file_descriptor_count", Long.class),
+                    new Field("purge_files_deleted", Long.class),
+                    new Field("purge_bytes_deleted", Long.class),
+                    new Field("purge_last_time_ms", Long.class),
+                    new Field("purge_retained_bytes", Long.class));
+    }
+
+    @Test
+    public void testNamespaceStats() throws IOException, InterruptedException {
+        testCommand("namespace_stats",
+                    new Field("namespaces", Map.class));
     }
 
     @Test
@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.WriterAppender;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.PortAssignment;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkSyncTest extends QuorumPeerTestBase {
+    private static final int SERVER_COUNT = 3;
+
+    private MainThread mt[] = new MainThread[SERVER_COUNT + 1];
+    private int clientPorts[] = new int[SERVER_COUNT + 1];
+
+    @Before
+    public void setUp() {
+        // No size limit on syncing from the txnlog
+        System.setProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR, "0");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (int i = 1; i <= SERVER_COUNT; i++) {
+            if (mt[i] != null) {
+                mt[i].shutdown();
+            }
+        }
+        System.clearProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR);
+    }
+
+    /**
+     * A follower that missed more than the committedLog fetches the txnlog
+     * over a bulk connection while writes keep going.
+     */
+    @Test(timeout = 180000)
+    public void testLaggingFollowerCatchesUp() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= SERVER_COUNT; i++) {
+            clientPorts[i] = PortAssignment.unique();
+            sb.append("server." + i + "=127.0.0.1:" + PortAssignment.unique()
+                    + ":" + PortAssignment.unique() + ";" + clientPorts[i] + "\n");
+        }
+        String quorumCfgSection = sb.toString();
+        for (int i = 1; i <= SERVER_COUNT; i++) {
+            mt[i] = new MainThread(i, clientPorts[i], quorumCfgSection);
+            mt[i].start();
+        }
+        for (int i = 1; i <= SERVER_COUNT; i++) {
+            Assert.assertTrue("waiting for server " + i + " being up",
+                    ClientBase.waitForServerUp("127.0.0.1:" + clientPorts[i],
+                            ClientBase.CONNECTION_TIMEOUT));
+        }
+
+        int follower = 1;
+        while (mt[follower].getQuorumPeer().leader != null) {
+            follower++;
+        }
+        int other = follower % SERVER_COUNT + 1;
+        final ZooKeeper zk = ClientBase.createZKClient("127.0.0.1:" + clientPorts[other]);
+
+        Layout layout = Logger.getRootLogger().getAppender("CONSOLE").getLayout();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        WriterAppender appender = new WriterAppender(layout, os);
+        appender.setThreshold(Level.INFO);
+        Logger qlogger = Logger.getLogger("org.apache.zookeeper.server.quorum");
+        qlogger.addAppender(appender);
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicInteger written = new AtomicInteger();
+        Thread writer = null;
+        try {
+            zk.create("/bulk", new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            mt[follower].shutdown();
+            Assert.assertTrue("waiting for server " + follower + " being down",
+                    ClientBase.waitForServerDown("127.0.0.1:" + clientPorts[follower],
+                            ClientBase.CONNECTION_TIMEOUT));
+
+            // More than the committedLog holds
+            for (int i = 0; i < 2 * ZKDatabase.commitLogCount; i++) {
+                zk.create("/bulk/" + written.getAndIncrement(), new byte[100],
+                        Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+
+            writer = new Thread() {
+                public void run() {
+                    try {
+                        while (writing.get()) {
+                            zk.create("/bulk/" + written.get(), new byte[100],
+                                    Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                            written.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        LOG.error("Writer failed", e);
+                    }
+                }
+            };
+            writer.start();
+
+            mt[follower].start();
+            Assert.assertTrue("waiting for server " + follower + " being up",
+                    ClientBase.waitForServerUp("127.0.0.1:" + clientPorts[follower],
+                            ClientBase.CONNECTION_TIMEOUT));
+            // logged by the follower before it finishes the sync
+            long deadline = Time.currentElapsedTime() + ClientBase.CONNECTION_TIMEOUT;
+            while (!os.toString().contains("over the bulk connection")
+                    && Time.currentElapsedTime() < deadline) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(os.toString().contains("over the bulk connection"));
+        } finally {
+            writing.set(false);
+            if (writer != null) {
+                writer.join(30000);
+                Assert.assertFalse("writer still running", writer.isAlive());
+            }
+            qlogger.removeAppender(appender);
+        }
+
+        ZooKeeper fzk = ClientBase.createZKClient("127.0.0.1:" + clientPorts[follower]);
+        try {
+            // The follower applies in order, once it has this node it has
+            // everything written before
+            zk.create("/bulk/done", new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            long deadline = Time.currentElapsedTime() + ClientBase.CONNECTION_TIMEOUT;
+            while (fzk.exists("/bulk/done", false) == null
+                    && Time.currentElapsedTime() < deadline) {
+                Thread.sleep(100);
+            }
+            Assert.assertNotNull(fzk.exists("/bulk/done", false));
+            Assert.assertEquals(zk.getChildren("/bulk", false).size(),
+                    fzk.getChildren("/bulk", false).size());
+        } finally {
+            zk.close();
+            fzk.close();
+        }
+    }
+}
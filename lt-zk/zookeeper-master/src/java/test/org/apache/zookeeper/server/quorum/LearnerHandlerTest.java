@@ -389,6 +389,37 @@ public void testTxnLogOnly() throws Exception {
         reset();
     }
 
+    /**
+     * Test that a peer with a new epoch zxid ahead of the committedLog is
+     * sent a DIFF when it has the tree of the last proposal
+     */
+    @Test
+    public void testNewEpochZxidWithDigest() throws Exception {
+        long peerZxid;
+        db.lastProcessedZxid = getZxid(3, 0);
+        db.committedLog.add(createProposal(getZxid(1, 1)));
+        db.committedLog.add(createProposal(getZxid(1, 2)));
+        db.committedLog.getFirst().digest = 5;
+        db.committedLog.getLast().digest = 7;
+
+        // No digest from the peer, send snap
+        peerZxid = getZxid(2, 0);
+        assertTrue(learnerHandler.syncFollower(peerZxid, db, leader));
+        reset();
+
+        // The peer has a different tree, send snap
+        learnerHandler.setPeerDigest(5L);
+        assertTrue(learnerHandler.syncFollower(peerZxid, db, leader));
+        reset();
+
+        // The peer has the tree of the last proposal, send empty diff
+        learnerHandler.setPeerDigest(7L);
+        assertFalse(learnerHandler.syncFollower(peerZxid, db, leader));
+        assertOpType(Leader.DIFF, getZxid(1, 2), getZxid(1, 2));
+        assertEquals(1, learnerHandler.getQueuedPackets().size());
+        reset();
+    }
+
     long getZxid(long epoch, long counter){
         return ZxidUtils.makeZxid(epoch, counter);
     }
@@ -589,4 +620,59 @@ public void testCrossEpochTrunc() throws Exception {
         assertEquals(0, learnerHandler.getQueuedPackets().size());
         reset();
     }
+
+    /**
+     * Only a peer whose zxid is in the txnlog is caught up over a bulk
+     * connection, a peer with txns we never committed still gets TRUNC or
+     * SNAP
+     */
+    @Test
+    public void testBulkSyncDivergentPeer() throws Exception {
+        long peerZxid;
+        learnerHandler.version = Leader.BULK_SYNC_PROTOCOL_VERSION;
+        db.txnLog.add(createProposal(getZxid(1, 1)));
+        db.txnLog.add(createProposal(getZxid(2, 1)));
+        db.txnLog.add(createProposal(getZxid(2, 2)));
+        db.txnLog.add(createProposal(getZxid(2, 4)));
+        db.txnLog.add(createProposal(getZxid(4, 1)));
+        db.txnLog.add(createProposal(getZxid(4, 2)));
+        db.txnLog.add(createProposal(getZxid(4, 3)));
+
+        db.lastProcessedZxid = getZxid(4, 3);
+        db.committedLog.add(createProposal(getZxid(4, 2)));
+        db.committedLog.add(createProposal(getZxid(4, 3)));
+
+        // Peer zxid is in the txnlog, DIFF and the rest over a bulk connection
+        peerZxid = getZxid(2, 1);
+        assertFalse(learnerHandler.syncFollower(peerZxid, db, leader));
+        assertOpType(Leader.DIFF, db.getmaxCommittedLog(), db.getmaxCommittedLog());
+        assertTrue(hasBulkSync());
+        queuedPacketMatches(new long[] { getZxid(4, 3) });
+        reset();
+
+        // Peer has a txn of the same epoch that we have never seen
+        peerZxid = getZxid(2, 3);
+        assertFalse(learnerHandler.syncFollower(peerZxid, db, leader));
+        assertOpType(Leader.TRUNC, getZxid(2, 2), db.getmaxCommittedLog());
+        assertFalse(hasBulkSync());
+        queuedPacketMatches(new long[] { getZxid(2, 4), getZxid(4, 1),
+                getZxid(4, 2), getZxid(4, 3) });
+        reset();
+
+        // Peer was the leader of an epoch that we have never seen, we
+        // cannot TRUNC across the epoch boundary
+        peerZxid = getZxid(3, 1);
+        assertTrue(learnerHandler.syncFollower(peerZxid, db, leader));
+        assertFalse(hasBulkSync());
+        reset();
+    }
+
+    private boolean hasBulkSync() {
+        for (QuorumPacket qp : learnerHandler.getQueuedPackets()) {
+            if (qp.getType() == Leader.BULKSYNC) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
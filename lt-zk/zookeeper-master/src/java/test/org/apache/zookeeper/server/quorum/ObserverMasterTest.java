@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.PortAssignment;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ObserverMasterTest extends QuorumPeerTestBase {
+    private static final int SERVER_COUNT = 5;
+
+    private MainThread mt[] = new MainThread[SERVER_COUNT + 1];
+    private int clientPorts[] = new int[SERVER_COUNT + 1];
+
+    @After
+    public void tearDown() throws Exception {
+        for (int i = 1; i <= SERVER_COUNT; i++) {
+            if (mt[i] != null) {
+                mt[i].shutdown();
+            }
+        }
+    }
+
+    /**
+     * Server 4 observes the leader and relays to server 5, which never
+     * connects to the leader itself.
+     */
+    @Test(timeout = 120000)
+    public void testObserverFollowingObserver() throws Exception {
+        int observerMasterPort = PortAssignment.unique();
+        startServers(observerMasterPort, "127.0.0.1:" + observerMasterPort);
+
+        ZooKeeper zk1 = ClientBase.createZKClient("127.0.0.1:" + clientPorts[1]);
+        ZooKeeper zk5 = ClientBase.createZKClient("127.0.0.1:" + clientPorts[5], 8000);
+        try {
+            // Writes and ephemerals of the downstream observer go through the relay
+            zk5.create("/relay", "a".getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            zk5.create("/relay/ephemeral", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL);
+            Assert.assertEquals("a", new String(zk1.getData("/relay", null, null)));
+
+            // Writes of others reach it through the relay, sync and
+            // linearizable reads are answered through it
+            zk1.setData("/relay", "b".getBytes(), -1);
+            Assert.assertEquals("b", new String(zk5.getData("/relay", null, null, true)));
+            zk1.setData("/relay", "c".getBytes(), -1);
+            final CountDownLatch synced = new CountDownLatch(1);
+            zk5.sync("/relay", new VoidCallback() {
+                public void processResult(int rc, String path, Object ctx) {
+                    synced.countDown();
+                }
+            }, null);
+            Assert.assertTrue(synced.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals("c", new String(zk5.getData("/relay", null, null)));
+
+            // The leader only knows about the relay
+            Set<Long> learners = getLeaderLearners();
+            Assert.assertTrue(learners.contains(4L));
+            Assert.assertFalse(learners.contains(5L));
+            Assert.assertEquals(1, mt[4].getQuorumPeer().observer.getRelayedObserverCount());
+            Assert.assertTrue(mt[5].getQuorumPeer().observer.getInformLag() >= 0);
+
+            // The session of the downstream observer is kept alive by the
+            // touches it sends through the relay
+            Thread.sleep(12000);
+            Assert.assertNotNull(zk1.exists("/relay/ephemeral", false));
+        } finally {
+            zk1.close();
+            zk5.close();
+        }
+    }
+
+    /**
+     * Server 5 goes through its observer masters in turn, and falls back to
+     * the leader once all of them failed.
+     */
+    @Test(timeout = 120000)
+    public void testObserverMasterFailover() throws Exception {
+        int observerMasterPort = PortAssignment.unique();
+        int deadPort = PortAssignment.unique();
+        startServers(observerMasterPort, "127.0.0.1:" + deadPort
+                + ",127.0.0.1:" + observerMasterPort);
+
+        ZooKeeper zk1 = ClientBase.createZKClient("127.0.0.1:" + clientPorts[1]);
+        try {
+            zk1.create("/failover", "a".getBytes(), Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+            waitForData(5, "/failover", "a");
+            Assert.assertFalse(getLeaderLearners().contains(5L));
+            Assert.assertEquals(1, mt[4].getQuorumPeer().observer.getRelayedObserverCount());
+
+            // Neither observer master can be reached any more
+            mt[4].shutdown();
+            mt[4] = null;
+            zk1.setData("/failover", "b".getBytes(), -1);
+            waitForData(5, "/failover", "b");
+            Assert.assertTrue(getLeaderLearners().contains(5L));
+        } finally {
+            zk1.close();
+        }
+    }
+
+    /**
+     * Starts three participants and two observers. Server 4 relays on
+     * observerMasterPort, server 5 follows the given observer masters.
+     */
+    private void startServers(int observerMasterPort, String observerMasters)
+            throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= SERVER_COUNT; i++) {
+            clientPorts[i] = PortAssignment.unique();
+            sb.append("server." + i + "=127.0.0.1:" + PortAssignment.unique()
+                    + ":" + PortAssignment.unique()
+                    + (i > 3 ? ":observer" : "") + ";" + clientPorts[i] + "\n");
+        }
+        String quorumCfgSection = sb.toString();
+
+        for (int i = 1; i <= SERVER_COUNT; i++) {
+            Map<String, String> configs = new HashMap<String, String>();
+            if (i == 4) {
+                configs.put("observerMasterPort", Integer.toString(observerMasterPort));
+            } else if (i == 5) {
+                configs.put("observerMaster", observerMasters);
+            }
+            mt[i] = new MainThread(i, clientPorts[i], quorumCfgSection, configs);
+            mt[i].start();
+        }
+        for (int i = 1; i <= SERVER_COUNT; i++) {
+            Assert.assertTrue("waiting for server " + i + " being up",
+                    ClientBase.waitForServerUp("127.0.0.1:" + clientPorts[i],
+                            ClientBase.CONNECTION_TIMEOUT));
+        }
+    }
+
+    /**
+     * @return sids of the learners connected to the leader
+     */
+    private Set<Long> getLeaderLearners() {
+        Set<Long> learners = new HashSet<Long>();
+        for (int i = 1; i <= 3; i++) {
+            Leader leader = mt[i].getQuorumPeer().leader;
+            if (leader != null) {
+                for (LearnerHandler handler : leader.getLearners()) {
+                    learners.add(handler.getSid());
+                }
+            }
+        }
+        return learners;
+    }
+
+    /**
+     * Waits until the database of server i has the given data at path.
+     */
+    private void waitForData(int i, String path, String data) throws Exception {
+        long deadline = Time.currentElapsedTime() + 60000;
+        while (Time.currentElapsedTime() < deadline) {
+            ZooKeeperServer zks = mt[i].getQuorumPeer().getActiveServer();
+            try {
+                if (zks != null && data.equals(new String(zks.getZKDatabase()
+                        .getDataTree().getData(path, new Stat(), null)))) {
+                    return;
+                }
+            } catch (KeeperException.NoNodeException e) {
+                // not synced yet
+            }
+            Thread.sleep(100);
+        }
+        Assert.fail("Server " + i + " did not get " + data + " at " + path);
+    }
+}
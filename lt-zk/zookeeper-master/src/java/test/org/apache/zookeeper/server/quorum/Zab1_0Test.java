@@ -599,8 +599,8 @@ public void converseWithLeader(InputArchive ia, OutputArchive oa,
                 Assert.assertEquals(1, l.self.getCurrentEpoch());
 
                 /* we test a normal run. everything should work out well. */
-                LearnerInfo li = new LearnerInfo(1, 0x10000, 0);
-                byte liBytes[] = new byte[20];
+                LearnerInfo li = new LearnerInfo(1, 0x10000, 0, 0);
+                byte liBytes[] = new byte[28];
                 ByteBufferOutputStream.record2ByteBuffer(li,
                         ByteBuffer.wrap(liBytes));
                 QuorumPacket qp = new QuorumPacket(Leader.FOLLOWERINFO, 1,
@@ -681,7 +681,7 @@ public void converseWithFollower(InputArchive ia, OutputArchive oa,
                     Assert.assertEquals(qp.getZxid(), 0);
                     LearnerInfo learnInfo = new LearnerInfo();
                     ByteBufferInputStream.byteBuffer2Record(ByteBuffer.wrap(qp.getData()), learnInfo);
-                    Assert.assertEquals(learnInfo.getProtocolVersion(), 0x10000);
+                    Assert.assertEquals(learnInfo.getProtocolVersion(), Leader.BULK_SYNC_PROTOCOL_VERSION);
                     Assert.assertEquals(learnInfo.getServerid(), 0);
                 
                     // We are simulating an established leader, so the epoch is 1
@@ -816,7 +816,7 @@ public void converseWithFollower(InputArchive ia, OutputArchive oa,
                     Assert.assertEquals(qp.getZxid(), 0);
                     LearnerInfo learnInfo = new LearnerInfo();
                     ByteBufferInputStream.byteBuffer2Record(ByteBuffer.wrap(qp.getData()), learnInfo);
-                    Assert.assertEquals(learnInfo.getProtocolVersion(), 0x10000);
+                    Assert.assertEquals(learnInfo.getProtocolVersion(), Leader.BULK_SYNC_PROTOCOL_VERSION);
                     Assert.assertEquals(learnInfo.getServerid(), 0);
                 
                     // We are simulating an established leader, so the epoch is 1
@@ -917,10 +917,10 @@ public void converseWithLeader(InputArchive ia, OutputArchive oa, Leader l)
                 Assert.assertEquals(0, l.self.getCurrentEpoch());
                 
                 /* we test a normal run. everything should work out well. */
-                LearnerInfo li = new LearnerInfo(1, 0x10000, 0);
+                /* with the 20 byte LearnerInfo of a learner that does not
+                 * send its tree digest yet */
                 byte liBytes[] = new byte[20];
-                ByteBufferOutputStream.record2ByteBuffer(li,
-                        ByteBuffer.wrap(liBytes));
+                ByteBuffer.wrap(liBytes).putLong(1).putInt(0x10000).putLong(0);
                 QuorumPacket qp = new QuorumPacket(Leader.FOLLOWERINFO, 0,
                         liBytes, null);
                 oa.writeRecord(qp, null);
@@ -962,8 +962,8 @@ public void converseWithLeader(InputArchive ia, OutputArchive oa, Leader l)
                 Assert.assertEquals(0, l.self.getAcceptedEpoch());
                 Assert.assertEquals(0, l.self.getCurrentEpoch());
                 
-                LearnerInfo li = new LearnerInfo(1, 0x10000, 0);
-                byte liBytes[] = new byte[20];
+                LearnerInfo li = new LearnerInfo(1, 0x10000, 0, 0);
+                byte liBytes[] = new byte[28];
                 ByteBufferOutputStream.record2ByteBuffer(li,
                         ByteBuffer.wrap(liBytes));
                 QuorumPacket qp = new QuorumPacket(Leader.FOLLOWERINFO, 0,
@@ -1069,7 +1069,7 @@ public void converseWithObserver(InputArchive ia, OutputArchive oa,
                     LearnerInfo learnInfo = new LearnerInfo();
                     ByteBufferInputStream.byteBuffer2Record(
                             ByteBuffer.wrap(qp.getData()), learnInfo);
-                    Assert.assertEquals(learnInfo.getProtocolVersion(), 0x10000);
+                    Assert.assertEquals(learnInfo.getProtocolVersion(), Leader.BULK_SYNC_PROTOCOL_VERSION);
                     Assert.assertEquals(learnInfo.getServerid(), 0);
 
                     // We are simulating an established leader, so the epoch is 1
@@ -1190,8 +1190,8 @@ public void testLeaderBehind() throws Exception {
             public void converseWithLeader(InputArchive ia, OutputArchive oa, Leader l)
                     throws IOException {
                 /* we test a normal run. everything should work out well. */
-                LearnerInfo li = new LearnerInfo(1, 0x10000, 0);
-                byte liBytes[] = new byte[20];
+                LearnerInfo li = new LearnerInfo(1, 0x10000, 0, 0);
+                byte liBytes[] = new byte[28];
                 ByteBufferOutputStream.record2ByteBuffer(li,
                         ByteBuffer.wrap(liBytes));
                 /* we are going to say we last acked epoch 20 */
@@ -1232,8 +1232,8 @@ public void testAbandonBeforeACKEpoch() throws Exception {
             public void converseWithLeader(InputArchive ia, OutputArchive oa, Leader l)
                     throws IOException, InterruptedException {
                 /* we test a normal run. everything should work out well. */            	
-                LearnerInfo li = new LearnerInfo(1, 0x10000, 0);
-                byte liBytes[] = new byte[20];
+                LearnerInfo li = new LearnerInfo(1, 0x10000, 0, 0);
+                byte liBytes[] = new byte[28];
                 ByteBufferOutputStream.record2ByteBuffer(li,
                         ByteBuffer.wrap(liBytes));
                 QuorumPacket qp = new QuorumPacket(Leader.FOLLOWERINFO, 0,
@@ -29,6 +29,7 @@
 import org.slf4j.LoggerFactory;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException.InvalidACLException;
+import org.apache.zookeeper.KeeperException.NoAuthException;
 import org.apache.zookeeper.PortAssignment;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -279,4 +280,54 @@ public void testNullValueACL() throws Exception {
                     ClientBase.waitForServerDown(HOSTPORT, ClientBase.CONNECTION_TIMEOUT));
         }
     }
+
+    /**
+     * The permissions cached for a node follow the credentials of the
+     * session and the acl of the node.
+     */
+    @Test
+    public void testCachedPermissions() throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        ClientBase.setupTestEnv();
+        ZooKeeperServer zks = new ZooKeeperServer(tmpDir, tmpDir, 3000);
+        final int PORT = Integer.parseInt(HOSTPORT.split(":")[1]);
+        ServerCnxnFactory f = ServerCnxnFactory.createFactory(PORT, -1);
+        f.startup(zks);
+        ZooKeeper owner = ClientBase.createZKClient(HOSTPORT);
+        ZooKeeper zk = ClientBase.createZKClient(HOSTPORT);
+        try {
+            owner.addAuthInfo("digest", "owner:pwd".getBytes());
+            owner.create("/cached", "data".getBytes(), Ids.CREATOR_ALL_ACL,
+                    CreateMode.PERSISTENT);
+            for (int i = 0; i < 2; i++) {
+                try {
+                    zk.getData("/cached", false, null);
+                    Assert.fail("Expected NoAuthException");
+                } catch (NoAuthException e) {
+                    // Expected, the second time from the cache
+                }
+                Assert.assertEquals("data", new String(owner.getData("/cached", false, null)));
+            }
+
+            zk.addAuthInfo("digest", "owner:pwd".getBytes());
+            Assert.assertEquals("data", new String(zk.getData("/cached", false, null)));
+            zk.setData("/cached", "new".getBytes(), -1);
+
+            owner.setACL("/cached", Ids.READ_ACL_UNSAFE, -1);
+            Assert.assertEquals("new", new String(zk.getData("/cached", false, null)));
+            try {
+                zk.setData("/cached", "newer".getBytes(), -1);
+                Assert.fail("Expected NoAuthException");
+            } catch (NoAuthException e) {
+                // Expected
+            }
+        } finally {
+            owner.close();
+            zk.close();
+            f.shutdown();
+            zks.shutdown();
+            Assert.assertTrue("waiting for server down",
+                    ClientBase.waitForServerDown(HOSTPORT, ClientBase.CONNECTION_TIMEOUT));
+        }
+    }
 }
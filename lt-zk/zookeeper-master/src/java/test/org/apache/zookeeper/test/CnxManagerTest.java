@@ -218,6 +218,100 @@ public void testCnxManagerTimeout() throws Exception {
         Assert.assertFalse(cnxManager.listener.isAlive());
     }
 
+    /*
+     * Test that connecting to several unreachable peers neither blocks the
+     * caller nor keeps the connection attempts around past cnxTimeout
+     */
+    @Test
+    public void testAsyncConnect() throws Exception {
+        Random rand = new Random();
+        for (long sid = 2; sid <= 4; sid++) {
+            String deadAddress = "10.1.1." + (byte) rand.nextInt();
+            peers.put(sid, new QuorumServer(sid,
+                    new InetSocketAddress(deadAddress, PortAssignment.unique()),
+                    new InetSocketAddress(deadAddress, PortAssignment.unique()),
+                    new InetSocketAddress(deadAddress, PortAssignment.unique())));
+        }
+
+        System.setProperty("zookeeper.cnxTimeout", "2000");
+        try {
+            QuorumPeer peer = new QuorumPeer(peers, peerTmpdir[1], peerTmpdir[1], peerClientPort[1], 3, 1, 1000, 2, 2);
+            QuorumCnxManager cnxManager = peer.createCnxnManager();
+            cnxManager.listener.start();
+
+            long begin = Time.currentElapsedTime();
+            for (long sid = 2; sid <= 4; sid++) {
+                cnxManager.toSend(sid, createMsg(ServerState.LOOKING.ordinal(), 1, -1, 1));
+            }
+            cnxManager.connectAll();
+            long end = Time.currentElapsedTime();
+            Assert.assertTrue("toSend blocked for " + (end - begin) + " ms",
+                    (end - begin) < 1000);
+
+            // The attempts run in parallel, so all of them give up within
+            // about one timeout
+            long deadline = Time.currentElapsedTime() + 6000;
+            while (cnxManager.getPendingConnectionCount() > 0
+                    && Time.currentElapsedTime() < deadline) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(0, cnxManager.getPendingConnectionCount());
+
+            cnxManager.halt();
+            Assert.assertFalse(cnxManager.listener.isAlive());
+        } finally {
+            System.clearProperty("zookeeper.cnxTimeout");
+        }
+    }
+
+    /*
+     * Test that a connector thread which quit on an unexpected error is
+     * replaced on the next connect, and the peer is still reached
+     */
+    @Test
+    public void testConnectorRestart() throws Exception {
+        // ports of its own, none of the earlier peers may still hold them
+        Map<Long, QuorumServer> restartPeers = new HashMap<Long, QuorumServer>(count);
+        for (int i = 0; i < count; i++) {
+            restartPeers.put(Long.valueOf(i), new QuorumServer(i,
+                    new InetSocketAddress("127.0.0.1", PortAssignment.unique()),
+                    new InetSocketAddress("127.0.0.1", PortAssignment.unique()),
+                    new InetSocketAddress("127.0.0.1", PortAssignment.unique())));
+        }
+        QuorumCnxManager[] cnxManagers = new QuorumCnxManager[count];
+        for (int i = 0; i < count; i++) {
+            QuorumPeer peer = new QuorumPeer(restartPeers, peerTmpdir[i], peerTmpdir[i],
+                    restartPeers.get(Long.valueOf(i)).clientAddr.getPort(), 3, i, 1000, 2, 2);
+            cnxManagers[i] = peer.createCnxnManager();
+            cnxManagers[i].listener.start();
+        }
+        try {
+            // a failed connect is only retried on the next send
+            for (QuorumCnxManager cnxManager : cnxManagers) {
+                long end = Time.currentElapsedTime() + 10000;
+                while (!cnxManager.listener.isBound()) {
+                    Assert.assertTrue("Listener did not bind",
+                            Time.currentElapsedTime() < end);
+                    Thread.sleep(10);
+                }
+            }
+            // server 2 only keeps the connections it opens to lower ids
+            cnxManagers[2].toSend(1L, createMsg(ServerState.LOOKING.ordinal(), 2, -1, 1));
+            Assert.assertNotNull("No message from server 2 at server 1",
+                    cnxManagers[1].pollRecvQueue(10000, TimeUnit.MILLISECONDS));
+
+            cnxManagers[2].testKillConnector();
+
+            cnxManagers[2].toSend(0L, createMsg(ServerState.LOOKING.ordinal(), 2, -1, 1));
+            Assert.assertNotNull("No message from server 2 at server 0",
+                    cnxManagers[0].pollRecvQueue(10000, TimeUnit.MILLISECONDS));
+        } finally {
+            for (QuorumCnxManager cnxManager : cnxManagers) {
+                cnxManager.halt();
+            }
+        }
+    }
+
     /**
      * Tests a bug in QuorumCnxManager that causes a spin lock
      * when a negative value is sent. This test checks if the
@@ -245,10 +339,10 @@ public void testCnxManagerSpinLock() throws Exception {
         SocketChannel sc = SocketChannel.open();
         sc.socket().connect(peers.get(1L).electionAddr, 5000);
 
-        InetSocketAddress otherAddr = peers.get(new Long(2)).electionAddr;
+        InetSocketAddress otherAddr = peers.get(Long.valueOf(2)).electionAddr;
         DataOutputStream dout = new DataOutputStream(sc.socket().getOutputStream());
         dout.writeLong(QuorumCnxManager.PROTOCOL_VERSION);
-        dout.writeLong(new Long(2));
+        dout.writeLong(Long.valueOf(2));
         String addr = otherAddr.getHostString()+ ":" + otherAddr.getPort();
         byte[] addr_bytes = addr.getBytes();
         dout.writeInt(addr_bytes.length);
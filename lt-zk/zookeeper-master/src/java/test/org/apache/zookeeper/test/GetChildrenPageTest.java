@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenPageCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetChildrenPageResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GetChildrenPageTest extends ClientBase {
+    private ZooKeeper zk;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        zk = createClient();
+        zk.create("/queue", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        for (int i = 0; i < 25; i++) {
+            zk.create("/queue/item-", null, Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT_SEQUENTIAL);
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        zk.close();
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        List<String> all = new ArrayList<String>();
+        String startAfter = null;
+        int pages = 0;
+        GetChildrenPageResponse rsp;
+        do {
+            rsp = zk.getChildrenPage("/queue", startAfter, 10, false);
+            Assert.assertTrue(rsp.getChildren().size() <= 10);
+            all.addAll(rsp.getChildren());
+            startAfter = all.get(all.size() - 1);
+            pages++;
+        } while (rsp.getHasMore());
+
+        Assert.assertEquals(3, pages);
+        Assert.assertEquals(25, all.size());
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals(String.format("item-%010d", i), all.get(i));
+        }
+        Assert.assertEquals(25, rsp.getStat().getNumChildren());
+    }
+
+    @Test
+    public void testStatOnly() throws Exception {
+        GetChildrenPageResponse rsp = zk.getChildrenPage("/queue", null, 0, false);
+        Assert.assertTrue(rsp.getChildren().isEmpty());
+        Assert.assertTrue(rsp.getHasMore());
+        Stat stat = zk.exists("/queue", false);
+        Assert.assertEquals(stat, rsp.getStat());
+    }
+
+    @Test
+    public void testChroot() throws Exception {
+        ZooKeeper chroot = createClient(hostPort + "/queue");
+        try {
+            chroot.create("/item-0000000003/sub", null, Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+            GetChildrenPageResponse rsp = chroot.getChildrenPage(
+                    "/item-0000000003", "", 5, false);
+            Assert.assertEquals(1, rsp.getChildren().size());
+            Assert.assertEquals("sub", rsp.getChildren().get(0));
+            Assert.assertFalse(rsp.getHasMore());
+        } finally {
+            chroot.close();
+        }
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        final LinkedBlockingQueue<WatchedEvent> events =
+            new LinkedBlockingQueue<WatchedEvent>();
+        zk.getChildrenPage("/queue", null, 1, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                events.add(event);
+            }
+        });
+        zk.delete("/queue/item-0000000024", -1);
+        WatchedEvent event = events.poll(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(event);
+        Assert.assertEquals(EventType.NodeChildrenChanged, event.getType());
+        Assert.assertEquals("/queue", event.getPath());
+    }
+
+    @Test
+    public void testNoNode() throws Exception {
+        try {
+            zk.getChildrenPage("/missing", null, 10, false);
+            Assert.fail("Should have thrown NoNodeException");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<List<String>> page = new AtomicReference<List<String>>();
+        final AtomicBoolean hasMore = new AtomicBoolean();
+        zk.getChildrenPage("/queue", "item-0000000020", 10, null,
+                new ChildrenPageCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx,
+                            List<String> children, boolean more, Stat stat) {
+                        page.set(children);
+                        hasMore.set(more);
+                        latch.countDown();
+                    }
+                }, null);
+        Assert.assertTrue(latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(4, page.get().size());
+        Assert.assertEquals("item-0000000021", page.get().get(0));
+        Assert.assertFalse(hasMore.get());
+    }
+}
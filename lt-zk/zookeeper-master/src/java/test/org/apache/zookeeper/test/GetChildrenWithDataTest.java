@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenWithDataCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.Perms;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.ChildData;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.proto.GetChildrenWithDataResponse;
+import org.apache.zookeeper.server.auth.DigestAuthenticationProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GetChildrenWithDataTest extends ClientBase {
+    private ZooKeeper zk;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        zk = createClient();
+        zk.create("/registry", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        for (int i = 0; i < 10; i++) {
+            String service = "/registry/service" + i;
+            zk.create(service, service.getBytes(), Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+            zk.create(service + "/instance", (service + "/instance").getBytes(),
+                    Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        zk.close();
+    }
+
+    private static List<String> paths(List<ChildData> children) {
+        List<String> paths = new ArrayList<String>();
+        for (ChildData child : children) {
+            paths.add(child.getPath());
+        }
+        return paths;
+    }
+
+    @Test
+    public void testChildren() throws Exception {
+        GetChildrenWithDataResponse rsp = zk.getChildrenWithData("/registry", 1, 0);
+        Assert.assertFalse(rsp.getTruncated());
+        Assert.assertEquals(10, rsp.getChildren().size());
+        for (int i = 0; i < 10; i++) {
+            ChildData child = rsp.getChildren().get(i);
+            Assert.assertEquals("service" + i, child.getPath());
+            Assert.assertEquals("/registry/service" + i, new String(child.getData()));
+            Assert.assertEquals(1, child.getStat().getNumChildren());
+        }
+    }
+
+    @Test
+    public void testRecursive() throws Exception {
+        GetChildrenWithDataResponse rsp = zk.getChildrenWithData("/registry",
+                Integer.MAX_VALUE, 0);
+        Assert.assertEquals(20, rsp.getChildren().size());
+        List<String> paths = paths(rsp.getChildren());
+        Assert.assertEquals("service0", paths.get(0));
+        Assert.assertEquals("service0/instance", paths.get(10));
+        ChildData instance = rsp.getChildren().get(10);
+        Assert.assertEquals("/registry/service0/instance",
+                new String(instance.getData()));
+        Assert.assertEquals(zk.getSessionId(),
+                instance.getStat().getEphemeralOwner());
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        int one = zk.getChildrenWithData("/registry", 1, 0).getChildren()
+            .get(0).serializedSize();
+        GetChildrenWithDataResponse rsp = zk.getChildrenWithData("/registry",
+                1, 3 * one);
+        Assert.assertTrue(rsp.getTruncated());
+        Assert.assertEquals(3, rsp.getChildren().size());
+    }
+
+    @Test
+    public void testFirstChildOverMaxBytes() throws Exception {
+        GetChildrenWithDataResponse rsp = zk.getChildrenWithData("/registry",
+                1, 1);
+        Assert.assertTrue(rsp.getTruncated());
+        Assert.assertEquals(1, rsp.getChildren().size());
+        Assert.assertEquals("service0", rsp.getChildren().get(0).getPath());
+    }
+
+    @Test
+    public void testChroot() throws Exception {
+        ZooKeeper chroot = createClient(hostPort + "/registry");
+        try {
+            GetChildrenWithDataResponse rsp = chroot.getChildrenWithData(
+                    "/service3", 1, 0);
+            Assert.assertEquals(1, rsp.getChildren().size());
+            Assert.assertEquals("instance", rsp.getChildren().get(0).getPath());
+        } finally {
+            chroot.close();
+        }
+    }
+
+    @Test
+    public void testUnreadableLeftOut() throws Exception {
+        List<ACL> acl = Collections.singletonList(new ACL(Perms.ALL, new Id(
+                "digest", DigestAuthenticationProvider.generateDigest("ben:passwd"))));
+        zk.addAuthInfo("digest", "ben:passwd".getBytes());
+        zk.create("/registry/secret", "secret".getBytes(), acl,
+                CreateMode.PERSISTENT);
+        zk.create("/registry/secret/child", null, Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+        GetChildrenWithDataResponse rsp = zk.getChildrenWithData("/registry",
+                Integer.MAX_VALUE, 0);
+        Assert.assertEquals(22, rsp.getChildren().size());
+        Assert.assertTrue(paths(rsp.getChildren()).contains("secret/child"));
+
+        // Neither the node nor what is below it is returned
+        ZooKeeper other = createClient();
+        try {
+            rsp = other.getChildrenWithData("/registry", Integer.MAX_VALUE, 0);
+            Assert.assertEquals(20, rsp.getChildren().size());
+            Assert.assertFalse(paths(rsp.getChildren()).contains("secret"));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testNoNode() throws Exception {
+        try {
+            zk.getChildrenWithData("/missing", 1, 0);
+            Assert.fail("Should have thrown NoNodeException");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicInteger found = new AtomicInteger();
+        final AtomicInteger missing = new AtomicInteger();
+        ChildrenWithDataCallback cb = new ChildrenWithDataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                    List<ChildData> children, boolean truncated) {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    found.set(children.size());
+                } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                    missing.incrementAndGet();
+                }
+                latch.countDown();
+            }
+        };
+        zk.getChildrenWithData("/registry", 2, 0, cb, null);
+        zk.getChildrenWithData("/missing", 2, 0, cb, null);
+        Assert.assertTrue(latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(20, found.get());
+        Assert.assertEquals(1, missing.get());
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+import org.apache.zookeeper.server.quorum.QuorumPeer.ServerState;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kills the leader of a 7 server ensemble several times in a row, while
+ * one of the other servers can't be reached, and checks how long it takes
+ * until a new leader is established with a quorum of followers.
+ */
+public class LeaderElectionDurationTest extends ZKTestCase {
+    private static final Logger LOG = LoggerFactory.getLogger(LeaderElectionDurationTest.class);
+
+    private static final int ROUNDS = 3;
+
+    private static final int CNX_TIMEOUT = 2000;
+
+    /*
+     * A connect to the unreachable server hangs for CNX_TIMEOUT. When the
+     * election threads wait for those connects, every notification round
+     * costs that much and an election takes many times CNX_TIMEOUT.
+     */
+    private static final int MAX_ELECTION_MS = 3 * CNX_TIMEOUT;
+
+    private QuorumUtil qu;
+
+    private ServerSocket unreachable;
+
+    private final List<Socket> backlog = new ArrayList<Socket>();
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("zookeeper.cnxTimeout", Integer.toString(CNX_TIMEOUT));
+        qu = new QuorumUtil(3);
+        qu.disableJMXTest = true;
+        qu.startAll();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Socket s : backlog) {
+            s.close();
+        }
+        if (unreachable != null) {
+            unreachable.close();
+        }
+        qu.tearDown();
+        System.clearProperty("zookeeper.cnxTimeout");
+    }
+
+    @Test
+    public void testElectionDurationWithUnreachablePeer() throws Exception {
+        int down = qu.getLeaderServer() == 1 ? 2 : 1;
+        InetSocketAddress electionAddr = qu.getPeer(down).peer.getElectionAddress();
+        qu.shutdown(down);
+        Assume.assumeTrue("Cannot make " + electionAddr + " unreachable",
+                makeUnreachable(electionAddr));
+
+        long total = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            int leader = qu.getLeaderServer();
+            long begin = Time.currentElapsedTime();
+            qu.shutdown(leader);
+
+            long elapsed = waitForNewLeader(down, leader, begin);
+            LOG.info("Round {}: election after killing leader {} took {} ms",
+                    new Object[] { round, leader, elapsed });
+            Assert.assertTrue("Election after killing leader " + leader
+                    + " took " + elapsed + " ms", elapsed < MAX_ELECTION_MS);
+            total += elapsed;
+
+            qu.restart(leader);
+        }
+        LOG.info("Average election duration over {} rounds: {} ms",
+                ROUNDS, total / ROUNDS);
+    }
+
+    /**
+     * Takes over the election port of a stopped server with a listener
+     * that never accepts and fills its backlog. Further connects to the
+     * port are then dropped and hang until they time out, like connects
+     * to a host that is gone.
+     *
+     * @return false if connects to the port don't hang on this platform
+     */
+    private boolean makeUnreachable(InetSocketAddress addr) throws IOException {
+        unreachable = new ServerSocket();
+        unreachable.setReuseAddress(true);
+        unreachable.bind(addr, 1);
+        for (int i = 0; i < 10; i++) {
+            Socket s = new Socket();
+            try {
+                s.connect(addr, 500);
+                backlog.add(s);
+            } catch (SocketTimeoutException e) {
+                s.close();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits until a server other than the skipped ones leads and a quorum
+     * of servers is following it, returning the elapsed time since begin.
+     */
+    private long waitForNewLeader(int down, int oldLeader, long begin)
+            throws InterruptedException {
+        long deadline = begin + ClientBase.CONNECTION_TIMEOUT;
+        while (Time.currentElapsedTime() < deadline) {
+            int leading = 0;
+            int following = 0;
+            for (int i = 1; i <= qu.ALL; i++) {
+                if (i == down || i == oldLeader) {
+                    continue;
+                }
+                QuorumPeer peer = qu.getPeer(i).peer;
+                if (peer.getPeerState() == ServerState.LEADING
+                        && peer.getActiveServer() != null
+                        && peer.getActiveServer().isRunning()) {
+                    // the leader only starts serving once a quorum of
+                    // followers has synced with it
+                    leading++;
+                } else if (peer.getPeerState() == ServerState.FOLLOWING) {
+                    following++;
+                }
+            }
+            if (leading == 1 && following >= qu.N) {
+                return Time.currentElapsedTime() - begin;
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("No new leader within " + ClientBase.CONNECTION_TIMEOUT + " ms");
+        return -1;
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.quorum.Leader;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+import org.apache.zookeeper.server.quorum.QuorumPeer.ServerState;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Freezes the leader without closing its sockets, so that the followers can
+ * only notice the failure through the leader lease, and checks that a new
+ * leader takes over shortly after the lease has expired.
+ */
+public class LeaderLeaseTest extends ZKTestCase {
+    private static final Logger LOG = LoggerFactory.getLogger(LeaderLeaseTest.class);
+
+    private static final int LEASE_TIMEOUT = 300;
+
+    /*
+     * Time the followers wait for the leader, the lease plus the default
+     * drift margin of a quarter of it
+     */
+    private static final int LEARNER_TIMEOUT = LEASE_TIMEOUT + LEASE_TIMEOUT / 4;
+
+    /*
+     * Slack for the followers to notice that the lease has expired
+     */
+    private static final int MARGIN = 300;
+
+    /*
+     * Time to elect a new leader and sync with it after that. It can take
+     * a resend of a first vote that a peer missed while still following
+     * (200 ms), finalizeWait (200 ms) and a retry of the connect to the new
+     * leader (300 ms)
+     */
+    private static final int ELECTION_MARGIN = 900;
+
+    private QuorumUtil qu;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(Leader.LEASE_TIMEOUT, Integer.toString(LEASE_TIMEOUT));
+        qu = new QuorumUtil(1);
+        qu.disableJMXTest = true;
+        qu.startAll();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(Leader.LEASE_TIMEOUT);
+        qu.tearDown();
+    }
+
+    @Test(timeout = 90000)
+    public void testWriteUnavailabilityAfterLeaderFreeze() throws Exception {
+        int leader = qu.getLeaderServer();
+        int follower = (leader % qu.ALL) + 1;
+        QuorumPeer leaderPeer = qu.getPeer(leader).peer;
+
+        ZooKeeper zk = ClientBase.createZKClient(qu.getConnectionStringForServer(follower));
+        try {
+            zk.create("/lease", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+
+            // The leader stops pinging and reading from its learners, but
+            // keeps its connections open
+            Leader l = leaderPeer.leader;
+            long begin = Time.currentElapsedTime();
+            l.testPauseLeading();
+            l.testPauseLearners();
+            try {
+                long detected = waitForFollowersToLeave(leader, begin);
+                long elected = waitForNewLeader(leader, begin);
+                long written = waitForWrite(zk, begin);
+                LOG.info("Leader loss noticed after {} ms, new leader after {} ms, "
+                        + "write after {} ms (lease {} ms)",
+                        new Object[] { detected, elected, written, LEASE_TIMEOUT });
+                Assert.assertTrue("Leader loss noticed after " + detected + " ms",
+                        detected < LEARNER_TIMEOUT + MARGIN);
+                Assert.assertTrue("New leader after " + elected + " ms",
+                        elected < LEARNER_TIMEOUT + ELECTION_MARGIN);
+                // the client adds its own reconnect backoff of up to a
+                // second per attempt, which has nothing to do with the lease
+                long syncTimeout = (long) leaderPeer.getTickTime() * leaderPeer.getSyncLimit();
+                Assert.assertTrue("Writes unavailable for " + written + " ms",
+                        written < syncTimeout);
+            } finally {
+                l.testResume();
+            }
+        } finally {
+            zk.close();
+        }
+    }
+
+    /**
+     * Waits until no peer is following the old leader any more.
+     */
+    private long waitForFollowersToLeave(int oldLeader, long begin)
+            throws InterruptedException {
+        while (true) {
+            boolean left = true;
+            for (int i = 1; i <= qu.ALL; i++) {
+                QuorumPeer peer = qu.getPeer(i).peer;
+                if (i != oldLeader && peer.getPeerState() == ServerState.FOLLOWING
+                        && peer.getCurrentVote().getId() == oldLeader) {
+                    left = false;
+                }
+            }
+            if (left) {
+                return Time.currentElapsedTime() - begin;
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Waits until another server leads and has a quorum following it.
+     */
+    private long waitForNewLeader(int oldLeader, long begin)
+            throws InterruptedException {
+        while (true) {
+            int leading = 0;
+            int following = 0;
+            for (int i = 1; i <= qu.ALL; i++) {
+                if (i == oldLeader) {
+                    continue;
+                }
+                QuorumPeer peer = qu.getPeer(i).peer;
+                if (peer.getPeerState() == ServerState.LEADING
+                        && peer.getActiveServer() != null
+                        && peer.getActiveServer().isRunning()) {
+                    leading++;
+                } else if (peer.getPeerState() == ServerState.FOLLOWING
+                        && peer.getActiveServer() != null
+                        && peer.getActiveServer().isRunning()) {
+                    following++;
+                }
+            }
+            if (leading == 1 && following >= qu.N) {
+                return Time.currentElapsedTime() - begin;
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private long waitForWrite(ZooKeeper zk, long begin) throws Exception {
+        while (true) {
+            try {
+                zk.setData("/lease", new byte[1], -1);
+                return Time.currentElapsedTime() - begin;
+            } catch (KeeperException.ConnectionLossException e) {
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.quorum.Leader;
+import org.apache.zookeeper.server.quorum.LearnerZooKeeperServer;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+import org.apache.zookeeper.server.quorum.QuorumPeer.ServerState;
+import org.apache.zookeeper.server.quorum.ReadIndexTracker;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LinearizableReadTest extends ZKTestCase {
+    private static final int LEASE_TIMEOUT = 300;
+
+    private QuorumUtil qu;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        qu = new QuorumUtil(1);
+        qu.disableJMXTest = true;
+        qu.startAll();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        System.clearProperty(Leader.LEASE_TIMEOUT);
+        qu.tearDown();
+    }
+
+    /**
+     * A follower that stopped applying commits serves stale plain reads, but
+     * holds linearizable reads until it caught up.
+     */
+    @Test(timeout = 60000)
+    public void testReadWaitsForLeaderCommit() throws Exception {
+        int leader = qu.getLeaderServer();
+        int follower = (leader % qu.ALL) + 1;
+        QuorumPeer followerPeer = qu.getPeer(follower).peer;
+
+        ZooKeeper writer = ClientBase.createZKClient(qu.getConnectionStringForServer(leader));
+        final ZooKeeper reader = ClientBase.createZKClient(qu.getConnectionStringForServer(follower));
+        try {
+            writer.create("/lin", "0".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+            Assert.assertEquals("0", new String(reader.getData("/lin", null, null, true)));
+
+            // The follower stops reading from the leader
+            followerPeer.suspend();
+            Future<String> read;
+            try {
+                writer.setData("/lin", "1".getBytes(), -1);
+                Assert.assertEquals("0", new String(reader.getData("/lin", null, null)));
+
+                read = executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return new String(reader.getData("/lin", null, null, true));
+                    }
+                });
+                try {
+                    read.get(500, TimeUnit.MILLISECONDS);
+                    Assert.fail("Linearizable read returned before the follower caught up");
+                } catch (TimeoutException e) {
+                    // expected
+                }
+            } finally {
+                followerPeer.resume();
+            }
+            Assert.assertEquals("1", read.get(30, TimeUnit.SECONDS));
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * The leader sends a COMMIT to the learners before it applies the write
+     * itself, so the learners can show a write that the leader has not
+     * applied yet. A linearizable read on the leader still has to see it.
+     */
+    @Test(timeout = 60000)
+    public void testReadOnLeaderWaitsForLocalApply() throws Exception {
+        int leader = qu.getLeaderServer();
+        int follower = (leader % qu.ALL) + 1;
+        ZooKeeperServer leaderZk = qu.getPeer(leader).peer.getActiveServer();
+        DataTree followerTree = qu.getPeer(follower).peer.getActiveServer()
+                .getZKDatabase().getDataTree();
+
+        ZooKeeper writer = ClientBase.createZKClient(qu.getConnectionStringForServer(leader));
+        final ZooKeeper reader = ClientBase.createZKClient(qu.getConnectionStringForServer(leader));
+        try {
+            writer.create("/block", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+            writer.create("/lin", "0".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+            Assert.assertEquals("0", new String(reader.getData("/lin", null, null, true)));
+
+            // A watch on the leader is triggered by the worker applying the
+            // write, blocking it keeps the leader from applying that write
+            // and the ones after
+            final CountDownLatch applying = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            leaderZk.getZKDatabase().getDataTree().getData("/block", new Stat(),
+                    new Watcher() {
+                        public void process(WatchedEvent event) {
+                            applying.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+            Future<String> read;
+            try {
+                // Without acks the leader takes both writes in before it can
+                // commit the first one
+                List<QuorumPeer> followers = new ArrayList<QuorumPeer>();
+                for (int i = 1; i <= qu.ALL; i++) {
+                    if (i != leader) {
+                        followers.add(qu.getPeer(i).peer);
+                    }
+                }
+                int inProcess = leaderZk.getInProcess();
+                for (QuorumPeer peer : followers) {
+                    peer.suspend();
+                }
+                try {
+                    writer.setData("/block", new byte[1], -1,
+                            (AsyncCallback.StatCallback) null, null);
+                    writer.setData("/lin", "1".getBytes(), -1,
+                            (AsyncCallback.StatCallback) null, null);
+                    while (leaderZk.getInProcess() < inProcess + 2) {
+                        Thread.sleep(10);
+                    }
+                    Thread.sleep(100);
+                } finally {
+                    for (QuorumPeer peer : followers) {
+                        peer.resume();
+                    }
+                }
+                Assert.assertTrue(applying.await(30, TimeUnit.SECONDS));
+                // the write to /lin is committed once the follower applied it
+                while (!"1".equals(new String(followerTree.getData("/lin", new Stat(), null)))) {
+                    Thread.sleep(10);
+                }
+
+                inProcess = leaderZk.getInProcess();
+                read = executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return new String(reader.getData("/lin", null, null, true));
+                    }
+                });
+                // wait for the readIndex and the read to be queued
+                while (leaderZk.getInProcess() < inProcess + 2) {
+                    Thread.sleep(10);
+                }
+                Thread.sleep(100);
+            } finally {
+                release.countDown();
+            }
+            Assert.assertEquals("1", read.get(30, TimeUnit.SECONDS));
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * Linearizable reads queued behind writes of the same session, and
+     * concurrent reads of many sessions sharing the rounds to the leader.
+     */
+    @Test(timeout = 60000)
+    public void testSessionOrderAndBatching() throws Exception {
+        int leader = qu.getLeaderServer();
+        int follower = (leader % qu.ALL) + 1;
+        final String connectString = qu.getConnectionStringForServer(follower);
+
+        ZooKeeper zk = ClientBase.createZKClient(connectString);
+        try {
+            zk.create("/order", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+            for (int i = 0; i < 20; i++) {
+                String path = "/order/" + i;
+                zk.create(path, Integer.toString(i).getBytes(),
+                        ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                        (AsyncCallback.StringCallback) null, null);
+                Assert.assertEquals(Integer.toString(i),
+                        new String(zk.getData(path, null, null, true)));
+                Assert.assertEquals(i + 1,
+                        zk.getChildren("/order", null, null, true).size());
+            }
+
+            // the asynchronous reads keep their place after the write too
+            final CountDownLatch done = new CountDownLatch(2);
+            final List<Object> results = new ArrayList<Object>();
+            zk.create("/order/20", "20".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT, (AsyncCallback.StringCallback) null, null);
+            zk.getData("/order/20", null, true, new AsyncCallback.DataCallback() {
+                public void processResult(int rc, String path, Object ctx,
+                        byte[] data, Stat stat) {
+                    results.add(new String(data));
+                    done.countDown();
+                }
+            }, null);
+            zk.getChildren("/order", null, true, new AsyncCallback.Children2Callback() {
+                public void processResult(int rc, String path, Object ctx,
+                        List<String> children, Stat stat) {
+                    results.add(children.size());
+                    done.countDown();
+                }
+            }, null);
+            Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals("20", results.get(0));
+            Assert.assertEquals(21, results.get(1));
+            zk.delete("/order/20", -1);
+        } finally {
+            zk.close();
+        }
+
+        ReadIndexTracker tracker = ((LearnerZooKeeperServer) qu.getPeer(follower)
+                .peer.getActiveServer()).getReadIndexTracker();
+        long rounds = tracker.getRounds();
+        long requests = tracker.getRequests();
+
+        List<Future<Integer>> reads = new ArrayList<Future<Integer>>();
+        for (int c = 0; c < 8; c++) {
+            reads.add(executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    ZooKeeper zk = ClientBase.createZKClient(connectString);
+                    try {
+                        int total = 0;
+                        for (int i = 0; i < 50; i++) {
+                            total += zk.getChildren("/order", null, null, true).size();
+                        }
+                        return total;
+                    } finally {
+                        zk.close();
+                    }
+                }
+            }));
+        }
+        for (Future<Integer> read : reads) {
+            Assert.assertEquals(Integer.valueOf(20 * 50), read.get(30, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(requests + 8 * 50, tracker.getRequests());
+        Assert.assertTrue(tracker.getRounds() - rounds <= 8 * 50);
+    }
+
+    /**
+     * A leader that was paused while the others elected a new one must not
+     * answer a read index from the lease it held before, even though the
+     * answers of its learners to its last pings only come in after it
+     * resumed.
+     */
+    @Test(timeout = 90000)
+    public void testReadIndexFailsOnPausedLeader() throws Exception {
+        System.setProperty(Leader.LEASE_TIMEOUT, Integer.toString(LEASE_TIMEOUT));
+        qu.startAll();
+        // a peer may briefly lead without a quorum right after the start
+        int leader = waitForLeader(0, qu.ALL - 1);
+        int follower = (leader % qu.ALL) + 1;
+        Leader l = qu.getPeer(leader).peer.leader;
+
+        ZooKeeper writer = ClientBase.createZKClient(qu.getConnectionStringForServer(follower));
+        final ZooKeeper reader = ClientBase.createZKClient(qu.getConnectionStringForServer(leader));
+        try {
+            writer.create("/lease", "0".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+            Assert.assertEquals("0", new String(reader.getData("/lease", null, null, true)));
+
+            // The leader stops pinging and reading from its learners, so
+            // that their answers to the last pings are still queued when
+            // it resumes
+            l.testPauseLeading();
+            l.testPauseLearners();
+            Future<String> read;
+            try {
+                waitForLeader(leader, qu.N);
+                while (true) {
+                    try {
+                        writer.setData("/lease", "1".getBytes(), -1);
+                        break;
+                    } catch (KeeperException.ConnectionLossException e) {
+                        Thread.sleep(10);
+                    }
+                }
+
+                read = executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return new String(reader.getData("/lease", null, null, true));
+                    }
+                });
+                // let the read reach the old leader before it resumes
+                Thread.sleep(LEASE_TIMEOUT);
+            } finally {
+                l.testResume();
+            }
+
+            try {
+                Assert.assertEquals("Stale read from the old leader",
+                        "1", read.get(30, TimeUnit.SECONDS));
+            } catch (ExecutionException e) {
+                // the old leader stepped down and dropped the read
+                Assert.assertTrue("Unexpected failure " + e.getCause(),
+                        e.getCause() instanceof KeeperException.ConnectionLossException);
+            }
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * Waits until a server other than excluded leads and at least the given
+     * number of servers follow it, and returns the leader.
+     */
+    private int waitForLeader(int excluded, int followers)
+            throws InterruptedException {
+        while (true) {
+            int leader = 0;
+            int leading = 0;
+            int following = 0;
+            for (int i = 1; i <= qu.ALL; i++) {
+                QuorumPeer peer = qu.getPeer(i).peer;
+                if (i == excluded || peer.getActiveServer() == null
+                        || !peer.getActiveServer().isRunning()) {
+                    continue;
+                }
+                if (peer.getPeerState() == ServerState.LEADING) {
+                    leader = i;
+                    leading++;
+                } else if (peer.getPeerState() == ServerState.FOLLOWING) {
+                    following++;
+                }
+            }
+            if (leading == 1 && following >= followers) {
+                return leader;
+            }
+            Thread.sleep(1);
+        }
+    }
+}
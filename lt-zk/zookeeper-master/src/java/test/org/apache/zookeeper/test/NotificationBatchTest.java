@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.client.ZKClientConfig;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NotificationBatchTest extends ClientBase {
+    private final BlockingQueue<WatchedEvent> events =
+        new LinkedBlockingQueue<WatchedEvent>();
+
+    private final Watcher watcher = new Watcher() {
+        public void process(WatchedEvent event) {
+            if (event.getType() != EventType.None) {
+                events.add(event);
+            }
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(ZKClientConfig.NOTIFICATION_BATCH, "true");
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(ZKClientConfig.NOTIFICATION_BATCH);
+        System.clearProperty(ZooKeeperServer.NOTIFICATION_BATCH_WINDOW_MS);
+    }
+
+    /**
+     * The window is read by the server when the client connects.
+     */
+    private ZooKeeper createClient(int windowMs) throws Exception {
+        System.setProperty(ZooKeeperServer.NOTIFICATION_BATCH_WINDOW_MS,
+                Integer.toString(windowMs));
+        return createClient();
+    }
+
+    private void assertEvent(EventType type, String path) throws Exception {
+        WatchedEvent event = events.poll(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull("No " + type + " event for " + path, event);
+        Assert.assertEquals(type, event.getType());
+        Assert.assertEquals(path, event.getPath());
+    }
+
+    /**
+     * The events are held much longer than the test waits for them, they
+     * have to be sent before the replies that follow them.
+     */
+    @Test
+    public void testDuplicateEventsSentOnce() throws Exception {
+        ZooKeeper zk = createClient(10 * CONNECTION_TIMEOUT);
+        try {
+            zk.create("/a", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            zk.addWatch("/a", watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+            zk.multi(Arrays.asList(
+                    Op.setData("/a", new byte[1], -1),
+                    Op.create("/a/b", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+                    Op.setData("/a", new byte[2], -1)));
+            assertEvent(EventType.NodeCreated, "/a/b");
+            assertEvent(EventType.NodeDataChanged, "/a");
+            Assert.assertTrue("Unexpected events " + events, events.isEmpty());
+
+            zk.setData("/a/b", new byte[1], -1);
+            assertEvent(EventType.NodeDataChanged, "/a/b");
+            Assert.assertTrue("Unexpected events " + events, events.isEmpty());
+        } finally {
+            zk.close();
+        }
+    }
+
+    @Test
+    public void testEventsSentWhenWindowEnds() throws Exception {
+        ZooKeeper watching = createClient(100);
+        ZooKeeper writing = createClient();
+        try {
+            writing.create("/a", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            watching.addWatch("/a", watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+            for (int i = 0; i < 10; i++) {
+                writing.create("/a/" + i, null, Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT);
+            }
+            for (int i = 0; i < 10; i++) {
+                assertEvent(EventType.NodeCreated, "/a/" + i);
+            }
+        } finally {
+            watching.close();
+            writing.close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.WatcherType;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PersistentWatcherTest extends ClientBase {
+    private ZooKeeper zk;
+
+    private final BlockingQueue<WatchedEvent> events =
+        new LinkedBlockingQueue<WatchedEvent>();
+
+    /** Queues all the node events, the connection state changes are left out. */
+    private final Watcher watcher = new Watcher() {
+        public void process(WatchedEvent event) {
+            if (event.getType() != EventType.None) {
+                events.add(event);
+            }
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        zk = createClient();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        zk.close();
+    }
+
+    private void create(String path) throws Exception {
+        zk.create(path, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    private void assertEvent(EventType type, String path) throws Exception {
+        WatchedEvent event = events.poll(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull("No " + type + " event for " + path, event);
+        Assert.assertEquals(type, event.getType());
+        Assert.assertEquals(path, event.getPath());
+    }
+
+    /**
+     * Make a change that triggers the watch and wait for its event, so none
+     * of the changes before it triggered anything.
+     */
+    private void assertNoMoreEvents(String path) throws Exception {
+        zk.setData(path, new byte[1], -1);
+        assertEvent(EventType.NodeDataChanged, path);
+        Assert.assertTrue("Unexpected events " + events, events.isEmpty());
+    }
+
+    @Test
+    public void testPersistentWatch() throws Exception {
+        zk.addWatch("/a", watcher, AddWatchMode.PERSISTENT);
+        create("/a");
+        assertEvent(EventType.NodeCreated, "/a");
+
+        // it stays after each event
+        zk.setData("/a", new byte[1], -1);
+        assertEvent(EventType.NodeDataChanged, "/a");
+        zk.setData("/a", new byte[2], -1);
+        assertEvent(EventType.NodeDataChanged, "/a");
+        create("/a/b");
+        assertEvent(EventType.NodeChildrenChanged, "/a");
+        create("/a/b/c");
+        zk.setData("/a/b", new byte[1], -1);
+        zk.delete("/a/b/c", -1);
+        zk.delete("/a/b", -1);
+        assertEvent(EventType.NodeChildrenChanged, "/a");
+        assertNoMoreEvents("/a");
+
+        zk.delete("/a", -1);
+        assertEvent(EventType.NodeDeleted, "/a");
+        create("/a");
+        assertEvent(EventType.NodeCreated, "/a");
+    }
+
+    @Test
+    public void testRecursiveWatch() throws Exception {
+        create("/a");
+        create("/x");
+        zk.addWatch("/a", watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+
+        create("/a/b");
+        assertEvent(EventType.NodeCreated, "/a/b");
+        create("/a/b/c");
+        assertEvent(EventType.NodeCreated, "/a/b/c");
+        zk.setData("/a/b/c", new byte[1], -1);
+        assertEvent(EventType.NodeDataChanged, "/a/b/c");
+        zk.delete("/a/b/c", -1);
+        assertEvent(EventType.NodeDeleted, "/a/b/c");
+
+        // siblings and nodes that only share a prefix of the name are not
+        // watched
+        create("/x/a");
+        create("/ab");
+        zk.setData("/x", new byte[1], -1);
+        assertNoMoreEvents("/a");
+    }
+
+    @Test
+    public void testRecursiveWatchOnRoot() throws Exception {
+        zk.addWatch("/", watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+        create("/a");
+        assertEvent(EventType.NodeCreated, "/a");
+        create("/a/b");
+        assertEvent(EventType.NodeCreated, "/a/b");
+    }
+
+    @Test
+    public void testOneShotWatchOnSamePath() throws Exception {
+        final BlockingQueue<WatchedEvent> oneShotEvents =
+            new LinkedBlockingQueue<WatchedEvent>();
+        create("/a");
+        zk.addWatch("/a", watcher, AddWatchMode.PERSISTENT);
+        zk.getData("/a", new Watcher() {
+            public void process(WatchedEvent event) {
+                oneShotEvents.add(event);
+            }
+        }, null);
+
+        zk.setData("/a", new byte[1], -1);
+        assertEvent(EventType.NodeDataChanged, "/a");
+        zk.setData("/a", new byte[2], -1);
+        assertEvent(EventType.NodeDataChanged, "/a");
+        Assert.assertEquals(1, oneShotEvents.size());
+    }
+
+    @Test
+    public void testRemoveAllWatches() throws Exception {
+        create("/a");
+        zk.addWatch("/a", watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+        zk.removeAllWatches("/a", WatcherType.Any, false);
+        assertEvent(EventType.PersistentWatchRemoved, "/a");
+
+        // the server doesn't send any event any more
+        zk.getData("/a", watcher, null);
+        create("/a/b");
+        assertNoMoreEvents("/a");
+    }
+
+    @Test
+    public void testWatchesSetAgainAfterReconnect() throws Exception {
+        CountdownWatcher connection = new CountdownWatcher();
+        ZooKeeper zk2 = createClient(connection);
+        try {
+            create("/a");
+            create("/p");
+            zk2.addWatch("/a", watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+            zk2.addWatch("/p", watcher, AddWatchMode.PERSISTENT);
+
+            stopServer();
+            connection.waitForDisconnected(CONNECTION_TIMEOUT);
+            startServer();
+            connection.waitForConnected(CONNECTION_TIMEOUT);
+            // the watches are set again before any later request of zk2
+            // is answered, so once this returns the server has them
+            zk2.exists("/a", false);
+
+            create("/a/b");
+            assertEvent(EventType.NodeCreated, "/a/b");
+            create("/p/q");
+            assertEvent(EventType.NodeChildrenChanged, "/p");
+        } finally {
+            zk2.close();
+        }
+    }
+
+    @Test
+    public void testChroot() throws Exception {
+        create("/chroot");
+        ZooKeeper chrootZk = createClient(hostPort + "/chroot");
+        try {
+            chrootZk.addWatch("/", watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+            create("/chroot/a");
+            assertEvent(EventType.NodeCreated, "/a");
+            create("/b");
+            create("/chroot/a/b");
+            assertEvent(EventType.NodeCreated, "/a/b");
+            Assert.assertTrue("Unexpected events " + events, events.isEmpty());
+        } finally {
+            chrootZk.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.proto.PollFirstChildResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PollFirstChildQuorumTest extends QuorumBase {
+
+    /**
+     * Every server takes the head of the queue, the followers forward the
+     * poll to the leader and get the child and its data back.
+     */
+    @Test
+    public void testPollOnEveryServer() throws Exception {
+        int ports[] = { portClient1, portClient2, portClient3, portClient4,
+                portClient5 };
+        ZooKeeper zk = createClient("127.0.0.1:" + portClient1);
+        try {
+            zk.create("/queue", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            for (int i = 0; i < ports.length; i++) {
+                zk.create("/queue/qn-", ("item" + i).getBytes(),
+                        Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+            }
+        } finally {
+            zk.close();
+        }
+
+        for (int i = 0; i < ports.length; i++) {
+            zk = createClient("127.0.0.1:" + ports[i]);
+            try {
+                PollFirstChildResponse rsp = zk.pollFirstChild("/queue");
+                Assert.assertEquals(String.format("qn-%010d", i), rsp.getChild());
+                Assert.assertEquals("item" + i, new String(rsp.getData()));
+                Assert.assertNull(zk.exists("/queue/" + rsp.getChild(), false));
+            } finally {
+                zk.close();
+            }
+        }
+
+        zk = createClient("127.0.0.1:" + portClient2);
+        try {
+            zk.pollFirstChild("/queue");
+            Assert.fail("Should have thrown NoNodeException");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        } finally {
+            zk.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback.PollFirstChildCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.proto.PollFirstChildResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SequentialChildTest extends ClientBase {
+    private ZooKeeper zk;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        zk = createClient();
+        zk.create("/queue", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        zk.close();
+    }
+
+    private String offer(String prefix, String data) throws Exception {
+        String path = zk.create("/queue/" + prefix, data.getBytes(),
+                Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+        return path.substring("/queue/".length());
+    }
+
+    @Test
+    public void testFirstChildAndPredecessor() throws Exception {
+        Assert.assertNull(zk.getFirstChild("/queue", false));
+        String b = offer("b-", "1");
+        String a = offer("a-", "2");
+        zk.create("/queue/config", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        Assert.assertEquals(b, zk.getFirstChild("/queue", false));
+        Assert.assertEquals(b, zk.getPredecessor("/queue/" + a, false));
+        Assert.assertNull(zk.getPredecessor("/queue/" + b, false));
+
+        try {
+            zk.getPredecessor("/queue/config", false);
+            Assert.fail("Should have thrown BadArgumentsException");
+        } catch (KeeperException.BadArgumentsException e) {
+            // expected
+        }
+        try {
+            zk.getFirstChild("/missing", false);
+            Assert.fail("Should have thrown NoNodeException");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPredecessorWatch() throws Exception {
+        String first = offer("lock-", "");
+        String second = offer("lock-", "");
+        final LinkedBlockingQueue<WatchedEvent> events =
+            new LinkedBlockingQueue<WatchedEvent>();
+        ZooKeeper chroot = createClient(hostPort + "/queue");
+        try {
+            Assert.assertEquals(first, chroot.getPredecessor("/" + second,
+                    new Watcher() {
+                        @Override
+                        public void process(WatchedEvent event) {
+                            events.add(event);
+                        }
+                    }));
+            zk.delete("/queue/" + first, -1);
+            WatchedEvent event = events.poll(CONNECTION_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+            Assert.assertNotNull(event);
+            Assert.assertEquals(EventType.NodeDeleted, event.getType());
+            Assert.assertEquals("/" + first, event.getPath());
+        } finally {
+            chroot.close();
+        }
+    }
+
+    @Test
+    public void testPollFirstChild() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            offer("qn-", "item" + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            PollFirstChildResponse rsp = zk.pollFirstChild("/queue");
+            Assert.assertEquals(String.format("qn-%010d", i), rsp.getChild());
+            Assert.assertEquals("item" + i, new String(rsp.getData()));
+        }
+        Assert.assertEquals(0, zk.exists("/queue", false).getNumChildren());
+        try {
+            zk.pollFirstChild("/queue");
+            Assert.fail("Should have thrown NoNodeException");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPipelinedPolls() throws Exception {
+        final int count = 50;
+        for (int i = 0; i < count; i++) {
+            offer("qn-", "item" + i);
+        }
+        // Polls that are in flight together each take a different child
+        final Set<String> taken = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch latch = new CountDownLatch(count + 1);
+        final int[] empty = new int[1];
+        PollFirstChildCallback cb = new PollFirstChildCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                    String child, byte[] data) {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    taken.add(new String(data));
+                } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                    empty[0]++;
+                }
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i <= count; i++) {
+            zk.pollFirstChild("/queue", cb, null);
+        }
+        Assert.assertTrue(latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(count, taken.size());
+        Assert.assertEquals(1, empty[0]);
+    }
+}
@@ -25,11 +25,8 @@
 import static org.apache.zookeeper.CreateMode.EPHEMERAL_SEQUENTIAL;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
-import org.apache.zookeeper.data.Stat;
 
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 /**
  * A <a href="package.html">protocol to implement an exclusive
@@ -45,7 +42,6 @@ public class WriteLock extends ProtocolSupport {
 
     private final String dir;
     private String id;
-    private ZNodeName idName;
     private String ownerId;
     private String lastChildId;
     private byte[] data = {0x12, 0x34};
@@ -209,36 +205,32 @@ public boolean execute() throws KeeperException, InterruptedException {
                     // lets try look up the current ID if we failed 
                     // in the middle of creating the znode
                     findPrefixInChildren(prefix, zookeeper, dir);
-                    idName = new ZNodeName(id);
                 }
                 if (id != null) {
-                    List<String> names = zookeeper.getChildren(dir, false);
-                    if (names.isEmpty()) {
+                    // the server keeps the sequential children ordered, so
+                    // we only ask for the owner and the node right before us
+                    String first = zookeeper.getFirstChild(dir, false);
+                    if (first == null) {
                         LOG.warn("No children in: " + dir + " when we've just " +
                         "created one! Lets recreate it...");
                         // lets force the recreation of the id
                         id = null;
                     } else {
-                        // lets sort them explicitly (though they do seem to come back in order ususally :)
-                        SortedSet<ZNodeName> sortedNames = new TreeSet<ZNodeName>();
-                        for (String name : names) {
-                            sortedNames.add(new ZNodeName(dir + "/" + name));
+                        ownerId = dir + "/" + first;
+                        String lessThanMe;
+                        try {
+                            lessThanMe = zookeeper.getPredecessor(id, new LockWatcher());
+                        } catch (KeeperException.NoNodeException e) {
+                            LOG.warn("Our node " + id + " is gone! Lets recreate it...");
+                            id = null;
+                            continue;
                         }
-                        ownerId = sortedNames.first().getName();
-                        SortedSet<ZNodeName> lessThanMe = sortedNames.headSet(idName);
-                        if (!lessThanMe.isEmpty()) {
-                            ZNodeName lastChildName = lessThanMe.last();
-                            lastChildId = lastChildName.getName();
+                        if (lessThanMe != null) {
+                            lastChildId = dir + "/" + lessThanMe;
                             if (LOG.isDebugEnabled()) {
                                 LOG.debug("watching less than me node: " + lastChildId);
                             }
-                            Stat stat = zookeeper.exists(lastChildId, new LockWatcher());
-                            if (stat != null) {
-                                return Boolean.FALSE;
-                            } else {
-                                LOG.warn("Could not find the" +
-                                		" stats for less than me: " + lastChildName.getName());
-                            }
+                            return Boolean.FALSE;
                         } else {
                             if (isOwner()) {
                                 if (callback != null) {
@@ -19,9 +19,7 @@
 package org.apache.zookeeper.recipes.queue;
 
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
 
 import org.slf4j.Logger;
@@ -33,7 +31,6 @@
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
-import org.apache.zookeeper.data.Stat;
 
 /**
  * 
@@ -64,82 +61,6 @@ public DistributedQueue(ZooKeeper zookeeper, String dir, List<ACL> acl){
 
 
 
-    /**
-     * Returns a Map of the children, ordered by id.
-     * @param watcher optional watcher on getChildren() operation.
-     * @return map from id to child name for all children
-     */
-    private Map<Long,String> orderedChildren(Watcher watcher) throws KeeperException, InterruptedException {
-        Map<Long,String> orderedChildren = new TreeMap<Long,String>();
-
-        List<String> childNames = null;
-        try{
-            childNames = zookeeper.getChildren(dir, watcher);
-        }catch (KeeperException.NoNodeException e){
-            throw e;
-        }
-
-        for(String childName : childNames){
-            try{
-                //Check format
-                if(!childName.regionMatches(0, prefix, 0, prefix.length())){
-                    LOG.warn("Found child node with improper name: " + childName);
-                    continue;
-                }
-                String suffix = childName.substring(prefix.length());
-                Long childId = new Long(suffix);
-                orderedChildren.put(childId,childName);
-            }catch(NumberFormatException e){
-                LOG.warn("Found child node with improper format : " + childName + " " + e,e);
-            }
-        }
-
-        return orderedChildren;
-    }
-
-    /**
-     * Find the smallest child node.
-     * @return The name of the smallest child node.
-     */
-    private String smallestChildName() throws KeeperException, InterruptedException {
-        long minId = Long.MAX_VALUE;
-        String minName = "";
-
-        List<String> childNames = null;
-
-        try{
-            childNames = zookeeper.getChildren(dir, false);
-        }catch(KeeperException.NoNodeException e){
-            LOG.warn("Caught: " +e,e);
-            return null;
-        }
-
-        for(String childName : childNames){
-            try{
-                //Check format
-                if(!childName.regionMatches(0, prefix, 0, prefix.length())){
-                    LOG.warn("Found child node with improper name: " + childName);
-                    continue;
-                }
-                String suffix = childName.substring(prefix.length());
-                long childId = Long.parseLong(suffix);
-                if(childId < minId){
-                    minId = childId;
-                    minName = childName;
-                }
-            }catch(NumberFormatException e){
-                LOG.warn("Found child node with improper format : " + childName + " " + e,e);
-            }
-        }
-
-
-        if(minId < Long.MAX_VALUE){
-            return minName;
-        }else{
-            return null;
-        }
-    }
-
     /**
      * Return the head of the queue without modifying the queue.
      * @return the data at the head of the queue.
@@ -148,31 +69,24 @@ private String smallestChildName() throws KeeperException, InterruptedException
      * @throws InterruptedException
      */
     public byte[] element() throws NoSuchElementException, KeeperException, InterruptedException {
-        Map<Long,String> orderedChildren;
-
-        // element, take, and remove follow the same pattern.
-        // We want to return the child node with the smallest sequence number.
-        // Since other clients are remove()ing and take()ing nodes concurrently, 
-        // the child with the smallest sequence number in orderedChildren might be gone by the time we check.
-        // We don't call getChildren again until we have tried the rest of the nodes in sequence order.
+        // The server keeps the children ordered by sequence number and
+        // tells us the smallest one. Since other clients are remove()ing
+        // and take()ing nodes concurrently, it might be gone by the time
+        // we read it, in which case we ask again.
         while(true){
+            String headNode;
             try{
-                orderedChildren = orderedChildren(null);
+                headNode = zookeeper.getFirstChild(dir, false);
             }catch(KeeperException.NoNodeException e){
                 throw new NoSuchElementException();
             }
-            if(orderedChildren.size() == 0 ) throw new NoSuchElementException();
+            if(headNode == null) throw new NoSuchElementException();
 
-            for(String headNode : orderedChildren.values()){
-                if(headNode != null){
-                    try{
-                        return zookeeper.getData(dir+"/"+headNode, false, null);
-                    }catch(KeeperException.NoNodeException e){
-                        //Another client removed the node first, try next
-                    }
-                }
+            try{
+                return zookeeper.getData(dir+"/"+headNode, false, null);
+            }catch(KeeperException.NoNodeException e){
+                //Another client removed the node first, try next
             }
-
         }
     }
 
@@ -185,27 +99,12 @@ public byte[] element() throws NoSuchElementException, KeeperException, Interrup
      * @throws InterruptedException
      */
     public byte[] remove() throws NoSuchElementException, KeeperException, InterruptedException {
-        Map<Long,String> orderedChildren;
-        // Same as for element.  Should refactor this.
-        while(true){
-            try{
-                orderedChildren = orderedChildren(null);
-            }catch(KeeperException.NoNodeException e){
-                throw new NoSuchElementException();
-            }
-            if(orderedChildren.size() == 0) throw new NoSuchElementException();
-
-            for(String headNode : orderedChildren.values()){
-                String path = dir +"/"+headNode;
-                try{
-                    byte[] data = zookeeper.getData(path, false, null);
-                    zookeeper.delete(path, -1);
-                    return data;
-                }catch(KeeperException.NoNodeException e){
-                    // Another client deleted the node first.
-                }
-            }
-
+        // The server picks and deletes the head in one step, so there is
+        // no race with other consumers to retry
+        try{
+            return zookeeper.pollFirstChild(dir).getData();
+        }catch(KeeperException.NoNodeException e){
+            throw new NoSuchElementException();
         }
     }
 
@@ -235,30 +134,19 @@ public void await() throws InterruptedException {
      * @throws InterruptedException
      */
     public byte[] take() throws KeeperException, InterruptedException {
-        Map<Long,String> orderedChildren;
-        // Same as for element.  Should refactor this.
         while(true){
-            LatchChildWatcher childWatcher = new LatchChildWatcher();
             try{
-                orderedChildren = orderedChildren(childWatcher);
+                return zookeeper.pollFirstChild(dir).getData();
             }catch(KeeperException.NoNodeException e){
-                zookeeper.create(dir, new byte[0], acl, CreateMode.PERSISTENT);
-                continue;
-            }
-            if(orderedChildren.size() == 0){
-                childWatcher.await();
-                continue;
+                // The queue is empty or doesn't exist yet
             }
-
-            for(String headNode : orderedChildren.values()){
-                String path = dir +"/"+headNode;
-                try{
-                    byte[] data = zookeeper.getData(path, false, null);
-                    zookeeper.delete(path, -1);
-                    return data;
-                }catch(KeeperException.NoNodeException e){
-                    // Another client deleted the node first.
+            LatchChildWatcher childWatcher = new LatchChildWatcher();
+            try{
+                if(zookeeper.getFirstChild(dir, childWatcher) == null){
+                    childWatcher.await();
                 }
+            }catch(KeeperException.NoNodeException e){
+                zookeeper.create(dir, new byte[0], acl, CreateMode.PERSISTENT);
             }
         }
     }